@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.IOUtils;
+import org.opencastproject.mediapackage.DefaultMediaPackageSerializerImpl;
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageBuilder;
+import org.opencastproject.mediapackage.MediaPackageBuilderFactory;
+import org.opencastproject.mediapackage.MediaPackageElement;
+
+import java.io.File;
+import java.io.InputStream;
+
+/**
+ * Fixtures shared by the benchmarks.
+ */
+final class BenchmarkSupport {
+
+  private BenchmarkSupport() {
+  }
+
+  /**
+   * Loads the mediapackage of the functional tests and adds <code>copies</code> copies of each of its tracks, so that
+   * the package resembles a long recording with many distributed derivatives.
+   */
+  static MediaPackage loadMediaPackage(int copies) throws Exception {
+    File mediaPackageRoot = new File(BenchmarkSupport.class.getResource("/mediapackage.xml").toURI()).getParentFile();
+    MediaPackageBuilder builder = MediaPackageBuilderFactory.newInstance().newMediaPackageBuilder();
+    builder.setSerializer(new DefaultMediaPackageSerializerImpl(mediaPackageRoot));
+    MediaPackage mediaPackage = null;
+    InputStream is = null;
+    try {
+      is = BenchmarkSupport.class.getResourceAsStream("/mediapackage.xml");
+      mediaPackage = builder.loadFromXml(is);
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    for (MediaPackageElement track : mediaPackage.getTracks()) {
+      for (int i = 0; i < copies; i++) {
+        MediaPackageElement copy = (MediaPackageElement) track.clone();
+        copy.setIdentifier(track.getIdentifier() + "-" + i);
+        mediaPackage.add(copy);
+      }
+    }
+    return mediaPackage;
+  }
+
+}
@@ -0,0 +1,75 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageElement;
+import org.opencastproject.util.UrlSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.net.URI;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the construction of distribution paths and URIs, which happens for every element of every distribution and
+ * retraction.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class DistributionPathBenchmark {
+
+  private HLSDistributionServiceImpl service = null;
+  private MediaPackage mediaPackage = null;
+  private MediaPackageElement element = null;
+  private String mediaPackageId = null;
+
+  @Setup
+  public void setUp() throws Exception {
+    service = new HLSDistributionServiceImpl();
+    service.distributionDirectory = new File("target", "benchmarks/path").getAbsoluteFile();
+    service.serviceUrl = UrlSupport.DEFAULT_BASE_URL;
+    mediaPackage = BenchmarkSupport.loadMediaPackage(0);
+    element = mediaPackage.getElementById("track-h264");
+    mediaPackageId = mediaPackage.getIdentifier().compact();
+  }
+
+  @Benchmark
+  public File distributionFile() {
+    return service.getDistributionFile(mediaPackage, element);
+  }
+
+  @Benchmark
+  public URI distributionUri() throws Exception {
+    return service.getDistributionUri(mediaPackageId, element);
+  }
+
+}
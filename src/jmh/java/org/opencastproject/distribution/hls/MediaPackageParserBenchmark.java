@@ -0,0 +1,76 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageParser;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the mediapackage round trip every distribution job pays for: the REST endpoint parses the mediapackage, the
+ * job payload serializes it and the job producer parses it again.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class MediaPackageParserBenchmark {
+
+  /** Number of copies of each track of the test mediapackage */
+  @Param({ "0", "10", "100", "500" })
+  public int copies;
+
+  private MediaPackage mediaPackage = null;
+  private String xml = null;
+
+  @Setup
+  public void setUp() throws Exception {
+    mediaPackage = BenchmarkSupport.loadMediaPackage(copies);
+    xml = MediaPackageParser.getAsXml(mediaPackage);
+  }
+
+  @Benchmark
+  public String serialize() {
+    return MediaPackageParser.getAsXml(mediaPackage);
+  }
+
+  @Benchmark
+  public MediaPackage parse() throws Exception {
+    return MediaPackageParser.getFromXml(xml);
+  }
+
+  @Benchmark
+  public MediaPackage roundTrip() throws Exception {
+    return MediaPackageParser.getFromXml(MediaPackageParser.getAsXml(mediaPackage));
+  }
+
+}
@@ -0,0 +1,111 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link FFmpegHLSEncoderEngine#relitiviseAndMovePlaylist(File, File, IOScheduler,
+ * FFmpegHLSEncoderEngine.MoveOptions)} on playlists of increasing length. Every iteration moves a freshly written
+ * segment set, so the benchmark runs in single shot mode.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class PlaylistBenchmark {
+
+  /** Size of the synthetic segments, one second of a 1 Mbit/s stream */
+  private static final int SEGMENT_SIZE = 188 * 665;
+
+  /** Number of segments in the playlist */
+  @Param({ "10", "100", "1000", "10000" })
+  public int entries;
+
+  /** Whether the integrity manifest is written */
+  @Param({ "false", "true" })
+  public boolean integrity;
+
+  private final IOScheduler io = new IOScheduler();
+
+  private final byte[] segment = new byte[SEGMENT_SIZE];
+
+  private File root = null;
+  private File m3u8 = null;
+  private File destination = null;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws IOException {
+    root = new File("target", "benchmarks/playlist");
+    FileUtils.deleteQuietly(root);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException {
+    File source = new File(root, "source");
+    FileUtils.forceMkdir(source);
+    StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:10\n");
+    for (int i = 0; i < entries; i++) {
+      String name = String.format("media-%05d.ts", i);
+      OutputStream out = new FileOutputStream(new File(source, name));
+      try {
+        out.write(segment);
+      } finally {
+        out.close();
+      }
+      playlist.append("#EXTINF:10.000000,\n").append(name).append("\n");
+    }
+    playlist.append("#EXT-X-ENDLIST\n");
+    m3u8 = new File(source, "media.m3u8");
+    FileUtils.writeStringToFile(m3u8, playlist.toString(), "UTF-8");
+    destination = new File(new File(root, "distribution"), "media.mov.m3u8");
+  }
+
+  @TearDown(Level.Iteration)
+  public void tearDown() {
+    FileUtils.deleteQuietly(root);
+  }
+
+  @Benchmark
+  public List<File> relativiseAndMove() throws Exception {
+    return FFmpegHLSEncoderEngine.relitiviseAndMovePlaylist(m3u8, destination, io,
+            new FFmpegHLSEncoderEngine.MoveOptions().segmentPrefix("media.mov").integrity(integrity));
+  }
+
+}
@@ -0,0 +1,112 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageElement;
+import org.opencastproject.mediapackage.MediaPackageReferenceImpl;
+import org.opencastproject.util.UrlSupport;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the retraction of an indexed element directory holding a large number of segments, as left behind by a
+ * multi-hour recording with several renditions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5)
+@Measurement(iterations = 20)
+@Fork(1)
+public class RetractBenchmark {
+
+  /** Identifier of the distributed element */
+  private static final String DISTRIBUTED_ID = "track-h264-distributed";
+
+  /** Number of segments in the element directory */
+  @Param({ "100", "1000", "10000" })
+  public int segments;
+
+  private File root = null;
+  private HLSDistributionServiceImpl service = null;
+  private MediaPackage mediaPackage = null;
+  private File elementDir = null;
+
+  @Setup(Level.Trial)
+  public void setUpTrial() throws Exception {
+    root = new File("target", "benchmarks/retract").getAbsoluteFile();
+    FileUtils.deleteQuietly(root);
+    service = new HLSDistributionServiceImpl();
+    service.distributionDirectory = new File(root, "static");
+    service.serviceUrl = UrlSupport.DEFAULT_BASE_URL;
+    service.index = new DistributionIndex(new File(root, "index"));
+
+    mediaPackage = BenchmarkSupport.loadMediaPackage(0);
+    MediaPackageElement track = mediaPackage.getElementById("track-h264");
+    MediaPackageElement distributed = (MediaPackageElement) track.clone();
+    distributed.setIdentifier(DISTRIBUTED_ID);
+    distributed.setReference(new MediaPackageReferenceImpl(track));
+    mediaPackage.add(distributed);
+    elementDir = service.getDistributedFile(mediaPackage, distributed);
+  }
+
+  @Setup(Level.Iteration)
+  public void setUp() throws IOException {
+    FileUtils.forceMkdir(elementDir);
+    StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-TARGETDURATION:10\n");
+    for (int i = 0; i < segments; i++) {
+      String name = String.format("media.mov-%05d.ts", i);
+      FileUtils.writeByteArrayToFile(new File(elementDir, name), new byte[188]);
+      playlist.append("#EXTINF:10.000000,\n").append(name).append("\n");
+    }
+    playlist.append("#EXT-X-ENDLIST\n");
+    FileUtils.writeStringToFile(new File(elementDir, "media.mov.m3u8"), playlist.toString(), "UTF-8");
+    String mediaPackageId = mediaPackage.getIdentifier().compact();
+    service.index.put(DistributionIndex.describe(service.distributionDirectory, mediaPackageId,
+            elementDir.getName(), null));
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDownTrial() throws IOException {
+    service.index.close();
+    FileUtils.deleteQuietly(root);
+  }
+
+  @Benchmark
+  public MediaPackageElement retract() throws Exception {
+    return service.retract(null, mediaPackage, DISTRIBUTED_ID);
+  }
+
+}
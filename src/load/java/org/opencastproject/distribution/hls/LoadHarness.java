@@ -0,0 +1,364 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.easymock.EasyMock;
+import org.easymock.IAnswer;
+import org.opencastproject.job.api.Job;
+import org.opencastproject.mediapackage.MediaPackage;
+import org.opencastproject.mediapackage.MediaPackageElement;
+import org.opencastproject.mediapackage.MediaPackageElementParser;
+import org.opencastproject.mediapackage.MediaPackageParser;
+import org.opencastproject.security.api.DefaultOrganization;
+import org.opencastproject.security.api.Organization;
+import org.opencastproject.security.api.OrganizationDirectoryService;
+import org.opencastproject.security.api.SecurityService;
+import org.opencastproject.security.api.User;
+import org.opencastproject.security.api.UserDirectoryService;
+import org.opencastproject.serviceregistry.api.ServiceRegistry;
+import org.opencastproject.serviceregistry.api.ServiceRegistryInMemoryImpl;
+import org.opencastproject.workspace.api.Workspace;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.ComponentContext;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.net.URI;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives the distribution service through the in-memory service registry with a large number of concurrent distribute
+ * and retract jobs and reports the throughput, the job latencies, the file system operations and the heap usage.
+ * <p>
+ * ffmpeg is replaced by a shell script writing synthetic segments of a configurable size, number and encoding delay, so
+ * the harness runs on any Linux box without media or codecs. It is configured by system properties:
+ * <ul>
+ * <li><code>load.jobs</code>: number of distributions (default 2000)</li>
+ * <li><code>load.concurrency</code>: number of jobs submitted but not yet finished (default 500)</li>
+ * <li><code>load.retracts</code>: fraction of the distributions retracted again (default 0.5)</li>
+ * <li><code>load.segments</code>: segments written per distribution (default 60)</li>
+ * <li><code>load.segmentSize</code>: bytes per segment (default 1250000, 10 seconds at 1 Mbit/s)</li>
+ * <li><code>load.encodeDelay</code>: seconds ffmpeg takes per job (default 2)</li>
+ * <li><code>load.failures</code>: percentage of encodings that fail (default 0)</li>
+ * <li><code>load.directory</code>: working directory (default target/load)</li>
+ * <li><code>load.report</code>: file the report is written to, if set</li>
+ * </ul>
+ * Any other system property starting with <code>org.opencastproject.</code> is passed to the service configuration.
+ */
+public final class LoadHarness {
+
+  /** The element distributed in every session */
+  private static final String TRACK_ID = "track-h264";
+
+  /** Interval at which outstanding jobs are polled, in milliseconds */
+  private static final long POLL_INTERVAL = 50;
+
+  /** Size of a transport stream packet */
+  private static final int PACKET_SIZE = 188;
+
+  private final int jobs = Integer.getInteger("load.jobs", 2000);
+  private final int concurrency = Integer.getInteger("load.concurrency", 500);
+  private final double retracts = Double.parseDouble(System.getProperty("load.retracts", "0.5"));
+  private final int segments = Integer.getInteger("load.segments", 60);
+  private final int segmentSize = Integer.getInteger("load.segmentSize", 1250000);
+  private final int encodeDelay = Integer.getInteger("load.encodeDelay", 2);
+  private final int failures = Integer.getInteger("load.failures", 0);
+  private final File directory = new File(System.getProperty("load.directory", "target/load"));
+
+  private final Random random = new Random(42);
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  private final LatencyHistogram distributeLatency = new LatencyHistogram();
+  private final LatencyHistogram retractLatency = new LatencyHistogram();
+  private final AtomicInteger failed = new AtomicInteger();
+  private long peakHeap = 0;
+
+  private HLSDistributionServiceImpl service = null;
+  private ServiceRegistry serviceRegistry = null;
+  private String template = null;
+
+  private LoadHarness() {
+  }
+
+  public static void main(String[] args) throws Exception {
+    LoadHarness harness = new LoadHarness();
+    harness.setUp();
+    long start = System.nanoTime();
+    harness.run();
+    String report = harness.report((System.nanoTime() - start) / 1000000L);
+    System.out.println(report);
+    if (System.getProperty("load.report") != null)
+      FileUtils.writeStringToFile(new File(System.getProperty("load.report")), report, "UTF-8");
+    System.exit(harness.failed.get() > 0 && harness.failures == 0 ? 1 : 0);
+  }
+
+  /**
+   * Writes the ffmpeg stand-in and activates the service on top of the in-memory service registry.
+   */
+  private void setUp() throws Exception {
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+    File ffmpeg = writeStandIn(new File(directory, "ffmpeg"));
+
+    InputStream is = LoadHarness.class.getResourceAsStream("/mediapackage.xml");
+    try {
+      template = IOUtils.toString(is, "UTF-8");
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+
+    User anonymous = new User("anonymous", DefaultOrganization.DEFAULT_ORGANIZATION_ID,
+            new String[] { DefaultOrganization.DEFAULT_ORGANIZATION_ANONYMOUS });
+    UserDirectoryService userDirectoryService = EasyMock.createNiceMock(UserDirectoryService.class);
+    EasyMock.expect(userDirectoryService.loadUser((String) EasyMock.anyObject())).andReturn(anonymous).anyTimes();
+    EasyMock.replay(userDirectoryService);
+
+    Organization organization = new DefaultOrganization();
+    OrganizationDirectoryService organizationDirectoryService = EasyMock
+            .createNiceMock(OrganizationDirectoryService.class);
+    EasyMock.expect(organizationDirectoryService.getOrganization((String) EasyMock.anyObject()))
+            .andReturn(organization).anyTimes();
+    EasyMock.replay(organizationDirectoryService);
+
+    SecurityService securityService = EasyMock.createNiceMock(SecurityService.class);
+    EasyMock.expect(securityService.getUser()).andReturn(anonymous).anyTimes();
+    EasyMock.expect(securityService.getOrganization()).andReturn(organization).anyTimes();
+    EasyMock.replay(securityService);
+
+    // Every session has its own source file, which the workspace hands out as is
+    Workspace workspace = EasyMock.createNiceMock(Workspace.class);
+    EasyMock.expect(workspace.get((URI) EasyMock.anyObject())).andAnswer(new IAnswer<File>() {
+      @Override
+      public File answer() throws Throwable {
+        return new File((URI) EasyMock.getCurrentArguments()[0]);
+      }
+    }).anyTimes();
+    EasyMock.replay(workspace);
+
+    final Map<String, String> properties = new HashMap<String, String>();
+    properties.put("org.opencastproject.hls.url", new File(directory, "static").toURI().toString());
+    properties.put("org.opencastproject.hls.directory", new File(directory, "static").getAbsolutePath());
+    properties.put(HLSDistributionServiceImpl.INDEX_DIRECTORY_KEY, new File(directory, "index").getAbsolutePath());
+    properties.put(HLSDistributionServiceImpl.FFMPEG_PATH_KEY, ffmpeg.getAbsolutePath());
+    Properties system = System.getProperties();
+    for (String key : system.stringPropertyNames()) {
+      if (key.startsWith("org.opencastproject."))
+        properties.put(key, system.getProperty(key));
+    }
+    BundleContext bc = EasyMock.createNiceMock(BundleContext.class);
+    EasyMock.expect(bc.getProperty((String) EasyMock.anyObject())).andAnswer(new IAnswer<String>() {
+      @Override
+      public String answer() throws Throwable {
+        return properties.get(EasyMock.getCurrentArguments()[0]);
+      }
+    }).anyTimes();
+    ComponentContext cc = EasyMock.createNiceMock(ComponentContext.class);
+    EasyMock.expect(cc.getBundleContext()).andReturn(bc).anyTimes();
+    EasyMock.replay(bc, cc);
+
+    service = new HLSDistributionServiceImpl();
+    service.setUserDirectoryService(userDirectoryService);
+    service.setOrganizationDirectoryService(organizationDirectoryService);
+    service.setSecurityService(securityService);
+    service.setWorkspace(workspace);
+    serviceRegistry = new ServiceRegistryInMemoryImpl(service, securityService, userDirectoryService,
+            organizationDirectoryService);
+    service.setServiceRegistry(serviceRegistry);
+    service.activate(cc);
+  }
+
+  /**
+   * Writes the ffmpeg stand-in script and the segment it copies.
+   */
+  private File writeStandIn(File file) throws IOException {
+    File segment = new File(directory, "segment.ts");
+    if (!segment.isFile()) {
+      // Null packets, which the key frame indexer skips like any other non-video packet
+      byte[] data = new byte[segmentSize / PACKET_SIZE * PACKET_SIZE];
+      for (int i = 0; i < data.length; i += PACKET_SIZE) {
+        data[i] = 0x47;
+        data[i + 1] = 0x1F;
+        data[i + 2] = (byte) 0xFF;
+        data[i + 3] = 0x10;
+        for (int j = 4; j < PACKET_SIZE; j++)
+          data[i + j] = (byte) 0xFF;
+      }
+      FileUtils.writeByteArrayToFile(segment, data);
+    }
+    InputStream is = LoadHarness.class.getResourceAsStream("/ffmpeg-standin.sh");
+    try {
+      StringBuilder script = new StringBuilder("#!/bin/sh\n");
+      script.append("SEGMENTS=").append(segments).append("\n");
+      script.append("DURATION=").append(FFmpegHLSEncoderEngine.SEGMENT_DURATION).append("\n");
+      script.append("DELAY=").append(encodeDelay).append("\n");
+      script.append("TEMPLATE='").append(segment.getAbsolutePath()).append("'\n");
+      script.append("FAILURES=").append(failures).append("\n");
+      script.append(IOUtils.toString(is, "UTF-8"));
+      FileUtils.writeStringToFile(file, script.toString(), "UTF-8");
+    } finally {
+      IOUtils.closeQuietly(is);
+    }
+    if (!file.setExecutable(true))
+      throw new IOException("Unable to make " + file + " executable");
+    return file;
+  }
+
+  /**
+   * Submits the distributions, keeping at most {@link #concurrency} jobs outstanding, and retracts a share of them
+   * once they are finished.
+   */
+  private void run() throws Exception {
+    Semaphore permits = new Semaphore(concurrency);
+    List<Session> outstanding = new ArrayList<Session>();
+    int submitted = 0;
+    while (submitted < jobs || !outstanding.isEmpty()) {
+      while (submitted < jobs && permits.tryAcquire()) {
+        Session session = new Session(submitted++);
+        session.distribute();
+        outstanding.add(session);
+      }
+      Thread.sleep(POLL_INTERVAL);
+      peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+      for (Iterator<Session> i = outstanding.iterator(); i.hasNext();) {
+        Session session = i.next();
+        if (!session.poll())
+          continue;
+        if (session.retracting || session.failed || random.nextDouble() >= retracts) {
+          i.remove();
+          permits.release();
+        } else {
+          session.retract();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the report as a JSON document.
+   */
+  private String report(long millis) {
+    StringBuilder report = new StringBuilder("{\n");
+    report.append("  \"date\": \"").append(new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ").format(new Date()))
+            .append("\",\n");
+    report.append("  \"settings\": { \"jobs\": ").append(jobs).append(", \"concurrency\": ").append(concurrency)
+            .append(", \"retracts\": ").append(retracts).append(", \"segments\": ").append(segments)
+            .append(", \"segmentSize\": ").append(segmentSize).append(", \"encodeDelay\": ").append(encodeDelay)
+            .append(", \"failures\": ").append(failures).append(" },\n");
+    report.append("  \"durationMillis\": ").append(millis).append(",\n");
+    long finished = distributeLatency.getCount() + retractLatency.getCount();
+    report.append("  \"jobsPerSecond\": ").append(String.format("%.2f", finished * 1000.0 / Math.max(1, millis)))
+            .append(",\n");
+    report.append("  \"failedJobs\": ").append(failed.get()).append(",\n");
+    report.append("  \"distribute\": ").append(toJson(distributeLatency)).append(",\n");
+    report.append("  \"retract\": ").append(toJson(retractLatency)).append(",\n");
+    report.append("  \"phases\": {");
+    String separator = "\n";
+    for (DistributionMetrics.Phase phase : DistributionMetrics.Phase.values()) {
+      report.append(separator).append("    \"").append(phase).append("\": ")
+              .append(toJson(service.getMetrics().getPhase(phase)));
+      separator = ",\n";
+    }
+    report.append("\n  },\n");
+    report.append("  \"fileSystem\": { \"publishOperations\": ").append(service.io.getPublishOperations())
+            .append(", \"publishBytes\": ").append(service.io.getPublishBytes())
+            .append(", \"reclaimOperations\": ").append(service.io.getReclaimOperations())
+            .append(", \"reclaimBytes\": ").append(service.io.getReclaimBytes()).append(" },\n");
+    report.append("  \"heap\": { \"peakBytes\": ").append(peakHeap).append(", \"finalBytes\": ")
+            .append(memory.getHeapMemoryUsage().getUsed()).append(", \"maxBytes\": ")
+            .append(memory.getHeapMemoryUsage().getMax()).append(" },\n");
+    report.append("  \"threads\": { \"peak\": ").append(ManagementFactory.getThreadMXBean().getPeakThreadCount())
+            .append(" }\n");
+    report.append("}\n");
+    return report.toString();
+  }
+
+  private static String toJson(LatencyHistogram histogram) {
+    return "{ \"count\": " + histogram.getCount() + ", \"meanMillis\": "
+            + String.format("%.1f", histogram.getMeanMillis()) + ", \"medianMillis\": " + histogram.getMedianMillis()
+            + ", \"95thPercentileMillis\": " + histogram.get95thPercentileMillis() + ", \"99thPercentileMillis\": "
+            + histogram.get99thPercentileMillis() + ", \"maxMillis\": " + histogram.getMaxMillis() + " }";
+  }
+
+  /**
+   * A mediapackage that is distributed and possibly retracted again.
+   */
+  private final class Session {
+
+    private final MediaPackage mediaPackage;
+
+    private Job job = null;
+
+    private long submitted = 0;
+
+    private boolean retracting = false;
+
+    private boolean failed = false;
+
+    Session(int number) throws Exception {
+      File source = new File(directory, "sources/" + number + "/media.mov");
+      FileUtils.writeByteArrayToFile(source, new byte[PACKET_SIZE]);
+      String xml = template.replace("id=\"10.0000/1\"", "id=\"load/" + number + "\"").replace(
+              "<url>media.mov</url>", "<url>" + source.toURI() + "</url>");
+      mediaPackage = MediaPackageParser.getFromXml(xml);
+    }
+
+    void distribute() throws Exception {
+      submitted = System.nanoTime();
+      job = service.distribute(mediaPackage, TRACK_ID, false);
+    }
+
+    void retract() throws Exception {
+      MediaPackageElement element = MediaPackageElementParser.getFromXml(job.getPayload());
+      mediaPackage.add(element);
+      retracting = true;
+      submitted = System.nanoTime();
+      job = service.retract(mediaPackage, element.getIdentifier());
+    }
+
+    /**
+     * Returns whether the current job is done, recording its latency if so.
+     */
+    boolean poll() throws Exception {
+      job = serviceRegistry.getJob(job.getId());
+      if (job.getStatus() != Job.Status.FINISHED && job.getStatus() != Job.Status.FAILED)
+        return false;
+      (retracting ? retractLatency : distributeLatency).recordSince(submitted);
+      if (job.getStatus() == Job.Status.FAILED) {
+        failed = true;
+        LoadHarness.this.failed.incrementAndGet();
+      }
+      return true;
+    }
+
+  }
+
+}
@@ -0,0 +1,67 @@
+# Stand-in for ffmpeg used by the load harness. The harness prepends the settings:
+#   SEGMENTS      number of segments written per playlist
+#   DURATION      duration of a segment in seconds, as announced in the playlist
+#   DELAY         seconds to sleep before writing, simulating the encoding time
+#   TEMPLATE      file copied to every segment
+#   FAILURES      percentage of the runs that fail with exit code 1
+#
+# Only the outputs the distribution service asks for are simulated: playlists written by the segment muxer
+# (-segment_list <playlist> ... <pattern>) and by the hls muxer (-hls_segment_filename <pattern> <playlist>).
+
+playlist() {
+  list="$1"
+  pattern="$2"
+  init="$3"
+  mkdir -p "$(dirname "$list")"
+  {
+    echo "#EXTM3U"
+    echo "#EXT-X-VERSION:3"
+    echo "#EXT-X-TARGETDURATION:$DURATION"
+    if [ -n "$init" ]; then
+      cp "$TEMPLATE" "$(dirname "$list")/$init"
+      echo "#EXT-X-MAP:URI=\"$init\""
+    fi
+    i=0
+    while [ $i -lt $SEGMENTS ]; do
+      segment=$(printf "$pattern" $i)
+      cp "$TEMPLATE" "$segment"
+      echo "#EXTINF:$DURATION.000000,"
+      basename "$segment"
+      i=$((i + 1))
+    done
+    echo "#EXT-X-ENDLIST"
+  } > "$list"
+}
+
+echo "ffmpeg version load-harness stand-in" >&2
+sleep "$DELAY"
+if [ $(($(od -An -N2 -tu2 /dev/urandom) % 100)) -lt "$FAILURES" ]; then
+  echo "Simulated failure" >&2
+  exit 1
+fi
+
+previous=""
+list=""
+pattern=""
+init=""
+for arg in "$@"; do
+  case "$previous" in
+    -segment_list) list="$arg" ;;
+    -hls_segment_filename) pattern="$arg" ;;
+    -hls_fmp4_init_filename) init="$arg" ;;
+    *)
+      case "$arg" in
+        *%03d.ts)
+          playlist "$list" "$arg" ""
+          list="" ;;
+        *.m3u8)
+          if [ -n "$pattern" ]; then
+            playlist "$arg" "$pattern" "$init"
+            pattern=""
+            init=""
+          fi ;;
+      esac ;;
+  esac
+  previous="$arg"
+done
+exit 0
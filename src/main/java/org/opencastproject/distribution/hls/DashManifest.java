@@ -0,0 +1,415 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.distribution.hls.playlist.AttributeList;
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+import org.opencastproject.distribution.hls.playlist.MediaSegment;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+
+/**
+ * A static MPEG-DASH manifest referencing the fragmented MP4 segments of HLS media playlists, so that both protocols
+ * are served from the same files. Every media playlist becomes a representation with an explicit segment list; the
+ * segment durations are taken from the playlist.
+ */
+public class DashManifest {
+
+  /** MIME type of DASH manifests */
+  public static final String MIME_TYPE = "application/dash+xml";
+
+  /** File extension of DASH manifests */
+  public static final String EXTENSION = ".mpd";
+
+  /** The MPD namespace */
+  private static final String NAMESPACE = "urn:mpeg:dash:schema:mpd:2011";
+
+  /** The profile of the manifest, which allows segment lists */
+  private static final String PROFILE = "urn:mpeg:dash:profile:isoff-main:2011";
+
+  /** Timescale of the segment timeline, in units per second */
+  private static final long TIMESCALE = 1000L;
+
+  /** Number of bytes of an initialization segment searched for codec configurations */
+  private static final int MAX_INIT_SIZE = 1024 * 1024;
+
+  /** The directory of the manifest, which the representations are relative to */
+  private final File directory;
+
+  /** The video representations */
+  private final List<Representation> video = new ArrayList<Representation>();
+
+  /** The audio representations */
+  private final List<Representation> audio = new ArrayList<Representation>();
+
+  /**
+   * Creates an empty manifest.
+   *
+   * @param directory
+   *          the directory the manifest is written to
+   */
+  public DashManifest(File directory) {
+    this.directory = directory;
+  }
+
+  /**
+   * Adds a media playlist as video representation.
+   *
+   * @param playlist
+   *          the media playlist, in the manifest directory
+   * @param variant
+   *          the measured variant of the playlist
+   * @throws IOException
+   *           if the playlist does not reference fragmented MP4 segments
+   */
+  public void addVideo(File playlist, HLSVariant variant) throws IOException {
+    video.add(new Representation(playlist, variant));
+  }
+
+  /**
+   * Adds a media playlist as audio representation.
+   *
+   * @param playlist
+   *          the media playlist, in the manifest directory or a subdirectory
+   * @param variant
+   *          the measured variant of the playlist
+   * @throws IOException
+   *           if the playlist does not reference fragmented MP4 segments
+   */
+  public void addAudio(File playlist, HLSVariant variant) throws IOException {
+    audio.add(new Representation(playlist, variant));
+  }
+
+  /**
+   * Writes the manifest.
+   *
+   * @param mpd
+   *          the file to write
+   */
+  public void write(File mpd) throws IOException {
+    long duration = 0;
+    long maxSegmentDuration = 0;
+    for (Representation representation : getRepresentations()) {
+      duration = Math.max(duration, representation.getDuration());
+      for (int i = 0; i < representation.segments.size(); i++)
+        maxSegmentDuration = Math.max(maxSegmentDuration, representation.times[i + 1] - representation.times[i]);
+    }
+
+    OutputStream out = new FileOutputStream(mpd);
+    try {
+      XMLStreamWriter xml = XMLOutputFactory.newInstance().createXMLStreamWriter(out, "UTF-8");
+      xml.writeStartDocument("UTF-8", "1.0");
+      newLine(xml, 0);
+      xml.writeStartElement("MPD");
+      xml.writeDefaultNamespace(NAMESPACE);
+      xml.writeAttribute("profiles", PROFILE);
+      xml.writeAttribute("type", "static");
+      xml.writeAttribute("mediaPresentationDuration", formatDuration(duration));
+      xml.writeAttribute("minBufferTime", formatDuration(maxSegmentDuration));
+      newLine(xml, 1);
+      xml.writeStartElement("Period");
+      xml.writeAttribute("id", "0");
+      xml.writeAttribute("start", formatDuration(0));
+      writeAdaptationSet(xml, "video", video);
+      writeAdaptationSet(xml, "audio", audio);
+      newLine(xml, 1);
+      xml.writeEndElement();
+      newLine(xml, 0);
+      xml.writeEndElement();
+      newLine(xml, 0);
+      xml.writeEndDocument();
+      xml.close();
+    } catch (XMLStreamException e) {
+      IOException ioe = new IOException("Unable to write the DASH manifest " + mpd);
+      ioe.initCause(e);
+      throw ioe;
+    } finally {
+      out.close();
+    }
+  }
+
+  private List<Representation> getRepresentations() {
+    List<Representation> representations = new ArrayList<Representation>(video);
+    representations.addAll(audio);
+    return representations;
+  }
+
+  private void writeAdaptationSet(XMLStreamWriter xml, String contentType, List<Representation> representations)
+          throws XMLStreamException {
+    if (representations.isEmpty())
+      return;
+    newLine(xml, 2);
+    xml.writeStartElement("AdaptationSet");
+    xml.writeAttribute("contentType", contentType);
+    xml.writeAttribute("mimeType", contentType + "/mp4");
+    xml.writeAttribute("startWithSAP", "1");
+    for (Representation representation : representations) {
+      newLine(xml, 3);
+      xml.writeStartElement("Representation");
+      xml.writeAttribute("id", representation.id);
+      xml.writeAttribute("bandwidth", Long.toString(representation.bandwidth));
+      if (representation.codecs != null)
+        xml.writeAttribute("codecs", representation.codecs);
+      if (representation.resolution != null) {
+        String[] size = representation.resolution.split("x");
+        xml.writeAttribute("width", size[0]);
+        xml.writeAttribute("height", size[1]);
+      }
+      if (representation.baseUrl.length() > 0) {
+        newLine(xml, 4);
+        xml.writeStartElement("BaseURL");
+        xml.writeCharacters(representation.baseUrl);
+        xml.writeEndElement();
+      }
+      writeSegmentList(xml, representation);
+      newLine(xml, 3);
+      xml.writeEndElement();
+    }
+    newLine(xml, 2);
+    xml.writeEndElement();
+  }
+
+  private void writeSegmentList(XMLStreamWriter xml, Representation representation) throws XMLStreamException {
+    newLine(xml, 4);
+    xml.writeStartElement("SegmentList");
+    xml.writeAttribute("timescale", Long.toString(TIMESCALE));
+    newLine(xml, 5);
+    xml.writeEmptyElement("Initialization");
+    xml.writeAttribute("sourceURL", representation.initialization);
+    newLine(xml, 5);
+    xml.writeStartElement("SegmentTimeline");
+    long[] times = representation.times;
+    for (int i = 0; i < representation.segments.size();) {
+      long d = times[i + 1] - times[i];
+      int repeat = 0;
+      while (i + repeat + 1 < representation.segments.size() && times[i + repeat + 2] - times[i + repeat + 1] == d)
+        repeat++;
+      newLine(xml, 6);
+      xml.writeEmptyElement("S");
+      if (i == 0)
+        xml.writeAttribute("t", "0");
+      xml.writeAttribute("d", Long.toString(d));
+      if (repeat > 0)
+        xml.writeAttribute("r", Integer.toString(repeat));
+      i += repeat + 1;
+    }
+    newLine(xml, 5);
+    xml.writeEndElement();
+    for (String uri : representation.segments) {
+      newLine(xml, 5);
+      xml.writeEmptyElement("SegmentURL");
+      xml.writeAttribute("media", uri);
+    }
+    newLine(xml, 4);
+    xml.writeEndElement();
+  }
+
+  private static void newLine(XMLStreamWriter xml, int depth) throws XMLStreamException {
+    StringBuilder indent = new StringBuilder("\n");
+    for (int i = 0; i < depth; i++)
+      indent.append("  ");
+    xml.writeCharacters(indent.toString());
+  }
+
+  /**
+   * Formats a duration in timescale units as <code>xs:duration</code>.
+   */
+  private static String formatDuration(long duration) {
+    long seconds = duration / TIMESCALE;
+    long millis = duration % TIMESCALE;
+    return "PT" + seconds + "." + (millis < 100 ? "0" : "") + (millis < 10 ? "0" : "") + millis + "S";
+  }
+
+  /**
+   * Returns the RFC 6381 codecs string of the sample entries found in an MP4 initialization segment, e.g.
+   * <code>avc1.64001f</code> or <code>mp4a.40.2</code>, or <code>null</code> if none is recognized.
+   *
+   * @param init
+   *          the initialization segment
+   * @return the codecs
+   * @throws IOException
+   *           if the segment cannot be read
+   */
+  public static String getCodecs(File init) throws IOException {
+    byte[] data = new byte[(int) Math.min(init.length(), MAX_INIT_SIZE)];
+    InputStream in = new FileInputStream(init);
+    try {
+      int read = 0;
+      while (read < data.length) {
+        int n = in.read(data, read, data.length - read);
+        if (n < 0)
+          break;
+        read += n;
+      }
+    } finally {
+      in.close();
+    }
+
+    List<String> codecs = new ArrayList<String>();
+    for (int i = 4; i + 4 <= data.length; i++) {
+      if (isBox(data, i, "avcC") && i + 8 <= data.length) {
+        codecs.add("avc1." + toHex(data[i + 5]) + toHex(data[i + 6]) + toHex(data[i + 7]));
+      } else if (isBox(data, i, "esds")) {
+        String codec = getAudioCodec(data, i + 8);
+        if (codec != null)
+          codecs.add(codec);
+      }
+    }
+    if (codecs.isEmpty())
+      return null;
+    StringBuilder result = new StringBuilder();
+    for (String codec : codecs) {
+      if (result.length() > 0)
+        result.append(",");
+      result.append(codec);
+    }
+    return result.toString();
+  }
+
+  /**
+   * Returns <code>mp4a.OTI.AOT</code> from the elementary stream descriptor starting at <code>p</code>.
+   */
+  private static String getAudioCodec(byte[] data, int p) {
+    try {
+      if (data[p++] != 0x03)
+        return null;
+      p = skipDescriptorLength(data, p);
+      int flags = data[p + 2] & 0xFF;
+      p += 3;
+      if ((flags & 0x80) != 0)
+        p += 2;
+      if ((flags & 0x40) != 0)
+        p += 1 + (data[p] & 0xFF);
+      if ((flags & 0x20) != 0)
+        p += 2;
+      if (data[p++] != 0x04)
+        return null;
+      p = skipDescriptorLength(data, p);
+      int objectType = data[p] & 0xFF;
+      p += 13;
+      if (data[p++] != 0x05)
+        return "mp4a." + toHex((byte) objectType);
+      p = skipDescriptorLength(data, p);
+      int audioObjectType = (data[p] & 0xFF) >> 3;
+      if (audioObjectType == 31)
+        audioObjectType = 32 + (((data[p] & 0x07) << 3) | ((data[p + 1] & 0xFF) >> 5));
+      return "mp4a." + toHex((byte) objectType) + "." + audioObjectType;
+    } catch (ArrayIndexOutOfBoundsException e) {
+      return null;
+    }
+  }
+
+  private static int skipDescriptorLength(byte[] data, int p) {
+    for (int i = 0; i < 4 && (data[p++] & 0x80) != 0; i++)
+      ;
+    return p;
+  }
+
+  private static boolean isBox(byte[] data, int i, String type) {
+    for (int j = 0; j < 4; j++) {
+      if (data[i + j] != type.charAt(j))
+        return false;
+    }
+    return true;
+  }
+
+  private static String toHex(byte b) {
+    String hex = Integer.toHexString(b & 0xFF);
+    return hex.length() == 1 ? "0" + hex : hex;
+  }
+
+  /**
+   * A media playlist as DASH representation.
+   */
+  private class Representation {
+
+    /** The representation identifier, the last part of the playlist name */
+    private final String id;
+
+    /** The playlist directory relative to the manifest, empty or ending with a slash */
+    private final String baseUrl;
+
+    private final long bandwidth;
+
+    private final String resolution;
+
+    private final String codecs;
+
+    /** The initialization segment, relative to the base URL */
+    private final String initialization;
+
+    /** The media segments, relative to the base URL */
+    private final List<String> segments = new ArrayList<String>();
+
+    /** The start times of the segments in timescale units, followed by the end time of the last segment */
+    private final long[] times;
+
+    Representation(File playlist, HLSVariant variant) throws IOException {
+      String name = playlist.getName().replace(HLSDistributionServiceImpl.PLAYLIST_EXTENSION, "");
+      this.id = name.substring(name.lastIndexOf('-') + 1);
+      this.baseUrl = getBaseUrl(playlist.getParentFile());
+      this.bandwidth = variant.getBandwidth();
+      this.resolution = variant.getResolution();
+
+      MediaPlaylist mediaPlaylist = MediaPlaylist.read(playlist);
+      List<MediaSegment> mediaSegments = mediaPlaylist.getSegments();
+      if (mediaSegments.isEmpty() || mediaSegments.get(0).getMap() == null)
+        throw new IOException("Media playlist " + playlist + " does not reference fragmented MP4 segments");
+      this.initialization = AttributeList.get(mediaSegments.get(0).getMap(), "URI");
+      this.codecs = getCodecs(new File(playlist.getParentFile(), initialization));
+      this.times = new long[mediaSegments.size() + 1];
+      double end = 0;
+      for (int i = 0; i < mediaSegments.size(); i++) {
+        MediaSegment segment = mediaSegments.get(i);
+        if (segment.hasByteRange() || segment.getKey() != null)
+          throw new IOException("Byte range and encrypted segments cannot be referenced by DASH: " + playlist);
+        segments.add(segment.getUri());
+        end += segment.getDuration();
+        // Round the end times rather than the durations, so that the timeline does not drift
+        times[i + 1] = Math.round(end * TIMESCALE);
+      }
+    }
+
+    long getDuration() {
+      return times[times.length - 1];
+    }
+
+    private String getBaseUrl(File playlistDirectory) throws IOException {
+      String base = directory.getCanonicalPath();
+      String path = playlistDirectory.getCanonicalPath();
+      if (path.equals(base))
+        return "";
+      if (!path.startsWith(base + File.separator))
+        throw new IOException(playlistDirectory + " is not inside the manifest directory " + directory);
+      return path.substring(base.length() + 1).replace(File.separatorChar, '/') + "/";
+    }
+
+  }
+
+}
@@ -0,0 +1,147 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.io.File;
+
+/**
+ * Keeps track of the disk space promised to running distributions. Each distribution reserves its estimated output
+ * size before ffmpeg starts, and releases the reservation once its files have been written. The space that is
+ * considered available is the usable space of the volume minus all outstanding reservations.
+ * <p>
+ * Two watermarks apply: below the low watermark, the node stops accepting new jobs so that the service registry
+ * dispatches them to other nodes. A reservation that would leave less than the critical watermark is refused, which
+ * fails the job before anything has been written rather than when the disk is full.
+ */
+public class DiskSpaceReservations {
+
+  /** The distribution volume */
+  private final File volume;
+
+  /** Available bytes below which no new jobs are accepted */
+  private final long lowWatermark;
+
+  /** Available bytes that must remain after a reservation */
+  private final long criticalWatermark;
+
+  /** Bytes reserved by running distributions */
+  private long reserved = 0;
+
+  /** Number of outstanding reservations */
+  private int reservations = 0;
+
+  /**
+   * Creates the reservations of a volume.
+   *
+   * @param volume
+   *          a directory on the volume
+   * @param lowWatermark
+   *          available bytes below which no new jobs are accepted
+   * @param criticalWatermark
+   *          available bytes that must remain after a reservation
+   */
+  public DiskSpaceReservations(File volume, long lowWatermark, long criticalWatermark) {
+    this.volume = volume;
+    this.lowWatermark = lowWatermark;
+    this.criticalWatermark = criticalWatermark;
+  }
+
+  /**
+   * Returns the usable space of the volume minus the outstanding reservations.
+   */
+  public synchronized long getAvailable() {
+    return volume.getUsableSpace() - reserved;
+  }
+
+  /**
+   * Returns whether <code>bytes</code> could be written while staying above the low watermark, i.e. whether a job
+   * writing that much should be accepted.
+   *
+   * @param bytes
+   *          the estimated output size
+   */
+  public boolean isAcceptable(long bytes) {
+    return getAvailable() - bytes >= lowWatermark;
+  }
+
+  /**
+   * Reserves space for a distribution.
+   *
+   * @param bytes
+   *          the estimated output size
+   * @return the reservation, or <code>null</code> if it would leave less than the critical watermark
+   */
+  public synchronized Reservation reserve(long bytes) {
+    if (getAvailable() - bytes < criticalWatermark)
+      return null;
+    reserved += bytes;
+    reservations++;
+    return new Reservation(bytes);
+  }
+
+  public synchronized long getReserved() {
+    return reserved;
+  }
+
+  public synchronized int getReservations() {
+    return reservations;
+  }
+
+  public long getLowWatermark() {
+    return lowWatermark;
+  }
+
+  public long getCriticalWatermark() {
+    return criticalWatermark;
+  }
+
+  private synchronized void release(long bytes) {
+    reserved -= bytes;
+    reservations--;
+  }
+
+  /**
+   * Space reserved for one distribution.
+   */
+  public final class Reservation {
+
+    private final long bytes;
+
+    private boolean released = false;
+
+    private Reservation(long bytes) {
+      this.bytes = bytes;
+    }
+
+    public long getBytes() {
+      return bytes;
+    }
+
+    /**
+     * Returns the space to the volume. Releasing a reservation twice has no effect.
+     */
+    public synchronized void release() {
+      if (released)
+        return;
+      released = true;
+      DiskSpaceReservations.this.release(bytes);
+    }
+
+  }
+
+}
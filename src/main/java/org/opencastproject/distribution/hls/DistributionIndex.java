@@ -0,0 +1,438 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps track of what is distributed where, so that retracting and listing distributed elements does not need to walk
+ * the distribution directory.
+ * <p>
+ * The index is held in memory and persisted as an append-only log of changes. Every change is written and synced to
+ * the log before it becomes visible, so the index survives crashes. When the log has grown well beyond the number of
+ * live entries it is compacted into a fresh log that only holds the current state.
+ */
+public class DistributionIndex {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(DistributionIndex.class);
+
+  /** Name of the log file */
+  public static final String LOG_FILE = "distribution.log";
+
+  /** Record type of added or replaced entries */
+  private static final String PUT = "PUT";
+
+  /** Record type of removed entries */
+  private static final String DELETE = "DEL";
+
+  /** Number of fields of a put record */
+  private static final int PUT_FIELDS = 9;
+
+  /** The log is never compacted while it holds fewer records */
+  private static final int COMPACTION_MINIMUM = 1000;
+
+  /** The log is compacted once it holds this many times more records than there are entries */
+  private static final int COMPACTION_RATIO = 2;
+
+  /** Extension of MPEG-TS segment files */
+  private static final String SEGMENT_EXTENSION = ".ts";
+
+  /** Orders entries by mediapackage and element identifier */
+  private static final Comparator<DistributionIndexEntry> ENTRY_ORDER = new Comparator<DistributionIndexEntry>() {
+    @Override
+    public int compare(DistributionIndexEntry a, DistributionIndexEntry b) {
+      int result = a.getMediaPackageId().compareTo(b.getMediaPackageId());
+      return result != 0 ? result : a.getElementId().compareTo(b.getElementId());
+    }
+  };
+
+  /** The log file */
+  private final File log;
+
+  /** The entries by mediapackage and element */
+  private final Map<String, Map<String, DistributionIndexEntry>> entries = new HashMap<String, Map<String, DistributionIndexEntry>>();
+
+  /** Number of entries */
+  private int size = 0;
+
+  /** Number of records in the log */
+  private int records = 0;
+
+  /** The log output stream */
+  private FileOutputStream out = null;
+
+  /** The log writer */
+  private Writer writer = null;
+
+  /**
+   * Opens the index in <code>directory</code>, creating it if needed.
+   *
+   * @param directory
+   *          the index directory
+   * @throws IOException
+   *           if the log cannot be read or opened for writing
+   */
+  public DistributionIndex(File directory) throws IOException {
+    if (!directory.isDirectory() && !directory.mkdirs())
+      throw new IOException("Unable to create index directory " + directory);
+    log = new File(directory, LOG_FILE);
+    boolean clean = true;
+    if (log.isFile())
+      clean = load();
+    if (clean) {
+      open();
+    } else {
+      // Get rid of the incomplete record that was written when the log was last used
+      compact();
+    }
+    logger.info("Distribution index {} holds {} elements", log, size);
+  }
+
+  /**
+   * Adds or replaces an entry.
+   *
+   * @param entry
+   *          the entry
+   * @throws IOException
+   *           if the entry cannot be persisted, in which case the index is unchanged
+   */
+  public synchronized void put(DistributionIndexEntry entry) throws IOException {
+    append(PUT, entry.getMediaPackageId(), entry.getElementId(), entry.getPath(), Long.toString(entry.getSize()),
+            Integer.toString(entry.getFiles()), Integer.toString(entry.getSegments()), entry.getProfile(),
+            Long.toString(entry.getDistributed().getTime()));
+    apply(entry);
+    compactIfNeeded();
+  }
+
+  /**
+   * Removes an entry.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the element identifier
+   * @return the removed entry or <code>null</code> if there was none
+   * @throws IOException
+   *           if the removal cannot be persisted, in which case the index is unchanged
+   */
+  public synchronized DistributionIndexEntry remove(String mediaPackageId, String elementId) throws IOException {
+    if (get(mediaPackageId, elementId) == null)
+      return null;
+    append(DELETE, mediaPackageId, elementId);
+    DistributionIndexEntry entry = unapply(mediaPackageId, elementId);
+    compactIfNeeded();
+    return entry;
+  }
+
+  /**
+   * Returns the entry of an element.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the element identifier
+   * @return the entry or <code>null</code> if the element is not distributed
+   */
+  public synchronized DistributionIndexEntry get(String mediaPackageId, String elementId) {
+    Map<String, DistributionIndexEntry> elements = entries.get(mediaPackageId);
+    return elements == null ? null : elements.get(elementId);
+  }
+
+  /**
+   * Returns the entries of a mediapackage.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @return the entries, ordered by element identifier
+   */
+  public synchronized List<DistributionIndexEntry> getEntries(String mediaPackageId) {
+    List<DistributionIndexEntry> result = new ArrayList<DistributionIndexEntry>();
+    Map<String, DistributionIndexEntry> elements = entries.get(mediaPackageId);
+    if (elements != null)
+      result.addAll(elements.values());
+    Collections.sort(result, ENTRY_ORDER);
+    return result;
+  }
+
+  /**
+   * Returns all entries.
+   *
+   * @return the entries, ordered by mediapackage and element identifier
+   */
+  public synchronized List<DistributionIndexEntry> getEntries() {
+    List<DistributionIndexEntry> result = new ArrayList<DistributionIndexEntry>(size);
+    for (Map<String, DistributionIndexEntry> elements : entries.values())
+      result.addAll(elements.values());
+    Collections.sort(result, ENTRY_ORDER);
+    return result;
+  }
+
+  /**
+   * Returns the number of entries.
+   */
+  public synchronized int size() {
+    return size;
+  }
+
+  /**
+   * Replaces the index with the contents of the distribution directory. This walks the whole directory and is only
+   * needed to initially populate the index or to repair it.
+   *
+   * @param distributionDirectory
+   *          the distribution directory
+   * @return the number of entries found
+   */
+  public synchronized int rebuild(File distributionDirectory) throws IOException {
+    entries.clear();
+    size = 0;
+    File[] mediaPackageDirs = distributionDirectory.listFiles();
+    if (mediaPackageDirs != null) {
+      for (File mediaPackageDir : mediaPackageDirs) {
+        if (!mediaPackageDir.isDirectory() || mediaPackageDir.getName().startsWith("."))
+          continue;
+        File[] elementDirs = mediaPackageDir.listFiles();
+        if (elementDirs == null)
+          continue;
+        for (File elementDir : elementDirs) {
+          if (elementDir.isDirectory())
+            apply(describe(distributionDirectory, mediaPackageDir.getName(), elementDir.getName(), null));
+        }
+      }
+    }
+    compact();
+    logger.info("Rebuilt distribution index from {}, found {} elements", distributionDirectory, size);
+    return size;
+  }
+
+  /**
+   * Writes the current state to a fresh log that replaces the existing one.
+   */
+  public synchronized void compact() throws IOException {
+    close();
+    File compacted = new File(log.getParentFile(), LOG_FILE + ".compact");
+    FileOutputStream compactedOut = new FileOutputStream(compacted);
+    try {
+      Writer compactedWriter = new BufferedWriter(new OutputStreamWriter(compactedOut, "UTF-8"));
+      for (Map<String, DistributionIndexEntry> elements : entries.values()) {
+        for (DistributionIndexEntry entry : elements.values()) {
+          writeRecord(compactedWriter, PUT, entry.getMediaPackageId(), entry.getElementId(), entry.getPath(),
+                  Long.toString(entry.getSize()), Integer.toString(entry.getFiles()),
+                  Integer.toString(entry.getSegments()), entry.getProfile(),
+                  Long.toString(entry.getDistributed().getTime()));
+        }
+      }
+      compactedWriter.flush();
+      compactedOut.getFD().sync();
+    } finally {
+      compactedOut.close();
+    }
+    if (!compacted.renameTo(log) && !(log.delete() && compacted.renameTo(log)))
+      throw new IOException("Unable to replace " + log + " with its compacted version");
+    records = size;
+    open();
+    logger.debug("Compacted distribution index {} to {} records", log, records);
+  }
+
+  /**
+   * Closes the log. The index must not be changed afterwards.
+   */
+  public synchronized void close() throws IOException {
+    if (out != null) {
+      try {
+        writer.flush();
+      } finally {
+        out.close();
+        out = null;
+        writer = null;
+      }
+    }
+  }
+
+  /**
+   * Creates the entry of an element directory from its contents.
+   *
+   * @param distributionDirectory
+   *          the distribution directory
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the element identifier
+   * @param profile
+   *          description of the encoding profile, may be <code>null</code>
+   * @return the entry
+   */
+  public static DistributionIndexEntry describe(File distributionDirectory, String mediaPackageId, String elementId,
+          String profile) {
+    File elementDir = new File(new File(distributionDirectory, mediaPackageId), elementId);
+    long[] totals = new long[3];
+    count(elementDir, totals);
+    return new DistributionIndexEntry(mediaPackageId, elementId, mediaPackageId + "/" + elementId, totals[0],
+            (int) totals[1], (int) totals[2], profile, new Date(elementDir.lastModified()));
+  }
+
+  /**
+   * Adds size, number of files and number of segments below <code>directory</code> to <code>totals</code>.
+   */
+  private static void count(File directory, long[] totals) {
+    File[] files = directory.listFiles();
+    if (files == null)
+      return;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        count(file, totals);
+      } else {
+        totals[0] += file.length();
+        totals[1]++;
+        if (file.getName().endsWith(SEGMENT_EXTENSION)
+                || file.getName().endsWith(FFmpegHLSEncoderEngine.FMP4_SEGMENT_EXTENSION))
+          totals[2]++;
+      }
+    }
+  }
+
+  /**
+   * Replays the log.
+   *
+   * @return <code>false</code> if the log holds records that cannot be read
+   */
+  private boolean load() throws IOException {
+    boolean clean = true;
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(log), "UTF-8"));
+    try {
+      String line = null;
+      while ((line = reader.readLine()) != null) {
+        records++;
+        String[] fields = line.split("\t", -1);
+        for (int i = 0; i < fields.length; i++)
+          fields[i] = unescape(fields[i]);
+        try {
+          if (PUT.equals(fields[0]) && fields.length == PUT_FIELDS) {
+            apply(new DistributionIndexEntry(fields[1], fields[2], fields[3], Long.parseLong(fields[4]),
+                    Integer.parseInt(fields[5]), Integer.parseInt(fields[6]), fields[7].length() > 0 ? fields[7]
+                            : null, new Date(Long.parseLong(fields[8]))));
+          } else if (DELETE.equals(fields[0]) && fields.length == 3) {
+            unapply(fields[1], fields[2]);
+          } else {
+            throw new NumberFormatException();
+          }
+        } catch (NumberFormatException e) {
+          logger.warn("Skipping invalid record {} of distribution index {}", records, log);
+          clean = false;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return clean;
+  }
+
+  private void open() throws IOException {
+    out = new FileOutputStream(log, true);
+    writer = new BufferedWriter(new OutputStreamWriter(out, "UTF-8"));
+  }
+
+  private void apply(DistributionIndexEntry entry) {
+    Map<String, DistributionIndexEntry> elements = entries.get(entry.getMediaPackageId());
+    if (elements == null) {
+      elements = new HashMap<String, DistributionIndexEntry>();
+      entries.put(entry.getMediaPackageId(), elements);
+    }
+    if (elements.put(entry.getElementId(), entry) == null)
+      size++;
+  }
+
+  private DistributionIndexEntry unapply(String mediaPackageId, String elementId) {
+    Map<String, DistributionIndexEntry> elements = entries.get(mediaPackageId);
+    if (elements == null)
+      return null;
+    DistributionIndexEntry entry = elements.remove(elementId);
+    if (entry != null)
+      size--;
+    if (elements.isEmpty())
+      entries.remove(mediaPackageId);
+    return entry;
+  }
+
+  /**
+   * Appends a record to the log and waits until it has reached the disk.
+   */
+  private void append(String... fields) throws IOException {
+    if (writer == null)
+      throw new IOException("Distribution index " + log + " is closed");
+    writeRecord(writer, fields);
+    writer.flush();
+    out.getFD().sync();
+    records++;
+  }
+
+  private void compactIfNeeded() throws IOException {
+    if (records >= COMPACTION_MINIMUM && records > COMPACTION_RATIO * size)
+      compact();
+  }
+
+  private static void writeRecord(Writer writer, String... fields) throws IOException {
+    for (int i = 0; i < fields.length; i++) {
+      if (i > 0)
+        writer.write('\t');
+      writer.write(escape(fields[i]));
+    }
+    writer.write('\n');
+  }
+
+  private static String escape(String field) {
+    if (field == null)
+      return "";
+    return field.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+  }
+
+  private static String unescape(String field) {
+    if (field.indexOf('\\') < 0)
+      return field;
+    StringBuilder result = new StringBuilder(field.length());
+    for (int i = 0; i < field.length(); i++) {
+      char c = field.charAt(i);
+      if (c == '\\' && i + 1 < field.length()) {
+        char next = field.charAt(++i);
+        result.append(next == 't' ? '\t' : next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+      } else {
+        result.append(c);
+      }
+    }
+    return result.toString();
+  }
+
+}
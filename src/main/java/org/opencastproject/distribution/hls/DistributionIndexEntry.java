@@ -0,0 +1,117 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.Date;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * An element distributed to the HLS distribution directory, as recorded in the {@link DistributionIndex}.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "distribution", namespace = "http://distribution.opencastproject.org")
+@XmlRootElement(name = "distribution", namespace = "http://distribution.opencastproject.org")
+public class DistributionIndexEntry {
+
+  /** The mediapackage identifier */
+  @XmlAttribute(name = "mediapackage")
+  private String mediaPackageId;
+
+  /** The element identifier */
+  @XmlAttribute(name = "element")
+  private String elementId;
+
+  /** The element directory, relative to the distribution directory */
+  @XmlElement(name = "path")
+  private String path;
+
+  /** Total size of the element directory in bytes */
+  @XmlElement(name = "size")
+  private long size;
+
+  /** Number of files in the element directory */
+  @XmlElement(name = "files")
+  private int files;
+
+  /** Number of media segments */
+  @XmlElement(name = "segments")
+  private int segments;
+
+  /** Description of the encoding profile the element was distributed with */
+  @XmlElement(name = "profile")
+  private String profile;
+
+  /** The time of distribution */
+  @XmlElement(name = "distributed")
+  private Date distributed;
+
+  /** Needed by JAXB */
+  public DistributionIndexEntry() {
+  }
+
+  public DistributionIndexEntry(String mediaPackageId, String elementId, String path, long size, int files,
+          int segments, String profile, Date distributed) {
+    this.mediaPackageId = mediaPackageId;
+    this.elementId = elementId;
+    this.path = path;
+    this.size = size;
+    this.files = files;
+    this.segments = segments;
+    this.profile = profile;
+    this.distributed = distributed;
+  }
+
+  public String getMediaPackageId() {
+    return mediaPackageId;
+  }
+
+  public String getElementId() {
+    return elementId;
+  }
+
+  public String getPath() {
+    return path;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public int getFiles() {
+    return files;
+  }
+
+  public int getSegments() {
+    return segments;
+  }
+
+  public String getProfile() {
+    return profile;
+  }
+
+  public Date getDistributed() {
+    return distributed;
+  }
+
+}
@@ -0,0 +1,73 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * A list of {@link DistributionIndexEntry}s along with their totals.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "distributions", namespace = "http://distribution.opencastproject.org")
+@XmlRootElement(name = "distributions", namespace = "http://distribution.opencastproject.org")
+public class DistributionIndexEntryList {
+
+  /** Number of entries */
+  @XmlAttribute(name = "count")
+  private int count;
+
+  /** Total size of all entries in bytes */
+  @XmlAttribute(name = "size")
+  private long size;
+
+  /** The entries */
+  @XmlElement(name = "distribution", namespace = "http://distribution.opencastproject.org")
+  private List<DistributionIndexEntry> entries = new ArrayList<DistributionIndexEntry>();
+
+  /** Needed by JAXB */
+  public DistributionIndexEntryList() {
+  }
+
+  public DistributionIndexEntryList(List<DistributionIndexEntry> entries) {
+    this.entries = entries;
+    this.count = entries.size();
+    for (DistributionIndexEntry entry : entries)
+      size += entry.getSize();
+  }
+
+  public int getCount() {
+    return count;
+  }
+
+  public long getSize() {
+    return size;
+  }
+
+  public List<DistributionIndexEntry> getEntries() {
+    return entries;
+  }
+
+}
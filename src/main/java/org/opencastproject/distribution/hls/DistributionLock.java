@@ -0,0 +1,158 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An exclusive lock that is shared by all nodes writing to the same distribution directory. The lock is a file that is
+ * created atomically by its owner and deleted on release.
+ * <p>
+ * While the lock is held, its owner touches the file regularly. A lock file that has not been touched for a while is
+ * considered abandoned by a crashed node and is broken. Staleness is judged by the local clock only, i.e. by how long
+ * the modification time has not changed, so clock skew between the nodes does not matter.
+ */
+public final class DistributionLock {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(DistributionLock.class);
+
+  /** Extension of lock files */
+  public static final String EXTENSION = ".lock";
+
+  /** Interval in millis in which the owner touches the lock file */
+  private static final long HEARTBEAT_INTERVAL = 30000L;
+
+  /** Time in millis after which a lock file that has not been touched is broken */
+  private static final long STALE_AFTER = 10 * HEARTBEAT_INTERVAL;
+
+  /** Interval in millis in which a waiting node checks the lock file */
+  private static final long POLL_INTERVAL = 1000L;
+
+  /** Identifies this node in lock files */
+  private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+
+  /** Touches the files of all locks held by this node */
+  private static final ScheduledExecutorService heartbeats = Executors
+          .newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+              Thread thread = new Thread(r, "HLS distribution lock heartbeat");
+              thread.setDaemon(true);
+              return thread;
+            }
+          });
+
+  /** The lock file */
+  private final File file;
+
+  /** The heartbeat touching the lock file */
+  private final ScheduledFuture<?> heartbeat;
+
+  private DistributionLock(final File file) {
+    this.file = file;
+    this.heartbeat = heartbeats.scheduleWithFixedDelay(new Runnable() {
+      @Override
+      public void run() {
+        if (!file.setLastModified(System.currentTimeMillis()))
+          logger.warn("Unable to touch lock file {}", file);
+      }
+    }, HEARTBEAT_INTERVAL, HEARTBEAT_INTERVAL, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * Acquires the lock, waiting while another node or thread holds it.
+   *
+   * @param file
+   *          the lock file
+   * @param timeout
+   *          the maximum time to wait in millis
+   * @return the lock
+   * @throws IOException
+   *           if the lock file cannot be created, the lock is not released in time or the thread is interrupted while
+   *           waiting
+   */
+  public static DistributionLock acquire(File file, long timeout) throws IOException {
+    FileUtils.forceMkdir(file.getParentFile());
+    long deadline = System.currentTimeMillis() + timeout;
+    long observedModification = -1;
+    long observedSince = 0;
+    boolean waiting = false;
+    while (true) {
+      if (file.createNewFile()) {
+        FileUtils.writeStringToFile(file, OWNER, "UTF-8");
+        if (waiting)
+          logger.info("Acquired lock {}", file);
+        return new DistributionLock(file);
+      }
+
+      long now = System.currentTimeMillis();
+      long modification = file.lastModified();
+      if (modification != observedModification) {
+        observedModification = modification;
+        observedSince = now;
+      } else if (modification != 0 && now - observedSince > STALE_AFTER) {
+        logger.warn("Breaking abandoned lock {} of {}", file, readOwner(file));
+        file.delete();
+        continue;
+      }
+
+      if (now > deadline)
+        throw new IOException("Timed out waiting for lock " + file + " held by " + readOwner(file));
+      if (!waiting) {
+        logger.info("Waiting for lock {} held by {}", file, readOwner(file));
+        waiting = true;
+      }
+      try {
+        Thread.sleep(POLL_INTERVAL);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for lock " + file);
+      }
+    }
+  }
+
+  /**
+   * Releases the lock.
+   */
+  public void release() {
+    heartbeat.cancel(false);
+    if (!file.delete())
+      logger.warn("Unable to delete lock file {}", file);
+  }
+
+  private static String readOwner(File file) {
+    try {
+      return FileUtils.readFileToString(file, "UTF-8");
+    } catch (IOException e) {
+      return "unknown";
+    }
+  }
+
+}
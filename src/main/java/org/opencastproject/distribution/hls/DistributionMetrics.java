@@ -0,0 +1,250 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters and latencies of the distribution service, exposed over JMX and the REST endpoint.
+ */
+public class DistributionMetrics implements DistributionMetricsMXBean {
+
+  /** The phases of a job whose latencies are recorded */
+  public enum Phase {
+    /** Waiting for the distribution lock or for another job distributing the same element */
+    LOCK,
+    /** Waiting for a slot of a limited resource, see {@link ResourceLimits} */
+    QUEUE,
+    /** Fetching the source from the workspace */
+    FETCH,
+    /** Reading the packets of a redistributed source to find the segments it shares with the previous one */
+    INDEX,
+    /** Running ffmpeg */
+    ENCODE,
+    /** Rewriting the playlists and moving the segments into the distribution directory */
+    PUBLISH,
+    /** Checking that the distributed element can be fetched over HTTP */
+    PROBE,
+    /** Deleting a retracted element */
+    RETRACT
+  }
+
+  /** Exit code recorded for ffmpeg runs that failed without a known exit code */
+  public static final int UNKNOWN_EXIT_CODE = -1;
+
+  /** Latencies by phase */
+  private final Map<Phase, LatencyHistogram> phases = new EnumMap<Phase, LatencyHistogram>(Phase.class);
+
+  /** ffmpeg runs by exit code */
+  private final ConcurrentMap<Integer, AtomicLong> exitCodes = new ConcurrentHashMap<Integer, AtomicLong>();
+
+  private final AtomicInteger inFlight = new AtomicInteger();
+
+  private final AtomicInteger waiting = new AtomicInteger();
+
+  private final AtomicLong processed = new AtomicLong();
+
+  private final AtomicLong failed = new AtomicLong();
+
+  private final AtomicLong bytes = new AtomicLong();
+
+  private final AtomicLong segments = new AtomicLong();
+
+  /** The I/O scheduler, may be <code>null</code> */
+  private volatile IOScheduler io;
+
+  /** The disk space reservations, may be <code>null</code> */
+  private volatile DiskSpaceReservations diskSpace;
+
+  /** The resource limits, may be <code>null</code> */
+  private volatile ResourceLimits limits;
+
+  public DistributionMetrics() {
+    for (Phase phase : Phase.values())
+      phases.put(phase, new LatencyHistogram());
+  }
+
+  /**
+   * Sets the sources of the gauges that are owned by other components.
+   *
+   * @param io
+   *          the I/O scheduler
+   * @param diskSpace
+   *          the disk space reservations
+   * @param limits
+   *          the resource limits
+   */
+  public void setSources(IOScheduler io, DiskSpaceReservations diskSpace, ResourceLimits limits) {
+    this.io = io;
+    this.diskSpace = diskSpace;
+    this.limits = limits;
+  }
+
+  /**
+   * Returns the latencies of a phase.
+   */
+  public LatencyHistogram getPhase(Phase phase) {
+    return phases.get(phase);
+  }
+
+  /**
+   * Records the time elapsed since <code>startNanos</code> as the latency of a phase.
+   *
+   * @param phase
+   *          the phase
+   * @param startNanos
+   *          the start of the phase as returned by {@link System#nanoTime()}
+   */
+  public void record(Phase phase, long startNanos) {
+    phases.get(phase).recordSince(startNanos);
+  }
+
+  /**
+   * Records the exit code of an ffmpeg run.
+   */
+  public void recordExitCode(int exitCode) {
+    AtomicLong counter = exitCodes.get(exitCode);
+    if (counter == null) {
+      AtomicLong newCounter = new AtomicLong();
+      counter = exitCodes.putIfAbsent(exitCode, newCounter);
+      if (counter == null)
+        counter = newCounter;
+    }
+    counter.incrementAndGet();
+  }
+
+  /**
+   * Records what a distribution has written.
+   */
+  public void recordWritten(long byteCount, int segmentCount) {
+    bytes.addAndGet(byteCount);
+    segments.addAndGet(segmentCount);
+  }
+
+  public void jobStarted() {
+    inFlight.incrementAndGet();
+  }
+
+  public void jobFinished(boolean success) {
+    inFlight.decrementAndGet();
+    processed.incrementAndGet();
+    if (!success)
+      failed.incrementAndGet();
+  }
+
+  public void waitStarted() {
+    waiting.incrementAndGet();
+  }
+
+  public void waitFinished(long startNanos) {
+    waiting.decrementAndGet();
+    record(Phase.LOCK, startNanos);
+  }
+
+  @Override
+  public int getJobsInFlight() {
+    return inFlight.get();
+  }
+
+  @Override
+  public int getJobsWaiting() {
+    return waiting.get();
+  }
+
+  @Override
+  public long getJobsProcessed() {
+    return processed.get();
+  }
+
+  @Override
+  public long getJobsFailed() {
+    return failed.get();
+  }
+
+  @Override
+  public int getIOQueueDepth() {
+    IOScheduler scheduler = io;
+    return scheduler != null ? scheduler.getQueueDepth() : 0;
+  }
+
+  @Override
+  public long getBytesWritten() {
+    return bytes.get();
+  }
+
+  @Override
+  public long getSegmentsWritten() {
+    return segments.get();
+  }
+
+  @Override
+  public long getAvailableBytes() {
+    DiskSpaceReservations reservations = diskSpace;
+    return reservations != null ? reservations.getAvailable() : 0;
+  }
+
+  @Override
+  public long getReservedBytes() {
+    DiskSpaceReservations reservations = diskSpace;
+    return reservations != null ? reservations.getReserved() : 0;
+  }
+
+  @Override
+  public Map<String, Integer> getSlotsInUse() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    ResourceLimits resourceLimits = limits;
+    if (resourceLimits != null) {
+      for (ResourceLimits.Resource resource : ResourceLimits.Resource.values())
+        result.put(resource.toString().toLowerCase(), resourceLimits.getInUse(resource));
+    }
+    return result;
+  }
+
+  @Override
+  public Map<String, Integer> getSlotsWaiting() {
+    Map<String, Integer> result = new TreeMap<String, Integer>();
+    ResourceLimits resourceLimits = limits;
+    if (resourceLimits != null) {
+      for (ResourceLimits.Resource resource : ResourceLimits.Resource.values())
+        result.put(resource.toString().toLowerCase(), resourceLimits.getWaiting(resource));
+    }
+    return result;
+  }
+
+  /**
+   * Returns the resource limits, or <code>null</code> if they are not known.
+   */
+  public ResourceLimits getLimits() {
+    return limits;
+  }
+
+  @Override
+  public Map<String, Long> getFfmpegExitCodes() {
+    Map<String, Long> result = new TreeMap<String, Long>();
+    for (Map.Entry<Integer, AtomicLong> entry : exitCodes.entrySet())
+      result.put(entry.getKey() == UNKNOWN_EXIT_CODE ? "unknown" : entry.getKey().toString(), entry.getValue().get());
+    return result;
+  }
+
+}
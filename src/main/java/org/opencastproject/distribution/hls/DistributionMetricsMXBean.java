@@ -0,0 +1,64 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.Map;
+
+/**
+ * Management interface of the {@link DistributionMetrics}. The latencies of the individual phases are published as
+ * separate {@link LatencyHistogramMXBean}s.
+ */
+public interface DistributionMetricsMXBean {
+
+  /** Returns the number of jobs being processed */
+  int getJobsInFlight();
+
+  /** Returns the number of jobs waiting for a lock or for the same distribution running in another job */
+  int getJobsWaiting();
+
+  /** Returns the number of jobs processed since the service started */
+  long getJobsProcessed();
+
+  /** Returns the number of jobs that failed since the service started */
+  long getJobsFailed();
+
+  /** Returns the number of requests waiting for the I/O scheduler */
+  int getIOQueueDepth();
+
+  /** Returns the number of bytes written to the distribution directory */
+  long getBytesWritten();
+
+  /** Returns the number of segments written to the distribution directory */
+  long getSegmentsWritten();
+
+  /** Returns the usable space of the distribution volume minus the space reserved by running jobs */
+  long getAvailableBytes();
+
+  /** Returns the space reserved on the distribution volume by running jobs */
+  long getReservedBytes();
+
+  /** Returns the number of slots in use by limited resource */
+  Map<String, Integer> getSlotsInUse();
+
+  /** Returns the number of jobs waiting for a slot by limited resource */
+  Map<String, Integer> getSlotsWaiting();
+
+  /** Returns the number of ffmpeg runs by exit code */
+  Map<String, Long> getFfmpegExitCodes();
+
+}
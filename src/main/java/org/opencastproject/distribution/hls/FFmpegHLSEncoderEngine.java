@@ -21,21 +21,37 @@
 
 package org.opencastproject.distribution.hls;
 
+import org.apache.commons.io.FileUtils;
 import org.opencastproject.composer.api.EncoderException;
 import org.opencastproject.composer.api.EncodingProfile;
 import org.opencastproject.composer.impl.ffmpeg.FFmpegEncoderEngine;
+import org.opencastproject.distribution.hls.playlist.AttributeList;
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+import org.opencastproject.distribution.hls.playlist.MediaSegment;
+import org.opencastproject.distribution.hls.playlist.PlaylistRewriter;
+import org.opencastproject.distribution.hls.playlist.PlaylistWriter;
 import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Implementation for the encoder engine backed by ffmpeg.
@@ -45,6 +61,39 @@ public class FFmpegHLSEncoderEngine extends FFmpegEncoderEngine {
   /** Logging facility */
   private static final Logger logger = LoggerFactory.getLogger(FFmpegHLSEncoderEngine.class);
 
+  /** Target segment duration in seconds */
+  public static final int SEGMENT_DURATION = 10;
+
+  /** ffmpeg input options */
+  private static final String INPUT_OPTIONS = "-i #{in.video.path}";
+
+  /** ffmpeg options segmenting the source into an MPEG-TS media playlist without transcoding */
+  private static final String SOURCE_OUTPUT_OPTIONS = "-codec copy -map 0 -bsf h264_mp4toannexb";
+
+  /** ffmpeg options segmenting the video of the source without transcoding, used when audio is published separately */
+  private static final String SOURCE_VIDEO_OUTPUT_OPTIONS = "-codec copy -map 0:v:0 -bsf h264_mp4toannexb";
+
+  /** ffmpeg options segmenting the source into fragmented MP4 without transcoding */
+  private static final String SOURCE_FMP4_OUTPUT_OPTIONS = "-codec copy -map 0:v? -map 0:a?";
+
+  /** ffmpeg options segmenting the video of the source into fragmented MP4 without transcoding */
+  private static final String SOURCE_VIDEO_FMP4_OUTPUT_OPTIONS = "-codec copy -map 0:v:0";
+
+  /** Extension of fragmented MP4 media segments */
+  public static final String FMP4_SEGMENT_EXTENSION = ".m4s";
+
+  /** Name suffix of fragmented MP4 initialization segments */
+  public static final String FMP4_INIT_SUFFIX = "-init.mp4";
+
+  /** Name suffix of the separately published audio rendition */
+  public static final String AUDIO_SUFFIX = "-audio";
+
+  /** Group ID of the separate audio rendition in the master playlist */
+  private static final String AUDIO_GROUP_ID = "audio";
+
+  /** Bitrate of the audio rendition if the source audio has to be transcoded */
+  private static final String AUDIO_BITRATE = "128k";
+
   /**
    * Creates the ffmpeg encoder engine.
    */
@@ -56,13 +105,76 @@ public class FFmpegHLSEncoderEngine extends FFmpegEncoderEngine {
     super.activate(cc);
   }
 
+  /**
+   * Options of {@link FFmpegHLSEncoderEngine#relitiviseAndMovePlaylist(File, File, IOScheduler, MoveOptions)} and
+   * {@link FFmpegHLSEncoderEngine#relitiviseAndMovePlaylists(File, File, List, File, IOScheduler, MoveOptions)}.
+   */
+  public static class MoveOptions {
+
+    /** The name prefix of the moved segments, or <code>null</code> to name them after the destination playlist */
+    private String segmentPrefix = null;
+
+    /** The segment encryption, or <code>null</code> to move the segments unencrypted */
+    private SegmentEncryption encryption = null;
+
+    /** Whether to write an integrity manifest of every moved playlist */
+    private boolean integrity = false;
+
+    /**
+     * Names the moved segments after <code>segmentPrefix</code> rather than after the destination playlist. This allows
+     * several playlists to share one segment naming scheme.
+     */
+    public MoveOptions segmentPrefix(String segmentPrefix) {
+      this.segmentPrefix = segmentPrefix;
+      return this;
+    }
+
+    /**
+     * Encrypts the segments with AES-128 while they are moved if <code>encryption</code> is given. The matching
+     * EXT-X-KEY tags are written in front of every segment.
+     */
+    public MoveOptions encryption(SegmentEncryption encryption) {
+      this.encryption = encryption;
+      return this;
+    }
+
+    /**
+     * Writes an {@link IntegrityManifest} of every moved playlist and its files if <code>integrity</code> is set. The
+     * digests are computed from the bytes moved or encrypted.
+     */
+    public MoveOptions integrity(boolean integrity) {
+      this.integrity = integrity;
+      return this;
+    }
+
+    /**
+     * Returns the segment name prefix for the passed destination playlist.
+     */
+    String getSegmentPrefix(File destination) {
+      return segmentPrefix != null ? segmentPrefix : destination.getName().replace(".m3u8", "");
+    }
+
+    /**
+     * Returns a copy of these options naming the segments after <code>segmentPrefix</code>.
+     */
+    MoveOptions withSegmentPrefix(String segmentPrefix) {
+      return new MoveOptions().segmentPrefix(segmentPrefix).encryption(encryption).integrity(integrity);
+    }
+
+  }
+
     /**
      * Updates the passed playlist file to make all the files relative and returns
      * a List of File objects that includes the playlist itseslf and all of the
-     * segments referenced in the playlist.
+     * segments referenced in the playlist. The segments are moved next to
+     * <code>destination</code> and charged to the publishing budget of <code>io</code>.
      */
-  public static List<File> relitiviseAndMovePlaylist(File m3u8, File destination) throws IOException, EncoderException {
-      List<File> files = new ArrayList<File>();
+  public static List<File> relitiviseAndMovePlaylist(final File m3u8, final File destination, final IOScheduler io,
+          MoveOptions options) throws IOException, EncoderException {
+      final String segmentPrefix = options.getSegmentPrefix(destination);
+      final SegmentEncryption encryption = options.encryption;
+      final boolean integrity = options.integrity;
+      final List<File> files = new ArrayList<File>();
       files.add(m3u8);
 
       if (!destination.getParentFile().exists()) {
@@ -72,40 +184,94 @@ public class FFmpegHLSEncoderEngine extends FFmpegEncoderEngine {
         destination.getParentFile().mkdirs();
       }
 
-      PrintWriter pw = null;
-      BufferedReader br = new BufferedReader(new FileReader(m3u8));
-      try {
-          pw = new PrintWriter(new FileWriter(destination));
-          String line = null;
-
-          //Read from the original file and write to the new
-          //unless content matches data to be removed.
-          final String oldName = m3u8.getName().replace(".m3u8", "");
-          final String newName = destination.getName().replace(".m3u8", "");
-          while ((line = br.readLine()) != null) {
-              if (line.startsWith(m3u8.getParentFile().getPath())) {
-                  File oldFile = new File(line);
-                  File newFile = new File(destination.getParentFile(), oldFile.getName().replace(oldName, newName));
-                  logger.debug("Renaming " + oldFile + " to " + newFile);
-                  if (!oldFile.renameTo(newFile)) {
-                      throw new EncoderException("Could not rename segment file!");
-                  }
-                  pw.println(newFile.getName());
-              } else if (line.endsWith(".ts")) {
-                  File oldFile = new File(m3u8.getParentFile(), line);
-                  File newFile = new File(destination.getParentFile(), oldFile.getName().replace(oldName, newName));
-                  logger.debug("Renaming " + oldFile + " to " + newFile);
-                  if (!oldFile.renameTo(newFile)) {
-                      throw new EncoderException("Could not rename segment file!");
-                  }
-                  pw.println(newFile.getName());
+      final SegmentEncryption.Session session = encryption != null
+              ? encryption.newSession(destination.getParentFile(), segmentPrefix, io) : null;
+
+      final String oldName = m3u8.getName().replace(".m3u8", "");
+      final Map<File, MessageDigest> digests = new LinkedHashMap<File, MessageDigest>();
+      final Map<File, Double> durations = new HashMap<File, Double>();
+      PlaylistRewriter rewriter = new PlaylistRewriter() {
+          /** Consecutive byte range segments share one file, which is moved only once */
+          private String previousUri = null;
+          private File previousFile = null;
+
+          /** The initialization section of the previous segment, before and after rewriting */
+          private String previousMap = null;
+          private String rewrittenMap = null;
+
+          @Override
+          protected void rewriteSegment(MediaSegment segment) throws IOException {
+              if (segment.getMap() != null && segment.getMap().equals(previousMap)) {
+                  segment.setMap(rewrittenMap);
+              } else if (segment.getMap() != null) {
+                  if (session != null)
+                      throw new IOException("Segments with an initialization section cannot be encrypted: " + m3u8);
+                  previousMap = segment.getMap();
+                  Map<String, String> map = AttributeList.parse(previousMap);
+                  File oldInit = resolve(AttributeList.get(previousMap, "URI"));
+                  File newInit = new File(destination.getParentFile(), oldInit.getName().replace(oldName,
+                          segmentPrefix));
+                  logger.debug("Moving " + oldInit + " to " + newInit);
+                  io.move(oldInit, newInit, IOScheduler.Traffic.PUBLISH, newDigest(newInit));
+                  map.put("URI", "\"" + newInit.getName() + "\"");
+                  rewrittenMap = AttributeList.format(map);
+                  segment.setMap(rewrittenMap);
+                  files.add(newInit);
+              }
+              if (segment.getUri().equals(previousUri)) {
+                  segment.setUri(previousFile.getName());
+                  addDuration(previousFile, segment.getDuration());
+                  return;
+              }
+              File oldFile = resolve(segment.getUri());
+              File newFile = new File(destination.getParentFile(), oldFile.getName().replace(oldName, segmentPrefix));
+              if (session != null) {
+                  if (segment.hasByteRange())
+                      throw new IOException("Byte range segments cannot be encrypted: " + oldFile);
+                  logger.debug("Encrypting " + oldFile + " to " + newFile);
+                  segment.setKey(session.encrypt(oldFile, newFile, newDigest(newFile)));
               } else {
-                  pw.println(line);
+                  logger.debug("Moving " + oldFile + " to " + newFile);
+                  io.move(oldFile, newFile, IOScheduler.Traffic.PUBLISH, newDigest(newFile));
               }
+              addDuration(newFile, segment.getDuration());
+              previousUri = segment.getUri();
+              previousFile = newFile;
+              segment.setUri(newFile.getName());
+              files.add(newFile);
+          }
+
+          private File resolve(String uri) {
+              File file = new File(uri);
+              return file.isAbsolute() ? file : new File(m3u8.getParentFile(), uri);
+          }
+
+          private MessageDigest newDigest(File file) {
+              if (!integrity)
+                  return null;
+              MessageDigest digest = IntegrityManifest.newDigest();
+              digests.put(file, digest);
+              return digest;
+          }
+
+          private void addDuration(File file, double duration) {
+              Double previous = durations.get(file);
+              durations.put(file, previous == null ? duration : previous + duration);
+          }
+      };
+      rewriter.rewrite(m3u8, destination);
+      if (session != null)
+          session.await();
+
+      if (integrity) {
+          IntegrityManifest manifest = new IntegrityManifest();
+          for (Map.Entry<File, MessageDigest> digest : digests.entrySet()) {
+              Double duration = durations.get(digest.getKey());
+              manifest.add(digest.getKey().getName(), digest.getKey(), IntegrityManifest.toHex(digest.getValue()
+                      .digest()), duration == null ? 0 : duration);
           }
-      } finally {
-          if (pw != null) pw.close();
-          br.close();
+          manifest.add(destination.getName(), destination, IntegrityManifest.digest(destination), 0);
+          manifest.write(IntegrityManifest.getFile(destination));
       }
 
       //Delete the original file
@@ -115,9 +281,621 @@ public class FFmpegHLSEncoderEngine extends FFmpegEncoderEngine {
       return files;
     }
 
+  /**
+   * Returns the ffmpeg command line segmenting the source. All outputs are written by a single invocation: the source
+   * is read and demuxed once, and ffmpeg decodes the video once and feeds the frames to every transcoded rendition and
+   * to the thumbnail sprites. The rendition outputs come first so that the segmented source playlist is the last
+   * playlist on the command line, which is the one {@link #getOutputFile(File, EncodingProfile)} reports.
+   *
+   * @param renditions
+   *          the transcoded renditions, may be empty
+   * @param separateAudio
+   *          whether to write the audio as a separate rendition instead of muxing it into every video variant
+   * @param transcodeAudio
+   *          whether the separate audio rendition has to be transcoded to AAC
+   * @param sprites
+   *          the sprite settings or <code>null</code>
+   * @param thumbnailHeight
+   *          the thumbnail height, ignored if <code>sprites</code> is <code>null</code>
+   */
+  public static String getSegmentCommand(List<HLSRendition> renditions, boolean separateAudio,
+          boolean transcodeAudio, ThumbnailSprites sprites, int thumbnailHeight) {
+    return getSegmentCommand(renditions, separateAudio, transcodeAudio, sprites, thumbnailHeight, false);
+  }
+
+  /**
+   * Same as {@link #getSegmentCommand(List, boolean, boolean, ThumbnailSprites, int)}, but writes fragmented MP4
+   * segments with a shared initialization segment per playlist instead of MPEG-TS segments if <code>fmp4</code> is
+   * set. These segments can be referenced by a DASH manifest as well.
+   */
+  public static String getSegmentCommand(List<HLSRendition> renditions, boolean separateAudio,
+          boolean transcodeAudio, ThumbnailSprites sprites, int thumbnailHeight, boolean fmp4) {
+    MuxerOptions muxer = new MuxerOptions().fmp4(fmp4);
+    StringBuilder command = new StringBuilder(INPUT_OPTIONS);
+    for (HLSRendition rendition : renditions)
+      command.append(" ").append(rendition.getOutputOptions(!separateAudio, muxer));
+    if (separateAudio) {
+      command.append(" -map 0:a:0 -vn");
+      command.append(transcodeAudio ? " -c:a aac -strict experimental -b:a " + AUDIO_BITRATE : " -c:a copy");
+      command.append(" ").append(getMuxerOptions(AUDIO_SUFFIX, muxer));
+      command.append(" ").append(fmp4 ? SOURCE_VIDEO_FMP4_OUTPUT_OPTIONS : SOURCE_VIDEO_OUTPUT_OPTIONS);
+    } else {
+      command.append(" ").append(fmp4 ? SOURCE_FMP4_OUTPUT_OPTIONS : SOURCE_OUTPUT_OPTIONS);
+    }
+    command.append(" ").append(getMuxerOptions("", muxer));
+    if (sprites != null)
+      command.append(" ").append(sprites.getOutputOptions(thumbnailHeight));
+    return command.toString();
+  }
+
+  /**
+   * Options of the ffmpeg output writing one media playlist and its segments, see
+   * {@link FFmpegHLSEncoderEngine#getMuxerOptions(String, MuxerOptions)}.
+   */
+  public static class MuxerOptions {
+
+    /** The target segment duration in seconds */
+    private int segmentDuration = SEGMENT_DURATION;
+
+    /** Whether to write fragmented MP4 instead of MPEG-TS segments */
+    private boolean fmp4 = false;
+
+    /** The command input that is encoded */
+    private int input = 0;
+
+    /** The number of the first segment */
+    private int startNumber = 0;
+
+    /**
+     * Sets the target segment duration in seconds, {@link FFmpegHLSEncoderEngine#SEGMENT_DURATION} by default.
+     */
+    public MuxerOptions segmentDuration(int segmentDuration) {
+      this.segmentDuration = segmentDuration;
+      return this;
+    }
+
+    /**
+     * Writes fragmented MP4 segments with a shared initialization segment instead of MPEG-TS segments if
+     * <code>fmp4</code> is set.
+     */
+    public MuxerOptions fmp4(boolean fmp4) {
+      this.fmp4 = fmp4;
+      return this;
+    }
+
+    /**
+     * Encodes input <code>input</code> of the command rather than the first one.
+     */
+    public MuxerOptions input(int input) {
+      this.input = input;
+      return this;
+    }
+
+    /**
+     * Numbers the segments from <code>startNumber</code> rather than from 0.
+     */
+    public MuxerOptions startNumber(int startNumber) {
+      this.startNumber = startNumber;
+      return this;
+    }
+
+    int getSegmentDuration() {
+      return segmentDuration;
+    }
+
+    int getInput() {
+      return input;
+    }
+
+  }
+
+  /**
+   * Returns the ffmpeg options writing one media playlist and its segments.
+   *
+   * @param suffix
+   *          the name suffix of the playlist and its segments
+   * @param options
+   *          the muxer options
+   */
+  public static String getMuxerOptions(String suffix, MuxerOptions options) {
+    String name = "#{out.dir}/#{out.name}" + suffix;
+    if (!options.fmp4)
+      return "-f segment -segment_list " + name + "#{out.suffix}"
+              + (options.startNumber > 0 ? " -segment_start_number " + options.startNumber : "") + " -segment_time "
+              + options.segmentDuration + " " + name + "-%03d.ts";
+    return "-f hls -hls_time " + options.segmentDuration + " -hls_playlist_type vod"
+            + (options.startNumber > 0 ? " -start_number " + options.startNumber : "") + " -hls_segment_type fmp4"
+            + " -hls_fmp4_init_filename #{out.name}" + suffix + FMP4_INIT_SUFFIX + " -hls_segment_filename " + name
+            + "-%03d" + FMP4_SEGMENT_EXTENSION + " " + name + "#{out.suffix}";
+  }
+
+  /**
+   * Returns the ffmpeg command line segmenting only the end of a source whose beginning has been distributed before.
+   * The source is copied from <code>sourceStart</code>, which must be a key frame, and the renditions and the separate
+   * audio are encoded from <code>renditionStart</code>, which must be one of their segment boundaries. They read the
+   * source through separate inputs, so ffmpeg seeks to each start on its own and demuxes only the end of the source.
+   * The segments are numbered after the ones that are kept. Only MPEG-TS segments without sprites are supported.
+   *
+   * @param renditions
+   *          the transcoded renditions, may be empty
+   * @param separateAudio
+   *          whether to write the audio as a separate rendition instead of muxing it into every video variant
+   * @param transcodeAudio
+   *          whether the separate audio rendition has to be transcoded to AAC
+   * @param sourceStart
+   *          the time the source is segmented from, in seconds
+   * @param sourceSegments
+   *          the number of segments of the source that are kept
+   * @param renditionStart
+   *          the time the renditions and the separate audio are segmented from, in seconds
+   * @param renditionSegments
+   *          the number of segments of every rendition and of the separate audio that are kept
+   */
+  public static String getTailCommand(List<HLSRendition> renditions, boolean separateAudio, boolean transcodeAudio,
+          double sourceStart, int sourceSegments, double renditionStart, int renditionSegments) {
+    StringBuilder command = new StringBuilder("-ss ").append(formatTime(sourceStart)).append(" ")
+            .append(INPUT_OPTIONS);
+    if (!renditions.isEmpty() || separateAudio)
+      command.append(" -ss ").append(formatTime(renditionStart)).append(" ").append(INPUT_OPTIONS);
+    MuxerOptions renditionMuxer = new MuxerOptions().input(1).startNumber(renditionSegments);
+    for (HLSRendition rendition : renditions)
+      command.append(" ").append(rendition.getOutputOptions(!separateAudio, renditionMuxer));
+    if (separateAudio) {
+      command.append(" -map 1:a:0 -vn");
+      command.append(transcodeAudio ? " -c:a aac -strict experimental -b:a " + AUDIO_BITRATE : " -c:a copy");
+      command.append(" ").append(getMuxerOptions(AUDIO_SUFFIX, renditionMuxer));
+      command.append(" ").append(SOURCE_VIDEO_OUTPUT_OPTIONS);
+    } else {
+      command.append(" ").append(SOURCE_OUTPUT_OPTIONS);
+    }
+    command.append(" ").append(getMuxerOptions("", new MuxerOptions().startNumber(sourceSegments)));
+    return command.toString();
+  }
+
+  /**
+   * Formats seconds for the ffmpeg command line.
+   */
+  private static String formatTime(double seconds) {
+    return String.format(Locale.US, "%.3f", seconds);
+  }
+
+  /**
+   * Moves all media playlists and segment sets written by one run of the command returned by
+   * {@link #getSegmentCommand(List, boolean, boolean, ThumbnailSprites, int)}. The source playlist is moved to
+   * <code>sourceDestination</code> with segments named after the segment prefix of <code>options</code>, called the
+   * base name, every rendition playlist next to it as <code>baseName-rendition.m3u8</code> with segments named after
+   * <code>baseName-rendition</code>.
+   *
+   * @param m3u8
+   *          the source playlist written by ffmpeg
+   * @param sourceDestination
+   *          the destination of the source playlist
+   * @param renditions
+   *          the renditions written by the same run
+   * @param audioDestination
+   *          the destination of the separate audio rendition playlist, or <code>null</code> if the run did not write
+   *          one. Its segments are named after the playlist.
+   * @param io
+   *          the I/O scheduler the segments are charged to
+   * @param options
+   *          the options every playlist is moved with
+   * @return the moved media playlists, the source playlist first followed by the renditions in order and the audio
+   *         rendition last
+   */
+  public static List<File> relitiviseAndMovePlaylists(File m3u8, File sourceDestination, List<HLSRendition> renditions,
+          File audioDestination, IOScheduler io, MoveOptions options) throws IOException, EncoderException {
+    List<File> playlists = new ArrayList<File>();
+    String outName = m3u8.getName().replace(".m3u8", "");
+    String baseName = options.getSegmentPrefix(sourceDestination);
+    relitiviseAndMovePlaylist(m3u8, sourceDestination, io, options.withSegmentPrefix(baseName));
+    playlists.add(sourceDestination);
+    for (HLSRendition rendition : renditions) {
+      File renditionPlaylist = new File(m3u8.getParentFile(), outName + rendition.getSuffix() + ".m3u8");
+      File destination = new File(sourceDestination.getParentFile(), baseName + rendition.getSuffix() + ".m3u8");
+      relitiviseAndMovePlaylist(renditionPlaylist, destination, io,
+              options.withSegmentPrefix(baseName + rendition.getSuffix()));
+      playlists.add(destination);
+    }
+    if (audioDestination != null) {
+      File audioPlaylist = new File(m3u8.getParentFile(), outName + AUDIO_SUFFIX + ".m3u8");
+      relitiviseAndMovePlaylist(audioPlaylist, audioDestination, io, options.withSegmentPrefix(null));
+      playlists.add(audioDestination);
+    }
+    return playlists;
+  }
+
+  /**
+   * Appends the segments written by one run of the command returned by
+   * {@link #getTailCommand(List, boolean, boolean, double, int, double, int)} to the playlists distributed before, in
+   * the way {@link #relitiviseAndMovePlaylists(File, File, List, File, IOScheduler, MoveOptions)} moves them.
+   *
+   * @param sourceSegments
+   *          the number of segments of the source playlist that are kept
+   * @param renditionSegments
+   *          the number of segments of every rendition playlist and of the audio playlist that are kept
+   * @param replaced
+   *          collects the segments no playlist refers to any more, see
+   *          {@link #relitiviseAndAppendPlaylist(File, File, String, int, List, IOScheduler, boolean)}
+   * @return the media playlists, the source playlist first followed by the renditions in order and the audio rendition
+   *         last
+   */
+  public static List<File> relitiviseAndAppendPlaylists(File m3u8, File sourceDestination, String baseName,
+          List<HLSRendition> renditions, File audioDestination, int sourceSegments, int renditionSegments,
+          List<File> replaced, IOScheduler io, boolean integrity) throws IOException, EncoderException {
+    List<File> playlists = new ArrayList<File>();
+    String outName = m3u8.getName().replace(".m3u8", "");
+    relitiviseAndAppendPlaylist(m3u8, sourceDestination, baseName, sourceSegments, replaced, io, integrity);
+    playlists.add(sourceDestination);
+    for (HLSRendition rendition : renditions) {
+      File renditionPlaylist = new File(m3u8.getParentFile(), outName + rendition.getSuffix() + ".m3u8");
+      File destination = new File(sourceDestination.getParentFile(), baseName + rendition.getSuffix() + ".m3u8");
+      relitiviseAndAppendPlaylist(renditionPlaylist, destination, baseName + rendition.getSuffix(),
+              renditionSegments, replaced, io, integrity);
+      playlists.add(destination);
+    }
+    if (audioDestination != null) {
+      File audioPlaylist = new File(m3u8.getParentFile(), outName + AUDIO_SUFFIX + ".m3u8");
+      relitiviseAndAppendPlaylist(audioPlaylist, audioDestination, audioDestination.getName().replace(".m3u8", ""),
+              renditionSegments, replaced, io, integrity);
+      playlists.add(audioDestination);
+    }
+    return playlists;
+  }
+
+  /**
+   * Replaces all but the first <code>keep</code> segments of the distributed playlist <code>destination</code> with the
+   * segments of <code>m3u8</code>, which are moved next to it as by
+   * {@link #relitiviseAndMovePlaylist(File, File, IOScheduler, MoveOptions)}. The new segments
+   * are numbered after the kept ones, but named after a revision of <code>segmentPrefix</code> that is not in use, so
+   * the segments of the current playlist stay untouched while it may still be served. The playlist is swapped
+   * atomically once all new segments are in place. The old segments that are no longer referenced are not deleted but
+   * added to <code>replaced</code>, as the I-frame and master playlists may still refer to them until they are
+   * rewritten as well. The new segments do not continue the timestamps of the kept ones, so the first of them is marked as a
+   * discontinuity.
+   *
+   * @param m3u8
+   *          the playlist written by ffmpeg
+   * @param destination
+   *          the distributed playlist
+   * @param segmentPrefix
+   *          the name prefix of the segments
+   * @param keep
+   *          the number of leading segments of <code>destination</code> that are kept
+   * @param replaced
+   *          collects the old segments that are no longer referenced, for the caller to delete
+   * @param io
+   *          the I/O scheduler the segments are charged to
+   * @param integrity
+   *          whether to rewrite the integrity manifest of <code>destination</code>
+   * @return the playlist and all files it references
+   */
+  public static List<File> relitiviseAndAppendPlaylist(File m3u8, File destination, String segmentPrefix, int keep,
+          List<File> replaced, IOScheduler io, boolean integrity) throws IOException, EncoderException {
+    File directory = destination.getParentFile();
+    MediaPlaylist playlist = MediaPlaylist.read(destination);
+    List<MediaSegment> segments = playlist.getSegments();
+    if (keep > segments.size())
+      throw new EncoderException("Cannot keep " + keep + " segments of " + destination + ", it only has "
+              + segments.size());
+
+    // Move the new segments next to a hidden playlist, then combine it with the kept segments
+    File tail = new File(directory, "." + destination.getName() + ".tail");
+    relitiviseAndMovePlaylist(m3u8, tail, io, new MoveOptions().segmentPrefix(getRevisionPrefix(directory,
+            segmentPrefix)).integrity(integrity));
+    MediaPlaylist appended = MediaPlaylist.read(tail);
+    List<MediaSegment> previous = new ArrayList<MediaSegment>(segments.subList(keep, segments.size()));
+    segments.subList(keep, segments.size()).clear();
+    if (keep > 0 && !appended.getSegments().isEmpty())
+      appended.getSegments().get(0).setDiscontinuity(true);
+    segments.addAll(appended.getSegments());
+    playlist.setTargetDuration(Math.max(playlist.getTargetDuration(), appended.getTargetDuration()));
+    File temporary = new File(directory, destination.getName() + ".tmp");
+    playlist.write(temporary);
+    if (!temporary.renameTo(destination) && !(destination.delete() && temporary.renameTo(destination)))
+      throw new EncoderException("Could not replace " + destination);
+
+    List<File> files = new ArrayList<File>();
+    files.add(destination);
+    Set<String> uris = new LinkedHashSet<String>();
+    for (MediaSegment segment : segments)
+      uris.add(segment.getUri());
+    for (String uri : uris)
+      files.add(new File(directory, uri));
+    for (MediaSegment segment : previous) {
+      File file = new File(directory, segment.getUri());
+      if (!uris.contains(segment.getUri()) && file.isFile() && !replaced.contains(file))
+        replaced.add(file);
+    }
+
+    File tailManifest = IntegrityManifest.getFile(tail);
+    if (integrity) {
+      File previousManifest = IntegrityManifest.getFile(destination);
+      Map<String, IntegrityManifest.Entry> entries = new HashMap<String, IntegrityManifest.Entry>();
+      if (previousManifest.isFile()) {
+        for (IntegrityManifest.Entry entry : IntegrityManifest.read(previousManifest).getEntries())
+          entries.put(entry.getName(), entry);
+      }
+      if (tailManifest.isFile()) {
+        for (IntegrityManifest.Entry entry : IntegrityManifest.read(tailManifest).getEntries())
+          entries.put(entry.getName(), entry);
+      }
+      IntegrityManifest manifest = new IntegrityManifest();
+      for (int i = 0; i < segments.size(); i++) {
+        MediaSegment segment = segments.get(i);
+        File file = new File(directory, segment.getUri());
+        IntegrityManifest.Entry entry = entries.get(segment.getUri());
+        // Byte range segments share one file, whose entry already covers all of its ranges
+        if (i > 0 && segment.getUri().equals(segments.get(i - 1).getUri()))
+          continue;
+        manifest.add(segment.getUri(), file, entry != null ? entry.getDigest() : IntegrityManifest.digest(file),
+                entry != null ? entry.getDuration() : segment.getDuration());
+      }
+      manifest.add(destination.getName(), destination, IntegrityManifest.digest(destination), 0);
+      manifest.write(IntegrityManifest.getFile(destination));
+    }
+    FileUtils.deleteQuietly(tailManifest);
+    if (!tail.delete())
+      throw new EncoderException("Could not delete " + tail);
+    return files;
+  }
+
+  /**
+   * Returns the first revision of a segment name prefix, e.g. <code>media-r1</code>, that no file in
+   * <code>directory</code> is named after.
+   */
+  private static String getRevisionPrefix(File directory, String segmentPrefix) {
+    for (int revision = 1;; revision++) {
+      final String prefix = segmentPrefix + "-r" + revision;
+      String[] names = directory.list(new FilenameFilter() {
+        @Override
+        public boolean accept(File dir, String name) {
+          return name.startsWith(prefix + "-");
+        }
+      });
+      if (names == null || names.length == 0)
+        return prefix;
+    }
+  }
+
+  /**
+   * Moves the sprite images written next to the passed ffmpeg playlist to <code>directory</code>, renaming them after
+   * <code>prefix</code>.
+   *
+   * @param m3u8
+   *          the playlist written by ffmpeg
+   * @param directory
+   *          the target directory
+   * @param prefix
+   *          the new name prefix
+   * @param io
+   *          the I/O scheduler the images are charged to
+   * @return the moved sprite images, in order
+   */
+  public static List<File> moveSprites(File m3u8, File directory, String prefix, IOScheduler io)
+          throws EncoderException {
+    final String oldPrefix = m3u8.getName().replace(".m3u8", "") + ThumbnailSprites.SPRITE_SUFFIX + "-";
+    String[] names = m3u8.getParentFile().list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.startsWith(oldPrefix) && name.endsWith(ThumbnailSprites.SPRITE_EXTENSION);
+      }
+    });
+    List<File> sprites = new ArrayList<File>();
+    if (names == null)
+      return sprites;
+    Arrays.sort(names);
+    for (String name : names) {
+      File oldFile = new File(m3u8.getParentFile(), name);
+      File newFile = new File(directory, prefix + ThumbnailSprites.SPRITE_SUFFIX + "-"
+              + name.substring(oldPrefix.length()));
+      logger.debug("Moving " + oldFile + " to " + newFile);
+      try {
+        io.move(oldFile, newFile, IOScheduler.Traffic.PUBLISH);
+      } catch (IOException e) {
+        throw new EncoderException("Could not move sprite file!", e);
+      }
+      sprites.add(newFile);
+    }
+    return sprites;
+  }
+
+  /**
+   * Writes an I-frame only playlist for the passed media playlist. Every key frame of every segment is referenced as a
+   * byte range of the existing segment, so no media is copied.
+   *
+   * @param m3u8
+   *          the media playlist, with segments relative to its directory
+   * @param iFramePlaylist
+   *          the I-frame playlist to write
+   * @return the peak bandwidth of the I-frame stream in bits per second, or 0 if no key frames were found and no
+   *         playlist was written
+   */
+  public static long createIFramePlaylist(File m3u8, File iFramePlaylist) throws IOException {
+    return createIFramePlaylist(m3u8, iFramePlaylist, 0);
+  }
+
+  /**
+   * Same as {@link #createIFramePlaylist(File, File)}, but takes the key frames of the first <code>keep</code>
+   * segments from the existing I-frame playlist instead of reading the segments again. The key frames of the other
+   * segments start after a discontinuity, as the segments do.
+   */
+  public static long createIFramePlaylist(File m3u8, File iFramePlaylist, int keep) throws IOException {
+    MediaPlaylist playlist = MediaPlaylist.read(m3u8);
+    List<MediaSegment> entries = new ArrayList<MediaSegment>();
+
+    // Keep the I-frames of the kept segments, the last one lasting until the end of its segment
+    if (keep > 0 && iFramePlaylist.isFile()) {
+      Set<String> keptSegments = new HashSet<String>();
+      double keptDuration = 0;
+      for (MediaSegment segment : playlist.getSegments().subList(0, keep)) {
+        keptSegments.add(segment.getUri());
+        keptDuration += segment.getDuration();
+      }
+      double start = 0;
+      for (MediaSegment entry : MediaPlaylist.read(iFramePlaylist).getSegments()) {
+        if (!keptSegments.contains(entry.getUri()))
+          break;
+        if (!entries.isEmpty())
+          start += entries.get(entries.size() - 1).getDuration();
+        entries.add(entry);
+      }
+      if (!entries.isEmpty())
+        entries.get(entries.size() - 1).setDuration(Math.max(keptDuration - start, 0));
+    } else {
+      keep = 0;
+    }
+
+    // Collect the key frames along with the segment they were found in
+    TransportStreamIndexer indexer = new TransportStreamIndexer();
+    List<TransportStreamIndexer.KeyFrame> keyFrames = new ArrayList<TransportStreamIndexer.KeyFrame>();
+    List<String> keyFrameSegments = new ArrayList<String>();
+    double totalDuration = 0;
+    for (MediaSegment segment : playlist.getSegments().subList(keep, playlist.getSegments().size())) {
+      totalDuration += segment.getDuration();
+      for (TransportStreamIndexer.KeyFrame keyFrame : indexer.index(new File(m3u8.getParentFile(), segment.getUri()))) {
+        if (keyFrame.getPts() < 0)
+          continue;
+        keyFrames.add(keyFrame);
+        keyFrameSegments.add(segment.getUri());
+      }
+    }
+    if (keyFrames.isEmpty() && entries.isEmpty()) {
+      logger.debug("No key frames found in {}, skipping I-frame playlist", m3u8);
+      return 0;
+    }
+
+    // Each I-frame lasts until the next one, the last one until the end of the stream
+    long firstPts = keyFrames.isEmpty() ? 0 : keyFrames.get(0).getPts();
+    for (int i = 0; i < keyFrames.size(); i++) {
+      double start = (double) (keyFrames.get(i).getPts() - firstPts) / TransportStreamIndexer.PTS_CLOCK;
+      double end = i + 1 < keyFrames.size() ? (double) (keyFrames.get(i + 1).getPts() - firstPts)
+              / TransportStreamIndexer.PTS_CLOCK : totalDuration;
+      MediaSegment entry = new MediaSegment();
+      entry.setUri(keyFrameSegments.get(i));
+      entry.setDuration(Math.max(end - start, 0));
+      entry.setByteRange(keyFrames.get(i).getLength(), keyFrames.get(i).getOffset());
+      entry.setDiscontinuity(i == 0 && !entries.isEmpty());
+      entries.add(entry);
+    }
+    double maxDuration = 0;
+    long bandwidth = 0;
+    for (MediaSegment entry : entries) {
+      maxDuration = Math.max(maxDuration, entry.getDuration());
+      if (entry.getDuration() > 0)
+        bandwidth = Math.max(bandwidth, (long) (entry.getByteRangeLength() * 8 / entry.getDuration()));
+    }
+
+    MediaPlaylist header = new MediaPlaylist();
+    header.setVersion(4);
+    header.setTargetDuration((long) Math.ceil(maxDuration));
+    header.setMediaSequence(0);
+    header.setPlaylistType(MediaPlaylist.TYPE_VOD);
+    header.setIFramesOnly(true);
+    header.setEndList(true);
+    PlaylistWriter writer = new PlaylistWriter(new OutputStreamWriter(new FileOutputStream(iFramePlaylist),
+            MediaPlaylist.ENCODING));
+    try {
+      writer.writeHeader(header);
+      for (MediaSegment entry : entries)
+        writer.writeSegment(entry);
+      writer.writeEnd(header);
+    } finally {
+      writer.close();
+    }
+    return bandwidth;
+  }
+
+  /**
+   * Determines the peak and average bandwidth of the passed media playlist from the sizes and durations of its
+   * segments and stores them in <code>variant</code>.
+   *
+   * @param m3u8
+   *          the media playlist, with segments relative to its directory
+   * @param variant
+   *          the variant to update
+   */
+  public static void measureBandwidth(File m3u8, HLSVariant variant) throws IOException {
+    long peak = 0;
+    long totalBytes = 0;
+    double totalDuration = 0;
+    for (MediaSegment segment : MediaPlaylist.read(m3u8).getSegments()) {
+      long size = segment.hasByteRange() ? segment.getByteRangeLength() : new File(m3u8.getParentFile(),
+              segment.getUri()).length();
+      if (segment.getDuration() > 0)
+        peak = Math.max(peak, (long) (size * 8 / segment.getDuration()));
+      totalBytes += size;
+      totalDuration += segment.getDuration();
+    }
+    variant.setBandwidth(peak);
+    variant.setDuration(totalDuration);
+    variant.setAverageBandwidth(totalDuration > 0 ? (long) (totalBytes * 8 / totalDuration) : 0);
+  }
+
+  /**
+   * Writes a master playlist referencing the passed variants and their I-frame playlists.
+   *
+   * @param master
+   *          the master playlist to write
+   * @param variants
+   *          the variant streams
+   */
+  public static void writeMasterPlaylist(File master, List<HLSVariant> variants) throws IOException {
+    writeMasterPlaylist(master, variants, null);
+  }
+
+  /**
+   * Writes a master playlist referencing the passed video variants, their I-frame playlists and a separate audio
+   * rendition. The audio bandwidth is added to the bandwidth of every variant, as they are played together.
+   *
+   * @param master
+   *          the master playlist to write
+   * @param variants
+   *          the video variant streams
+   * @param audio
+   *          the audio rendition, or <code>null</code> if the variants carry their own audio
+   */
+  public static void writeMasterPlaylist(File master, List<HLSVariant> variants, HLSVariant audio)
+          throws IOException {
+    PrintWriter pw = new PrintWriter(new FileWriter(master));
+    try {
+      pw.println("#EXTM3U");
+      pw.println("#EXT-X-VERSION:4");
+      if (audio != null) {
+        pw.println("#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"" + AUDIO_GROUP_ID + "\",NAME=\"default\",DEFAULT=YES,"
+                + "AUTOSELECT=YES,URI=\"" + audio.getUri() + "\"");
+      }
+      for (HLSVariant variant : variants) {
+        long bandwidth = variant.getBandwidth() + (audio != null ? audio.getBandwidth() : 0);
+        StringBuilder attributes = new StringBuilder("BANDWIDTH=").append(bandwidth);
+        if (variant.getAverageBandwidth() > 0) {
+          long averageBandwidth = variant.getAverageBandwidth() + (audio != null ? audio.getAverageBandwidth() : 0);
+          attributes.append(",AVERAGE-BANDWIDTH=").append(averageBandwidth);
+        }
+        if (variant.getResolution() != null)
+          attributes.append(",RESOLUTION=").append(variant.getResolution());
+        if (audio != null)
+          attributes.append(",AUDIO=\"").append(AUDIO_GROUP_ID).append("\"");
+        pw.println("#EXT-X-STREAM-INF:" + attributes);
+        pw.println(variant.getUri());
+      }
+      for (HLSVariant variant : variants) {
+        if (variant.getIFrameUri() == null)
+          continue;
+        StringBuilder attributes = new StringBuilder("BANDWIDTH=").append(variant.getIFrameBandwidth());
+        if (variant.getResolution() != null)
+          attributes.append(",RESOLUTION=").append(variant.getResolution());
+        attributes.append(",URI=\"").append(variant.getIFrameUri()).append("\"");
+        pw.println("#EXT-X-I-FRAME-STREAM-INF:" + attributes);
+      }
+    } finally {
+      pw.close();
+    }
+  }
+
   /**
    * Because this implementation technically has several output files, this
    * method shouldn't be used, and the superclass implementation won't work.
+   * It returns the last playlist on the command line.
    */
   @Override
   protected File getOutputFile(File source, EncodingProfile profile) {
@@ -27,15 +27,24 @@ import org.apache.http.HttpResponse;
 import org.apache.http.client.methods.HttpHead;
 import org.opencastproject.distribution.api.DistributionException;
 import org.opencastproject.distribution.api.DistributionService;
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+import org.opencastproject.distribution.hls.playlist.MediaSegment;
 //import org.opencastproject.distribution.api.DownloadDistributionService;
 import org.opencastproject.job.api.AbstractJobProducer;
+import org.opencastproject.composer.api.EncoderException;
 import org.opencastproject.composer.api.EncodingProfile;
 import org.opencastproject.job.api.Job;
+import org.opencastproject.mediapackage.AudioStream;
 import org.opencastproject.mediapackage.MediaPackage;
 import org.opencastproject.mediapackage.MediaPackageElement;
+import org.opencastproject.mediapackage.MediaPackageElementBuilder;
+import org.opencastproject.mediapackage.MediaPackageElementBuilderFactory;
+import org.opencastproject.mediapackage.MediaPackageElementFlavor;
 import org.opencastproject.mediapackage.MediaPackageElementParser;
 import org.opencastproject.mediapackage.MediaPackageException;
 import org.opencastproject.mediapackage.MediaPackageParser;
+import org.opencastproject.mediapackage.UnsupportedElementException;
+import org.opencastproject.mediapackage.VideoStream;
 import org.opencastproject.mediapackage.track.TrackImpl;
 import org.opencastproject.security.api.OrganizationDirectoryService;
 import org.opencastproject.security.api.SecurityService;
@@ -53,17 +62,38 @@ import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.servlet.http.HttpServletResponse;
 import java.io.File;
+import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
-import java.util.HashMap;;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * Distributes media to the local media delivery directory.
@@ -75,7 +105,7 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
 
   /** List of available operations on jobs */
   private enum Operation {
-    Distribute, Retract
+    Distribute, DistributeTracks, DistributeLive, DistributeDerived, Retract
   }
 
   /** Receipt type */
@@ -90,6 +120,234 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
   /** Interval time in millis for checking distributed file request */
   private static final long INTERVAL = 300L;
 
+  /** Configuration key for enabling I-frame only playlists */
+  public static final String IFRAMES_KEY = "org.opencastproject.hls.iframes";
+
+  /** Name suffix of the media playlist holding the segments of the source */
+  public static final String SOURCE_VARIANT_SUFFIX = "-source";
+
+  /** Name suffix of I-frame only playlists */
+  public static final String IFRAMES_SUFFIX = "-iframes";
+
+  /** Configuration key for enabling thumbnail sprites */
+  public static final String THUMBNAILS_KEY = "org.opencastproject.hls.thumbnails";
+
+  /** Configuration key for the seconds between two thumbnails */
+  public static final String THUMBNAILS_INTERVAL_KEY = "org.opencastproject.hls.thumbnails.interval";
+
+  /** Configuration key for the thumbnail width */
+  public static final String THUMBNAILS_WIDTH_KEY = "org.opencastproject.hls.thumbnails.width";
+
+  /** Configuration key for the number of thumbnail columns in a sprite */
+  public static final String THUMBNAILS_COLUMNS_KEY = "org.opencastproject.hls.thumbnails.columns";
+
+  /** Configuration key for the number of thumbnail rows in a sprite */
+  public static final String THUMBNAILS_ROWS_KEY = "org.opencastproject.hls.thumbnails.rows";
+
+  /** Configuration key for the transcoded renditions */
+  public static final String RENDITIONS_KEY = "org.opencastproject.hls.renditions";
+
+  /** Configuration key for enabling AES-128 segment encryption */
+  public static final String ENCRYPTION_KEY = "org.opencastproject.hls.encryption";
+
+  /** Configuration key for the number of segments encrypted with the same key */
+  public static final String ENCRYPTION_ROTATION_KEY = "org.opencastproject.hls.encryption.rotation";
+
+  /** Configuration key for the URL of the key server, required if segments are encrypted */
+  public static final String ENCRYPTION_KEY_URL_KEY = "org.opencastproject.hls.encryption.keyurl";
+
+  /** Configuration key for the directory the keys are written to, outside of the distribution directory */
+  public static final String ENCRYPTION_KEY_DIR_KEY = "org.opencastproject.hls.encryption.keys";
+
+  /** Configuration key for the number of encryption workers */
+  public static final String ENCRYPTION_THREADS_KEY = "org.opencastproject.hls.encryption.threads";
+
+  /** Configuration key for publishing the audio of video tracks as a separate rendition */
+  public static final String AUDIO_GROUP_KEY = "org.opencastproject.hls.audiogroup";
+
+  /** Configuration key for writing a DASH manifest next to the master playlist */
+  public static final String DASH_KEY = "org.opencastproject.hls.dash";
+
+  /** Flavor subtype of distributed DASH manifests */
+  public static final String DASH_FLAVOR_SUBTYPE = "dash";
+
+  /** Directory of the separate audio rendition, relative to the element directory */
+  public static final String AUDIO_DIRECTORY = "audio";
+
+  /** Flavor subtype of distributed thumbnail tracks */
+  public static final String THUMBNAILS_FLAVOR_SUBTYPE = "thumbnails+hls";
+
+  /** File name of the combined manifest of a mediapackage's tracks */
+  public static final String MULTITRACK_PLAYLIST = "multitrack.m3u8";
+
+  /** Flavor of the distributed combined manifest */
+  public static final String MULTITRACK_FLAVOR = "multitrack/delivery";
+
+  /** The flavor type of the track used as default angle of the combined manifest */
+  private static final String DEFAULT_ANGLE_FLAVOR_TYPE = "presenter";
+
+  /** The audio format that can be segmented without transcoding */
+  private static final String AAC = "AAC";
+
+  /** Playlist file extension */
+  public static final String PLAYLIST_EXTENSION = ".m3u8";
+
+  /** Configuration key for the directory of the distribution index */
+  public static final String INDEX_DIRECTORY_KEY = "org.opencastproject.hls.index";
+
+  /** Configuration key for the local storage directory, which holds the distribution index by default */
+  private static final String STORAGE_DIRECTORY_KEY = "org.opencastproject.storage.dir";
+
+  /** Directory of the distribution index, relative to the storage directory */
+  private static final String INDEX_DIRECTORY = "distribution" + File.separator + "hls-index";
+
+  /** Directory of the distribution index, relative to the distribution directory, if there is no storage directory */
+  private static final String FALLBACK_INDEX_DIRECTORY = ".index";
+
+  /** Configuration key for the seconds to wait for another node distributing the same element */
+  public static final String LOCK_TIMEOUT_KEY = "org.opencastproject.hls.lock.timeout";
+
+  /** Default seconds to wait for another node distributing the same element */
+  private static final int DEFAULT_LOCK_TIMEOUT = 6 * 60 * 60;
+
+  /** Name of the file recording what an element directory was distributed from */
+  public static final String RECEIPT_FILE = ".distribution";
+
+  /** Configuration key for the megabytes per second written when publishing, 0 for no limit */
+  public static final String IO_PUBLISH_MBPS_KEY = "org.opencastproject.hls.io.publish.mbps";
+
+  /** Configuration key for the file operations per second when publishing, 0 for no limit */
+  public static final String IO_PUBLISH_IOPS_KEY = "org.opencastproject.hls.io.publish.iops";
+
+  /** Configuration key for the megabytes per second deleted when retracting, 0 for no limit */
+  public static final String IO_RECLAIM_MBPS_KEY = "org.opencastproject.hls.io.reclaim.mbps";
+
+  /** Configuration key for the file operations per second when retracting, 0 for no limit */
+  public static final String IO_RECLAIM_IOPS_KEY = "org.opencastproject.hls.io.reclaim.iops";
+
+  /** Configuration key for the comma separated job operations whose I/O yields to the other jobs */
+  public static final String IO_BULK_OPERATIONS_KEY = "org.opencastproject.hls.io.bulk";
+
+  /** Configuration key for whether integrity manifests are written for distributed playlists */
+  public static final String INTEGRITY_KEY = "org.opencastproject.hls.integrity";
+
+  /** Configuration key for the ffmpeg binary, shared with the composer */
+  public static final String FFMPEG_PATH_KEY = "org.opencastproject.composer.ffmpegpath";
+
+  /** Configuration key for the target segment duration of live streams in seconds */
+  public static final String LIVE_SEGMENT_KEY = "org.opencastproject.hls.live.segment";
+
+  /** Configuration key for the part target duration of live streams in milliseconds, 0 to disable low-latency HLS */
+  public static final String LIVE_PART_KEY = "org.opencastproject.hls.live.part";
+
+  /** Configuration key for the number of segments listed in live playlists */
+  public static final String LIVE_WINDOW_KEY = "org.opencastproject.hls.live.window";
+
+  /** Configuration key for whether live streams are kept and turned into VOD once they end */
+  public static final String LIVE_VOD_KEY = "org.opencastproject.hls.live.vod";
+
+  /** Configuration key for whether live streams are transcoded rather than copied */
+  public static final String LIVE_TRANSCODE_KEY = "org.opencastproject.hls.live.transcode";
+
+  /** Configuration key for the bandwidth in kbit/s announced by a master playlist of live streams, 0 for none */
+  public static final String LIVE_BANDWIDTH_KEY = "org.opencastproject.hls.live.bandwidth";
+
+  /** Comma separated directories or URLs the distribution directory is replicated to */
+  public static final String REPLICATION_TARGETS_KEY = "org.opencastproject.hls.replication.targets";
+
+  /** Number of files transferred to replication targets in parallel */
+  public static final String REPLICATION_THREADS_KEY = "org.opencastproject.hls.replication.threads";
+
+  /** Whether files replicated from other nodes are accepted */
+  public static final String REPLICATION_RECEIVE_KEY = "org.opencastproject.hls.replication.receive";
+
+  /** Hours between sweeps of the distribution directory for orphans, 0 to disable scheduled sweeps */
+  public static final String SWEEP_INTERVAL_KEY = "org.opencastproject.hls.sweep.interval";
+
+  /** Whether scheduled sweeps reclaim orphans rather than only reporting them */
+  public static final String SWEEP_RECLAIM_KEY = "org.opencastproject.hls.sweep.reclaim";
+
+  /** Hours files must not have been modified before a sweep considers them orphans */
+  public static final String SWEEP_GRACE_KEY = "org.opencastproject.hls.sweep.grace";
+
+  /** Number of mediapackage directories a sweep walks in parallel */
+  public static final String SWEEP_THREADS_KEY = "org.opencastproject.hls.sweep.threads";
+
+  /** Default grace period of sweeps in hours */
+  private static final int DEFAULT_SWEEP_GRACE = 24;
+
+  /** Free megabytes on the distribution volume below which no new distribution jobs are accepted, 0 to disable */
+  public static final String DISK_LOW_KEY = "org.opencastproject.hls.disk.low";
+
+  /** Free megabytes on the distribution volume that must remain after reserving the output of a job, 0 to disable */
+  public static final String DISK_CRITICAL_KEY = "org.opencastproject.hls.disk.critical";
+
+  /** Ratio of the written bytes to the stream bitrates, covering transport stream muxing and playlists */
+  private static final double OUTPUT_OVERHEAD = 1.15;
+
+  /** Name of the replication state directory within the index directory */
+  private static final String REPLICATION_DIRECTORY = "replication";
+
+  /** JMX name of the I/O scheduler */
+  public static final String IO_SCHEDULER_MBEAN = "org.opencastproject.distribution.hls:type=IOScheduler";
+
+  /** JMX name of the distribution metrics */
+  public static final String METRICS_MBEAN = "org.opencastproject.distribution.hls:type=Metrics";
+
+  /** JMX name of the latencies of a phase, followed by the phase name */
+  public static final String PHASE_MBEAN = "org.opencastproject.distribution.hls:type=Phase,name=";
+
+  /** Whether a trace of the phases of every job is written */
+  public static final String TRACE_KEY = "org.opencastproject.hls.trace";
+
+  /** Directory job traces are written to */
+  public static final String TRACE_DIRECTORY_KEY = "org.opencastproject.hls.trace.directory";
+
+  /** Number of job traces kept */
+  public static final String TRACE_RETAIN_KEY = "org.opencastproject.hls.trace.retain";
+
+  /** Minimum time between two service registry lookups of a job someone waits for, in milliseconds */
+  public static final String EVENTS_POLL_KEY = "org.opencastproject.hls.events.poll";
+
+  /** Default time between two service registry lookups of a job in milliseconds */
+  private static final int DEFAULT_EVENTS_POLL = 1000;
+
+  /** Configuration key for the number of ffmpeg processes running at the same time, 0 for no limit */
+  public static final String LIMIT_FFMPEG_KEY = "org.opencastproject.hls.limit.ffmpeg";
+
+  /** Configuration key for the number of jobs fetching, publishing or retracting at the same time, 0 for no limit */
+  public static final String LIMIT_IO_KEY = "org.opencastproject.hls.limit.io";
+
+  /** Configuration key for the number of availability checks running at the same time, 0 for no limit */
+  public static final String LIMIT_HTTP_KEY = "org.opencastproject.hls.limit.http";
+
+  /** Default number of availability checks running at the same time */
+  private static final int DEFAULT_LIMIT_HTTP = 8;
+
+  /** Configuration key for writing a gzipped copy next to every distributed playlist */
+  public static final String PRECOMPRESS_KEY = "org.opencastproject.hls.precompress";
+
+  /** Configuration key for writing a copy with absolute URLs next to every distributed playlist */
+  public static final String ABSOLUTE_PLAYLISTS_KEY = "org.opencastproject.hls.absolute";
+
+  /** Configuration key for segmenting only the changed end of a source that has been distributed before */
+  public static final String PARTIAL_KEY = "org.opencastproject.hls.partial";
+
+  /** Seconds the time a segment of the source starts at may differ from the key frame it starts with */
+  private static final double KEY_FRAME_TOLERANCE = 0.05;
+
+  /** Seconds past a key frame the segmented source is read from, so that ffmpeg seeks to that key frame */
+  private static final double SEEK_MARGIN = 0.01;
+
+  /** Name of the trace directory within the index directory */
+  private static final String TRACE_DIRECTORY = "traces";
+
+  /** Identifies this node in traces of jobs without a processing host */
+  private static final String NODE = ManagementFactory.getRuntimeMXBean().getName();
+
+  /** Pattern of the exit code in the message of a failed encoder run */
+  private static final Pattern EXIT_CODE_PATTERN = Pattern.compile("(?:exit code|exited with|status)\\D{0,3}(-?\\d+)");
+
   /** Path to the distribution directory */
   protected File distributionDirectory = null;
 
@@ -117,6 +375,103 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
   /** the encoding engine */
   private FFmpegHLSEncoderEngine engine;
 
+  /** Whether to generate I-frame only playlists for video tracks */
+  protected boolean iFramePlaylists = false;
+
+  /** Transcoded renditions published next to the segmented source of video tracks */
+  protected List<HLSRendition> renditions = new ArrayList<HLSRendition>();
+
+  /** Whether the audio of video tracks is published once as a separate rendition */
+  protected boolean separateAudio = false;
+
+  /** Whether tracks are segmented into fragmented MP4 and published with a DASH manifest as well */
+  protected boolean dash = false;
+
+  /** Thumbnail sprite settings, or <code>null</code> if no thumbnails are generated */
+  protected ThumbnailSprites thumbnailSprites = null;
+
+  /** The segment encryption, or <code>null</code> if segments are published unencrypted */
+  protected SegmentEncryption encryption = null;
+
+  /** The index of distributed elements */
+  protected DistributionIndex index = null;
+
+  /** The scheduler of segment moves and deletes */
+  protected IOScheduler io = new IOScheduler();
+
+  /** The operations of jobs that use the bulk lane of the scheduler unless created with a lane of their own */
+  protected Set<String> bulkOperations = new HashSet<String>(Arrays.asList(Operation.DistributeTracks.toString(),
+          Operation.Retract.toString()));
+
+  /** Writes the pre-computed siblings of distributed playlists */
+  protected PlaylistVariants playlistVariants = null;
+
+  /** Time in millis to wait for another node distributing the same element */
+  protected long lockTimeout = DEFAULT_LOCK_TIMEOUT * 1000L;
+
+  /** Whether integrity manifests are written for distributed playlists */
+  protected boolean integrity = false;
+
+  /** Whether the segments a redistributed source shares with the source distributed before are kept */
+  protected boolean partialRedistribution = false;
+
+  /** The ffmpeg binary used for live streams */
+  protected String ffmpegBinary = "ffmpeg";
+
+  /** Target segment duration of live streams in seconds */
+  protected int liveSegmentDuration = 4;
+
+  /** Part target duration of live streams in milliseconds, or 0 if live segments are not split into parts */
+  protected int livePartTarget = 0;
+
+  /** Number of segments listed in live playlists */
+  protected int liveWindow = 6;
+
+  /** Whether live streams are kept and turned into VOD once they end */
+  protected boolean liveVod = true;
+
+  /** Whether live streams are transcoded rather than copied */
+  protected boolean liveTranscode = false;
+
+  /** Bandwidth announced for live streams in bits per second, or 0 to publish their media playlist directly */
+  protected long liveBandwidth = 0;
+
+  /** Replicates distributions to peer nodes, or <code>null</code> if replication is disabled */
+  protected Replicator replicator = null;
+
+  /** Whether files replicated from other nodes are accepted */
+  protected boolean replicaReceiver = false;
+
+  /** Counters and latencies of the jobs */
+  protected final DistributionMetrics metrics = new DistributionMetrics();
+
+  /** Directory job traces are written to, or <code>null</code> if jobs are not traced */
+  protected File traceDirectory = null;
+
+  /** Number of job traces kept */
+  protected int traceRetain = 10000;
+
+  /** Disk space reserved by running distributions */
+  protected DiskSpaceReservations diskSpace = null;
+
+  /** Slots of the resources shared by the jobs */
+  protected ResourceLimits limits = new ResourceLimits(0, 0, 0);
+
+  /** Reconciles the distribution directory with the index */
+  protected OrphanSweeper sweeper = null;
+
+  /** Publishes the state transitions of jobs to waiting clients */
+  protected JobEvents jobEvents = null;
+
+  /** Runs scheduled sweeps, or <code>null</code> if sweeps are only started by request */
+  private ScheduledExecutorService sweepScheduler = null;
+
+  /** The live streams running on this node, by mediapackage and element identifier */
+  private final ConcurrentMap<String, LiveSession> liveSessions = new ConcurrentHashMap<String, LiveSession>();
+
+  /** The distributions running on this node, by {@link #getDistributionKey(MediaPackage, MediaPackageElement, String)} */
+  private final ConcurrentMap<String, FutureTask<List<MediaPackageElement>>> runningDistributions = new ConcurrentHashMap<String, FutureTask<List<MediaPackageElement>>>();
+
   /**
    * Creates a new instance of the hls distribution service.
    */
@@ -143,136 +498,1748 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
       throw new IllegalStateException("Distribution directory must be set (org.opencastproject.hls.directory)");
     this.distributionDirectory = new File(ccDistributionDirectory);
     logger.info("HLS distribution directory is {}", distributionDirectory);
+
+    String iFrames = cc.getBundleContext().getProperty(IFRAMES_KEY);
+    if (iFrames != null)
+      iFramePlaylists = Boolean.parseBoolean(iFrames);
+    logger.info("I-frame only playlists are {}", iFramePlaylists ? "enabled" : "disabled");
+
+    try {
+      renditions = HLSRendition.parse(cc.getBundleContext().getProperty(RENDITIONS_KEY));
+    } catch (IllegalArgumentException e) {
+      throw new IllegalStateException("Invalid rendition configuration (" + RENDITIONS_KEY + ")", e);
+    }
+    if (!renditions.isEmpty())
+      logger.info("Video tracks are published with the additional renditions {}", renditions);
+
+    separateAudio = Boolean.parseBoolean(cc.getBundleContext().getProperty(AUDIO_GROUP_KEY));
+    if (separateAudio)
+      logger.info("Audio of video tracks is published as a separate rendition");
+
+    if (Boolean.parseBoolean(cc.getBundleContext().getProperty(THUMBNAILS_KEY))) {
+      thumbnailSprites = new ThumbnailSprites(getIntProperty(cc, THUMBNAILS_INTERVAL_KEY, 10),
+              getIntProperty(cc, THUMBNAILS_WIDTH_KEY, 160), getIntProperty(cc, THUMBNAILS_COLUMNS_KEY, 5),
+              getIntProperty(cc, THUMBNAILS_ROWS_KEY, 5));
+      logger.info("Thumbnail sprites are generated every {} seconds", thumbnailSprites.getInterval());
+    }
+
+    if (Boolean.parseBoolean(cc.getBundleContext().getProperty(ENCRYPTION_KEY))) {
+      int rotation = getIntProperty(cc, ENCRYPTION_ROTATION_KEY, 0);
+      String keyUrl = cc.getBundleContext().getProperty(ENCRYPTION_KEY_URL_KEY);
+      if (keyUrl == null || keyUrl.trim().length() == 0)
+        throw new IllegalStateException("Encrypted segments need the URL of a key server (" + ENCRYPTION_KEY_URL_KEY
+                + ")");
+      String keyDirectory = cc.getBundleContext().getProperty(ENCRYPTION_KEY_DIR_KEY);
+      File keys = keyDirectory != null && keyDirectory.trim().length() > 0 ? new File(keyDirectory.trim())
+              : new File(distributionDirectory.getAbsoluteFile().getParentFile(), distributionDirectory.getName()
+                      + "-keys");
+      try {
+        encryption = new SegmentEncryption(rotation, distributionDirectory, keys, keyUrl.trim(),
+                getIntProperty(cc, ENCRYPTION_THREADS_KEY, Runtime.getRuntime().availableProcessors()));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalStateException("Invalid encryption configuration (" + ENCRYPTION_KEY_DIR_KEY + ")", e);
+      }
+      logger.info("Segments are encrypted with AES-128, rotating keys every {} segments", rotation);
+      logger.info("Keys are written to {} and served from {}", keys, keyUrl.trim());
+    }
+
+    dash = Boolean.parseBoolean(cc.getBundleContext().getProperty(DASH_KEY));
+    if (dash && encryption != null) {
+      logger.warn("DASH players cannot decrypt AES-128 segments, DASH manifests are disabled ({})", DASH_KEY);
+      dash = false;
+    } else if (dash) {
+      logger.info("Tracks are segmented into fragmented MP4 and published with a DASH manifest");
+    }
+
+    File indexDirectory;
+    if (cc.getBundleContext().getProperty(INDEX_DIRECTORY_KEY) != null) {
+      indexDirectory = new File(cc.getBundleContext().getProperty(INDEX_DIRECTORY_KEY));
+    } else if (cc.getBundleContext().getProperty(STORAGE_DIRECTORY_KEY) != null) {
+      indexDirectory = new File(cc.getBundleContext().getProperty(STORAGE_DIRECTORY_KEY), INDEX_DIRECTORY);
+    } else {
+      indexDirectory = new File(distributionDirectory, FALLBACK_INDEX_DIRECTORY);
+      logger.warn("No storage directory configured, keeping the distribution index in {}", indexDirectory);
+    }
+    try {
+      index = new DistributionIndex(indexDirectory);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to open the distribution index in " + indexDirectory, e);
+    }
+    lockTimeout = getIntProperty(cc, LOCK_TIMEOUT_KEY, DEFAULT_LOCK_TIMEOUT) * 1000L;
+
+    io = new IOScheduler(getIntProperty(cc, IO_PUBLISH_MBPS_KEY, 0) * IOScheduler.MB, getIntProperty(cc,
+            IO_PUBLISH_IOPS_KEY, 0), getIntProperty(cc, IO_RECLAIM_MBPS_KEY, 0) * IOScheduler.MB, getIntProperty(cc,
+            IO_RECLAIM_IOPS_KEY, 0));
+    registerMBean(IO_SCHEDULER_MBEAN, io);
+    String bulk = cc.getBundleContext().getProperty(IO_BULK_OPERATIONS_KEY);
+    if (bulk != null) {
+      bulkOperations = new HashSet<String>();
+      for (String operation : bulk.split(",")) {
+        if (operation.trim().length() == 0)
+          continue;
+        try {
+          bulkOperations.add(Operation.valueOf(operation.trim()).toString());
+        } catch (IllegalArgumentException e) {
+          throw new IllegalStateException("Unknown operation " + operation.trim() + " (" + IO_BULK_OPERATIONS_KEY
+                  + ")");
+        }
+      }
+    }
+    logger.info("I/O of {} jobs yields to the other jobs", bulkOperations);
+
+    boolean precompress = Boolean.parseBoolean(cc.getBundleContext().getProperty(PRECOMPRESS_KEY));
+    boolean absolute = Boolean.parseBoolean(cc.getBundleContext().getProperty(ABSOLUTE_PLAYLISTS_KEY));
+    playlistVariants = new PlaylistVariants(distributionDirectory, precompress, absolute ? serviceUrl : null, io);
+    if (playlistVariants.isEnabled())
+      logger.info("Playlists are published with{}{}", precompress ? " gzipped copies" : "", absolute ? (precompress
+              ? " and" : "") + " copies with absolute URLs" : "");
+
+    integrity = Boolean.parseBoolean(cc.getBundleContext().getProperty(INTEGRITY_KEY));
+
+    partialRedistribution = Boolean.parseBoolean(cc.getBundleContext().getProperty(PARTIAL_KEY));
+
+    if (cc.getBundleContext().getProperty(FFMPEG_PATH_KEY) != null)
+      ffmpegBinary = cc.getBundleContext().getProperty(FFMPEG_PATH_KEY);
+    liveSegmentDuration = getIntProperty(cc, LIVE_SEGMENT_KEY, liveSegmentDuration);
+    livePartTarget = getIntProperty(cc, LIVE_PART_KEY, livePartTarget);
+    liveWindow = getIntProperty(cc, LIVE_WINDOW_KEY, liveWindow);
+    if (cc.getBundleContext().getProperty(LIVE_VOD_KEY) != null)
+      liveVod = Boolean.parseBoolean(cc.getBundleContext().getProperty(LIVE_VOD_KEY));
+    liveTranscode = Boolean.parseBoolean(cc.getBundleContext().getProperty(LIVE_TRANSCODE_KEY));
+    liveBandwidth = getIntProperty(cc, LIVE_BANDWIDTH_KEY, (int) (liveBandwidth / 1000)) * 1000L;
+    if (liveSegmentDuration < 1 || liveWindow < 1 || livePartTarget < 0 || livePartTarget > liveSegmentDuration * 1000)
+      throw new IllegalStateException("Invalid live stream configuration (" + LIVE_SEGMENT_KEY + ", " + LIVE_PART_KEY
+              + ", " + LIVE_WINDOW_KEY + ")");
+    if (livePartTarget > 0)
+      logger.info("Live streams are published with {} ms parts", livePartTarget);
+
+    List<Replicator.Target> targets = Replicator.parseTargets(cc.getBundleContext().getProperty(
+            REPLICATION_TARGETS_KEY), trustedHttpClient, io);
+    if (!targets.isEmpty()) {
+      try {
+        replicator = new Replicator(distributionDirectory, new File(indexDirectory, REPLICATION_DIRECTORY), targets,
+                getIntProperty(cc, REPLICATION_THREADS_KEY, 4), io);
+      } catch (IOException e) {
+        throw new IllegalStateException("Unable to read the replication state in " + indexDirectory, e);
+      }
+      replicator.start();
+      logger.info("Distributions are replicated to {} targets", targets.size());
+    }
+    replicaReceiver = Boolean.parseBoolean(cc.getBundleContext().getProperty(REPLICATION_RECEIVE_KEY));
+    if (replicaReceiver)
+      logger.info("Distributions replicated from other nodes are accepted");
+
+    int diskLow = getIntProperty(cc, DISK_LOW_KEY, 0);
+    int diskCritical = getIntProperty(cc, DISK_CRITICAL_KEY, 0);
+    if (diskLow > 0 || diskCritical > 0) {
+      diskSpace = new DiskSpaceReservations(distributionDirectory, diskLow * IOScheduler.MB, diskCritical
+              * IOScheduler.MB);
+      logger.info("Distributions need {} MB free on the distribution volume, {} MB after reserving their output",
+              diskLow, diskCritical);
+      if (diskSpace.getCriticalWatermark() > diskSpace.getLowWatermark())
+        logger.warn("The critical disk space watermark ({}) is above the low watermark ({}), jobs are declined "
+                + "rather than routed to other nodes", DISK_CRITICAL_KEY, DISK_LOW_KEY);
+    }
+
+    if (Boolean.parseBoolean(cc.getBundleContext().getProperty(TRACE_KEY))) {
+      traceDirectory = cc.getBundleContext().getProperty(TRACE_DIRECTORY_KEY) != null ? new File(cc
+              .getBundleContext().getProperty(TRACE_DIRECTORY_KEY)) : new File(indexDirectory, TRACE_DIRECTORY);
+      traceRetain = getIntProperty(cc, TRACE_RETAIN_KEY, traceRetain);
+      logger.info("Traces of the last {} jobs are kept in {}", traceRetain, traceDirectory);
+    }
+
+    jobEvents = new JobEvents(serviceRegistry, getIntProperty(cc, EVENTS_POLL_KEY, DEFAULT_EVENTS_POLL));
+
+    int processors = Runtime.getRuntime().availableProcessors();
+    limits = new ResourceLimits(getIntProperty(cc, LIMIT_FFMPEG_KEY, processors), getIntProperty(cc, LIMIT_IO_KEY,
+            2 * processors), getIntProperty(cc, LIMIT_HTTP_KEY, DEFAULT_LIMIT_HTTP));
+    logger.info("Jobs share {} ffmpeg, {} I/O and {} HTTP slots (0 is unlimited)", new Object[] {
+            limits.getLimit(ResourceLimits.Resource.FFMPEG), limits.getLimit(ResourceLimits.Resource.IO),
+            limits.getLimit(ResourceLimits.Resource.HTTP) });
+
+    metrics.setSources(io, diskSpace, limits);
+    registerMBean(METRICS_MBEAN, metrics);
+    for (DistributionMetrics.Phase phase : DistributionMetrics.Phase.values())
+      registerMBean(PHASE_MBEAN + phase.toString().toLowerCase(), metrics.getPhase(phase));
+
+    int sweepGrace = getIntProperty(cc, SWEEP_GRACE_KEY, DEFAULT_SWEEP_GRACE);
+    if (sweepGrace * 60 * 60 < lockTimeout / 1000)
+      logger.warn("The sweep grace period ({}) is shorter than the lock timeout, sweeps may reclaim distributions "
+              + "of nodes waiting for a lock", SWEEP_GRACE_KEY);
+    sweeper = new OrphanSweeper(distributionDirectory, index, io, getIntProperty(cc, SWEEP_THREADS_KEY, 2),
+            sweepGrace * 60 * 60 * 1000L);
+    int sweepInterval = getIntProperty(cc, SWEEP_INTERVAL_KEY, 0);
+    if (sweepInterval > 0) {
+      final boolean sweepReclaim = Boolean.parseBoolean(cc.getBundleContext().getProperty(SWEEP_RECLAIM_KEY));
+      sweepScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "HLS distribution sweep");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+      sweepScheduler.scheduleWithFixedDelay(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            sweep(!sweepReclaim);
+          } catch (Exception e) {
+            logger.warn("Error sweeping the distribution directory", e);
+          }
+        }
+      }, sweepInterval, sweepInterval, TimeUnit.HOURS);
+      logger.info("The distribution directory is swept every {} hours{}", sweepInterval, sweepReclaim ? ""
+              : ", orphans are only reported");
+    }
+
+    String[] distributed = distributionDirectory.list();
+    if (index.size() == 0 && distributed != null && distributed.length > 0)
+      logger.info("The distribution index is empty, populate it from the existing distributions by rebuilding it");
+  }
+
+  /**
+   * Deactivate method for this OSGi service implementation.
+   */
+  protected void deactivate() {
+    for (LiveSession session : liveSessions.values())
+      session.stop();
+    if (sweepScheduler != null)
+      sweepScheduler.shutdownNow();
+    if (replicator != null)
+      replicator.shutdown();
+    unregisterMBean(IO_SCHEDULER_MBEAN);
+    unregisterMBean(METRICS_MBEAN);
+    for (DistributionMetrics.Phase phase : DistributionMetrics.Phase.values())
+      unregisterMBean(PHASE_MBEAN + phase.toString().toLowerCase());
+    if (encryption != null)
+      encryption.shutdown();
+    if (index != null) {
+      try {
+        index.close();
+      } catch (IOException e) {
+        logger.warn("Error closing the distribution index", e);
+      }
+    }
+  }
+
+  /**
+   * Registers a management bean with the platform MBean server, replacing a bean of a previous activation.
+   *
+   * @param name
+   *          the object name
+   * @param bean
+   *          the bean
+   */
+  private static void registerMBean(String name, Object bean) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(name);
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+      server.registerMBean(bean, objectName);
+    } catch (Exception e) {
+      logger.warn("Unable to register management bean " + name, e);
+    }
+  }
+
+  /**
+   * Unregisters a management bean from the platform MBean server.
+   *
+   * @param name
+   *          the object name
+   */
+  private static void unregisterMBean(String name) {
+    try {
+      MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+      ObjectName objectName = new ObjectName(name);
+      if (server.isRegistered(objectName))
+        server.unregisterMBean(objectName);
+    } catch (Exception e) {
+      logger.warn("Unable to unregister management bean " + name, e);
+    }
+  }
+
+  /**
+   * Reads an integer bundle property.
+   *
+   * @param cc
+   *          the OSGi component context
+   * @param key
+   *          the property key
+   * @param defaultValue
+   *          the value to use if the property is not set
+   * @return the property value
+   */
+  private static int getIntProperty(ComponentContext cc, String key, int defaultValue) {
+    String value = cc.getBundleContext().getProperty(key);
+    if (value == null || value.trim().length() == 0)
+      return defaultValue;
+    try {
+      return Integer.parseInt(value.trim());
+    } catch (NumberFormatException e) {
+      throw new IllegalStateException("Configuration value of " + key + " must be a number: " + value);
+    }
+  }
+
+  @Override
+  public Job distribute(MediaPackage mediapackage, String elementId) throws DistributionException, MediaPackageException {
+    return distribute(mediapackage, elementId, true);
+  }
+
+  /**
+   * Same as {@link #distribute(MediaPackage, String)}, but only waits for the distributed element to be available over
+   * HTTP if <code>checkAvailability</code> is set.
+   *
+   * @param checkAvailability
+   *          Check the availability of the distributed element via http.
+   */
+  public Job distribute(MediaPackage mediapackage, String elementId, boolean checkAvailability)
+          throws DistributionException, MediaPackageException {
+    return distribute(mediapackage, elementId, checkAvailability, null);
+  }
+
+  /**
+   * Creates a distribution job whose file system work uses the given lane of the I/O scheduler, e.g. the bulk lane
+   * when republishing many recordings that nobody is waiting for.
+   *
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementId
+   *          the element to distribute
+   * @param checkAvailability
+   *          Check the availability of the distributed element via http.
+   * @param priority
+   *          the lane, or <code>null</code> for the lane of the operation (see {@link #IO_BULK_OPERATIONS_KEY})
+   * @return the distribution job
+   */
+  public Job distribute(MediaPackage mediapackage, String elementId, boolean checkAvailability,
+          IOScheduler.Priority priority) throws DistributionException, MediaPackageException {
+    if (mediapackage == null)
+      throw new MediaPackageException("Mediapackage must be specified");
+    if (elementId == null)
+      throw new MediaPackageException("Element ID must be specified");
+    List<String> arguments = new ArrayList<String>(Arrays.asList(MediaPackageParser.getAsXml(mediapackage),
+            elementId, Boolean.toString(checkAvailability)));
+    if (priority != null)
+      arguments.add(priority.toString());
+    try {
+      return created(serviceRegistry.createJob(JOB_TYPE, Operation.Distribute.toString(), arguments), mediapackage);
+    } catch (ServiceRegistryException e) {
+      throw new DistributionException("Unable to create a job", e);
+    }
+  }
+
+  /**
+   * Distributes several tracks of a mediapackage together and publishes a combined manifest that references every
+   * track as an alternative angle of the same stream.
+   *
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementIds
+   *          the tracks to distribute, or an empty list to distribute all tracks of the mediapackage
+   * @param checkAvailability
+   *          Check the availability of the distributed elements via http.
+   * @return the distribution job
+   */
+  public Job distributeTracks(MediaPackage mediapackage, List<String> elementIds, boolean checkAvailability)
+          throws DistributionException, MediaPackageException {
+    if (mediapackage == null)
+      throw new MediaPackageException("Mediapackage must be specified");
+    if (elementIds == null)
+      throw new MediaPackageException("Element IDs must be specified");
+    StringBuilder ids = new StringBuilder();
+    for (String elementId : elementIds) {
+      if (ids.length() > 0)
+        ids.append(",");
+      ids.append(elementId);
+    }
+    try {
+      return created(serviceRegistry.createJob(JOB_TYPE,
+                                               Operation.DistributeTracks.toString(),
+                                               Arrays.asList(MediaPackageParser.getAsXml(mediapackage),
+                                                             ids.toString(),
+                                                             Boolean.toString(checkAvailability))), mediapackage);
+    } catch (ServiceRegistryException e) {
+      throw new DistributionException("Unable to create a job", e);
+    }
+  }
+
+  /**
+   * Distributes the mediapackage's element to the location that is returned by the concrete implementation. In
+   * addition, a representation of the distributed element is added to the mediapackage.
+   *
+   * @see org.opencastproject.distribution.api.DistributionService#distribute(org.opencastproject.mediapackage.MediaPackage,
+   *      String)
+   * @throws org.opencastproject.distribution.api.DistributionException
+   *           in case of an error
+   */
+  protected List<MediaPackageElement> distribute(Job job, MediaPackage mediapackage, String elementId,
+          boolean checkAvailability) throws DistributionException {
+    return distributeElements(mediapackage, elementId, checkAvailability);
+  }
+
+  /**
+   * Distributes the eligible tracks out of <code>elementIds</code>, followed by the combined manifest if more than one
+   * video track was distributed. The segments of all tracks are cut at the same target duration, and transcoded renditions
+   * have their key frames forced on the segment boundaries, so renditions of different tracks line up. Copied tracks
+   * line up as long as their sources share the key frame positions; if they do not, the job fails rather than publishing
+   * a manifest whose angles cannot be switched. The tracks stay distributed on their own in that case.
+   *
+   * @param job
+   *          the associated job
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementIds
+   *          the tracks to distribute, or an empty list to distribute all tracks
+   * @param checkAvailability
+   *          Check the availability of the distributed elements via http.
+   * @return the distributed elements
+   * @throws DistributionException
+   *           in case of an error
+   */
+  protected List<MediaPackageElement> distributeTracks(Job job, MediaPackage mediapackage, List<String> elementIds,
+          boolean checkAvailability) throws DistributionException {
+    List<MediaPackageElement> tracks = new ArrayList<MediaPackageElement>();
+    if (elementIds.isEmpty()) {
+      tracks.addAll(Arrays.asList(mediapackage.getTracks()));
+    } else {
+      for (String elementId : elementIds) {
+        MediaPackageElement element = mediapackage.getElementById(elementId);
+        if (element == null)
+          throw new IllegalStateException("No element " + elementId + " found in mediapackage");
+        tracks.add(element);
+      }
+    }
+
+    List<MediaPackageElement> distributedElements = new ArrayList<MediaPackageElement>();
+    List<MultiTrackPlaylist.Angle> angles = new ArrayList<MultiTrackPlaylist.Angle>();
+    List<File> sourcePlaylists = new ArrayList<File>();
+    Set<String> names = new HashSet<String>();
+    for (MediaPackageElement track : tracks) {
+      List<MediaPackageElement> elements = distributeElements(mediapackage, track.getIdentifier(), checkAvailability);
+      if (elements.isEmpty())
+        continue;
+      distributedElements.addAll(elements);
+
+      // Audio only tracks are published, but they are no angle to switch to
+      if (((TrackImpl) track).getVideo().isEmpty())
+        continue;
+
+      File master = getDistributionFile(mediapackage, track);
+      String name = track.getFlavor() != null ? track.getFlavor().getType() : track.getIdentifier();
+      if (!names.add(name))
+        name = name + " (" + track.getIdentifier() + ")";
+      MultiTrackPlaylist.Angle angle = new MultiTrackPlaylist.Angle(name, track.getIdentifier(), master);
+      TrackImpl trackImpl = (TrackImpl) track;
+      File sourcePlaylist = getSourcePlaylist(master, hasMasterPlaylist(trackImpl, getRenditions(trackImpl),
+              isSeparateAudio(trackImpl)));
+      if (DEFAULT_ANGLE_FLAVOR_TYPE.equals(name)) {
+        angles.add(0, angle);
+        sourcePlaylists.add(0, sourcePlaylist);
+      } else {
+        angles.add(angle);
+        sourcePlaylists.add(sourcePlaylist);
+      }
+    }
+    if (angles.size() < 2)
+      return distributedElements;
+
+    String mediaPackageId = mediapackage.getIdentifier().compact();
+    File manifest = new File(getMediaPackageDirectory(mediaPackageId), MULTITRACK_PLAYLIST);
+    try {
+      if (!MultiTrackPlaylist.isAligned(sourcePlaylists))
+        throw new DistributionException("Segments of the tracks of " + mediaPackageId + " are not aligned, players "
+                + "would stall when switching angles");
+      MultiTrackPlaylist.write(manifest, angles);
+      if (playlistVariants != null)
+        playlistVariants.write(manifest, true);
+      replicate(manifest);
+      for (File sibling : PlaylistVariants.getSiblings(manifest))
+        replicate(sibling);
+      MediaPackageElementBuilder builder = MediaPackageElementBuilderFactory.newInstance().newElementBuilder();
+      MediaPackageElement manifestElement = builder.elementFromURI(
+              new URI(UrlSupport.concat(serviceUrl, mediaPackageId, MULTITRACK_PLAYLIST)),
+              MediaPackageElement.Type.Track, MediaPackageElementFlavor.parseFlavor(MULTITRACK_FLAVOR));
+      manifestElement.setMimeType(MimeType.mimeType("application", "x-mpegURL"));
+      manifestElement.setIdentifier(null);
+      distributedElements.add(manifestElement);
+    } catch (DistributionException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new DistributionException("Unable to write the combined manifest of " + mediaPackageId, e);
+    }
+    logger.info("Finished distribution of {} tracks of media package {}", angles.size(), mediaPackageId);
+    return distributedElements;
+  }
+
+  /**
+   * Publishes a live stream. The stream is read from the URI of the element and segmented into the element's
+   * distribution directory until it ends or {@link #stopLive(String, String)} is called. The master playlist is
+   * available at the element's usual distribution URI as soon as the first segment has been written, so the
+   * distributed element can be announced before the job finishes.
+   *
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementId
+   *          the track referring to the incoming stream
+   * @return the job
+   */
+  public Job distributeLive(MediaPackage mediapackage, String elementId) throws DistributionException,
+          MediaPackageException {
+    if (mediapackage == null)
+      throw new MediaPackageException("Mediapackage must be specified");
+    if (elementId == null)
+      throw new MediaPackageException("Element ID must be specified");
+    try {
+      return created(serviceRegistry.createJob(JOB_TYPE, Operation.DistributeLive.toString(),
+              Arrays.asList(MediaPackageParser.getAsXml(mediapackage), elementId)), mediapackage);
+    } catch (ServiceRegistryException e) {
+      throw new DistributionException("Unable to create a job", e);
+    }
+  }
+
+  /**
+   * Creates a job returning the elements derived from a distributed track, i.e. the DASH manifest and the WebVTT
+   * thumbnail track, each referring to the track. The payload of {@link #distribute(MediaPackage, String)} only holds
+   * the distributed track, so workflows add the derived elements to the mediapackage by running this job afterwards.
+   *
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementId
+   *          the distributed track
+   * @return the job, with the derived elements as payload, or no payload if there are none
+   */
+  public Job distributeDerived(MediaPackage mediapackage, String elementId) throws DistributionException,
+          MediaPackageException {
+    if (mediapackage == null)
+      throw new MediaPackageException("Mediapackage must be specified");
+    if (elementId == null)
+      throw new MediaPackageException("Element ID must be specified");
+    try {
+      return created(serviceRegistry.createJob(JOB_TYPE, Operation.DistributeDerived.toString(),
+              Arrays.asList(MediaPackageParser.getAsXml(mediapackage), elementId)), mediapackage);
+    } catch (ServiceRegistryException e) {
+      throw new DistributionException("Unable to create a job", e);
+    }
+  }
+
+  /**
+   * Returns the elements derived from the distribution of a track.
+   *
+   * @param job
+   *          the associated job
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementId
+   *          the distributed track
+   * @return the DASH manifest and the thumbnail track, if there are any
+   * @throws DistributionException
+   *           if the track has not been distributed
+   */
+  protected List<MediaPackageElement> distributeDerived(Job job, MediaPackage mediapackage, String elementId)
+          throws DistributionException {
+    MediaPackageElement element = mediapackage.getElementById(elementId);
+    if (element == null)
+      throw new IllegalStateException("No element " + elementId + " found in mediapackage");
+    if (!accepts(element))
+      return new ArrayList<MediaPackageElement>();
+    File destination = getDistributionFile(mediapackage, element);
+    if (!destination.isFile())
+      throw new DistributionException(element + " has not been distributed");
+    List<MediaPackageElement> distributedElements = getDistributedElements(mediapackage.getIdentifier().compact(),
+            element, destination);
+    return new ArrayList<MediaPackageElement>(distributedElements.subList(1, distributedElements.size()));
+  }
+
+  /**
+   * Stops a live stream running on this node. The job publishing the stream finishes once the last segment has been
+   * written.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param elementId
+   *          the track referring to the incoming stream
+   * @return whether a live stream was running
+   */
+  public boolean stopLive(String mediaPackageId, String elementId) {
+    LiveSession session = liveSessions.get(mediaPackageId + "/" + elementId);
+    if (session == null)
+      return false;
+    logger.info("Stopping live stream of element {} of media package {}", elementId, mediaPackageId);
+    session.stop();
+    return true;
+  }
+
+  /**
+   * Segments a live stream into the distribution directory until it ends. Afterwards the playlist either ends with the
+   * last segments or, if {@link #liveVod} is set, lists the whole recording as VOD. The media playlist is published at
+   * the URI of the track, unless {@link #liveBandwidth} is set, which publishes a master playlist announcing it there.
+   *
+   * @param job
+   *          the associated job
+   * @param mediapackage
+   *          the mediapackage
+   * @param elementId
+   *          the track referring to the incoming stream
+   * @return the distributed track
+   * @throws DistributionException
+   *           if the stream cannot be read or published
+   */
+  protected MediaPackageElement distributeLive(Job job, MediaPackage mediapackage, String elementId)
+          throws DistributionException {
+    MediaPackageElement element = mediapackage.getElementById(elementId);
+    if (element == null)
+      throw new IllegalStateException("No element " + elementId + " found in mediapackage");
+    if (!MediaPackageElement.Type.Track.equals(element.getElementType()))
+      throw new DistributionException("Only tracks can be published as live streams");
+    String mediaPackageId = mediapackage.getIdentifier().compact();
+    String key = mediaPackageId + "/" + elementId;
+    File destination = getDistributionFile(mediapackage, element);
+    String baseName = FilenameUtils.getBaseName(destination.getName());
+    File playlistFile = getSourcePlaylist(destination, liveBandwidth > 0);
+    LivePlaylist playlist = new LivePlaylist(liveSegmentDuration, livePartTarget / 1000.0, liveWindow, liveVod);
+    LiveSession session = new LiveSession(ffmpegBinary, element.getURI().toString(), playlistFile, baseName,
+            playlist, liveSegmentDuration, livePartTarget / 1000.0, liveTranscode, io);
+    if (liveSessions.putIfAbsent(key, session) != null)
+      throw new DistributionException(element + " is already being published as a live stream");
+    try {
+      FileUtils.forceMkdir(destination.getParentFile());
+      HLSVariant variant = new HLSVariant(playlistFile.getName());
+      variant.setBandwidth(liveBandwidth);
+      if (!playlistFile.equals(destination))
+        FFmpegHLSEncoderEngine.writeMasterPlaylist(destination, Collections.singletonList(variant));
+      // Live playlists change with every segment, their siblings are only written once the stream has ended
+      PlaylistVariants.delete(destination);
+      PlaylistVariants.delete(playlistFile);
+      try {
+        session.run();
+      } finally {
+        if (session.getExitCode() != null)
+          metrics.recordExitCode(session.getExitCode());
+      }
+      if (liveVod && !playlistFile.equals(destination)) {
+        FFmpegHLSEncoderEngine.measureBandwidth(playlistFile, variant);
+        FFmpegHLSEncoderEngine.writeMasterPlaylist(destination, Collections.singletonList(variant));
+      }
+      if (playlistVariants != null)
+        playlistVariants.update(destination.getParentFile(), true);
+      index.put(DistributionIndex.describe(distributionDirectory, mediaPackageId, elementId, "live"));
+      replicate(destination.getParentFile());
+    } catch (IOException e) {
+      throw new DistributionException("Unable to publish the live stream of " + element, e);
+    } finally {
+      liveSessions.remove(key, session);
+    }
+    logger.info("Finished live distribution of {}", element);
+    return createDistributedElement(mediaPackageId, element);
+  }
+
+  /**
+   * Distribute a Mediapackage element to the hls distribution service.
+   * 
+   * @param mediapackage
+   *          The media package that contains the element to distribute.
+   * @param elementId
+   *          The id of the element that should be distributed contained within the media package.
+   * @param checkAvailability
+   *          Check the availability of the distributed element via http.
+   * @return A reference to the MediaPackageElement that has been distributed.
+   * @throws DistributionException
+   *           Thrown if the parent directory of the MediaPackageElement cannot be created, if the MediaPackageElement
+   *           cannot be copied or another unexpected exception occurs.
+   */
+  public MediaPackageElement distributeElement(MediaPackage mediapackage, String elementId, boolean checkAvailability)
+          throws DistributionException {
+    List<MediaPackageElement> distributedElements = distributeElements(mediapackage, elementId, checkAvailability);
+    return distributedElements.isEmpty() ? null : distributedElements.get(0);
+  }
+
+  /**
+   * Distribute a Mediapackage element to the hls distribution service, along with the elements derived from it.
+   *
+   * @param mediapackage
+   *          The media package that contains the element to distribute.
+   * @param elementId
+   *          The id of the element that should be distributed contained within the media package.
+   * @param checkAvailability
+   *          Check the availability of the distributed element via http.
+   * @return The distributed element, followed by the DASH manifest and the thumbnail track if there are any, or an
+   *         empty list if the element is not distributed to this channel.
+   * @throws DistributionException
+   *           Thrown if the parent directory of the MediaPackageElement cannot be created, if the MediaPackageElement
+   *           cannot be copied or another unexpected exception occurs.
+   */
+  public List<MediaPackageElement> distributeElements(final MediaPackage mediapackage, String elementId,
+          boolean checkAvailability) throws DistributionException {
+    if (mediapackage == null)
+      throw new IllegalArgumentException("Mediapackage must be specified");
+    if (elementId == null)
+      throw new IllegalArgumentException("Element ID must be specified");
+
+    final MediaPackageElement element = mediapackage.getElementById(elementId);
+
+    // Make sure the element exists
+    if (mediapackage.getElementById(elementId) == null)
+      throw new IllegalStateException("No element " + elementId + " found in mediapackage");
+    if (!accepts(element)) {
+      logger.debug("Skipping {} {} for distribution to the streaming server", element.getElementType().toString()
+        .toLowerCase(), element.getIdentifier());
+      return new ArrayList<MediaPackageElement>();
+    }
+
+    // Attach to a running distribution of the same element with the same profile instead of encoding it twice
+    final String profile = getProfileDescription((TrackImpl) element);
+    final String key = getDistributionKey(mediapackage, element, profile);
+    FutureTask<List<MediaPackageElement>> distribution = new FutureTask<List<MediaPackageElement>>(
+            new Callable<List<MediaPackageElement>>() {
+              @Override
+              public List<MediaPackageElement> call() throws Exception {
+                return distributeExclusively(mediapackage, element, profile, key);
+              }
+            });
+    FutureTask<List<MediaPackageElement>> running = runningDistributions.putIfAbsent(key, distribution);
+    if (running != null) {
+      logger.info("Waiting for the running distribution of {} instead of distributing it again", element);
+      long waitStart = System.nanoTime();
+      metrics.waitStarted();
+      List<MediaPackageElement> result;
+      try {
+        result = await(running);
+      } finally {
+        finishWait(waitStart);
+      }
+      List<MediaPackageElement> distributedElements = new ArrayList<MediaPackageElement>();
+      for (MediaPackageElement distributedElement : result)
+        distributedElements.add((MediaPackageElement) distributedElement.clone());
+      if (checkAvailability && !distributedElements.isEmpty())
+        checkAvailability(distributedElements.get(0));
+      return distributedElements;
+    }
+    List<MediaPackageElement> distributedElements;
+    try {
+      distribution.run();
+      distributedElements = await(distribution);
+    } finally {
+      runningDistributions.remove(key, distribution);
+    }
+    if (checkAvailability && !distributedElements.isEmpty())
+      checkAvailability(distributedElements.get(0));
+    return distributedElements;
+  }
+
+  /**
+   * Distributes an element while holding the lock of its distribution directory, so that no other node distributes
+   * the same element at the same time. If the element has already been distributed with the same profile, e.g. by
+   * another node while this one was waiting for the lock, the existing distribution is returned.
+   *
+   * @param mediapackage
+   *          the mediapackage
+   * @param element
+   *          the element to distribute
+   * @param profile
+   *          the description of the encoding profile
+   * @param key
+   *          the identity of the distribution, recorded in the element directory
+   * @return the distributed elements
+   */
+  private List<MediaPackageElement> distributeExclusively(MediaPackage mediapackage, MediaPackageElement element,
+          String profile, String key) throws DistributionException {
+    String mediaPackageId = mediapackage.getIdentifier().compact();
+    File destination = getDistributionFile(mediapackage, element);
+    File receipt = new File(destination.getParentFile(), RECEIPT_FILE);
+    DistributionLock lock;
+    long lockStart = System.nanoTime();
+    metrics.waitStarted();
+    try {
+      lock = DistributionLock.acquire(new File(getMediaPackageDirectory(mediaPackageId), "." + element.getIdentifier()
+              + DistributionLock.EXTENSION), lockTimeout);
+    } catch (IOException e) {
+      throw new DistributionException("Unable to lock the distribution directory of " + element, e);
+    } finally {
+      finishWait(lockStart);
+    }
+    try {
+      File mpd = new File(destination.getParentFile(), FilenameUtils.getBaseName(destination.getName())
+              + DashManifest.EXTENSION);
+      if (destination.isFile() && receipt.isFile() && key.equals(FileUtils.readFileToString(receipt, "UTF-8"))
+              && (!dash || mpd.isFile())) {
+        logger.info("{} has already been distributed with profile {}", element, profile);
+        List<MediaPackageElement> distributedElements = getDistributedElements(mediaPackageId, element, destination);
+        // The playlist siblings follow the current configuration
+        if (playlistVariants != null && playlistVariants.update(destination.getParentFile(), false) > 0)
+          replicate(destination.getParentFile());
+        index.put(DistributionIndex.describe(distributionDirectory, mediaPackageId, element.getIdentifier(), profile));
+        return distributedElements;
+      }
+      FileUtils.deleteQuietly(receipt);
+      List<MediaPackageElement> distributedElements = encodeAndDistribute(mediapackage, element, profile);
+      FileUtils.writeStringToFile(receipt, key, "UTF-8");
+      replicate(destination.getParentFile());
+      return distributedElements;
+    } catch (IOException e) {
+      throw new DistributionException("Unable to record the distribution of " + element, e);
+    } finally {
+      lock.release();
+    }
+  }
+
+  /**
+   * Encodes and distributes an element.
+   *
+   * @param mediapackage
+   *          the mediapackage
+   * @param element
+   *          the element to distribute
+   * @param profileDescription
+   *          the description of the encoding profile
+   * @return the distributed element, followed by the DASH manifest and the thumbnail track if there are any
+   */
+  private List<MediaPackageElement> encodeAndDistribute(MediaPackage mediapackage, MediaPackageElement element,
+          String profileDescription) throws DistributionException {
+    String mediaPackageId = mediapackage.getIdentifier().compact();
+    String elementId = element.getIdentifier();
+    DiskSpaceReservations.Reservation reservation = null;
+    try {
+      JobTrace.attribute("mediapackage", mediaPackageId);
+      JobTrace.attribute("element", elementId);
+      File source;
+      ResourceLimits.Slot fetchSlot = acquire(ResourceLimits.Resource.IO);
+      long fetchStart = System.nanoTime();
+      try {
+        source = workspace.get(element.getURI());
+      } catch (NotFoundException e) {
+        throw new DistributionException("Unable to find " + element.getURI() + " in the workspace", e);
+      } catch (IOException e) {
+        throw new DistributionException("Error loading " + element.getURI() + " from the workspace", e);
+      } finally {
+        fetchSlot.release();
+        record(DistributionMetrics.Phase.FETCH, fetchStart);
+      }
+      JobTrace.attribute("sourceSize", source.length());
+
+      // Reserve the space the output is expected to take, now that the size of the source is known
+      long estimate = estimateOutputSize((TrackImpl) element, source.length());
+      reservation = diskSpace != null ? diskSpace.reserve(estimate) : null;
+      if (diskSpace != null && reservation == null)
+        throw new DistributionException("Not enough disk space to distribute " + element + ": "
+                + estimate / IOScheduler.MB + " MB estimated, " + diskSpace.getAvailable() / IOScheduler.MB
+                + " MB available");
+
+      File destination = getDistributionFile(mediapackage, element);
+
+      // Make the directories to place the files into
+      try {
+        FileUtils.forceMkdir(destination.getParentFile());
+      } catch (IOException e) {
+        throw new DistributionException("Unable to create " + destination.getParentFile(), e);
+      }
+      logger.debug("Distributing {} to {}", elementId, destination);
+
+      // Renditions and thumbnail sprites are written by the same ffmpeg run
+      TrackImpl track = (TrackImpl) element;
+      List<HLSRendition> trackRenditions = getRenditions(track);
+      boolean trackSeparateAudio = isSeparateAudio(track);
+      boolean transcodeAudio = trackSeparateAudio && !AAC.equals(track.getAudio().get(0).getFormat());
+      ThumbnailSprites sprites = track.getVideo().isEmpty() ? null : thumbnailSprites;
+      int thumbnailHeight = 0;
+      if (sprites != null) {
+        VideoStream video = track.getVideo().get(0);
+        thumbnailHeight = sprites.getHeight(video.getFrameWidth(), video.getFrameHeight());
+      }
+
+      String baseName = FilenameUtils.getBaseName(destination.getName());
+
+      // Compare the source to the one distributed before, whose segments are kept as far as the media is the same
+      File sourceIndexFile = new File(destination.getParentFile(), SourceIndex.FILE);
+      boolean indexed = partialRedistribution && sprites == null && encryption == null && !dash;
+      SourceIndex previousIndex = indexed ? SourceIndex.readQuietly(sourceIndexFile) : null;
+      FileUtils.deleteQuietly(sourceIndexFile);
+      if (previousIndex != null && !(baseName.equals(previousIndex.getName())
+              && profileDescription.equals(previousIndex.getProfile()) && destination.isFile()))
+        previousIndex = null;
+      String checksum = element.getChecksum() != null ? element.getChecksum().toString() : null;
+      SourceIndex sourceIndex = null;
+      if (previousIndex != null)
+        sourceIndex = checksum != null && checksum.equals(previousIndex.getChecksum()) ? previousIndex
+                : indexSource(source);
+
+      HLSVariant variant = null;
+      List<File> spriteFiles = Collections.emptyList();
+      try {
+        if (sourceIndex == null || !distributeTail(source, destination, baseName, track, trackRenditions,
+                trackSeparateAudio, transcodeAudio, previousIndex, sourceIndex)) {
+          // Do the HLS segmentation and m3u8 playlist generation
+          String command = FFmpegHLSEncoderEngine.getSegmentCommand(trackRenditions, trackSeparateAudio,
+                  transcodeAudio, sprites, thumbnailHeight, dash);
+          if (indexed && sourceIndex == null)
+            command += " " + SourceIndex.OUTPUT_OPTIONS + " #{out.dir}/#{out.name}" + SourceIndex.FRAMEMD5_EXTENSION;
+          File playlistFile = encode(source, createSegmentProfile(command), new HashMap<String, String>());
+          if (indexed && sourceIndex == null)
+            sourceIndex = readChecksums(playlistFile);
+          ResourceLimits.Slot publishSlot = acquire(ResourceLimits.Resource.IO);
+          long publishStart = System.nanoTime();
+          try {
+            if (sprites != null)
+              spriteFiles = FFmpegHLSEncoderEngine.moveSprites(playlistFile, destination.getParentFile(), baseName,
+                      io);
+            variant = writePlaylists(playlistFile, destination, baseName, track, trackRenditions, trackSeparateAudio);
+            if (playlistVariants != null)
+              playlistVariants.update(destination.getParentFile(), true);
+          } finally {
+            publishSlot.release();
+            record(DistributionMetrics.Phase.PUBLISH, publishStart);
+          }
+        }
+      } catch (Exception e) {
+        throw new DistributionException("Unable to generare HLS segments and playlists for " + source + " in " + destination.getAbsoluteFile().getParent(), e);
+      }
+
+      // Create a representation of the distributed file in the mediapackage
+      List<MediaPackageElement> distributedElements = new ArrayList<MediaPackageElement>();
+      distributedElements.add(createDistributedElement(mediaPackageId, element));
+      if (dash)
+        distributedElements.add(createDashElement(mediaPackageId, element, baseName + DashManifest.EXTENSION));
+      if (!spriteFiles.isEmpty()) {
+        distributedElements.add(distributeThumbnails(mediaPackageId, element, destination.getParentFile(), baseName,
+                spriteFiles, sprites, thumbnailHeight, variant.getDuration()));
+      }
+
+      try {
+        DistributionIndexEntry entry = DistributionIndex.describe(distributionDirectory, mediaPackageId,
+                element.getIdentifier(), profileDescription);
+        index.put(entry);
+        metrics.recordWritten(entry.getSize(), entry.getSegments());
+        JobTrace.attribute("bytes", entry.getSize());
+        JobTrace.attribute("segments", entry.getSegments());
+      } catch (IOException e) {
+        throw new DistributionException("Unable to add " + element + " to the distribution index", e);
+      }
+
+      if (sourceIndex != null) {
+        sourceIndex.setName(baseName);
+        sourceIndex.setProfile(profileDescription);
+        sourceIndex.setChecksum(checksum);
+        try {
+          sourceIndex.write(sourceIndexFile);
+        } catch (IOException e) {
+          logger.warn("Unable to write the source index of {}, it will be distributed completely next time: {}",
+                  element, e.getMessage());
+        }
+      }
+
+      logger.info("Finished distribution of {}", element);
+
+      return distributedElements;
+    } catch (Exception e) {
+      logger.warn("Error distributing " + element, e);
+      if (e instanceof DistributionException) {
+        throw (DistributionException) e;
+      } else {
+        throw new DistributionException(e);
+      }
+    } finally {
+      if (reservation != null)
+        reservation.release();
+    }
+  }
+
+  /**
+   * Records the latency of a phase in the metrics and in the trace of the current job.
+   *
+   * @param phase
+   *          the phase
+   * @param startNanos
+   *          the start of the phase as returned by {@link System#nanoTime()}
+   */
+  private void record(DistributionMetrics.Phase phase, long startNanos) {
+    metrics.record(phase, startNanos);
+    JobTrace.span(phase.toString().toLowerCase(), startNanos);
+    JobTrace trace = JobTrace.getCurrent();
+    if (trace != null && jobEvents != null)
+      jobEvents.progress(trace.getJobId(), phase.toString());
+  }
+
+  /**
+   * Publishes a job created by this node to the clients waiting for the jobs of its mediapackage.
+   *
+   * @return the job
+   */
+  private Job created(Job job, MediaPackage mediapackage) {
+    if (jobEvents != null)
+      jobEvents.created(job, mediapackage.getIdentifier().compact());
+    return job;
+  }
+
+  /**
+   * Records the end of waiting for a lock or another job in the metrics and in the trace of the current job.
+   */
+  private void finishWait(long startNanos) {
+    metrics.waitFinished(startNanos);
+    JobTrace.span(DistributionMetrics.Phase.LOCK.toString().toLowerCase(), startNanos);
+  }
+
+  /**
+   * Writes the trace of a job to the trace directory.
+   */
+  private void writeTrace(JobTrace trace) {
+    if (trace == null || traceDirectory == null)
+      return;
+    try {
+      JobTrace.write(trace, traceDirectory, traceRetain);
+    } catch (IOException e) {
+      logger.warn("Unable to write the trace of job {}: {}", trace.getJobId(), e.getMessage());
+    }
+  }
+
+  /**
+   * Returns the trace file of a job processed by this node.
+   *
+   * @param jobId
+   *          the job identifier
+   * @return the trace file
+   * @throws NotFoundException
+   *           if this node has no trace of the job
+   */
+  public File getTraceFile(long jobId) throws NotFoundException {
+    File file = traceDirectory != null ? JobTrace.getFile(traceDirectory, jobId) : null;
+    if (file == null || !file.isFile())
+      throw new NotFoundException("No trace of job " + jobId);
+    return file;
+  }
+
+  /**
+   * Runs ffmpeg, recording its latency and exit code.
+   *
+   * @return the source playlist written by ffmpeg
+   */
+  private File encode(File source, EncodingProfile profile, Map<String, String> commandLineOpts)
+          throws EncoderException, IOException {
+    ResourceLimits.Slot slot = acquire(ResourceLimits.Resource.FFMPEG);
+    long encodeStart = System.nanoTime();
+    try {
+      File playlistFile = engine.encode(source, profile, commandLineOpts).getOrElseNull();
+      metrics.recordExitCode(0);
+      JobTrace.attribute("ffmpegExitCode", 0);
+      return playlistFile;
+    } catch (EncoderException e) {
+      metrics.recordExitCode(getExitCode(e));
+      JobTrace.attribute("ffmpegExitCode", getExitCode(e));
+      throw e;
+    } finally {
+      slot.release();
+      record(DistributionMetrics.Phase.ENCODE, encodeStart);
+    }
+  }
+
+  /**
+   * Indexes the packets of a source to compare it to the source distributed before.
+   *
+   * @return the index, or <code>null</code> if the source cannot be indexed
+   */
+  private SourceIndex indexSource(File source) throws InterruptedIOException {
+    ResourceLimits.Slot slot = acquire(ResourceLimits.Resource.FFMPEG);
+    long indexStart = System.nanoTime();
+    try {
+      return SourceIndex.index(ffmpegBinary, source);
+    } catch (InterruptedIOException e) {
+      throw e;
+    } catch (IOException e) {
+      logger.warn("Unable to index {}, distributing it completely: {}", source, e.getMessage());
+      return null;
+    } finally {
+      slot.release();
+      record(DistributionMetrics.Phase.INDEX, indexStart);
+    }
+  }
+
+  /**
+   * Indexes the packet checksums ffmpeg wrote next to the source playlist and deletes them.
+   *
+   * @return the index, or <code>null</code> if there are no checksums
+   */
+  private SourceIndex readChecksums(File playlistFile) {
+    File checksums = new File(playlistFile.getParentFile(), FilenameUtils.getBaseName(playlistFile.getName())
+            + SourceIndex.FRAMEMD5_EXTENSION);
+    try {
+      return checksums.isFile() ? SourceIndex.parse(checksums) : null;
+    } catch (IOException e) {
+      logger.warn("Unable to index the packet checksums {}: {}", checksums, e.getMessage());
+      return null;
+    } finally {
+      FileUtils.deleteQuietly(checksums);
+    }
+  }
+
+  /**
+   * Segments only the end of a source that shares its beginning with the source distributed before, and appends the
+   * new segments to the segments of the previous distribution that cover the shared media. The source is cut at its
+   * key frames, so it is segmented again from the first of its segments that is not kept. The renditions and the
+   * separate audio are cut at the same times, so they are all segmented again from the same boundary.
+   *
+   * @param previousIndex
+   *          the index of the source distributed before
+   * @param sourceIndex
+   *          the index of the source
+   * @return whether the distribution is up to date, or <code>false</code> if the source has to be distributed
+   *         completely
+   */
+  private boolean distributeTail(File source, File destination, String baseName, TrackImpl track,
+          List<HLSRendition> trackRenditions, boolean trackSeparateAudio, boolean transcodeAudio,
+          SourceIndex previousIndex, SourceIndex sourceIndex) throws IOException, EncoderException {
+    File directory = destination.getParentFile();
+    if (sourceIndex.isSameMedia(previousIndex)) {
+      logger.info("The media of {} is the same as distributed before, keeping all segments", source);
+      JobTrace.attribute("keptSegments", "all");
+      return true;
+    }
+
+    double common = previousIndex.getCommonDuration(sourceIndex);
+    File sourceFile = getSourcePlaylist(destination, hasMasterPlaylist(track, trackRenditions, trackSeparateAudio));
+    if (!sourceFile.isFile()) {
+      logger.info("{} was published with another playlist layout before, distributing it completely", source);
+      return false;
+    }
+    MediaPlaylist sourcePlaylist = MediaPlaylist.read(sourceFile);
+    int sourceSegments = countSegments(sourcePlaylist, common);
+    double sourceStart = sourceIndex.getKeyFrame(getDuration(sourcePlaylist, sourceSegments), KEY_FRAME_TOLERANCE);
+
+    File audioFile = null;
+    List<File> renditionFiles = new ArrayList<File>();
+    for (HLSRendition rendition : trackRenditions)
+      renditionFiles.add(new File(directory, baseName + rendition.getSuffix() + PLAYLIST_EXTENSION));
+    if (trackSeparateAudio) {
+      audioFile = new File(new File(directory, AUDIO_DIRECTORY), baseName + FFmpegHLSEncoderEngine.AUDIO_SUFFIX
+              + PLAYLIST_EXTENSION);
+      renditionFiles.add(audioFile);
+    }
+    List<MediaPlaylist> renditionPlaylists = new ArrayList<MediaPlaylist>();
+    int renditionSegments = renditionFiles.isEmpty() ? 0 : Integer.MAX_VALUE;
+    for (File renditionFile : renditionFiles) {
+      MediaPlaylist renditionPlaylist = MediaPlaylist.read(renditionFile);
+      renditionPlaylists.add(renditionPlaylist);
+      renditionSegments = Math.min(renditionSegments, countSegments(renditionPlaylist, common));
+    }
+    // The renditions are segmented again from where their kept segments actually end, the first video rendition
+    // setting the cut for the audio as well
+    double renditionStart = renditionPlaylists.isEmpty() ? 0 : getDuration(renditionPlaylists.get(0),
+            renditionSegments);
+
+    if (sourceSegments == 0 || sourceStart < 0 || (!renditionFiles.isEmpty() && renditionSegments == 0)) {
+      logger.info("{} differs from the source distributed before within its first segments, distributing it "
+              + "completely", source);
+      return false;
+    }
+    logger.info("{} is the same as the source distributed before for {} seconds, keeping {} segments of the source "
+            + "and {} of every rendition", new Object[] { source, common, sourceSegments, renditionSegments });
+    JobTrace.attribute("keptSegments", sourceSegments);
+
+    String command = FFmpegHLSEncoderEngine.getTailCommand(trackRenditions, trackSeparateAudio, transcodeAudio,
+            sourceStart + SEEK_MARGIN, sourceSegments, renditionStart, renditionSegments);
+    File playlistFile = encode(source, createSegmentProfile(command), new HashMap<String, String>());
+    ResourceLimits.Slot publishSlot = acquire(ResourceLimits.Resource.IO);
+    long publishStart = System.nanoTime();
+    try {
+      List<File> replaced = new ArrayList<File>();
+      List<File> variantFiles = FFmpegHLSEncoderEngine.relitiviseAndAppendPlaylists(playlistFile, sourceFile,
+              baseName, trackRenditions, audioFile, sourceSegments, renditionSegments, replaced, io, integrity);
+      writeVariants(destination, baseName, track, trackRenditions, variantFiles, audioFile, sourceSegments,
+              renditionSegments);
+      if (playlistVariants != null)
+        playlistVariants.update(directory, true);
+      // Only now that every playlist has been swapped, no playlist refers to the replaced segments any more
+      for (File segment : replaced) {
+        logger.debug("Deleting {}, which is beyond the new end of its playlist", segment);
+        io.delete(segment, IOScheduler.Traffic.RECLAIM);
+      }
+    } finally {
+      publishSlot.release();
+      record(DistributionMetrics.Phase.PUBLISH, publishStart);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the duration of the first <code>count</code> segments of a playlist as listed in their EXTINF tags.
+   *
+   * @param playlist
+   *          the media playlist
+   * @param count
+   *          the number of segments
+   * @return the duration in seconds
+   */
+  private static double getDuration(MediaPlaylist playlist, int count) {
+    double duration = 0;
+    for (MediaSegment segment : playlist.getSegments().subList(0, Math.min(count, playlist.getSegments().size())))
+      duration += segment.getDuration();
+    return duration;
+  }
+
+  /**
+   * Returns the number of leading segments of a playlist that end before <code>time</code>.
+   *
+   * @param playlist
+   *          the media playlist
+   * @param time
+   *          the time in seconds
+   * @return the number of segments
+   */
+  private static int countSegments(MediaPlaylist playlist, double time) {
+    int count = 0;
+    double end = 0;
+    for (MediaSegment segment : playlist.getSegments()) {
+      end += segment.getDuration();
+      if (end > time)
+        break;
+      count++;
+    }
+    return count;
+  }
+
+  /**
+   * Returns the encoding profile running the passed ffmpeg command to segment a track.
+   *
+   * @param command
+   *          the ffmpeg command line
+   */
+  private EncodingProfile createSegmentProfile(String command) {
+    Map<String, String> properties = new HashMap<String, String>();
+    properties.put("profile.hls.http.name", "hls");
+    properties.put("profile.hls.http.input", "visual");
+    properties.put("profile.hls.http.output", "visual");
+    properties.put("profile.hls.http.suffix", ".m3u8");
+    properties.put("profile.hls.http.mimetype", "application/x-mpegURL");
+    properties.put("profile.hls.http.ffmpeg.command", command);
+    return createEncodingProfile("profile.hls.http", ".m3u8", properties);
+  }
+
+  /**
+   * Waits for a slot of a limited resource and records the time spent waiting.
+   *
+   * @param resource
+   *          the resource
+   * @return the slot
+   * @throws InterruptedIOException
+   *           if the job is interrupted while waiting
+   */
+  private ResourceLimits.Slot acquire(ResourceLimits.Resource resource) throws InterruptedIOException {
+    long queueStart = System.nanoTime();
+    try {
+      return limits.acquire(resource);
+    } finally {
+      record(DistributionMetrics.Phase.QUEUE, queueStart);
+    }
+  }
+
+  /**
+   * Waits until a distributed element can be requested from its URI, for at most {@link #TIMEOUT} millis. An element
+   * that does not become available is only logged, since the distribution directory may be served by a web server
+   * this node cannot reach.
+   *
+   * @param element
+   *          the distributed element
+   * @throws DistributionException
+   *           if the job is interrupted while waiting
+   */
+  private void checkAvailability(MediaPackageElement element) throws DistributionException {
+    URI uri = element.getURI();
+    long probeStart = System.nanoTime();
+    try {
+      long deadline = System.currentTimeMillis() + TIMEOUT;
+      while (true) {
+        if (probe(uri) == HttpServletResponse.SC_OK)
+          return;
+        if (System.currentTimeMillis() + INTERVAL > deadline)
+          break;
+        Thread.sleep(INTERVAL);
+      }
+    } catch (InterruptedIOException e) {
+      throw new DistributionException("Interrupted while checking the availability of " + uri, e);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DistributionException("Interrupted while checking the availability of " + uri, e);
+    } finally {
+      record(DistributionMetrics.Phase.PROBE, probeStart);
+    }
+    logger.warn("{} is not available at {} after {} seconds", new Object[] { element, uri, TIMEOUT / 1000 });
+  }
+
+  /**
+   * Sends one HEAD request to <code>uri</code>. The HTTP slot is only held for the request, so jobs waiting between
+   * their probes do not keep others from probing.
+   *
+   * @return the response status, or -1 if the request failed
+   */
+  private int probe(URI uri) throws InterruptedIOException {
+    ResourceLimits.Slot slot = acquire(ResourceLimits.Resource.HTTP);
+    try {
+      HttpResponse response = trustedHttpClient.execute(new HttpHead(uri));
+      try {
+        return response.getStatusLine().getStatusCode();
+      } finally {
+        trustedHttpClient.close(response);
+      }
+    } catch (Exception e) {
+      logger.debug("Unable to check the availability of {}: {}", uri, e.getMessage());
+      return -1;
+    } finally {
+      slot.release();
+    }
+  }
+
+  /**
+   * Returns the ffmpeg exit code mentioned in the message of an encoder failure.
+   */
+  static int getExitCode(EncoderException e) {
+    for (Throwable t = e; t != null; t = t.getCause()) {
+      if (t.getMessage() == null)
+        continue;
+      Matcher matcher = EXIT_CODE_PATTERN.matcher(t.getMessage());
+      if (matcher.find())
+        return Integer.parseInt(matcher.group(1));
+    }
+    return DistributionMetrics.UNKNOWN_EXIT_CODE;
+  }
+
+  /**
+   * Returns the state transitions of the jobs.
+   *
+   * @return the job events
+   */
+  public JobEvents getJobEvents() {
+    return jobEvents;
+  }
+
+  /**
+   * Returns the counters and latencies of the jobs.
+   *
+   * @return the metrics
+   */
+  public DistributionMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Creates the representation of a distributed track in the mediapackage.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param element
+   *          the original track
+   * @return the distributed track
+   */
+  private MediaPackageElement createDistributedElement(String mediaPackageId, MediaPackageElement element)
+          throws DistributionException {
+    MediaPackageElement distributedElement = (MediaPackageElement) element.clone();
+    try {
+      distributedElement.setURI(getDistributionUri(mediaPackageId, element));
+    } catch (URISyntaxException e) {
+      throw new DistributionException("Distributed element produces an invalid URI", e);
+    }
+    distributedElement.setMimeType(MimeType.mimeType("application", "x-mpegURL"));
+    distributedElement.setIdentifier(null);
+    return distributedElement;
+  }
+
+  /**
+   * Returns the elements of an existing distribution.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param element
+   *          the original track
+   * @param destination
+   *          the master playlist of the distribution
+   * @return the distributed track, followed by the DASH manifest and the thumbnail track if there are any
+   */
+  private List<MediaPackageElement> getDistributedElements(String mediaPackageId, MediaPackageElement element,
+          File destination) throws DistributionException {
+    List<MediaPackageElement> distributedElements = new ArrayList<MediaPackageElement>();
+    distributedElements.add(createDistributedElement(mediaPackageId, element));
+    File mpd = new File(destination.getParentFile(), FilenameUtils.getBaseName(destination.getName())
+            + DashManifest.EXTENSION);
+    File vtt = new File(destination.getParentFile(), FilenameUtils.getBaseName(destination.getName())
+            + ThumbnailSprites.TRACK_SUFFIX);
+    try {
+      if (mpd.isFile())
+        distributedElements.add(createDashElement(mediaPackageId, element, mpd.getName()));
+    } catch (Exception e) {
+      throw new DistributionException("Unable to create the DASH manifest of " + element, e);
+    }
+    if (vtt.isFile()) {
+      try {
+        distributedElements.add(createThumbnailsElement(mediaPackageId, element, vtt.getName()));
+      } catch (Exception e) {
+        throw new DistributionException("Unable to create the thumbnail track of " + element, e);
+      }
+    }
+    return distributedElements;
+  }
+
+  /**
+   * Returns the identity of the distribution of an element: the same element from the same source encoded with the
+   * same profile.
+   */
+  private String getDistributionKey(MediaPackage mediapackage, MediaPackageElement element, String profile) {
+    StringBuilder key = new StringBuilder(mediapackage.getIdentifier().compact());
+    key.append("/").append(element.getIdentifier()).append("/").append(profile);
+    key.append("/").append(element.getURI());
+    if (element.getChecksum() != null)
+      key.append("/").append(element.getChecksum());
+    return key.toString();
+  }
+
+  /**
+   * Waits for a distribution to finish.
+   *
+   * @param distribution
+   *          the distribution
+   * @return the distributed elements
+   */
+  private static List<MediaPackageElement> await(Future<List<MediaPackageElement>> distribution)
+          throws DistributionException {
+    try {
+      return distribution.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new DistributionException("Interrupted while waiting for the distribution", e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof DistributionException)
+        throw (DistributionException) e.getCause();
+      throw new DistributionException(e.getCause());
+    }
+  }
+
+  /**
+   * Moves the segments and media playlists created by ffmpeg next to <code>destination</code> and writes the master
+   * playlist to <code>destination</code> itself. For video tracks, the master playlist also references an I-frame only
+   * playlist on the same segments for every variant, unless the segments are encrypted. A track that needs no master
+   * playlist, see {@link #hasMasterPlaylist(TrackImpl, List, boolean)}, gets its source media playlist moved to
+   * <code>destination</code> instead.
+   *
+   * @param playlistFile
+   *          the source media playlist written by ffmpeg
+   * @param destination
+   *          the master playlist to write
+   * @param baseName
+   *          the name prefix of the distributed files
+   * @param track
+   *          the track being distributed
+   * @param trackRenditions
+   *          the renditions written by the same ffmpeg run
+   * @param trackSeparateAudio
+   *          whether the ffmpeg run wrote the audio as a separate rendition
+   * @return the variant of the segmented source
+   */
+  private HLSVariant writePlaylists(File playlistFile, File destination, String baseName, TrackImpl track,
+          List<HLSRendition> trackRenditions, boolean trackSeparateAudio) throws IOException, EncoderException {
+    File directory = destination.getParentFile();
+    File sourceFile = getSourcePlaylist(destination, hasMasterPlaylist(track, trackRenditions, trackSeparateAudio));
+    File audioFile = null;
+    if (trackSeparateAudio) {
+      audioFile = new File(new File(directory, AUDIO_DIRECTORY), baseName + FFmpegHLSEncoderEngine.AUDIO_SUFFIX
+              + PLAYLIST_EXTENSION);
+    }
+    List<File> variantFiles = FFmpegHLSEncoderEngine.relitiviseAndMovePlaylists(playlistFile, sourceFile, trackRenditions,
+            audioFile, io, new FFmpegHLSEncoderEngine.MoveOptions().segmentPrefix(baseName).encryption(encryption)
+                    .integrity(integrity));
+    return writeVariants(destination, baseName, track, trackRenditions, variantFiles, audioFile, 0, 0);
   }
 
-  @Override
-  public Job distribute(MediaPackage mediapackage, String elementId) throws DistributionException, MediaPackageException {
-    return distribute(mediapackage, elementId, true);
-  }
+  /**
+   * Writes the master playlist to <code>destination</code> for the media playlists next to it, along with the I-frame
+   * playlists and the DASH manifest. If the source media playlist is <code>destination</code> itself, the variants are
+   * only measured.
+   *
+   * @param destination
+   *          the master playlist to write
+   * @param baseName
+   *          the name prefix of the distributed files
+   * @param track
+   *          the track being distributed
+   * @param trackRenditions
+   *          the renditions of the track
+   * @param variantFiles
+   *          the media playlists, the source playlist first followed by the renditions in order and the audio rendition
+   *          last
+   * @param audioFile
+   *          the media playlist of the separate audio rendition, or <code>null</code>
+   * @param sourceSegments
+   *          the number of leading segments of the source whose I-frames are taken from the existing I-frame playlist
+   * @param renditionSegments
+   *          the number of leading segments of every rendition whose I-frames are taken from the existing I-frame
+   *          playlist
+   * @return the variant of the segmented source
+   */
+  private HLSVariant writeVariants(File destination, String baseName, TrackImpl track,
+          List<HLSRendition> trackRenditions, List<File> variantFiles, File audioFile, int sourceSegments,
+          int renditionSegments) throws IOException {
+    File directory = destination.getParentFile();
+    HLSVariant audio = null;
+    if (audioFile != null) {
+      variantFiles.remove(audioFile);
+      audio = new HLSVariant(AUDIO_DIRECTORY + "/" + audioFile.getName());
+      FFmpegHLSEncoderEngine.measureBandwidth(audioFile, audio);
+    }
 
-  public Job distribute(MediaPackage mediapackage, String elementId, boolean checkAvailability)
-          throws DistributionException, MediaPackageException {
-    if (mediapackage == null)
-      throw new MediaPackageException("Mediapackage must be specified");
-    if (elementId == null)
-      throw new MediaPackageException("Element ID must be specified");
-    try {
-      return serviceRegistry.createJob(JOB_TYPE,
-                                       Operation.Distribute.toString(),
-                                       Arrays.asList(MediaPackageParser.getAsXml(mediapackage),
-                                                     elementId,
-                                                     Boolean.toString(checkAvailability)));
-    } catch (ServiceRegistryException e) {
-      throw new DistributionException("Unable to create a job", e);
+    List<HLSVariant> variants = new ArrayList<HLSVariant>();
+    for (int i = 0; i < variantFiles.size(); i++) {
+      File variantFile = variantFiles.get(i);
+      HLSVariant variant = new HLSVariant(variantFile.getName());
+      FFmpegHLSEncoderEngine.measureBandwidth(variantFile, variant);
+      if (!track.getVideo().isEmpty()) {
+        if (i > 0) {
+          HLSRendition rendition = trackRenditions.get(i - 1);
+          variant.setResolution(rendition.getWidth() + "x" + rendition.getHeight());
+        } else {
+          VideoStream video = track.getVideo().get(0);
+          if (video.getFrameWidth() != null && video.getFrameHeight() != null)
+            variant.setResolution(video.getFrameWidth() + "x" + video.getFrameHeight());
+        }
+        // Key frames cannot be located in encrypted or fragmented MP4 segments
+        if (iFramePlaylists && encryption == null && !dash) {
+          File iFrameFile = new File(directory, FilenameUtils.getBaseName(variantFile.getName()) + IFRAMES_SUFFIX
+                  + PLAYLIST_EXTENSION);
+          long iFrameBandwidth = FFmpegHLSEncoderEngine.createIFramePlaylist(variantFile, iFrameFile, i > 0
+                  ? renditionSegments : sourceSegments);
+          if (iFrameBandwidth > 0)
+            variant.setIFrameStream(iFrameFile.getName(), iFrameBandwidth);
+        }
+      }
+      variants.add(variant);
+    }
+    if (!variantFiles.get(0).equals(destination))
+      FFmpegHLSEncoderEngine.writeMasterPlaylist(destination, variants, audio);
+
+    if (dash) {
+      DashManifest manifest = new DashManifest(directory);
+      for (int i = 0; i < variantFiles.size(); i++) {
+        if (track.getVideo().isEmpty())
+          manifest.addAudio(variantFiles.get(i), variants.get(i));
+        else
+          manifest.addVideo(variantFiles.get(i), variants.get(i));
+      }
+      if (audioFile != null)
+        manifest.addAudio(audioFile, audio);
+      manifest.write(new File(directory, baseName + DashManifest.EXTENSION));
     }
+    return variants.get(0);
   }
 
   /**
-   * Distributes the mediapackage's element to the location that is returned by the concrete implementation. In
-   * addition, a representation of the distributed element is added to the mediapackage.
+   * Returns whether a master playlist is published at the URI of a track. It is only needed if the track has more to
+   * offer than its segmented source: transcoded renditions, a separate audio rendition, I-frame playlists or a DASH
+   * manifest. Otherwise the media playlist of the source is published at the URI itself.
    *
-   * @see org.opencastproject.distribution.api.DistributionService#distribute(org.opencastproject.mediapackage.MediaPackage,
-   *      String)
-   * @throws org.opencastproject.distribution.api.DistributionException
-   *           in case of an error
+   * @param track
+   *          the track being distributed
+   * @param trackRenditions
+   *          the renditions of the track
+   * @param trackSeparateAudio
+   *          whether the audio of the track is published as a separate rendition
+   * @return whether the track has a master playlist
    */
-  protected MediaPackageElement distribute(Job job, MediaPackage mediapackage, String elementId, boolean checkAvailability)
-          throws DistributionException {
-    return distributeElement(mediapackage, elementId, checkAvailability);
+  private boolean hasMasterPlaylist(TrackImpl track, List<HLSRendition> trackRenditions, boolean trackSeparateAudio) {
+    return !trackRenditions.isEmpty() || trackSeparateAudio || dash
+            || (iFramePlaylists && encryption == null && !track.getVideo().isEmpty());
   }
 
   /**
-   * Distribute a Mediapackage element to the hls distribution service.
-   * 
-   * @param mediapackage
-   *          The media package that contains the element to distribute.
-   * @param elementId
-   *          The id of the element that should be distributed contained within the media package.
-   * @param checkAvailability
-   *          Check the availability of the distributed element via http.
-   * @return A reference to the MediaPackageElement that has been distributed.
-   * @throws DistributionException
-   *           Thrown if the parent directory of the MediaPackageElement cannot be created, if the MediaPackageElement
-   *           cannot be copied or another unexpected exception occurs.
+   * Returns the media playlist holding the segments of the source of a track.
+   *
+   * @param destination
+   *          the playlist published at the URI of the track
+   * @param master
+   *          whether <code>destination</code> is a master playlist
+   * @return the source media playlist, which is <code>destination</code> itself if there is no master playlist
    */
-  public MediaPackageElement distributeElement(MediaPackage mediapackage, String elementId, boolean checkAvailability)
-          throws DistributionException {
-    if (mediapackage == null)
-      throw new IllegalArgumentException("Mediapackage must be specified");
-    if (elementId == null)
-      throw new IllegalArgumentException("Element ID must be specified");
-
-    String mediaPackageId = mediapackage.getIdentifier().compact();
-    MediaPackageElement element = mediapackage.getElementById(elementId);
+  private static File getSourcePlaylist(File destination, boolean master) {
+    if (!master)
+      return destination;
+    return new File(destination.getParentFile(), FilenameUtils.getBaseName(destination.getName())
+            + SOURCE_VARIANT_SUFFIX + PLAYLIST_EXTENSION);
+  }
 
-    // Make sure the element exists
-    if (mediapackage.getElementById(elementId) == null)
-      throw new IllegalStateException("No element " + elementId + " found in mediapackage");
-    if (!accepts(element)) {
-      logger.debug("Skipping {} {} for distribution to the streaming server", element.getElementType().toString()
-        .toLowerCase(), element.getIdentifier());
-      return null;
+  /**
+   * Estimates the number of bytes written when distributing a track with the current configuration. The source is
+   * copied, so its size is used as is, and every rendition adds its configured video bitrate plus the audio over the
+   * duration of the track, unless the audio is published separately. Without a duration, every rendition is assumed to
+   * be as large as the source.
+   *
+   * @param track
+   *          the track to distribute
+   * @param sourceSize
+   *          the size of the source in bytes, or 0 if unknown
+   * @return the estimated output size
+   */
+  protected long estimateOutputSize(TrackImpl track, long sourceSize) {
+    double seconds = track.getDuration() / 1000.0;
+    List<HLSRendition> trackRenditions = getRenditions(track);
+    if (seconds <= 0)
+      return (long) (sourceSize * OUTPUT_OVERHEAD * (1 + trackRenditions.size()));
+    long audioBitrate = 0;
+    for (AudioStream audio : track.getAudio()) {
+      if (audio.getBitRate() != null)
+        audioBitrate += audio.getBitRate().longValue();
     }
+    double bits = sourceSize * 8.0;
+    boolean trackSeparateAudio = isSeparateAudio(track);
+    for (HLSRendition rendition : trackRenditions)
+      bits += (rendition.getVideoBitrate() * 1000L + (trackSeparateAudio ? 0 : audioBitrate)) * seconds;
+    return (long) (bits / 8 * OUTPUT_OVERHEAD);
+  }
 
-    try {
-      File source;
-      try {
-        source = workspace.get(element.getURI());
-      } catch (NotFoundException e) {
-        throw new DistributionException("Unable to find " + element.getURI() + " in the workspace", e);
-      } catch (IOException e) {
-        throw new DistributionException("Error loading " + element.getURI() + " from the workspace", e);
-      }
-      File destination = getDistributionFile(mediapackage, element);
+  /**
+   * Returns a short description of the encoding of a track with the current configuration.
+   *
+   * @param track
+   *          the track to distribute
+   * @return the description
+   */
+  private String getProfileDescription(TrackImpl track) {
+    return getProfileDescription(getRenditions(track), isSeparateAudio(track), track.getVideo().isEmpty() ? null
+            : thumbnailSprites);
+  }
 
-      // Make the directories to place the files into
-      try {
-        FileUtils.forceMkdir(destination.getParentFile());
-      } catch (IOException e) {
-        throw new DistributionException("Unable to create " + destination.getParentFile(), e);
-      }
-      logger.debug("Distributing {} to {}", elementId, destination);
+  /**
+   * Returns whether the audio of a track is published as a separate rendition. DASH players expect audio and video in
+   * separate adaptation sets, so the audio is always separated if DASH manifests are written.
+   *
+   * @param track
+   *          the track to distribute
+   * @return whether the audio is published separately
+   */
+  private boolean isSeparateAudio(TrackImpl track) {
+    return (separateAudio || dash) && !track.getVideo().isEmpty() && !track.getAudio().isEmpty();
+  }
 
-      // Do the HLS segmentation and m3u8 playlist generation
-      final Map<String, String> properties = new HashMap<String, String>();
-      properties.put("profile.hls.http.name", "hls");
-      properties.put("profile.hls.http.input", "visual");
-      properties.put("profile.hls.http.output", "visual");
-      properties.put("profile.hls.http.suffix", ".m3u8");
-      properties.put("profile.hls.http.mimetype", "application/x-mpegURL");
-      properties.put("profile.hls.http.ffmpeg.command", "-i #{in.video.path} -codec copy -map 0 -bsf h264_mp4toannexb -f segment -segment_list #{out.dir}/#{out.name}#{out.suffix} -segment_time 10 #{out.dir}/#{out.name}-%03d.ts");
-      EncodingProfile profile = createEncodingProfile("profile.hls.http", ".m3u8", properties);
-      
-      final Map<String, String> commandLineOpts = new HashMap<String, String>();
+  /**
+   * Returns a short description of the encoding of a track, e.g. <code>source,720p+audio+thumbnails+aes-128</code>.
+   *
+   * @param trackRenditions
+   *          the renditions of the track
+   * @param trackSeparateAudio
+   *          whether the audio is published as a separate rendition
+   * @param sprites
+   *          the thumbnail sprite settings, or <code>null</code>
+   * @return the description
+   */
+  private String getProfileDescription(List<HLSRendition> trackRenditions, boolean trackSeparateAudio,
+          ThumbnailSprites sprites) {
+    StringBuilder description = new StringBuilder(SOURCE_VARIANT_SUFFIX.substring(1));
+    for (HLSRendition rendition : trackRenditions)
+      description.append(",").append(rendition.getName());
+    if (trackSeparateAudio)
+      description.append("+").append(AUDIO_DIRECTORY);
+    if (sprites != null)
+      description.append("+thumbnails");
+    if (encryption != null)
+      description.append("+aes-128");
+    if (dash)
+      description.append("+dash");
+    return description.toString();
+  }
 
-      try {
-        File playlistFile = engine.encode(source, profile, commandLineOpts).getOrElseNull();
-        FFmpegHLSEncoderEngine.relitiviseAndMovePlaylist(playlistFile, destination);
-      } catch (Exception e) {
-        throw new DistributionException("Unable to generare HLS segments and playlists for " + source + " in " + destination.getAbsoluteFile().getParent(), e);
-      }
+  /**
+   * Returns the configured renditions that apply to <code>track</code>. Audio only tracks are not transcoded, and
+   * video is never scaled up beyond the size of the source.
+   *
+   * @param track
+   *          the track being distributed
+   * @return the renditions to encode
+   */
+  protected List<HLSRendition> getRenditions(TrackImpl track) {
+    List<HLSRendition> result = new ArrayList<HLSRendition>();
+    if (track.getVideo().isEmpty())
+      return result;
+    Integer sourceHeight = track.getVideo().get(0).getFrameHeight();
+    for (HLSRendition rendition : renditions) {
+      if (sourceHeight == null || rendition.getHeight() < sourceHeight)
+        result.add(rendition);
+    }
+    return result;
+  }
 
-      // Create a representation of the distributed file in the mediapackage
-      MediaPackageElement distributedElement = (MediaPackageElement) element.clone();
-      try {
-        distributedElement.setURI(getDistributionUri(mediaPackageId, element));
-      } catch (URISyntaxException e) {
-        throw new DistributionException("Distributed element produces an invalid URI", e);
-      }
-      distributedElement.setMimeType(MimeType.mimeType("application", "x-mpegURL"));
-      distributedElement.setIdentifier(null);
+  /**
+   * Writes the WebVTT thumbnail track for the sprites next to the playlist and creates the distributed attachment
+   * pointing to it.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param element
+   *          the track being distributed
+   * @param directory
+   *          the distribution directory of the track
+   * @param baseName
+   *          the name prefix of the distributed files
+   * @param spriteFiles
+   *          the distributed sprite images
+   * @param sprites
+   *          the sprite settings
+   * @param thumbnailHeight
+   *          the thumbnail height
+   * @param duration
+   *          the track duration in seconds
+   * @return the distributed thumbnail track
+   */
+  private MediaPackageElement distributeThumbnails(String mediaPackageId, MediaPackageElement element, File directory,
+          String baseName, List<File> spriteFiles, ThumbnailSprites sprites, int thumbnailHeight, double duration)
+          throws IOException, URISyntaxException, UnsupportedElementException {
+    List<String> spriteNames = new ArrayList<String>();
+    for (File spriteFile : spriteFiles)
+      spriteNames.add(spriteFile.getName());
+    File vtt = new File(directory, baseName + ThumbnailSprites.TRACK_SUFFIX);
+    sprites.writeWebVtt(vtt, spriteNames, thumbnailHeight, duration);
+
+    return createThumbnailsElement(mediaPackageId, element, vtt.getName());
+  }
 
-      logger.info("Finished distribution of {}", element);
+  /**
+   * Creates the distributed attachment pointing to the WebVTT thumbnail track of a track.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param element
+   *          the track being distributed
+   * @param fileName
+   *          the name of the WebVTT file
+   * @return the distributed thumbnail track
+   */
+  private MediaPackageElement createThumbnailsElement(String mediaPackageId, MediaPackageElement element,
+          String fileName) throws URISyntaxException, UnsupportedElementException {
+    String flavorType = element.getFlavor() != null ? element.getFlavor().getType() : "track";
+    MediaPackageElementFlavor flavor = MediaPackageElementFlavor.flavor(flavorType, THUMBNAILS_FLAVOR_SUBTYPE);
+    MediaPackageElementBuilder builder = MediaPackageElementBuilderFactory.newInstance().newElementBuilder();
+    MediaPackageElement thumbnails = builder.elementFromURI(getDistributionUri(mediaPackageId, element, fileName),
+            MediaPackageElement.Type.Attachment, flavor);
+    thumbnails.setMimeType(MimeType.mimeType("text", "vtt"));
+    thumbnails.referTo(element);
+    thumbnails.setIdentifier(null);
+    return thumbnails;
+  }
 
-      return distributedElement;
-    } catch (Exception e) {
-      logger.warn("Error distributing " + element, e);
-      if (e instanceof DistributionException) {
-        throw (DistributionException) e;
-      } else {
-        throw new DistributionException(e);
-      }
-    }
+  /**
+   * Creates the distributed track pointing to the DASH manifest of a track.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param element
+   *          the track being distributed
+   * @param fileName
+   *          the name of the manifest
+   * @return the distributed DASH manifest
+   */
+  private MediaPackageElement createDashElement(String mediaPackageId, MediaPackageElement element, String fileName)
+          throws URISyntaxException, UnsupportedElementException {
+    String flavorType = element.getFlavor() != null ? element.getFlavor().getType() : "track";
+    MediaPackageElementFlavor flavor = MediaPackageElementFlavor.flavor(flavorType, DASH_FLAVOR_SUBTYPE);
+    MediaPackageElementBuilder builder = MediaPackageElementBuilderFactory.newInstance().newElementBuilder();
+    MediaPackageElement manifest = builder.elementFromURI(getDistributionUri(mediaPackageId, element, fileName),
+            MediaPackageElement.Type.Track, flavor);
+    manifest.setMimeType(MimeType.mimeType("application", "dash+xml"));
+    manifest.referTo(element);
+    manifest.setIdentifier(null);
+    return manifest;
   }
 
   /**
@@ -354,7 +2321,7 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
       List<String> arguments = new ArrayList<String>();
       arguments.add(MediaPackageParser.getAsXml(mediaPackage));
       arguments.add(elementId);
-      return serviceRegistry.createJob(JOB_TYPE, Operation.Retract.toString(), arguments);
+      return created(serviceRegistry.createJob(JOB_TYPE, Operation.Retract.toString(), arguments), mediaPackage);
     } catch (ServiceRegistryException e) {
       throw new DistributionException("Unable to create a job", e);
     }
@@ -391,24 +2358,109 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
 
     // Find the element that has been created as part of the distribution process
     String mediapackageId = mediapackage.getIdentifier().compact();
+    JobTrace.attribute("mediapackage", mediapackageId);
+    JobTrace.attribute("element", elementId);
     URI distributedURI = null;
     MediaPackageElement distributedElement = element;
     try {
       File mediapackageDir = getMediaPackageDirectory(mediapackageId);
       File elementDir = getDistributedFile(mediapackage, element);
+      String distributedId = elementDir.getName();
+
+      // A DASH manifest shares the segments of the track's playlists, so only the manifest itself is removed
+      MimeType mimeType = element.getMimeType();
+      if (mimeType != null && "application".equals(mimeType.getType()) && "dash+xml".equals(mimeType.getSubtype())) {
+        File mpd = new File(elementDir, FilenameUtils.getName(element.getURI().getPath()));
+        if (mpd.isFile())
+          io.delete(mpd, IOScheduler.Traffic.RECLAIM);
+        replicate(mpd);
+        logger.info("Removed DASH manifest: " + mpd.getAbsolutePath());
+        return distributedElement;
+      }
+
+      // The combined manifest of several tracks is the only file distributed to the mediapackage directory itself
+      if (MediaPackageElementFlavor.parseFlavor(MULTITRACK_FLAVOR).equals(element.getFlavor())) {
+        File manifest = new File(mediapackageDir, MULTITRACK_PLAYLIST);
+        removeMultiTrackPlaylist(manifest);
+        String[] remaining = mediapackageDir.list();
+        if (remaining != null && remaining.length == 0)
+          FileSupport.delete(mediapackageDir);
+        return distributedElement;
+      }
+
+      // The thumbnail track lives next to the track's playlists, so only the WebVTT file and its sprites are removed
+      if (element.getFlavor() != null && THUMBNAILS_FLAVOR_SUBTYPE.equals(element.getFlavor().getSubtype())) {
+        String vttName = FilenameUtils.getName(element.getURI().getPath());
+        List<File> files = new ArrayList<File>();
+        files.add(new File(elementDir, vttName));
+        if (vttName.endsWith(ThumbnailSprites.TRACK_SUFFIX)) {
+          final String spritePrefix = vttName.substring(0, vttName.length() - ThumbnailSprites.TRACK_SUFFIX.length())
+                  + ThumbnailSprites.SPRITE_SUFFIX + "-";
+          File[] sprites = elementDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+              return name.startsWith(spritePrefix) && name.endsWith(ThumbnailSprites.SPRITE_EXTENSION);
+            }
+          });
+          if (sprites != null)
+            files.addAll(Arrays.asList(sprites));
+        }
+        for (File file : files) {
+          if (file.isFile())
+            io.delete(file, IOScheduler.Traffic.RECLAIM);
+          replicate(file);
+        }
+        logger.info("Removed thumbnail track: " + new File(elementDir, vttName).getAbsolutePath());
+        return distributedElement;
+      }
 
-      // Does the file exist? If not, the current element has not been distributed to this channel
-      // or has been removed otherwise
-      if (!elementDir.exists()) {
+      if (liveSessions.containsKey(mediapackageId + "/" + distributedId))
+        throw new DistributionException("Element " + distributedId + " is a running live stream, stop it first");
+
+      // Is the element in the index? If not, check whether the file exists. If it does not, the current element has
+      // not been distributed to this channel or has been removed otherwise
+      DistributionIndexEntry entry = index.get(mediapackageId, distributedId);
+      if (entry == null && !elementDir.exists() && !distributedId.equals(element.getIdentifier())) {
+        // Elements are distributed below their own identifier, which differs from the reference of a distributed
+        // element if the original element is passed
+        File ownDir = new File(mediapackageDir, element.getIdentifier());
+        if (index.get(mediapackageId, element.getIdentifier()) != null || ownDir.exists()) {
+          distributedId = element.getIdentifier();
+          elementDir = ownDir;
+          entry = index.get(mediapackageId, distributedId);
+        }
+      }
+      if (entry != null) {
+        elementDir = new File(distributionDirectory, entry.getPath());
+      } else if (!elementDir.exists()) {
         throw new Exception("Track directory does not exist: " + elementDir.getAbsolutePath());
       }
 
       // Try to remove the file and - if possible - the parent folder
-      System.out.println("Removing track folder: " + elementDir.getAbsolutePath());
-      FileUtils.forceDelete(elementDir);
+      logger.info("Removing track folder: " + elementDir.getAbsolutePath());
+      if (elementDir.exists()) {
+        ResourceLimits.Slot slot = acquire(ResourceLimits.Resource.IO);
+        long retractStart = System.nanoTime();
+        try {
+          io.delete(elementDir, IOScheduler.Traffic.RECLAIM);
+          if (encryption != null && encryption.getKeyDirectory(elementDir).exists())
+            io.delete(encryption.getKeyDirectory(elementDir), IOScheduler.Traffic.RECLAIM);
+        } finally {
+          slot.release();
+        }
+        record(DistributionMetrics.Phase.RETRACT, retractStart);
+      }
+      index.remove(mediapackageId, distributedId);
+      replicate(elementDir);
       logger.info("Removed track folder: " + elementDir.getAbsolutePath());
 
-      if (mediapackageDir.list().length == 0) {
+      // The combined manifest is no longer complete once one of its tracks is gone
+      File manifest = new File(mediapackageDir, MULTITRACK_PLAYLIST);
+      if (manifest.isFile() && FileUtils.readFileToString(manifest, "UTF-8").contains(elementDir.getName() + "/"))
+        removeMultiTrackPlaylist(manifest);
+
+      String[] remaining = mediapackageDir.list();
+      if (remaining != null && remaining.length == 0) {
         logger.info("Removed parent folder since it is empty: " + mediapackageDir.getAbsolutePath());
         FileSupport.delete(mediapackageDir);
       }
@@ -426,25 +2478,154 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
     }
   }
 
+  /**
+   * Removes the combined manifest of several tracks along with its gzipped and absolute siblings. A manifest that is
+   * already gone counts as removed.
+   *
+   * @param manifest
+   *          the combined manifest
+   */
+  private void removeMultiTrackPlaylist(File manifest) throws IOException {
+    if (manifest.isFile())
+      io.delete(manifest, IOScheduler.Traffic.RECLAIM);
+    PlaylistVariants.delete(manifest);
+    replicate(manifest);
+    for (File sibling : PlaylistVariants.getSiblings(manifest))
+      replicate(sibling);
+    logger.info("Removed combined manifest: " + manifest.getAbsolutePath());
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * Distributions are not accepted while the free space of the distribution volume is below the low watermark, so that
+   * the service registry dispatches them to other nodes. Retractions free space and are always accepted, as are the
+   * lookups of derived elements, which write nothing.
+   *
+   * @see org.opencastproject.job.api.AbstractJobProducer#isReadyToAcceptJobs(java.lang.String)
+   */
+  @Override
+  public boolean isReadyToAcceptJobs(String operation) throws ServiceRegistryException {
+    if (diskSpace == null || Operation.Retract.toString().equals(operation)
+            || Operation.DistributeDerived.toString().equals(operation))
+      return super.isReadyToAcceptJobs(operation);
+    if (!diskSpace.isAcceptable(0)) {
+      logger.debug("Not accepting {} jobs, {} MB available on the distribution volume", operation,
+              diskSpace.getAvailable() / IOScheduler.MB);
+      return false;
+    }
+    return super.isReadyToAcceptJobs(operation);
+  }
+
   /**
    * {@inheritDoc}
-   * 
+   * <p>
+   * Distributions are only accepted if their estimated output fits on the distribution volume above the low watermark.
+   *
+   * @see org.opencastproject.job.api.AbstractJobProducer#isReadyToAccept(org.opencastproject.job.api.Job)
+   */
+  @Override
+  public boolean isReadyToAccept(Job job) throws ServiceRegistryException {
+    if (!isReadyToAcceptJobs(job.getOperation()))
+      return false;
+    if (diskSpace == null)
+      return super.isReadyToAccept(job);
+    try {
+      Operation op = Operation.valueOf(job.getOperation());
+      if (op != Operation.Distribute && op != Operation.DistributeTracks)
+        return super.isReadyToAccept(job);
+      MediaPackage mediapackage = MediaPackageParser.getFromXml(job.getArguments().get(0));
+      List<MediaPackageElement> elements = new ArrayList<MediaPackageElement>();
+      if (op == Operation.Distribute) {
+        elements.add(mediapackage.getElementById(job.getArguments().get(1)));
+      } else if (job.getArguments().get(1).trim().length() == 0) {
+        elements.addAll(Arrays.asList(mediapackage.getTracks()));
+      } else {
+        for (String id : job.getArguments().get(1).split(","))
+          elements.add(mediapackage.getElementById(id.trim()));
+      }
+      long estimate = 0;
+      for (MediaPackageElement element : elements) {
+        if (element != null && accepts(element))
+          estimate += estimateOutputSize((TrackImpl) element, Math.max(0, element.getSize()));
+      }
+      if (!diskSpace.isAcceptable(estimate)) {
+        logger.info("Not accepting job {}, its output of about {} MB does not fit on the distribution volume",
+                job.getId(), estimate / IOScheduler.MB);
+        return false;
+      }
+    } catch (Exception e) {
+      // Let the job fail where its arguments are processed
+      logger.debug("Unable to estimate the output size of job {}", job.getId(), e);
+    }
+    return super.isReadyToAccept(job);
+  }
+
+  /**
+   * {@inheritDoc}
+   * <p>
+   * The start and the outcome of the job are published to the clients waiting for it as they happen, ahead of the
+   * service registry.
+   *
    * @see org.opencastproject.job.api.AbstractJobProducer#process(org.opencastproject.job.api.Job)
    */
   @Override
   protected String process(Job job) throws Exception {
+    if (jobEvents == null)
+      return processOperation(job);
+    jobEvents.update(job.getId(), job.getOperation(), null, Job.Status.RUNNING, null);
+    String payload = null;
+    boolean success = false;
+    try {
+      payload = processOperation(job);
+      success = true;
+      return payload;
+    } finally {
+      jobEvents.update(job.getId(), job.getOperation(), null, success ? Job.Status.FINISHED : Job.Status.FAILED,
+              payload);
+    }
+  }
+
+  /**
+   * Runs the operation of a job.
+   *
+   * @param job
+   *          the job
+   * @return the payload of the job
+   */
+  private String processOperation(Job job) throws Exception {
     Operation op = null;
     String operation = job.getOperation();
     List<String> arguments = job.getArguments();
+    boolean success = true;
+    metrics.jobStarted();
+    JobTrace.begin(job.getId(), operation, job.getProcessingHost() != null ? job.getProcessingHost() : NODE);
     try {
       op = Operation.valueOf(operation);
+      IOScheduler.setPriority(getPriority(op, arguments));
       MediaPackage mediapackage = MediaPackageParser.getFromXml(arguments.get(0));
       String elementId = arguments.get(1);
       switch (op) {
         case Distribute:
           Boolean checkAvailability = Boolean.parseBoolean(arguments.get(2));
-          MediaPackageElement distributedElement = distribute(job, mediapackage, elementId, checkAvailability);
-          return (distributedElement != null) ? MediaPackageElementParser.getAsXml(distributedElement) : null;
+          List<MediaPackageElement> distributedElements = distribute(job, mediapackage, elementId, checkAvailability);
+          // Workflows expect a single element, the derived elements are returned by DistributeDerived
+          return distributedElements.isEmpty() ? null
+                  : MediaPackageElementParser.getAsXml(distributedElements.get(0));
+        case DistributeTracks:
+          List<String> elementIds = new ArrayList<String>();
+          for (String id : elementId.split(",")) {
+            if (id.trim().length() > 0)
+              elementIds.add(id.trim());
+          }
+          List<MediaPackageElement> distributedTracks = distributeTracks(job, mediapackage, elementIds,
+                  Boolean.parseBoolean(arguments.get(2)));
+          return distributedTracks.isEmpty() ? null : MediaPackageElementParser.getArrayAsXml(distributedTracks);
+        case DistributeLive:
+          return MediaPackageElementParser.getAsXml(distributeLive(job, mediapackage, elementId));
+        case DistributeDerived:
+          List<MediaPackageElement> derivedElements = distributeDerived(job, mediapackage, elementId);
+          return derivedElements.isEmpty() ? null : MediaPackageElementParser.getArrayAsXml(derivedElements);
         case Retract:
           MediaPackageElement retractedElement = retract(job, mediapackage, elementId);
           return (retractedElement != null) ? MediaPackageElementParser.getAsXml(retractedElement) : null;
@@ -452,12 +2633,206 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
           throw new IllegalStateException("Don't know how to handle operation '" + operation + "'");
       }
     } catch (IllegalArgumentException e) {
+      success = false;
       throw new ServiceRegistryException("This service can't handle operations of type '" + op + "'", e);
     } catch (IndexOutOfBoundsException e) {
+      success = false;
       throw new ServiceRegistryException("This argument list for operation '" + op + "' does not meet expectations", e);
     } catch (Exception e) {
+      success = false;
+      JobTrace.attribute("error", e.getMessage());
       throw new ServiceRegistryException("Error handling operation '" + op + "'", e);
+    } finally {
+      IOScheduler.setPriority(null);
+      metrics.jobFinished(success);
+      JobTrace.attribute("status", success ? "finished" : "failed");
+      writeTrace(JobTrace.end());
+    }
+  }
+
+  /**
+   * Returns the lane of the I/O scheduler used by a job: the lane the job was created with, or else the bulk lane for
+   * the operations in {@link #bulkOperations} and the interactive lane for all others.
+   *
+   * @param op
+   *          the operation
+   * @param arguments
+   *          the job arguments
+   * @return the lane
+   */
+  private IOScheduler.Priority getPriority(Operation op, List<String> arguments) {
+    if (op == Operation.Distribute && arguments.size() > 3)
+      return IOScheduler.Priority.valueOf(arguments.get(3));
+    return bulkOperations.contains(op.toString()) ? IOScheduler.Priority.BULK : IOScheduler.Priority.INTERACTIVE;
+  }
+
+  /**
+   * Checks the distributed files of a mediapackage against their integrity manifests.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param full
+   *          whether to read every file and compare its digest rather than comparing sizes and modification times
+   * @return the report
+   * @throws NotFoundException
+   *           if nothing of the mediapackage is distributed
+   * @throws IOException
+   *           if a manifest cannot be read
+   */
+  public IntegrityReport verify(String mediaPackageId, boolean full) throws NotFoundException, IOException {
+    File directory = getMediaPackageDirectory(mediaPackageId);
+    File[] elementDirectories = directory.listFiles();
+    if (elementDirectories == null)
+      throw new NotFoundException("Media package " + mediaPackageId + " is not distributed");
+    IntegrityReport report = new IntegrityReport(mediaPackageId, full);
+    for (File elementDirectory : elementDirectories) {
+      if (elementDirectory.isDirectory() && !elementDirectory.getName().startsWith(".")
+              && verify(elementDirectory, elementDirectory.getName() + "/", full, report) == 0)
+        report.addUnverified(elementDirectory.getName());
+    }
+    logger.info("Checked {} files of media package {}: {}", new Object[] { report.getFiles(), mediaPackageId,
+            report.isIntact() ? "intact" : report.getDamaged().size() + " damaged" });
+    return report;
+  }
+
+  /**
+   * Checks the files listed in the manifests found in <code>directory</code> and its subdirectories.
+   *
+   * @return the number of manifests found
+   */
+  private int verify(File directory, String path, boolean full, IntegrityReport report) throws IOException {
+    int manifests = 0;
+    File[] files = directory.listFiles();
+    if (files == null)
+      return 0;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        manifests += verify(file, path + file.getName() + "/", full, report);
+      } else if (IntegrityManifest.isManifest(file)) {
+        IntegrityManifest manifest = IntegrityManifest.read(file);
+        for (Map.Entry<String, String> damage : manifest.verify(directory, full).entrySet())
+          report.addDamage(path + damage.getKey(), damage.getValue());
+        report.addChecked(manifest.getEntries().size());
+        manifests++;
+      }
+    }
+    return manifests;
+  }
+
+  /**
+   * Reconciles the distribution directory with the index, see {@link OrphanSweeper}. Reclaimed paths are retracted
+   * from the replication targets as well.
+   *
+   * @param dryRun
+   *          whether to only report orphans
+   * @return the report
+   * @throws IOException
+   *           if the distribution directory cannot be walked
+   */
+  public SweepReport sweep(boolean dryRun) throws IOException {
+    SweepReport report = sweeper.sweep(dryRun, liveSessions.keySet());
+    if (!dryRun) {
+      for (String path : OrphanSweeper.getDeletedPaths(report))
+        replicate(new File(distributionDirectory, path));
+    }
+    return report;
+  }
+
+  /**
+   * Queues a file or directory below the distribution directory for replication to the peer nodes.
+   *
+   * @param file
+   *          the file or directory that was written or deleted
+   */
+  private void replicate(File file) {
+    if (replicator == null)
+      return;
+    String root = distributionDirectory.getAbsolutePath() + File.separator;
+    String path = file.getAbsolutePath();
+    if (!path.startsWith(root)) {
+      logger.warn("{} is outside of the distribution directory and not replicated", file);
+      return;
     }
+    replicator.sync(path.substring(root.length()).replace(File.separatorChar, '/'));
+  }
+
+  /**
+   * Stores a file replicated from another node. Once the receipt of an element arrives, the element is added to the
+   * index.
+   *
+   * @param path
+   *          the file, relative to the distribution directory
+   * @param in
+   *          the file content
+   * @throws IllegalStateException
+   *           if this node does not accept replicated files
+   * @throws IOException
+   *           if the path is invalid or the file cannot be written
+   */
+  public void receiveReplica(String path, InputStream in) throws IOException {
+    if (!replicaReceiver)
+      throw new IllegalStateException("Replication is not enabled (" + REPLICATION_RECEIVE_KEY + ")");
+    Replicator.receive(distributionDirectory, path, in);
+    String[] parts = path.split("/");
+    if (parts.length == 3 && RECEIPT_FILE.equals(parts[2]))
+      index.put(DistributionIndex.describe(distributionDirectory, parts[0], parts[1], "replica"));
+  }
+
+  /**
+   * Deletes a file or directory removed on another node. Deleted elements are removed from the index.
+   *
+   * @param path
+   *          the file or directory, relative to the distribution directory
+   * @throws IllegalStateException
+   *           if this node does not accept replicated files
+   * @throws IOException
+   *           if the path is invalid or cannot be deleted
+   */
+  public void removeReplica(String path) throws IOException {
+    if (!replicaReceiver)
+      throw new IllegalStateException("Replication is not enabled (" + REPLICATION_RECEIVE_KEY + ")");
+    Replicator.remove(distributionDirectory, path, io);
+    String[] parts = path.split("/");
+    if (parts.length == 2)
+      index.remove(parts[0], parts[1]);
+  }
+
+  /**
+   * Returns the directory the elements are distributed to.
+   *
+   * @return the distribution directory
+   */
+  public File getDistributionDirectory() {
+    return distributionDirectory;
+  }
+
+  /**
+   * Returns the directory the segment keys are written to.
+   *
+   * @return the key directory, or <code>null</code> if segments are not encrypted
+   */
+  public File getKeyDirectory() {
+    return encryption != null ? encryption.getKeyDirectory() : null;
+  }
+
+  /**
+   * Returns the index of distributed elements.
+   *
+   * @return the index
+   */
+  public DistributionIndex getIndex() {
+    return index;
+  }
+
+  /**
+   * Replaces the index of distributed elements with the contents of the distribution directory.
+   *
+   * @return the number of distributed elements found
+   * @throws IOException
+   *           if the index cannot be written
+   */
+  public int rebuildIndex() throws IOException {
+    return index.rebuild(distributionDirectory);
   }
 
   /**
@@ -488,7 +2863,9 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
    * @return The file to copy the content to
    */
   protected File getDistributedFile(MediaPackage mediaPackage, MediaPackageElement element) {
-    String elementUid = element.getReference().getIdentifier();
+    // Original elements refer to nothing and are distributed below their own identifier
+    String elementUid = element.getReference() == null ? element.getIdentifier()
+            : element.getReference().getIdentifier();
 
     String directoryName = distributionDirectory.getAbsolutePath();
     String distributedFileName = PathSupport.concat(new String[] { directoryName,
@@ -508,9 +2885,26 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
    *           if the concrete implementation tries to create a malformed uri
    */
   protected URI getDistributionUri(String mediaPackageId, MediaPackageElement element) throws URISyntaxException {
-    String elementId = element.getIdentifier();
     String fileName = FilenameUtils.getName(element.getURI().toString()) + ".m3u8";
-    String destinationURI = UrlSupport.concat(serviceUrl, mediaPackageId, elementId, fileName);
+    return getDistributionUri(mediaPackageId, element, fileName);
+  }
+
+  /**
+   * Gets the URI of a file distributed next to the element's playlist.
+   *
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   * @param element
+   *          The mediapackage element being distributed
+   * @param fileName
+   *          the name of the distributed file
+   * @return The resulting URI after distribution
+   * @throws URISyntaxException
+   *           if the concrete implementation tries to create a malformed uri
+   */
+  protected URI getDistributionUri(String mediaPackageId, MediaPackageElement element, String fileName)
+          throws URISyntaxException {
+    String destinationURI = UrlSupport.concat(serviceUrl, mediaPackageId, element.getIdentifier(), fileName);
     return new URI(destinationURI);
   }
 
@@ -536,8 +2930,9 @@ public class HLSDistributionServiceImpl extends AbstractJobProducer implements D
        return false;
     } else if (!track.getVideo().isEmpty() && !Arrays.asList("H.264", "AVC").contains(track.getVideo().get(0).getFormat())) {
        return false;
-    } else if (!track.getAudio().isEmpty() && !track.getAudio().get(0).getFormat().equals("AAC")) {
-       return false;
+    } else if (!track.getAudio().isEmpty() && !track.getAudio().get(0).getFormat().equals(AAC)) {
+       // The separate audio rendition of a video track is transcoded to AAC once, so any audio format will do
+       return (separateAudio || dash) && !track.getVideo().isEmpty();
     }
     return true;
   }
@@ -0,0 +1,131 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A transcoded rendition that is published as an additional variant stream next to the segmented source. Renditions
+ * are configured as a comma separated list of <code>name:WIDTHxHEIGHT:KBPS</code> entries, e.g.
+ * <code>720p:1280x720:2500,480p:854x480:1000</code>.
+ */
+public class HLSRendition {
+
+  /** The rendition name, used in file names */
+  private final String name;
+
+  /** Frame width in pixels */
+  private final int width;
+
+  /** Frame height in pixels */
+  private final int height;
+
+  /** Video bitrate in kbit/s */
+  private final int videoBitrate;
+
+  public HLSRendition(String name, int width, int height, int videoBitrate) {
+    if (name == null || !name.matches("[A-Za-z0-9_]+"))
+      throw new IllegalArgumentException("Rendition name must be alphanumeric: " + name);
+    if ("source".equals(name) || "audio".equals(name))
+      throw new IllegalArgumentException("Rendition name is reserved: " + name);
+    if (width < 2 || height < 2 || videoBitrate < 1)
+      throw new IllegalArgumentException("Invalid size or bitrate for rendition " + name);
+    this.name = name;
+    this.width = width - width % 2;
+    this.height = height - height % 2;
+    this.videoBitrate = videoBitrate;
+  }
+
+  /**
+   * Parses a rendition list.
+   *
+   * @param renditions
+   *          the configuration value, may be <code>null</code>
+   * @return the renditions, in configuration order
+   * @throws IllegalArgumentException
+   *           if an entry is malformed
+   */
+  public static List<HLSRendition> parse(String renditions) {
+    List<HLSRendition> result = new ArrayList<HLSRendition>();
+    if (renditions == null)
+      return result;
+    for (String entry : renditions.split(",")) {
+      entry = entry.trim();
+      if (entry.length() == 0)
+        continue;
+      String[] parts = entry.split(":");
+      String[] size = parts.length == 3 ? parts[1].split("x") : new String[0];
+      if (size.length != 2)
+        throw new IllegalArgumentException("Rendition must be given as name:WIDTHxHEIGHT:KBPS: " + entry);
+      try {
+        result.add(new HLSRendition(parts[0].trim(), Integer.parseInt(size[0].trim()),
+                Integer.parseInt(size[1].trim()), Integer.parseInt(parts[2].trim())));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Rendition must be given as name:WIDTHxHEIGHT:KBPS: " + entry);
+      }
+    }
+    return result;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getVideoBitrate() {
+    return videoBitrate;
+  }
+
+  /**
+   * Returns the name suffix of this rendition's playlist and segments.
+   */
+  public String getSuffix() {
+    return "-" + name;
+  }
+
+  /**
+   * Returns the ffmpeg output options encoding and segmenting this rendition into <code>#{out.dir}</code>. Key frames
+   * are forced at every segment boundary so that segments start with an I-frame.
+   *
+   * @param withAudio
+   *          whether to mux the audio of the source into the rendition
+   * @param muxer
+   *          the segment duration, segment format, input and first segment number of the rendition
+   */
+  public String getOutputOptions(boolean withAudio, FFmpegHLSEncoderEngine.MuxerOptions muxer) {
+    int input = muxer.getInput();
+    int segmentDuration = muxer.getSegmentDuration();
+    return "-map " + input + ":v:0" + (withAudio ? " -map " + input + ":a:0?" : "") + " -vf scale=" + width + ":" + height + " -c:v libx264 -preset veryfast -b:v "
+            + videoBitrate + "k -maxrate " + videoBitrate + "k -bufsize " + 2 * videoBitrate + "k"
+            + " -force_key_frames expr:gte(t,n_forced*" + segmentDuration + ")" + (withAudio ? " -c:a copy" : " -an")
+            + " " + FFmpegHLSEncoderEngine.getMuxerOptions(getSuffix(), muxer);
+  }
+
+  @Override
+  public String toString() {
+    return name + ":" + width + "x" + height + ":" + videoBitrate;
+  }
+
+}
@@ -0,0 +1,98 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+/**
+ * A variant stream as it is referenced from a master playlist.
+ */
+public class HLSVariant {
+
+  /** The media playlist URI, relative to the master playlist */
+  private String uri;
+
+  /** Peak bandwidth in bits per second */
+  private long bandwidth;
+
+  /** Average bandwidth in bits per second */
+  private long averageBandwidth;
+
+  /** Duration in seconds */
+  private double duration;
+
+  /** The video resolution as WIDTHxHEIGHT, or <code>null</code> for audio only variants */
+  private String resolution;
+
+  /** The I-frame playlist URI, relative to the master playlist, or <code>null</code> */
+  private String iFrameUri;
+
+  /** Peak bandwidth of the I-frame stream in bits per second */
+  private long iFrameBandwidth;
+
+  public HLSVariant(String uri) {
+    this.uri = uri;
+  }
+
+  public String getUri() {
+    return uri;
+  }
+
+  public long getBandwidth() {
+    return bandwidth;
+  }
+
+  public void setBandwidth(long bandwidth) {
+    this.bandwidth = bandwidth;
+  }
+
+  public long getAverageBandwidth() {
+    return averageBandwidth;
+  }
+
+  public void setAverageBandwidth(long averageBandwidth) {
+    this.averageBandwidth = averageBandwidth;
+  }
+
+  public double getDuration() {
+    return duration;
+  }
+
+  public void setDuration(double duration) {
+    this.duration = duration;
+  }
+
+  public String getResolution() {
+    return resolution;
+  }
+
+  public void setResolution(String resolution) {
+    this.resolution = resolution;
+  }
+
+  public String getIFrameUri() {
+    return iFrameUri;
+  }
+
+  public long getIFrameBandwidth() {
+    return iFrameBandwidth;
+  }
+
+  public void setIFrameStream(String iFrameUri, long iFrameBandwidth) {
+    this.iFrameUri = iFrameUri;
+    this.iFrameBandwidth = iFrameBandwidth;
+  }
+
+}
@@ -0,0 +1,451 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Node wide scheduler for the file system work of the distribution service. Publishing (moving, copying and encrypting
+ * segments) and reclaiming (deleting retracted elements) each get their own budget of bytes and operations per second,
+ * so that a burst of retractions cannot starve publishing and vice versa. Within each budget, work of interactive jobs
+ * is served before bulk work.
+ * <p>
+ * Budgets are token buckets holding at most one second worth of tokens. A request larger than that waits for a full
+ * bucket and then leaves it in debt, so large files are throttled without being starved.
+ */
+public class IOScheduler implements IOSchedulerMXBean {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(IOScheduler.class);
+
+  /** The kind of file system work */
+  public enum Traffic {
+    PUBLISH, RECLAIM
+  }
+
+  /** The priority lane of a request */
+  public enum Priority {
+    INTERACTIVE, BULK
+  }
+
+  /** Bytes per megabyte */
+  public static final long MB = 1024L * 1024L;
+
+  /** Number of bytes copied per request to the scheduler */
+  private static final int CHUNK_SIZE = (int) MB;
+
+  /** The priority of the work done by the current thread */
+  private static final ThreadLocal<Priority> priority = new ThreadLocal<Priority>();
+
+  /** The publishing budget */
+  private final Budget publish;
+
+  /** The reclaiming budget */
+  private final Budget reclaim;
+
+  /**
+   * Creates a scheduler without any limits.
+   */
+  public IOScheduler() {
+    this(0, 0, 0, 0);
+  }
+
+  /**
+   * Creates a scheduler with the given budgets. A budget of 0 is unlimited.
+   *
+   * @param publishBytes
+   *          bytes per second for publishing
+   * @param publishOperations
+   *          file operations per second for publishing
+   * @param reclaimBytes
+   *          bytes per second for reclaiming
+   * @param reclaimOperations
+   *          file operations per second for reclaiming
+   */
+  public IOScheduler(long publishBytes, int publishOperations, long reclaimBytes, int reclaimOperations) {
+    if (publishBytes < 0 || publishOperations < 0 || reclaimBytes < 0 || reclaimOperations < 0)
+      throw new IllegalArgumentException("I/O budgets must not be negative");
+    this.publish = new Budget(publishBytes, publishOperations);
+    this.reclaim = new Budget(reclaimBytes, reclaimOperations);
+  }
+
+  /**
+   * Sets the priority of the work done by the current thread.
+   *
+   * @param p
+   *          the priority, or <code>null</code> to reset it to {@link Priority#BULK}
+   */
+  public static void setPriority(Priority p) {
+    if (p == null)
+      priority.remove();
+    else
+      priority.set(p);
+  }
+
+  /**
+   * Returns the priority of the work done by the current thread.
+   *
+   * @return the priority, {@link Priority#BULK} unless set otherwise
+   */
+  public static Priority getPriority() {
+    Priority p = priority.get();
+    return p == null ? Priority.BULK : p;
+  }
+
+  /**
+   * Waits until <code>bytes</code> and <code>operations</code> are available in the budget of <code>traffic</code>,
+   * using the priority of the current thread.
+   *
+   * @throws InterruptedIOException
+   *           if the thread is interrupted while waiting
+   */
+  public void acquire(Traffic traffic, long bytes, int operations) throws InterruptedIOException {
+    acquire(traffic, getPriority(), bytes, operations);
+  }
+
+  /**
+   * Waits until <code>bytes</code> and <code>operations</code> are available in the budget of <code>traffic</code>.
+   *
+   * @param traffic
+   *          the kind of work
+   * @param p
+   *          the priority lane
+   * @param bytes
+   *          the number of bytes to read or write
+   * @param operations
+   *          the number of file operations
+   * @throws InterruptedIOException
+   *           if the thread is interrupted while waiting
+   */
+  public void acquire(Traffic traffic, Priority p, long bytes, int operations) throws InterruptedIOException {
+    try {
+      getBudget(traffic).acquire(bytes, operations, p);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for the " + traffic + " I/O budget");
+    }
+  }
+
+  /**
+   * Moves a file. If it cannot be renamed, for example because the target is on a different file system, it is copied
+   * and the source is deleted.
+   *
+   * @param source
+   *          the file to move
+   * @param target
+   *          the new location
+   * @param traffic
+   *          the budget to charge
+   * @throws IOException
+   *           if the file cannot be moved
+   */
+  public void move(File source, File target, Traffic traffic) throws IOException {
+    move(source, target, traffic, null);
+  }
+
+  /**
+   * Same as {@link #move(File, File, Traffic)}, but feeds the bytes of the file to <code>digest</code>. If the file
+   * has to be copied, the digest is computed from the copied bytes. A renamed file is read once, which is cheap right
+   * after it has been written.
+   *
+   * @param digest
+   *          the digest to update, or <code>null</code>
+   */
+  public void move(File source, File target, Traffic traffic, MessageDigest digest) throws IOException {
+    acquire(traffic, 0, 1);
+    if (source.renameTo(target)) {
+      if (digest != null)
+        update(digest, target, traffic);
+      return;
+    }
+    logger.debug("Unable to rename {}, copying it to {}", source, target);
+    copy(source, target, traffic, digest);
+    acquire(traffic, 0, 1);
+    if (!source.delete())
+      throw new IOException("Could not delete " + source + " after copying it to " + target);
+  }
+
+  /**
+   * Copies a file in chunks, charging every chunk to the budget.
+   *
+   * @param source
+   *          the file to copy
+   * @param target
+   *          the file to write
+   * @param traffic
+   *          the budget to charge
+   * @throws IOException
+   *           if the file cannot be copied
+   */
+  public void copy(File source, File target, Traffic traffic) throws IOException {
+    copy(source, target, traffic, null);
+  }
+
+  /**
+   * Same as {@link #copy(File, File, Traffic)}, but feeds the copied bytes to <code>digest</code>. The bytes then pass
+   * through the heap rather than being transferred by the file system.
+   *
+   * @param digest
+   *          the digest to update, or <code>null</code>
+   */
+  public void copy(File source, File target, Traffic traffic, MessageDigest digest) throws IOException {
+    FileInputStream in = new FileInputStream(source);
+    try {
+      FileOutputStream out = new FileOutputStream(target);
+      try {
+        FileChannel from = in.getChannel();
+        FileChannel to = out.getChannel();
+        long size = from.size();
+        long position = 0;
+        ByteBuffer buffer = digest != null ? ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, size)) : null;
+        while (position < size) {
+          long chunk = Math.min(CHUNK_SIZE, size - position);
+          acquire(traffic, chunk, 1);
+          if (buffer == null) {
+            position += from.transferTo(position, chunk, to);
+            continue;
+          }
+          buffer.clear();
+          int n = from.read(buffer);
+          if (n < 0)
+            break;
+          digest.update(buffer.array(), 0, n);
+          buffer.flip();
+          while (buffer.hasRemaining())
+            to.write(buffer);
+          position += n;
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    if (target.length() != source.length())
+      throw new IOException("Incomplete copy of " + source + " to " + target);
+  }
+
+  /**
+   * Feeds the bytes of a file to a digest.
+   */
+  private void update(MessageDigest digest, File file, Traffic traffic) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, Math.max(1, channel.size())));
+      int n;
+      while ((n = channel.read(buffer)) >= 0) {
+        acquire(traffic, n, 0);
+        digest.update(buffer.array(), 0, n);
+        buffer.clear();
+      }
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Deletes a file or a directory with all its contents. Every file is charged with its size and one operation.
+   *
+   * @param file
+   *          the file or directory
+   * @param traffic
+   *          the budget to charge
+   * @throws IOException
+   *           if a file cannot be deleted
+   */
+  public void delete(File file, Traffic traffic) throws IOException {
+    File[] children = file.listFiles();
+    if (children != null) {
+      for (File child : children)
+        delete(child, traffic);
+    }
+    acquire(traffic, file.isFile() ? file.length() : 0, 1);
+    if (!file.delete() && file.exists())
+      throw new IOException("Could not delete " + file);
+  }
+
+  /**
+   * Returns the number of requests waiting for a budget.
+   *
+   * @param traffic
+   *          the kind of work
+   * @return the number of waiting requests
+   */
+  public int getQueueDepth(Traffic traffic) {
+    return getBudget(traffic).getWaiting();
+  }
+
+  @Override
+  public int getQueueDepth() {
+    return publish.getWaiting() + reclaim.getWaiting();
+  }
+
+  @Override
+  public int getPublishQueueDepth() {
+    return publish.getWaiting();
+  }
+
+  @Override
+  public int getReclaimQueueDepth() {
+    return reclaim.getWaiting();
+  }
+
+  @Override
+  public long getPublishBytes() {
+    return publish.bytesTotal.get();
+  }
+
+  @Override
+  public long getPublishOperations() {
+    return publish.operationsTotal.get();
+  }
+
+  @Override
+  public long getReclaimBytes() {
+    return reclaim.bytesTotal.get();
+  }
+
+  @Override
+  public long getReclaimOperations() {
+    return reclaim.operationsTotal.get();
+  }
+
+  private Budget getBudget(Traffic traffic) {
+    return traffic == Traffic.RECLAIM ? reclaim : publish;
+  }
+
+  /**
+   * A token bucket refilled at a constant rate and holding at most one second worth of tokens.
+   */
+  private static final class Bucket {
+
+    /** Tokens per second, 0 if unlimited */
+    private final long rate;
+
+    /** Available tokens, negative while in debt */
+    private double tokens;
+
+    Bucket(long rate) {
+      this.rate = rate;
+      this.tokens = rate;
+    }
+
+    void refill(long nanos) {
+      if (rate > 0)
+        tokens = Math.min(rate, tokens + nanos * (double) rate / 1000000000L);
+    }
+
+    /** Returns the millis to wait until <code>amount</code> tokens may be taken */
+    long getDelay(long amount) {
+      double needed = Math.min(amount, rate);
+      if (rate == 0 || tokens >= needed)
+        return 0;
+      return Math.max(1L, (long) Math.ceil((needed - tokens) * 1000 / rate));
+    }
+
+    void take(long amount) {
+      if (rate > 0)
+        tokens -= amount;
+    }
+
+  }
+
+  /**
+   * The byte and operation buckets of one kind of work, with the bookkeeping of the priority lanes.
+   */
+  private static final class Budget {
+
+    private final Bucket bytes;
+
+    private final Bucket operations;
+
+    /** Time of the last refill */
+    private long refilled = System.nanoTime();
+
+    /** Number of interactive requests waiting */
+    private int interactiveWaiting = 0;
+
+    /** Number of bulk requests waiting */
+    private int bulkWaiting = 0;
+
+    private final AtomicLong bytesTotal = new AtomicLong();
+
+    private final AtomicLong operationsTotal = new AtomicLong();
+
+    Budget(long bytesPerSecond, int operationsPerSecond) {
+      this.bytes = new Bucket(bytesPerSecond);
+      this.operations = new Bucket(operationsPerSecond);
+    }
+
+    synchronized void acquire(long requestBytes, int requestOperations, Priority p) throws InterruptedException {
+      bytesTotal.addAndGet(requestBytes);
+      operationsTotal.addAndGet(requestOperations);
+      if (bytes.rate == 0 && operations.rate == 0)
+        return;
+      boolean interactive = p == Priority.INTERACTIVE;
+      if (interactive)
+        interactiveWaiting++;
+      else
+        bulkWaiting++;
+      try {
+        while (true) {
+          long now = System.nanoTime();
+          bytes.refill(now - refilled);
+          operations.refill(now - refilled);
+          refilled = now;
+          if (!interactive && interactiveWaiting > 0) {
+            // Bulk work is woken up once the interactive requests are served
+            wait();
+            continue;
+          }
+          long delay = Math.max(bytes.getDelay(requestBytes), operations.getDelay(requestOperations));
+          if (delay == 0) {
+            bytes.take(requestBytes);
+            operations.take(requestOperations);
+            return;
+          }
+          wait(delay);
+        }
+      } finally {
+        if (interactive)
+          interactiveWaiting--;
+        else
+          bulkWaiting--;
+        notifyAll();
+      }
+    }
+
+    synchronized int getWaiting() {
+      return interactiveWaiting + bulkWaiting;
+    }
+
+  }
+
+}
@@ -0,0 +1,46 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+/**
+ * Management interface of the {@link IOScheduler}.
+ */
+public interface IOSchedulerMXBean {
+
+  /** Returns the number of requests waiting for any budget */
+  int getQueueDepth();
+
+  /** Returns the number of requests waiting for the publishing budget */
+  int getPublishQueueDepth();
+
+  /** Returns the number of requests waiting for the reclaiming budget */
+  int getReclaimQueueDepth();
+
+  /** Returns the number of bytes charged to the publishing budget */
+  long getPublishBytes();
+
+  /** Returns the number of file operations charged to the publishing budget */
+  long getPublishOperations();
+
+  /** Returns the number of bytes charged to the reclaiming budget */
+  long getReclaimBytes();
+
+  /** Returns the number of file operations charged to the reclaiming budget */
+  long getReclaimOperations();
+
+}
@@ -0,0 +1,289 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records size, modification time, digest and duration of every file of a media playlist, so a distributed element
+ * can be checked for damage without its source. The digests are computed while the files are published.
+ * <p>
+ * The manifest is a text file next to the playlist, with one line per file: size, modification time in millis, MD5
+ * digest, duration in seconds and the file name relative to the manifest, separated by single spaces.
+ */
+public class IntegrityManifest {
+
+  /** The digest algorithm */
+  public static final String ALGORITHM = "MD5";
+
+  /** Extension of manifest files */
+  public static final String EXTENSION = ".integrity";
+
+  /** The manifest encoding */
+  private static final String ENCODING = "UTF-8";
+
+  /** First line of every manifest */
+  private static final String HEADER = "# size mtime md5 duration file";
+
+  /** Size of the read buffer */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The entries, in playlist order */
+  private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>();
+
+  /**
+   * Returns the manifest file of a playlist. Its name starts with a dot, so it is not served.
+   *
+   * @param playlist
+   *          the media playlist
+   * @return the manifest file
+   */
+  public static File getFile(File playlist) {
+    return new File(playlist.getParentFile(), "." + playlist.getName() + EXTENSION);
+  }
+
+  /**
+   * Returns whether <code>file</code> is a manifest.
+   */
+  public static boolean isManifest(File file) {
+    return file.getName().startsWith(".") && file.getName().endsWith(EXTENSION);
+  }
+
+  /**
+   * Returns a new digest to feed the bytes of a file to.
+   */
+  public static MessageDigest newDigest() {
+    try {
+      return MessageDigest.getInstance(ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException(ALGORITHM + " is not supported by this runtime", e);
+    }
+  }
+
+  /**
+   * Reads a file and returns its digest.
+   *
+   * @param file
+   *          the file
+   * @return the hex encoded digest
+   */
+  public static String digest(File file) throws IOException {
+    MessageDigest digest = newDigest();
+    InputStream in = new FileInputStream(file);
+    try {
+      byte[] buffer = new byte[BUFFER_SIZE];
+      int n;
+      while ((n = in.read(buffer)) >= 0)
+        digest.update(buffer, 0, n);
+    } finally {
+      in.close();
+    }
+    return toHex(digest.digest());
+  }
+
+  /**
+   * Returns the hex encoding of a digest.
+   */
+  public static String toHex(byte[] digest) {
+    StringBuilder hex = new StringBuilder(digest.length * 2);
+    for (byte b : digest) {
+      hex.append(Character.forDigit((b >> 4) & 0x0F, 16));
+      hex.append(Character.forDigit(b & 0x0F, 16));
+    }
+    return hex.toString();
+  }
+
+  /**
+   * Adds a file with its current size and modification time. Adding a file again adds to its duration, as byte range
+   * segments share one file.
+   *
+   * @param name
+   *          the file name, relative to the manifest
+   * @param file
+   *          the file
+   * @param digest
+   *          the hex encoded digest
+   * @param duration
+   *          the duration in seconds, 0 for files without media time
+   */
+  public void add(String name, File file, String digest, double duration) {
+    Entry entry = entries.get(name);
+    if (entry != null) {
+      entry.duration += duration;
+      return;
+    }
+    entries.put(name, new Entry(name, file.length(), file.lastModified(), digest, duration));
+  }
+
+  public List<Entry> getEntries() {
+    return new ArrayList<Entry>(entries.values());
+  }
+
+  /**
+   * Writes the manifest, replacing an existing one atomically.
+   *
+   * @param file
+   *          the manifest file
+   */
+  public void write(File file) throws IOException {
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), ENCODING);
+    try {
+      writer.write(HEADER);
+      writer.write('\n');
+      for (Entry entry : entries.values()) {
+        writer.write(entry.size + " " + entry.lastModified + " " + entry.digest + " " + entry.duration + " "
+                + entry.name);
+        writer.write('\n');
+      }
+    } finally {
+      writer.close();
+    }
+    if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+      FileUtils.deleteQuietly(temporary);
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  /**
+   * Reads a manifest.
+   *
+   * @param file
+   *          the manifest file
+   * @return the manifest
+   * @throws IOException
+   *           if the file cannot be read or is not a manifest
+   */
+  public static IntegrityManifest read(File file) throws IOException {
+    IntegrityManifest manifest = new IntegrityManifest();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+    try {
+      int lineNumber = 0;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lineNumber++;
+        if (line.startsWith("#") || line.trim().length() == 0)
+          continue;
+        String[] fields = line.split(" ", 5);
+        if (fields.length < 5)
+          throw new IOException("Invalid entry in line " + lineNumber + " of " + file);
+        try {
+          Entry entry = new Entry(fields[4], Long.parseLong(fields[0]), Long.parseLong(fields[1]), fields[2],
+                  Double.parseDouble(fields[3]));
+          manifest.entries.put(entry.name, entry);
+        } catch (NumberFormatException e) {
+          throw new IOException("Invalid entry in line " + lineNumber + " of " + file);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    return manifest;
+  }
+
+  /**
+   * Checks the files of the manifest. The quick check compares sizes and modification times only. The full check
+   * reads every file and compares its digest instead of its modification time, so it also finds damage that left the
+   * file attributes alone, and accepts files whose modification time was changed by copying them.
+   *
+   * @param directory
+   *          the directory the file names are relative to
+   * @param full
+   *          whether to compare digests
+   * @return the damaged files, mapped to a description of the damage
+   */
+  public Map<String, String> verify(File directory, boolean full) throws IOException {
+    Map<String, String> damaged = new LinkedHashMap<String, String>();
+    for (Entry entry : entries.values()) {
+      File file = new File(directory, entry.name);
+      if (!file.isFile()) {
+        damaged.put(entry.name, "missing");
+      } else if (file.length() != entry.size) {
+        damaged.put(entry.name, "size is " + file.length() + " instead of " + entry.size);
+      } else if (full) {
+        String digest = digest(file);
+        if (!digest.equals(entry.digest))
+          damaged.put(entry.name, ALGORITHM + " is " + digest + " instead of " + entry.digest);
+      } else if (file.lastModified() != entry.lastModified) {
+        damaged.put(entry.name, "modified since it was published");
+      }
+    }
+    return damaged;
+  }
+
+  /**
+   * A file recorded in the manifest.
+   */
+  public static final class Entry {
+
+    private final String name;
+
+    private final long size;
+
+    private final long lastModified;
+
+    private final String digest;
+
+    private double duration;
+
+    Entry(String name, long size, long lastModified, String digest, double duration) {
+      this.name = name;
+      this.size = size;
+      this.lastModified = lastModified;
+      this.digest = digest;
+      this.duration = duration;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public String getDigest() {
+      return digest;
+    }
+
+    public double getDuration() {
+      return duration;
+    }
+
+  }
+
+}
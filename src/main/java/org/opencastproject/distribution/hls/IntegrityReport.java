@@ -0,0 +1,160 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+import javax.xml.bind.annotation.XmlValue;
+
+/**
+ * The result of checking the distributed files of a mediapackage against their {@link IntegrityManifest}s.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "integrity", namespace = "http://distribution.opencastproject.org")
+@XmlRootElement(name = "integrity", namespace = "http://distribution.opencastproject.org")
+public class IntegrityReport {
+
+  /** The mediapackage identifier */
+  @XmlAttribute(name = "mediapackage")
+  private String mediaPackageId;
+
+  /** Whether digests were compared */
+  @XmlAttribute(name = "full")
+  private boolean full;
+
+  /** Number of files checked */
+  @XmlAttribute(name = "files")
+  private int files;
+
+  /** Whether no damage was found */
+  @XmlAttribute(name = "intact")
+  private boolean intact = true;
+
+  /** Damaged files */
+  @XmlElement(name = "damaged", namespace = "http://distribution.opencastproject.org")
+  private List<Damage> damaged = new ArrayList<Damage>();
+
+  /** Element directories without a manifest, relative to the mediapackage directory */
+  @XmlElement(name = "unverified", namespace = "http://distribution.opencastproject.org")
+  private List<String> unverified = new ArrayList<String>();
+
+  /** Needed by JAXB */
+  public IntegrityReport() {
+  }
+
+  public IntegrityReport(String mediaPackageId, boolean full) {
+    this.mediaPackageId = mediaPackageId;
+    this.full = full;
+  }
+
+  /**
+   * Adds the number of files checked.
+   */
+  public void addChecked(int count) {
+    files += count;
+  }
+
+  /**
+   * Records a damaged file.
+   *
+   * @param path
+   *          the file, relative to the mediapackage directory
+   * @param reason
+   *          a description of the damage
+   */
+  public void addDamage(String path, String reason) {
+    damaged.add(new Damage(path, reason));
+    intact = false;
+  }
+
+  /**
+   * Records an element directory that cannot be checked as it has no manifest.
+   *
+   * @param path
+   *          the directory, relative to the mediapackage directory
+   */
+  public void addUnverified(String path) {
+    unverified.add(path);
+  }
+
+  public String getMediaPackageId() {
+    return mediaPackageId;
+  }
+
+  public boolean isFull() {
+    return full;
+  }
+
+  public int getFiles() {
+    return files;
+  }
+
+  public boolean isIntact() {
+    return intact;
+  }
+
+  public List<Damage> getDamaged() {
+    return damaged;
+  }
+
+  public List<String> getUnverified() {
+    return unverified;
+  }
+
+  /**
+   * A damaged file.
+   */
+  @XmlAccessorType(XmlAccessType.FIELD)
+  @XmlType(name = "damage", namespace = "http://distribution.opencastproject.org")
+  public static class Damage {
+
+    /** The file, relative to the mediapackage directory */
+    @XmlAttribute(name = "path")
+    private String path;
+
+    /** Description of the damage */
+    @XmlValue
+    private String reason;
+
+    /** Needed by JAXB */
+    public Damage() {
+    }
+
+    public Damage(String path, String reason) {
+      this.path = path;
+      this.reason = reason;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public String getReason() {
+      return reason;
+    }
+
+  }
+
+}
@@ -0,0 +1,284 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.job.api.Job;
+import org.opencastproject.serviceregistry.api.ServiceRegistry;
+import org.opencastproject.serviceregistry.api.ServiceRegistryException;
+import org.opencastproject.util.NotFoundException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Publishes the state transitions of distribution jobs to clients waiting for them, so that they do not have to poll
+ * the job endpoint.
+ * <p>
+ * Jobs created or processed by this node report their transitions, the phases they complete and their payload as they
+ * happen. The states of other jobs a client waits for are read from the service registry, at most once per poll
+ * interval no matter how many clients wait for them. Only jobs created or processed by this node can be looked up by
+ * their mediapackage.
+ */
+public class JobEvents {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(JobEvents.class);
+
+  /** Number of job states kept in memory */
+  public static final int CAPACITY = 10000;
+
+  /** The service registry, or <code>null</code> to only publish the jobs of this node */
+  private final ServiceRegistry serviceRegistry;
+
+  /** Minimum time between two service registry lookups of the same job in milliseconds */
+  private final long pollInterval;
+
+  /** The sequence number of the last change */
+  private long sequence = 0;
+
+  /** The job states in the order of their last change */
+  private final Map<Long, JobState> states = new BoundedMap<JobState>();
+
+  /** The time of the last service registry lookup by job */
+  private final Map<Long, Long> polled = new BoundedMap<Long>();
+
+  /**
+   * Creates the job events.
+   *
+   * @param serviceRegistry
+   *          the service registry to read the state of other jobs from, or <code>null</code>
+   * @param pollInterval
+   *          the minimum time between two lookups of the same job in milliseconds
+   */
+  public JobEvents(ServiceRegistry serviceRegistry, long pollInterval) {
+    if (pollInterval <= 0)
+      throw new IllegalArgumentException("Poll interval must be positive");
+    this.serviceRegistry = serviceRegistry;
+    this.pollInterval = pollInterval;
+  }
+
+  /**
+   * Returns whether a job in <code>status</code> will not change anymore.
+   */
+  public static boolean isTerminal(Job.Status status) {
+    return status == Job.Status.FINISHED || status == Job.Status.FAILED || status == Job.Status.CANCELED
+            || status == Job.Status.DELETED;
+  }
+
+  /**
+   * Records the status of a job. The state only changes if the status or the payload differ from the known state.
+   * Terminal states are kept, since the service registry may still report the previous status of a job that this node
+   * has just finished.
+   *
+   * @param jobId
+   *          the job identifier
+   * @param operation
+   *          the job operation, or <code>null</code> to keep the known one
+   * @param mediaPackageId
+   *          the mediapackage identifier, or <code>null</code> to keep the known one
+   * @param status
+   *          the job status
+   * @param payload
+   *          the job payload, or <code>null</code> to keep the known one
+   */
+  public synchronized void update(long jobId, String operation, String mediaPackageId, Job.Status status,
+          String payload) {
+    JobState previous = states.get(jobId);
+    String phase = null;
+    if (previous != null) {
+      Job.Status previousStatus = Job.Status.valueOf(previous.getStatus());
+      if (isTerminal(previousStatus) && !isTerminal(status))
+        return;
+      if (payload == null)
+        payload = previous.getPayload();
+      if (status == previousStatus && (payload == null || payload.equals(previous.getPayload())))
+        return;
+      if (operation == null)
+        operation = previous.getOperation();
+      if (mediaPackageId == null)
+        mediaPackageId = previous.getMediaPackageId();
+      phase = previous.getPhase();
+    }
+    put(new JobState(jobId, ++sequence, operation, status.toString(), mediaPackageId, phase, payload));
+  }
+
+  /**
+   * Records a job created by this node. If the job has already reported its state, only its mediapackage is added.
+   *
+   * @param job
+   *          the job as returned by the service registry
+   * @param mediaPackageId
+   *          the mediapackage identifier
+   */
+  public synchronized void created(Job job, String mediaPackageId) {
+    JobState previous = states.get(job.getId());
+    if (previous == null) {
+      put(new JobState(job.getId(), ++sequence, job.getOperation(), job.getStatus().toString(), mediaPackageId, null,
+              null));
+    } else if (previous.getMediaPackageId() == null) {
+      put(new JobState(job.getId(), ++sequence, previous.getOperation(), previous.getStatus(), mediaPackageId,
+              previous.getPhase(), previous.getPayload()));
+    }
+  }
+
+  /**
+   * Records the state of a job read from the service registry.
+   *
+   * @param job
+   *          the job
+   */
+  public void update(Job job) {
+    update(job.getId(), job.getOperation(), null, job.getStatus(), job.getPayload());
+  }
+
+  /**
+   * Records that a running job has completed a phase.
+   *
+   * @param jobId
+   *          the job identifier
+   * @param phase
+   *          the phase
+   */
+  public synchronized void progress(long jobId, String phase) {
+    JobState previous = states.get(jobId);
+    if (previous == null || isTerminal(Job.Status.valueOf(previous.getStatus())) || phase.equals(previous.getPhase()))
+      return;
+    put(new JobState(jobId, ++sequence, previous.getOperation(), previous.getStatus(), previous.getMediaPackageId(),
+            phase, previous.getPayload()));
+  }
+
+  private void put(JobState state) {
+    // Move the job to the end, so that the states that have not changed for the longest time are dropped first
+    states.remove(state.getJobId());
+    states.put(state.getJobId(), state);
+    notifyAll();
+  }
+
+  /**
+   * Returns the changes after <code>since</code> to the given jobs and to the jobs of the given mediapackage. If there
+   * are none, waits until there are or until <code>timeout</code> has passed.
+   *
+   * @param jobIds
+   *          the jobs
+   * @param mediaPackageId
+   *          the mediapackage identifier, or <code>null</code>
+   * @param since
+   *          the sequence number of the last change the caller knows, 0 for the current states
+   * @param timeout
+   *          the maximum time to wait in milliseconds
+   * @return the changed states, empty if the timeout has passed
+   * @throws InterruptedException
+   *           if the thread is interrupted while waiting
+   */
+  public JobStateList await(Collection<Long> jobIds, String mediaPackageId, long since, long timeout)
+          throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeout;
+    while (true) {
+      poll(jobIds, mediaPackageId);
+      synchronized (this) {
+        List<JobState> changes = new ArrayList<JobState>();
+        for (JobState state : states.values()) {
+          if (state.getSequence() > since
+                  && (jobIds.contains(state.getJobId()) || mediaPackageId != null
+                          && mediaPackageId.equals(state.getMediaPackageId())))
+            changes.add(state);
+        }
+        long remaining = deadline - System.currentTimeMillis();
+        if (!changes.isEmpty() || remaining <= 0)
+          return new JobStateList(changes, sequence);
+        wait(Math.min(remaining, pollInterval));
+      }
+    }
+  }
+
+  /**
+   * Returns whether all of the given jobs are known to be in a terminal state.
+   */
+  public synchronized boolean isComplete(Collection<Long> jobIds) {
+    for (Long jobId : jobIds) {
+      JobState state = states.get(jobId);
+      if (state == null || !isTerminal(Job.Status.valueOf(state.getStatus())))
+        return false;
+    }
+    return true;
+  }
+
+  /**
+   * Returns the sequence number of the last change.
+   */
+  public synchronized long getSequence() {
+    return sequence;
+  }
+
+  /**
+   * Reads the given jobs and the known jobs of the given mediapackage from the service registry, unless they are known
+   * to be terminal or have been read within the poll interval.
+   */
+  private void poll(Collection<Long> jobIds, String mediaPackageId) {
+    if (serviceRegistry == null)
+      return;
+    List<Long> due = new ArrayList<Long>();
+    synchronized (this) {
+      List<Long> candidates = new ArrayList<Long>(jobIds);
+      if (mediaPackageId != null) {
+        for (JobState state : states.values()) {
+          if (mediaPackageId.equals(state.getMediaPackageId()))
+            candidates.add(state.getJobId());
+        }
+      }
+      long now = System.currentTimeMillis();
+      for (Long jobId : candidates) {
+        JobState state = states.get(jobId);
+        Long last = polled.get(jobId);
+        if (state != null && isTerminal(Job.Status.valueOf(state.getStatus())) || last != null
+                && now - last < pollInterval)
+          continue;
+        polled.put(jobId, now);
+        due.add(jobId);
+      }
+    }
+    for (Long jobId : due) {
+      try {
+        update(serviceRegistry.getJob(jobId));
+      } catch (NotFoundException e) {
+        logger.debug("Job {} does not exist", jobId);
+      } catch (ServiceRegistryException e) {
+        logger.debug("Unable to look up job {}: {}", jobId, e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * A map dropping its oldest entries beyond {@link JobEvents#CAPACITY}.
+   */
+  private static final class BoundedMap<V> extends LinkedHashMap<Long, V> {
+
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, V> eldest) {
+      return size() > CAPACITY;
+    }
+
+  }
+
+}
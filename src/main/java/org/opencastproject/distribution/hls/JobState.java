@@ -0,0 +1,106 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * The state of a distribution job as published by {@link JobEvents}. Every change of the state gets a new sequence
+ * number, so a client can ask for the changes after the last state it has seen.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "jobstate", namespace = "http://distribution.opencastproject.org")
+@XmlRootElement(name = "jobstate", namespace = "http://distribution.opencastproject.org")
+public class JobState {
+
+  /** The job identifier */
+  @XmlAttribute(name = "id")
+  private long jobId;
+
+  /** The sequence number of this state */
+  @XmlAttribute(name = "sequence")
+  private long sequence;
+
+  /** The job operation */
+  @XmlElement(name = "operation")
+  private String operation;
+
+  /** The job status */
+  @XmlElement(name = "status")
+  private String status;
+
+  /** The mediapackage identifier, if known */
+  @XmlElement(name = "mediapackage")
+  private String mediaPackageId;
+
+  /** The last phase the job has completed, if it is processed by this node */
+  @XmlElement(name = "phase")
+  private String phase;
+
+  /** The job payload, i.e. the distributed or retracted elements once the job has finished */
+  @XmlElement(name = "payload")
+  private String payload;
+
+  /** Needed by JAXB */
+  public JobState() {
+  }
+
+  public JobState(long jobId, long sequence, String operation, String status, String mediaPackageId, String phase,
+          String payload) {
+    this.jobId = jobId;
+    this.sequence = sequence;
+    this.operation = operation;
+    this.status = status;
+    this.mediaPackageId = mediaPackageId;
+    this.phase = phase;
+    this.payload = payload;
+  }
+
+  public long getJobId() {
+    return jobId;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public String getOperation() {
+    return operation;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public String getMediaPackageId() {
+    return mediaPackageId;
+  }
+
+  public String getPhase() {
+    return phase;
+  }
+
+  public String getPayload() {
+    return payload;
+  }
+
+}
@@ -0,0 +1,62 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * A list of {@link JobState}s along with the sequence number to ask for the following changes.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "jobstates", namespace = "http://distribution.opencastproject.org")
+@XmlRootElement(name = "jobstates", namespace = "http://distribution.opencastproject.org")
+public class JobStateList {
+
+  /** The sequence number of the last change known when the list was made */
+  @XmlAttribute(name = "sequence")
+  private long sequence;
+
+  /** The states */
+  @XmlElement(name = "jobstate", namespace = "http://distribution.opencastproject.org")
+  private List<JobState> states = new ArrayList<JobState>();
+
+  /** Needed by JAXB */
+  public JobStateList() {
+  }
+
+  public JobStateList(List<JobState> states, long sequence) {
+    this.states = states;
+    this.sequence = sequence;
+  }
+
+  public long getSequence() {
+    return sequence;
+  }
+
+  public List<JobState> getStates() {
+    return states;
+  }
+
+}
@@ -0,0 +1,327 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The timed phases of one job, along with facts such as the node, the source size and the number of segments written.
+ * A trace is bound to the thread processing the job, so the phases can be recorded with the static methods from
+ * anywhere below {@link HLSDistributionServiceImpl#process(org.opencastproject.job.api.Job)} without passing it around.
+ * The static methods do nothing if no trace is bound.
+ * <p>
+ * Traces are written in the Trace Event Format, the JSON format read by Chrome's <code>about:tracing</code>,
+ * Perfetto and most trace viewers. Each job is a process named after the node and the operation, each phase a complete
+ * event on the thread that ran it.
+ */
+public final class JobTrace {
+
+  /** The logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(JobTrace.class);
+
+  /** Extension of trace files */
+  public static final String EXTENSION = ".json";
+
+  /** The trace of the job processed by the current thread */
+  private static final ThreadLocal<JobTrace> current = new ThreadLocal<JobTrace>();
+
+  /** The job identifier */
+  private final long jobId;
+
+  /** The job operation */
+  private final String operation;
+
+  /** The node processing the job */
+  private final String node;
+
+  /** Wall clock time of the start in micros */
+  private final long startMicros;
+
+  /** {@link System#nanoTime()} at the start */
+  private final long startNanos;
+
+  /** Duration of the job in micros, or -1 while it is running */
+  private long durationMicros = -1;
+
+  /** The recorded phases */
+  private final List<Span> spans = new ArrayList<Span>();
+
+  /** Facts about the job */
+  private final Map<String, String> attributes = new LinkedHashMap<String, String>();
+
+  private JobTrace(long jobId, String operation, String node) {
+    this.jobId = jobId;
+    this.operation = operation;
+    this.node = node;
+    this.startMicros = System.currentTimeMillis() * 1000L;
+    this.startNanos = System.nanoTime();
+  }
+
+  /**
+   * Starts the trace of a job and binds it to the current thread.
+   *
+   * @param jobId
+   *          the job identifier
+   * @param operation
+   *          the job operation
+   * @param node
+   *          the node processing the job
+   * @return the trace
+   */
+  public static JobTrace begin(long jobId, String operation, String node) {
+    JobTrace trace = new JobTrace(jobId, operation, node);
+    current.set(trace);
+    return trace;
+  }
+
+  /**
+   * Ends the trace bound to the current thread and unbinds it.
+   *
+   * @return the trace, or <code>null</code> if none was bound
+   */
+  public static JobTrace end() {
+    JobTrace trace = current.get();
+    current.remove();
+    if (trace != null) {
+      synchronized (trace) {
+        trace.durationMicros = (System.nanoTime() - trace.startNanos) / 1000L;
+      }
+    }
+    return trace;
+  }
+
+  /**
+   * Returns the trace bound to the current thread.
+   *
+   * @return the trace, or <code>null</code> if none is bound
+   */
+  public static JobTrace getCurrent() {
+    return current.get();
+  }
+
+  /**
+   * Records a phase of the current job that started at <code>startNanos</code> and ends now.
+   *
+   * @param name
+   *          the phase name
+   * @param startNanos
+   *          the start of the phase as returned by {@link System#nanoTime()}
+   */
+  public static void span(String name, long startNanos) {
+    JobTrace trace = current.get();
+    if (trace != null)
+      trace.addSpan(name, startNanos, System.nanoTime());
+  }
+
+  /**
+   * Records a fact about the current job. A later value for the same key replaces the earlier one.
+   *
+   * @param key
+   *          the name
+   * @param value
+   *          the value
+   */
+  public static void attribute(String key, Object value) {
+    JobTrace trace = current.get();
+    if (trace != null) {
+      synchronized (trace) {
+        trace.attributes.put(key, String.valueOf(value));
+      }
+    }
+  }
+
+  /**
+   * Adds a phase.
+   *
+   * @param name
+   *          the phase name
+   * @param startNanos
+   *          the start of the phase as returned by {@link System#nanoTime()}
+   * @param endNanos
+   *          the end of the phase as returned by {@link System#nanoTime()}
+   */
+  public synchronized void addSpan(String name, long startNanos, long endNanos) {
+    spans.add(new Span(name, startMicros + (startNanos - this.startNanos) / 1000L, (endNanos - startNanos) / 1000L,
+            Thread.currentThread().getId()));
+  }
+
+  public long getJobId() {
+    return jobId;
+  }
+
+  public synchronized List<Span> getSpans() {
+    return new ArrayList<Span>(spans);
+  }
+
+  public synchronized Map<String, String> getAttributes() {
+    return new LinkedHashMap<String, String>(attributes);
+  }
+
+  /**
+   * Returns the trace in the Trace Event Format.
+   */
+  public synchronized String toJson() {
+    StringBuilder json = new StringBuilder("{\"traceEvents\":[\n");
+    json.append("{\"name\":\"process_name\",\"ph\":\"M\",\"pid\":").append(jobId).append(",\"args\":{\"name\":");
+    quote(json, node + " " + operation + " " + jobId).append("}}");
+    long duration = durationMicros >= 0 ? durationMicros : (System.nanoTime() - startNanos) / 1000L;
+    json.append(",\n{\"name\":");
+    quote(json, operation).append(",\"cat\":\"job\",\"ph\":\"X\",\"ts\":").append(startMicros).append(",\"dur\":")
+            .append(duration).append(",\"pid\":").append(jobId).append(",\"tid\":0,\"args\":{");
+    boolean first = true;
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      if (!first)
+        json.append(',');
+      quote(json, attribute.getKey()).append(':');
+      quote(json, attribute.getValue());
+      first = false;
+    }
+    json.append("}}");
+    for (Span span : spans) {
+      json.append(",\n{\"name\":");
+      quote(json, span.getName()).append(",\"cat\":\"phase\",\"ph\":\"X\",\"ts\":").append(span.getStartMicros())
+              .append(",\"dur\":").append(span.getDurationMicros()).append(",\"pid\":").append(jobId)
+              .append(",\"tid\":").append(span.getThreadId()).append('}');
+    }
+    json.append("\n],\"displayTimeUnit\":\"ms\",\"otherData\":{\"node\":");
+    quote(json, node).append(",\"operation\":");
+    quote(json, operation).append(",\"job\":\"").append(jobId).append("\"}}\n");
+    return json.toString();
+  }
+
+  private static StringBuilder quote(StringBuilder json, String value) {
+    json.append('"');
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (c == '"' || c == '\\')
+        json.append('\\').append(c);
+      else if (c < 0x20)
+        json.append(String.format("\\u%04x", (int) c));
+      else
+        json.append(c);
+    }
+    return json.append('"');
+  }
+
+  /**
+   * Writes a trace to <code>directory</code> as <code>&lt;job id&gt;.json</code> and deletes the oldest traces if
+   * there are more than <code>retain</code>.
+   *
+   * @param trace
+   *          the trace
+   * @param directory
+   *          the trace directory
+   * @param retain
+   *          the number of traces to keep
+   * @return the trace file
+   * @throws IOException
+   *           if the trace cannot be written
+   */
+  public static File write(JobTrace trace, File directory, int retain) throws IOException {
+    FileUtils.forceMkdir(directory);
+    File file = getFile(directory, trace.getJobId());
+    File temporary = new File(directory, file.getName() + ".tmp");
+    FileUtils.writeStringToFile(temporary, trace.toJson(), "UTF-8");
+    if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file)))
+      throw new IOException("Could not replace " + file);
+    prune(directory, retain);
+    return file;
+  }
+
+  /**
+   * Returns the trace file of a job.
+   */
+  public static File getFile(File directory, long jobId) {
+    return new File(directory, jobId + EXTENSION);
+  }
+
+  /**
+   * Deletes the oldest traces beyond <code>retain</code>. Listing the directory is only worth it once it has grown by a
+   * tenth, so pruning is skipped while it is within that margin.
+   */
+  private static synchronized void prune(File directory, int retain) {
+    String[] names = directory.list();
+    if (names == null || names.length <= retain + retain / 10)
+      return;
+    File[] traces = directory.listFiles();
+    if (traces == null)
+      return;
+    Arrays.sort(traces, new Comparator<File>() {
+      @Override
+      public int compare(File a, File b) {
+        long difference = a.lastModified() - b.lastModified();
+        return difference < 0 ? -1 : difference > 0 ? 1 : 0;
+      }
+    });
+    for (int i = 0; i < traces.length - retain; i++) {
+      if (!traces[i].delete())
+        logger.debug("Unable to delete trace {}", traces[i]);
+    }
+  }
+
+  /**
+   * A timed phase.
+   */
+  public static final class Span {
+
+    private final String name;
+
+    private final long startMicros;
+
+    private final long durationMicros;
+
+    private final long threadId;
+
+    Span(String name, long startMicros, long durationMicros, long threadId) {
+      this.name = name;
+      this.startMicros = startMicros;
+      this.durationMicros = durationMicros;
+      this.threadId = threadId;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the wall clock time of the start in micros */
+    public long getStartMicros() {
+      return startMicros;
+    }
+
+    public long getDurationMicros() {
+      return durationMicros;
+    }
+
+    public long getThreadId() {
+      return threadId;
+    }
+
+  }
+
+}
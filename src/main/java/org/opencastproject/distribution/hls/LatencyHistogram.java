@@ -0,0 +1,142 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A histogram of durations with fixed, roughly logarithmic buckets from 10 millis to one hour. Recording is lock free,
+ * so it can be used on the hot path of every job.
+ */
+public class LatencyHistogram implements LatencyHistogramMXBean {
+
+  /** Upper bounds of the buckets in millis. Longer durations go to an additional overflow bucket. */
+  static final long[] BOUNDS = { 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000, 120000, 300000,
+          600000, 1800000, 3600000 };
+
+  /** Label of the overflow bucket */
+  private static final String OVERFLOW = "+Inf";
+
+  /** Counts per bucket */
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+
+  /** Number of recorded durations */
+  private final AtomicLong count = new AtomicLong();
+
+  /** Sum of the recorded durations in millis */
+  private final AtomicLong sum = new AtomicLong();
+
+  /** Longest recorded duration in millis */
+  private final AtomicLong max = new AtomicLong();
+
+  /**
+   * Records a duration.
+   *
+   * @param millis
+   *          the duration in millis
+   */
+  public void record(long millis) {
+    millis = Math.max(0, millis);
+    int bucket = 0;
+    while (bucket < BOUNDS.length && millis > BOUNDS[bucket])
+      bucket++;
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    sum.addAndGet(millis);
+    for (long current = max.get(); millis > current; current = max.get()) {
+      if (max.compareAndSet(current, millis))
+        break;
+    }
+  }
+
+  /**
+   * Records the time elapsed since <code>startNanos</code>.
+   *
+   * @param startNanos
+   *          the start time as returned by {@link System#nanoTime()}
+   */
+  public void recordSince(long startNanos) {
+    record((System.nanoTime() - startNanos) / 1000000L);
+  }
+
+  @Override
+  public long getCount() {
+    return count.get();
+  }
+
+  @Override
+  public double getMeanMillis() {
+    long n = count.get();
+    return n == 0 ? 0 : (double) sum.get() / n;
+  }
+
+  @Override
+  public long getMaxMillis() {
+    return max.get();
+  }
+
+  @Override
+  public long getMedianMillis() {
+    return getPercentile(0.5);
+  }
+
+  @Override
+  public long get95thPercentileMillis() {
+    return getPercentile(0.95);
+  }
+
+  @Override
+  public long get99thPercentileMillis() {
+    return getPercentile(0.99);
+  }
+
+  /**
+   * Returns the upper bound of the bucket holding the given percentile, or the longest duration if it is in the
+   * overflow bucket.
+   *
+   * @param fraction
+   *          the percentile as a fraction between 0 and 1
+   * @return the duration in millis, or 0 if nothing has been recorded
+   */
+  public long getPercentile(double fraction) {
+    long n = count.get();
+    if (n == 0)
+      return 0;
+    long rank = (long) Math.ceil(fraction * n);
+    long cumulative = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      cumulative += counts.get(i);
+      if (cumulative >= rank)
+        return Math.min(BOUNDS[i], max.get());
+    }
+    return max.get();
+  }
+
+  @Override
+  public Map<String, Long> getBuckets() {
+    Map<String, Long> buckets = new LinkedHashMap<String, Long>();
+    for (int i = 0; i < BOUNDS.length; i++)
+      buckets.put(Long.toString(BOUNDS[i]), counts.get(i));
+    buckets.put(OVERFLOW, counts.get(BOUNDS.length));
+    return buckets;
+  }
+
+}
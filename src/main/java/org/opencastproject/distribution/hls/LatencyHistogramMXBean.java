@@ -0,0 +1,48 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.Map;
+
+/**
+ * Management interface of a {@link LatencyHistogram}.
+ */
+public interface LatencyHistogramMXBean {
+
+  /** Returns the number of recorded durations */
+  long getCount();
+
+  /** Returns the mean duration in millis */
+  double getMeanMillis();
+
+  /** Returns the longest duration in millis */
+  long getMaxMillis();
+
+  /** Returns the upper bound of the bucket holding the median, in millis */
+  long getMedianMillis();
+
+  /** Returns the upper bound of the bucket holding the 95th percentile, in millis */
+  long get95thPercentileMillis();
+
+  /** Returns the upper bound of the bucket holding the 99th percentile, in millis */
+  long get99thPercentileMillis();
+
+  /** Returns the number of durations by bucket, labelled with the upper bound of the bucket in millis */
+  Map<String, Long> getBuckets();
+
+}
@@ -0,0 +1,389 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+import org.opencastproject.distribution.hls.playlist.MediaSegment;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DateFormat;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * The media playlist of a live stream. Only the last few segments are listed while the stream is running. If a part
+ * target is given, the segments are announced part by part as described by the low-latency extension of HLS, and a
+ * preload hint points to the part being written. Once the stream has ended, the playlist is either closed with its
+ * last window or turned into a VOD playlist of the whole recording.
+ * <p>
+ * The playlist only keeps track of segment and part names. Files that are no longer referenced are reported by
+ * {@link #getExpired()} and have to be deleted by the caller.
+ */
+public class LivePlaylist {
+
+  /** Number of segments at the end of the playlist whose parts are listed */
+  public static final int PART_SEGMENTS = 3;
+
+  /** Number of segments that are kept on disk after they left the playlist, for clients with an older copy */
+  public static final int GRACE_SEGMENTS = 2;
+
+  /** The compatibility version of playlists with parts */
+  private static final int PART_VERSION = 6;
+
+  /** The compatibility version of playlists without parts */
+  private static final int VERSION = 3;
+
+  /** Difference in seconds up to which a segment counts as having reached the target duration */
+  private static final double TOLERANCE = 0.1;
+
+  /** Number of decimals of part durations */
+  private static final int DECIMALS = 5;
+
+  /** Scale of part durations */
+  private static final long DECIMAL_SCALE = 100000L;
+
+  /** The target duration in seconds */
+  private final int targetDuration;
+
+  /** The part target duration in seconds, or 0 if segments are not split into parts */
+  private final double partTarget;
+
+  /** Number of segments listed while the stream is live */
+  private final int windowSize;
+
+  /** Whether all segments are kept and listed once the stream has ended */
+  private final boolean keepHistory;
+
+  /** The closed segments, in order. Segment <code>i</code> has the media sequence number <code>i</code>. */
+  private final List<LiveSegment> segments = new ArrayList<LiveSegment>();
+
+  /** The segment being written, or <code>null</code> */
+  private LiveSegment open = null;
+
+  /** Name of the part being written, or <code>null</code> */
+  private String preloadHint = null;
+
+  /** Number of segments whose parts have been reported as expired */
+  private int expiredParts = 0;
+
+  /** Number of segments that have been reported as expired */
+  private int expiredSegments = 0;
+
+  /** Whether the stream has ended */
+  private boolean ended = false;
+
+  /**
+   * Creates a live playlist.
+   *
+   * @param targetDuration
+   *          the target segment duration in seconds
+   * @param partTarget
+   *          the part target duration in seconds, or 0 to list complete segments only
+   * @param windowSize
+   *          the number of segments listed while the stream is live
+   * @param keepHistory
+   *          whether all segments are kept and the playlist is turned into a VOD playlist once the stream has ended
+   */
+  public LivePlaylist(int targetDuration, double partTarget, int windowSize, boolean keepHistory) {
+    if (targetDuration < 1)
+      throw new IllegalArgumentException("Target duration must be at least one second");
+    if (partTarget < 0 || partTarget > targetDuration)
+      throw new IllegalArgumentException("Part target must be between 0 and the target duration");
+    if (windowSize < 1)
+      throw new IllegalArgumentException("Window size must be positive");
+    this.targetDuration = targetDuration;
+    this.partTarget = partTarget;
+    this.windowSize = windowSize;
+    this.keepHistory = keepHistory;
+  }
+
+  /**
+   * Whether segments are announced part by part.
+   */
+  public boolean hasParts() {
+    return partTarget > 0;
+  }
+
+  /**
+   * Decides whether a part has to start a new segment. A segment is closed once it has reached the target duration
+   * and the next part starts with a key frame, or when adding the part would exceed the target duration.
+   *
+   * @param duration
+   *          duration of the next part in seconds
+   * @param independent
+   *          whether the next part starts with a key frame
+   * @return whether {@link #closeSegment()} and {@link #startSegment(String, Date)} have to be called before
+   *         {@link #addPart(String, double, boolean)}
+   */
+  public boolean isSegmentBoundary(double duration, boolean independent) {
+    if (open == null)
+      return true;
+    if (open.duration == 0)
+      return false;
+    if (independent && open.duration >= targetDuration - TOLERANCE)
+      return true;
+    return Math.round(open.duration + duration) > targetDuration;
+  }
+
+  /**
+   * Starts a new segment. The current segment must have been closed.
+   *
+   * @param uri
+   *          the segment URI, relative to the playlist
+   * @param programDateTime
+   *          the wall clock time of the first sample, or <code>null</code>
+   */
+  public void startSegment(String uri, Date programDateTime) {
+    if (ended)
+      throw new IllegalStateException("The stream has ended");
+    if (open != null)
+      throw new IllegalStateException("Segment " + open.uri + " has not been closed");
+    open = new LiveSegment(uri, programDateTime);
+  }
+
+  /**
+   * Adds a part to the current segment.
+   *
+   * @param uri
+   *          the part URI, relative to the playlist, or <code>null</code> if parts are not listed
+   * @param duration
+   *          the duration in seconds
+   * @param independent
+   *          whether the part starts with a key frame
+   */
+  public void addPart(String uri, double duration, boolean independent) {
+    if (open == null)
+      throw new IllegalStateException("No segment has been started");
+    open.duration += duration;
+    if (uri != null && hasParts())
+      open.parts.add(new LivePart(uri, duration, independent));
+    if (uri != null && uri.equals(preloadHint))
+      preloadHint = null;
+  }
+
+  /**
+   * Sets the part announced as being written next.
+   *
+   * @param uri
+   *          the part URI, relative to the playlist, or <code>null</code>
+   */
+  public void setPreloadHint(String uri) {
+    this.preloadHint = uri;
+  }
+
+  /**
+   * Closes the current segment and adds it to the playlist. Empty segments are dropped.
+   *
+   * @return the closed segment's URI, or <code>null</code> if there was no segment to close
+   */
+  public String closeSegment() {
+    if (open == null)
+      return null;
+    LiveSegment segment = open;
+    open = null;
+    if (segment.duration == 0)
+      return null;
+    segments.add(segment);
+    return segment.uri;
+  }
+
+  /**
+   * Marks the end of the stream. The current segment is closed and parts are no longer listed.
+   */
+  public void end() {
+    closeSegment();
+    preloadHint = null;
+    ended = true;
+  }
+
+  public boolean isEnded() {
+    return ended;
+  }
+
+  /**
+   * Returns the number of closed segments.
+   */
+  public int getSegmentCount() {
+    return segments.size();
+  }
+
+  /**
+   * Returns the duration of all closed segments in seconds.
+   */
+  public double getDuration() {
+    double duration = 0;
+    for (LiveSegment segment : segments)
+      duration += segment.duration;
+    return duration;
+  }
+
+  /**
+   * Returns the URIs of parts and segments that are no longer referenced and may be deleted. Every URI is reported
+   * once. Parts are reported once their segment is {@link #GRACE_SEGMENTS} segments past the point where parts are
+   * listed, segments once they are {@link #GRACE_SEGMENTS} past the window. Segments are never reported if the
+   * history is kept.
+   *
+   * @return the expired URIs
+   */
+  public List<String> getExpired() {
+    List<String> expired = new ArrayList<String>();
+    int partLimit = ended ? segments.size() : segments.size() - PART_SEGMENTS - GRACE_SEGMENTS;
+    for (; expiredParts < partLimit; expiredParts++) {
+      LiveSegment segment = segments.get(expiredParts);
+      for (LivePart part : segment.parts)
+        expired.add(part.uri);
+      segment.parts = new ArrayList<LivePart>(0);
+    }
+    if (!keepHistory) {
+      for (int limit = segments.size() - windowSize - GRACE_SEGMENTS; expiredSegments < limit; expiredSegments++)
+        expired.add(segments.get(expiredSegments).uri);
+    }
+    return expired;
+  }
+
+  /**
+   * Returns the playlist in its current state.
+   */
+  public MediaPlaylist toPlaylist() {
+    MediaPlaylist playlist = new MediaPlaylist();
+    boolean vod = ended && keepHistory;
+    boolean parts = hasParts() && !ended;
+    int first = vod ? 0 : Math.max(0, segments.size() - windowSize);
+    playlist.setVersion(parts ? PART_VERSION : VERSION);
+    playlist.setTargetDuration(targetDuration);
+    playlist.setMediaSequence(first);
+    if (vod)
+      playlist.setPlaylistType(MediaPlaylist.TYPE_VOD);
+    playlist.setEndList(ended);
+    if (parts) {
+      playlist.getTags().add(MediaPlaylist.SERVER_CONTROL + "PART-HOLD-BACK=" + format(3 * partTarget));
+      playlist.getTags().add(MediaPlaylist.PART_INF + "PART-TARGET=" + format(partTarget));
+    }
+
+    DateFormat dateFormat = getDateFormat();
+    for (int i = first; i < segments.size(); i++) {
+      LiveSegment segment = segments.get(i);
+      MediaSegment entry = new MediaSegment();
+      entry.setUri(segment.uri);
+      entry.setDuration(segment.duration);
+      if (segment.programDateTime != null && (i == first || !vod))
+        entry.addTag(MediaPlaylist.PROGRAM_DATE_TIME + dateFormat.format(segment.programDateTime));
+      if (parts && i >= segments.size() - PART_SEGMENTS) {
+        for (LivePart part : segment.parts)
+          entry.addTag(part.toTag());
+      }
+      playlist.getSegments().add(entry);
+    }
+
+    if (parts && open != null) {
+      for (LivePart part : open.parts)
+        playlist.getTrailingTags().add(part.toTag());
+    }
+    if (parts && preloadHint != null)
+      playlist.getTrailingTags().add(MediaPlaylist.PRELOAD_HINT + "TYPE=PART,URI=\"" + preloadHint + "\"");
+    return playlist;
+  }
+
+  /**
+   * Writes the playlist. The file is replaced atomically, so clients never see a partially written playlist.
+   *
+   * @param file
+   *          the playlist file
+   */
+  public void write(File file) throws IOException {
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      toPlaylist().write(temporary);
+    } catch (IOException e) {
+      temporary.delete();
+      throw e;
+    }
+    if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file)))
+      throw new IOException("Could not replace " + file);
+  }
+
+  /**
+   * Formats a duration in seconds without going through a locale dependent formatter.
+   */
+  static String format(double seconds) {
+    long scaled = Math.round(seconds * DECIMAL_SCALE);
+    StringBuilder s = new StringBuilder(Long.toString(scaled / DECIMAL_SCALE)).append('.');
+    String decimals = Long.toString(scaled % DECIMAL_SCALE);
+    for (int i = decimals.length(); i < DECIMALS; i++)
+      s.append('0');
+    return s.append(decimals).toString();
+  }
+
+  private static DateFormat getDateFormat() {
+    DateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+    return format;
+  }
+
+  /**
+   * A segment of the live stream.
+   */
+  private static class LiveSegment {
+
+    private final String uri;
+
+    private final Date programDateTime;
+
+    private double duration = 0;
+
+    private List<LivePart> parts = new ArrayList<LivePart>();
+
+    LiveSegment(String uri, Date programDateTime) {
+      this.uri = uri;
+      this.programDateTime = programDateTime;
+    }
+
+  }
+
+  /**
+   * A part of a live segment.
+   */
+  private static class LivePart {
+
+    private final String uri;
+
+    private final double duration;
+
+    private final boolean independent;
+
+    LivePart(String uri, double duration, boolean independent) {
+      this.uri = uri;
+      this.duration = duration;
+      this.independent = independent;
+    }
+
+    String toTag() {
+      StringBuilder tag = new StringBuilder(MediaPlaylist.PART);
+      tag.append("DURATION=").append(format(duration)).append(",URI=\"").append(uri).append('"');
+      if (independent)
+        tag.append(",INDEPENDENT=YES");
+      return tag.toString();
+    }
+
+  }
+
+}
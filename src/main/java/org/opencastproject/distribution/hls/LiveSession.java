@@ -0,0 +1,442 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Segments a live stream into the distribution directory while it is being received.
+ * <p>
+ * ffmpeg's segment muxer cuts the stream into short transport stream chunks and announces every finished chunk in a
+ * CSV list. Without parts, each chunk is a segment of its own. With parts, each chunk is published as a part and
+ * appended to the segment it belongs to, so that segments are complete as soon as their last part is. The playlist
+ * is rewritten after every chunk, and files that fell out of the playlist are deleted.
+ */
+public class LiveSession {
+
+  /** The logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(LiveSession.class);
+
+  /** Name of the chunk list written by ffmpeg. It starts with a dot so it is never served. */
+  public static final String CHUNK_LIST = ".live-chunks.csv";
+
+  /** Infix of the part file names */
+  public static final String PART_INFIX = "-part-";
+
+  /** Interval in millis in which the chunk list is polled */
+  private static final long POLL_INTERVAL = 50L;
+
+  /** Time in millis ffmpeg is given to finish after it has been asked to stop */
+  private static final long STOP_TIMEOUT = 10000L;
+
+  /** Number of digits of part numbers */
+  private static final int PART_DIGITS = 6;
+
+  /** The ffmpeg binary */
+  private final String ffmpeg;
+
+  /** The URI of the incoming stream */
+  private final String input;
+
+  /** The directory the stream is written to */
+  private final File directory;
+
+  /** Prefix of all file names */
+  private final String baseName;
+
+  /** The media playlist */
+  private final File playlistFile;
+
+  /** The playlist state */
+  private final LivePlaylist playlist;
+
+  /** Whether the stream is transcoded rather than copied */
+  private final boolean transcode;
+
+  /** The target segment duration in seconds */
+  private final int segmentDuration;
+
+  /** The part target duration in seconds, or 0 */
+  private final double partTarget;
+
+  /** The scheduler of deletes */
+  private final IOScheduler io;
+
+  /** Scans parts for key frames */
+  private final TransportStreamIndexer indexer = new TransportStreamIndexer();
+
+  /** Whether the session has been asked to stop */
+  private volatile boolean stopped = false;
+
+  /** Number of bytes of the chunk list that have been processed */
+  private long listOffset = 0;
+
+  /** Number of the next segment */
+  private int nextSegment = 0;
+
+  /** The segment file being written, or <code>null</code> */
+  private File segmentFile = null;
+
+  /** Last line of ffmpeg's output */
+  private volatile String lastOutput = null;
+
+  /** ffmpeg's exit code, or <code>null</code> while it is running */
+  private volatile Integer exitCode = null;
+
+  /**
+   * Creates a live session.
+   *
+   * @param ffmpeg
+   *          the ffmpeg binary
+   * @param input
+   *          the URI of the incoming stream, in any form ffmpeg can read
+   * @param playlistFile
+   *          the media playlist. Segments and parts are written to the same directory.
+   * @param baseName
+   *          the prefix of segment and part file names
+   * @param playlist
+   *          the playlist state
+   * @param segmentDuration
+   *          the target segment duration in seconds
+   * @param partTarget
+   *          the part target duration in seconds, or 0 if segments are not split into parts
+   * @param transcode
+   *          whether the stream is transcoded to H.264 and AAC with key frames at every segment boundary, rather than
+   *          copied
+   * @param io
+   *          the scheduler of deletes
+   */
+  public LiveSession(String ffmpeg, String input, File playlistFile, String baseName, LivePlaylist playlist,
+          int segmentDuration, double partTarget, boolean transcode, IOScheduler io) {
+    this.ffmpeg = ffmpeg;
+    this.input = input;
+    this.directory = playlistFile.getParentFile();
+    this.playlistFile = playlistFile;
+    this.baseName = baseName;
+    this.playlist = playlist;
+    this.segmentDuration = segmentDuration;
+    this.partTarget = partTarget;
+    this.transcode = transcode;
+    this.io = io;
+  }
+
+  /**
+   * Returns the ffmpeg command line. Chunks are parts if a part target is set, segments otherwise.
+   *
+   * @return the arguments
+   */
+  List<String> getCommand() {
+    boolean parts = partTarget > 0;
+    List<String> command = new ArrayList<String>();
+    command.add(ffmpeg);
+    command.add("-hide_banner");
+    add(command, "-i", input, "-map", "0:v:0?", "-map", "0:a:0?");
+    if (transcode) {
+      add(command, "-c:v", "libx264", "-preset", "veryfast", "-tune", "zerolatency");
+      add(command, "-force_key_frames", "expr:gte(t,n_forced*" + segmentDuration + ")");
+      add(command, "-c:a", "aac", "-b:a", "128k");
+    } else {
+      add(command, "-c", "copy", "-bsf:v", "h264_mp4toannexb");
+    }
+    add(command, "-f", "segment", "-segment_format", "mpegts", "-segment_time", LivePlaylist.format(parts ? partTarget
+            : segmentDuration));
+    if (parts)
+      add(command, "-break_non_keyframes", "1");
+    add(command, "-segment_list", new File(directory, CHUNK_LIST).getAbsolutePath(), "-segment_list_type", "csv",
+            "-segment_list_flags", "+live");
+    add(command, new File(directory, baseName + PART_INFIX + "%0" + PART_DIGITS + "d.ts").getAbsolutePath());
+    return command;
+  }
+
+  /**
+   * Segments the stream until it ends or {@link #stop()} is called. When the method returns, the playlist has been
+   * closed and all parts have been deleted.
+   *
+   * @throws IOException
+   *           if ffmpeg cannot be started, fails before the first segment, or the distribution directory cannot be
+   *           written
+   */
+  public void run() throws IOException {
+    File list = new File(directory, CHUNK_LIST);
+    FileUtils.deleteQuietly(list);
+    ProcessBuilder builder = new ProcessBuilder(getCommand());
+    builder.directory(directory);
+    builder.redirectErrorStream(true);
+    logger.info("Segmenting live stream {} into {}", input, directory);
+    final Process process = builder.start();
+    Thread drain = new Thread("ffmpeg output of " + baseName) {
+      @Override
+      public void run() {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        try {
+          for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+            logger.debug(line);
+            lastOutput = line;
+          }
+        } catch (IOException e) {
+          logger.debug("ffmpeg output closed", e);
+        }
+      }
+    };
+    drain.setDaemon(true);
+    drain.start();
+
+    boolean interrupted = false;
+    long stopTime = -1;
+    int exitCode;
+    try {
+      while (true) {
+        Integer exit = getExitCode(process);
+        poll(list);
+        if (exit != null) {
+          exitCode = exit;
+          this.exitCode = exit;
+          break;
+        }
+        if (stopped && stopTime < 0) {
+          stopTime = System.currentTimeMillis();
+          quit(process);
+        } else if (stopTime >= 0 && System.currentTimeMillis() - stopTime > STOP_TIMEOUT) {
+          logger.warn("ffmpeg did not stop in time, killing it");
+          process.destroy();
+        }
+        try {
+          Thread.sleep(POLL_INTERVAL);
+        } catch (InterruptedException e) {
+          interrupted = true;
+          stopped = true;
+        }
+      }
+    } finally {
+      if (getExitCode(process) == null)
+        process.destroy();
+      finish(list);
+      if (interrupted)
+        Thread.currentThread().interrupt();
+    }
+
+    if (playlist.getSegmentCount() == 0)
+      throw new IOException("No media received from " + input + " (ffmpeg exited with " + exitCode + ": "
+              + lastOutput + ")");
+    if (exitCode != 0 && !stopped)
+      logger.warn("ffmpeg exited with {} while segmenting {}: {}", new Object[] { exitCode, input, lastOutput });
+    logger.info("Live stream {} ended after {} segments", input, playlist.getSegmentCount());
+  }
+
+  /**
+   * Asks the session to stop. ffmpeg is told to finish the current chunk, and {@link #run()} returns once it has.
+   */
+  public void stop() {
+    stopped = true;
+  }
+
+  public boolean isStopped() {
+    return stopped;
+  }
+
+  /**
+   * Returns ffmpeg's exit code, or <code>null</code> if it has not exited.
+   */
+  public Integer getExitCode() {
+    return exitCode;
+  }
+
+  /**
+   * Processes the chunks added to the chunk list since the last call and rewrites the playlist.
+   */
+  private void poll(File list) throws IOException {
+    if (!list.isFile() || list.length() <= listOffset)
+      return;
+    byte[] data;
+    RandomAccessFile in = new RandomAccessFile(list, "r");
+    try {
+      data = new byte[(int) (in.length() - listOffset)];
+      in.seek(listOffset);
+      in.readFully(data);
+    } finally {
+      in.close();
+    }
+    int end = data.length;
+    while (end > 0 && data[end - 1] != '\n')
+      end--;
+    if (end == 0)
+      return;
+    listOffset += end;
+    for (String line : new String(data, 0, end, "UTF-8").split("\n")) {
+      if (line.trim().length() > 0)
+        handleChunk(line.trim());
+    }
+    playlist.write(playlistFile);
+    delete(playlist.getExpired());
+  }
+
+  /**
+   * Publishes a chunk announced by a line of the chunk list, consisting of file name, start time and end time.
+   */
+  void handleChunk(String line) throws IOException {
+    int endSeparator = line.lastIndexOf(',');
+    int startSeparator = endSeparator > 0 ? line.lastIndexOf(',', endSeparator - 1) : -1;
+    if (startSeparator <= 0)
+      throw new IOException("Unexpected chunk list entry: " + line);
+    String name = line.substring(0, startSeparator);
+    if (name.length() > 1 && name.startsWith("\"") && name.endsWith("\""))
+      name = name.substring(1, name.length() - 1).replace("\"\"", "\"");
+    double duration;
+    try {
+      duration = Double.parseDouble(line.substring(endSeparator + 1))
+              - Double.parseDouble(line.substring(startSeparator + 1, endSeparator));
+    } catch (NumberFormatException e) {
+      throw new IOException("Unexpected chunk list entry: " + line);
+    }
+    File chunk = new File(directory, new File(name).getName());
+    indexer.index(chunk);
+    boolean independent = indexer.isIndependent();
+    Date programDateTime = new Date(System.currentTimeMillis() - Math.round(duration * 1000));
+
+    if (!playlist.hasParts()) {
+      String uri = nextSegmentName();
+      if (!chunk.renameTo(new File(directory, uri)))
+        throw new IOException("Unable to move " + chunk + " to " + uri);
+      playlist.startSegment(uri, programDateTime);
+      playlist.addPart(null, duration, independent);
+      playlist.closeSegment();
+      return;
+    }
+
+    if (playlist.isSegmentBoundary(duration, independent)) {
+      playlist.closeSegment();
+      String uri = nextSegmentName();
+      segmentFile = new File(directory, uri);
+      playlist.startSegment(uri, programDateTime);
+    }
+    append(chunk, segmentFile);
+    playlist.addPart(chunk.getName(), duration, independent);
+    playlist.setPreloadHint(getNextPartName(chunk.getName()));
+  }
+
+  /**
+   * Closes the playlist and removes the parts and the chunk list.
+   */
+  private void finish(File list) throws IOException {
+    playlist.end();
+    if (playlist.getSegmentCount() > 0)
+      playlist.write(playlistFile);
+    delete(playlist.getExpired());
+    FileUtils.deleteQuietly(list);
+    // Chunks ffmpeg was writing when it stopped were never announced
+    File[] leftovers = directory.listFiles();
+    if (leftovers != null) {
+      for (File file : leftovers) {
+        if (file.getName().startsWith(baseName + PART_INFIX))
+          FileUtils.deleteQuietly(file);
+      }
+    }
+  }
+
+  private String nextSegmentName() {
+    return baseName + "-" + nextSegment++ + ".ts";
+  }
+
+  /**
+   * Returns the name ffmpeg will give the chunk after <code>name</code>.
+   */
+  String getNextPartName(String name) {
+    String prefix = baseName + PART_INFIX;
+    if (!name.startsWith(prefix) || !name.endsWith(".ts"))
+      return null;
+    long number;
+    try {
+      number = Long.parseLong(name.substring(prefix.length(), name.length() - 3)) + 1;
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    StringBuilder next = new StringBuilder(Long.toString(number));
+    while (next.length() < PART_DIGITS)
+      next.insert(0, '0');
+    return prefix + next + ".ts";
+  }
+
+  /**
+   * Appends a part to its segment. Live segments are written without going through the I/O scheduler, as a delay
+   * would directly add to the latency of the stream.
+   */
+  private static void append(File part, File segment) throws IOException {
+    FileInputStream in = new FileInputStream(part);
+    FileOutputStream out = new FileOutputStream(segment, true);
+    try {
+      FileChannel source = in.getChannel();
+      long size = source.size();
+      for (long position = 0; position < size;)
+        position += source.transferTo(position, size - position, out.getChannel());
+    } finally {
+      out.close();
+      in.close();
+    }
+  }
+
+  private void delete(List<String> uris) throws IOException {
+    for (String uri : uris)
+      io.delete(new File(directory, uri), IOScheduler.Traffic.RECLAIM);
+  }
+
+  /**
+   * Asks ffmpeg to finish the current chunk and exit.
+   */
+  private static void quit(Process process) {
+    try {
+      OutputStream out = process.getOutputStream();
+      out.write('q');
+      out.flush();
+    } catch (IOException e) {
+      logger.debug("Unable to ask ffmpeg to quit, killing it", e);
+      process.destroy();
+    }
+  }
+
+  /**
+   * Returns the exit code of a process, or <code>null</code> if it is still running.
+   */
+  private static Integer getExitCode(Process process) {
+    try {
+      return process.exitValue();
+    } catch (IllegalThreadStateException e) {
+      return null;
+    }
+  }
+
+  private static void add(List<String> command, String... arguments) {
+    for (String argument : arguments)
+      command.add(argument);
+  }
+
+}
@@ -0,0 +1,261 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * A snapshot of the {@link DistributionMetrics}, as returned by the REST endpoint.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "metrics", namespace = "http://distribution.opencastproject.org")
+@XmlRootElement(name = "metrics", namespace = "http://distribution.opencastproject.org")
+public class MetricsReport {
+
+  @XmlAttribute(name = "inflight")
+  private int jobsInFlight;
+
+  @XmlAttribute(name = "waiting")
+  private int jobsWaiting;
+
+  @XmlAttribute(name = "processed")
+  private long jobsProcessed;
+
+  @XmlAttribute(name = "failed")
+  private long jobsFailed;
+
+  @XmlAttribute(name = "ioqueue")
+  private int ioQueueDepth;
+
+  @XmlAttribute(name = "bytes")
+  private long bytesWritten;
+
+  @XmlAttribute(name = "segments")
+  private long segmentsWritten;
+
+  @XmlAttribute(name = "available")
+  private long availableBytes;
+
+  @XmlAttribute(name = "reserved")
+  private long reservedBytes;
+
+  /** Latencies by phase */
+  @XmlElement(name = "phase", namespace = "http://distribution.opencastproject.org")
+  private List<PhaseLatency> phases = new ArrayList<PhaseLatency>();
+
+  /** ffmpeg runs by exit code */
+  @XmlElement(name = "ffmpeg", namespace = "http://distribution.opencastproject.org")
+  private List<ExitCount> exitCodes = new ArrayList<ExitCount>();
+
+  /** Usage of the limited resources */
+  @XmlElement(name = "slots", namespace = "http://distribution.opencastproject.org")
+  private List<SlotUsage> slots = new ArrayList<SlotUsage>();
+
+  /** Needed by JAXB */
+  public MetricsReport() {
+  }
+
+  public MetricsReport(DistributionMetrics metrics) {
+    jobsInFlight = metrics.getJobsInFlight();
+    jobsWaiting = metrics.getJobsWaiting();
+    jobsProcessed = metrics.getJobsProcessed();
+    jobsFailed = metrics.getJobsFailed();
+    ioQueueDepth = metrics.getIOQueueDepth();
+    bytesWritten = metrics.getBytesWritten();
+    segmentsWritten = metrics.getSegmentsWritten();
+    availableBytes = metrics.getAvailableBytes();
+    reservedBytes = metrics.getReservedBytes();
+    for (DistributionMetrics.Phase phase : DistributionMetrics.Phase.values())
+      phases.add(new PhaseLatency(phase.toString().toLowerCase(), metrics.getPhase(phase)));
+    for (Map.Entry<String, Long> entry : metrics.getFfmpegExitCodes().entrySet())
+      exitCodes.add(new ExitCount(entry.getKey(), entry.getValue()));
+    ResourceLimits limits = metrics.getLimits();
+    if (limits != null) {
+      for (ResourceLimits.Resource resource : ResourceLimits.Resource.values())
+        slots.add(new SlotUsage(resource.toString().toLowerCase(), limits.getLimit(resource), limits
+                .getInUse(resource), limits.getWaiting(resource)));
+    }
+  }
+
+  public int getJobsInFlight() {
+    return jobsInFlight;
+  }
+
+  public long getJobsProcessed() {
+    return jobsProcessed;
+  }
+
+  public List<PhaseLatency> getPhases() {
+    return phases;
+  }
+
+  public List<ExitCount> getExitCodes() {
+    return exitCodes;
+  }
+
+  public List<SlotUsage> getSlots() {
+    return slots;
+  }
+
+  /**
+   * The latencies of a phase.
+   */
+  @XmlAccessorType(XmlAccessType.FIELD)
+  @XmlType(name = "phase", namespace = "http://distribution.opencastproject.org")
+  public static class PhaseLatency {
+
+    @XmlAttribute(name = "name")
+    private String name;
+
+    @XmlAttribute(name = "count")
+    private long count;
+
+    @XmlAttribute(name = "mean")
+    private double mean;
+
+    @XmlAttribute(name = "p50")
+    private long median;
+
+    @XmlAttribute(name = "p95")
+    private long p95;
+
+    @XmlAttribute(name = "p99")
+    private long p99;
+
+    @XmlAttribute(name = "max")
+    private long max;
+
+    /** Needed by JAXB */
+    public PhaseLatency() {
+    }
+
+    public PhaseLatency(String name, LatencyHistogram histogram) {
+      this.name = name;
+      this.count = histogram.getCount();
+      this.mean = histogram.getMeanMillis();
+      this.median = histogram.getMedianMillis();
+      this.p95 = histogram.get95thPercentileMillis();
+      this.p99 = histogram.get99thPercentileMillis();
+      this.max = histogram.getMaxMillis();
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+    public long getMax() {
+      return max;
+    }
+
+  }
+
+  /**
+   * The number of ffmpeg runs that ended with an exit code.
+   */
+  @XmlAccessorType(XmlAccessType.FIELD)
+  @XmlType(name = "ffmpeg", namespace = "http://distribution.opencastproject.org")
+  public static class ExitCount {
+
+    @XmlAttribute(name = "exit")
+    private String exitCode;
+
+    @XmlAttribute(name = "count")
+    private long count;
+
+    /** Needed by JAXB */
+    public ExitCount() {
+    }
+
+    public ExitCount(String exitCode, long count) {
+      this.exitCode = exitCode;
+      this.count = count;
+    }
+
+    public String getExitCode() {
+      return exitCode;
+    }
+
+    public long getCount() {
+      return count;
+    }
+
+  }
+
+  /**
+   * The usage of a limited resource.
+   */
+  @XmlAccessorType(XmlAccessType.FIELD)
+  @XmlType(name = "slots", namespace = "http://distribution.opencastproject.org")
+  public static class SlotUsage {
+
+    @XmlAttribute(name = "resource")
+    private String resource;
+
+    /** The number of slots, 0 if the resource is unlimited */
+    @XmlAttribute(name = "limit")
+    private int limit;
+
+    @XmlAttribute(name = "used")
+    private int inUse;
+
+    @XmlAttribute(name = "waiting")
+    private int waiting;
+
+    /** Needed by JAXB */
+    public SlotUsage() {
+    }
+
+    public SlotUsage(String resource, int limit, int inUse, int waiting) {
+      this.resource = resource;
+      this.limit = limit;
+      this.inUse = inUse;
+      this.waiting = waiting;
+    }
+
+    public String getResource() {
+      return resource;
+    }
+
+    public int getLimit() {
+      return limit;
+    }
+
+    public int getInUse() {
+      return inUse;
+    }
+
+    public int getWaiting() {
+      return waiting;
+    }
+
+  }
+
+}
@@ -0,0 +1,251 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.distribution.hls.playlist.AttributeList;
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+import org.opencastproject.distribution.hls.playlist.MediaSegment;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Combines the playlists of several tracks of a mediapackage, e.g. presenter and presentation, into one
+ * manifest. Every track becomes an alternative video rendition (angle) of the same variant stream, so players can
+ * switch between them within one session instead of opening one session per track.
+ */
+public class MultiTrackPlaylist {
+
+  /** The variant stream tag */
+  private static final String STREAM_INF = "#EXT-X-STREAM-INF:";
+
+  /** The I-frame variant stream tag */
+  private static final String I_FRAME_STREAM_INF = "#EXT-X-I-FRAME-STREAM-INF:";
+
+  /** The rendition tag */
+  private static final String MEDIA = "#EXT-X-MEDIA:";
+
+  /** The media segment tag */
+  private static final String EXTINF = "#EXTINF:";
+
+  /** Level of the segmented source */
+  private static final String SOURCE_LEVEL = HLSDistributionServiceImpl.SOURCE_VARIANT_SUFFIX.substring(1);
+
+  /** Maximum gap in seconds between segment boundaries of different tracks that are considered aligned */
+  private static final double ALIGNMENT_TOLERANCE = 0.1;
+
+  private MultiTrackPlaylist() {
+  }
+
+  /**
+   * Writes the combined manifest. The first angle is the default one; its audio and I-frame playlists are used for
+   * the whole manifest. An angle that publishes a media playlist rather than a master playlist has a single variant,
+   * its segmented source.
+   *
+   * @param manifest
+   *          the manifest to write, located in the parent directory of all element directories
+   * @param angles
+   *          the distributed tracks
+   */
+  public static void write(File manifest, List<Angle> angles) throws IOException {
+    if (angles.isEmpty())
+      throw new IllegalArgumentException("At least one track is required");
+
+    // Group the variants of every angle by their level, e.g. "source" or "720p"
+    List<Map<String, Variant>> variantsByAngle = new ArrayList<Map<String, Variant>>();
+    List<String> defaultMedia = new ArrayList<String>();
+    List<String> defaultIFrames = new ArrayList<String>();
+    for (int i = 0; i < angles.size(); i++) {
+      Angle angle = angles.get(i);
+      Map<String, Variant> variants = new LinkedHashMap<String, Variant>();
+      BufferedReader br = new BufferedReader(new FileReader(angle.getMasterPlaylist()));
+      try {
+        String line = null;
+        String streamInf = null;
+        boolean mediaPlaylist = false;
+        while ((line = br.readLine()) != null) {
+          if (line.startsWith(EXTINF)) {
+            mediaPlaylist = true;
+          } else if (line.startsWith(STREAM_INF)) {
+            streamInf = line.substring(STREAM_INF.length());
+          } else if (streamInf != null && line.length() > 0 && !line.startsWith("#")) {
+            variants.put(getLevel(line), new Variant(AttributeList.parse(streamInf), line));
+            streamInf = null;
+          } else if (i == 0 && line.startsWith(MEDIA)) {
+            defaultMedia.add(prefixUri(line, angle.getDirectory()));
+          } else if (i == 0 && line.startsWith(I_FRAME_STREAM_INF)) {
+            defaultIFrames.add(prefixUri(line, angle.getDirectory()));
+          }
+        }
+        if (mediaPlaylist && variants.isEmpty()) {
+          HLSVariant source = new HLSVariant(angle.getMasterPlaylist().getName());
+          FFmpegHLSEncoderEngine.measureBandwidth(angle.getMasterPlaylist(), source);
+          Map<String, String> attributes = new LinkedHashMap<String, String>();
+          attributes.put("BANDWIDTH", Long.toString(source.getBandwidth()));
+          variants.put(SOURCE_LEVEL, new Variant(attributes, source.getUri()));
+        }
+      } finally {
+        br.close();
+      }
+      variantsByAngle.add(variants);
+    }
+
+    PrintWriter pw = new PrintWriter(new FileWriter(manifest));
+    try {
+      pw.println("#EXTM3U");
+      pw.println("#EXT-X-VERSION:4");
+      for (String media : defaultMedia)
+        pw.println(media);
+      for (Map.Entry<String, Variant> entry : variantsByAngle.get(0).entrySet()) {
+        String level = entry.getKey();
+        String groupId = "video-" + level;
+        long bandwidth = 0;
+        for (int i = 0; i < angles.size(); i++) {
+          Variant variant = variantsByAngle.get(i).get(level);
+          if (variant == null)
+            continue;
+          bandwidth = Math.max(bandwidth, variant.getBandwidth());
+          pw.println(MEDIA + "TYPE=VIDEO,GROUP-ID=\"" + groupId + "\",NAME=\"" + angles.get(i).getName()
+                  + "\",DEFAULT=" + (i == 0 ? "YES" : "NO") + ",AUTOSELECT=YES,URI=\"" + angles.get(i).getDirectory()
+                  + "/" + variant.getUri() + "\"");
+        }
+        Map<String, String> attributes = new LinkedHashMap<String, String>(entry.getValue().getAttributes());
+        attributes.put("BANDWIDTH", Long.toString(bandwidth));
+        attributes.remove("AVERAGE-BANDWIDTH");
+        attributes.put("VIDEO", "\"" + groupId + "\"");
+        pw.println(STREAM_INF + AttributeList.format(attributes));
+        pw.println(angles.get(0).getDirectory() + "/" + entry.getValue().getUri());
+      }
+      for (String iFrames : defaultIFrames)
+        pw.println(iFrames);
+    } finally {
+      pw.close();
+    }
+  }
+
+  /**
+   * Checks whether the segments of the passed media playlists start at the same times.
+   *
+   * @param mediaPlaylists
+   *          the media playlists to compare
+   * @return <code>true</code> if all segment boundaries line up
+   */
+  public static boolean isAligned(List<File> mediaPlaylists) throws IOException {
+    List<List<Double>> boundaries = new ArrayList<List<Double>>();
+    for (File mediaPlaylist : mediaPlaylists) {
+      List<Double> starts = new ArrayList<Double>();
+      double time = 0;
+      for (MediaSegment segment : MediaPlaylist.read(mediaPlaylist).getSegments()) {
+        starts.add(time);
+        time += segment.getDuration();
+      }
+      boundaries.add(starts);
+    }
+    for (int i = 1; i < boundaries.size(); i++) {
+      int count = Math.min(boundaries.get(0).size(), boundaries.get(i).size());
+      for (int j = 0; j < count; j++) {
+        if (Math.abs(boundaries.get(0).get(j) - boundaries.get(i).get(j)) > ALIGNMENT_TOLERANCE)
+          return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns the level of a variant playlist, which is the last dash separated part of its name.
+   */
+  private static String getLevel(String uri) {
+    String name = uri.replace(".m3u8", "");
+    return name.substring(name.lastIndexOf('-') + 1);
+  }
+
+  private static String prefixUri(String line, String directory) {
+    return line.replace("URI=\"", "URI=\"" + directory + "/");
+  }
+
+  /**
+   * A distributed track taking part in the combined manifest.
+   */
+  public static class Angle {
+
+    /** The name shown to viewers */
+    private final String name;
+
+    /** The element directory, relative to the manifest */
+    private final String directory;
+
+    /** The playlist published at the URI of the track, a master or a media playlist */
+    private final File masterPlaylist;
+
+    public Angle(String name, String directory, File masterPlaylist) {
+      this.name = name;
+      this.directory = directory;
+      this.masterPlaylist = masterPlaylist;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    public String getDirectory() {
+      return directory;
+    }
+
+    public File getMasterPlaylist() {
+      return masterPlaylist;
+    }
+
+  }
+
+  /**
+   * A variant stream read from a track's master playlist.
+   */
+  private static class Variant {
+
+    private final Map<String, String> attributes;
+
+    private final String uri;
+
+    Variant(Map<String, String> attributes, String uri) {
+      this.attributes = attributes;
+      this.uri = uri;
+    }
+
+    Map<String, String> getAttributes() {
+      return attributes;
+    }
+
+    String getUri() {
+      return uri;
+    }
+
+    long getBandwidth() {
+      String bandwidth = attributes.get("BANDWIDTH");
+      return bandwidth == null ? 0 : Long.parseLong(bandwidth);
+    }
+
+  }
+
+}
@@ -0,0 +1,278 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reconciles the distribution directory with the {@link DistributionIndex}. Mediapackage directories are walked in
+ * parallel by a bounded number of threads, every directory listing and delete is charged to the reclaim budget of the
+ * {@link IOScheduler}, so a sweep does not compete with publishing.
+ * <p>
+ * Element directories that are neither indexed nor have a receipt are left overs of failed jobs and are deleted,
+ * complete but unindexed directories are added to the index and index entries whose directory is gone are removed.
+ * Temporary files, partial transfers and abandoned locks are deleted as well. Nothing younger than the grace period is
+ * touched, nor anything below a locked or active element. In a dry run, orphans are only reported.
+ */
+public class OrphanSweeper {
+
+  /** The logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(OrphanSweeper.class);
+
+  /** The distribution directory */
+  private final File root;
+
+  /** The index of distributed elements */
+  private final DistributionIndex index;
+
+  /** The scheduler of directory listings and deletes */
+  private final IOScheduler io;
+
+  /** Number of mediapackage directories walked in parallel */
+  private final int threads;
+
+  /** Time in millis files must not have been modified before they are considered orphans */
+  private final long grace;
+
+  /**
+   * Creates a sweeper.
+   *
+   * @param root
+   *          the distribution directory
+   * @param index
+   *          the index of distributed elements
+   * @param io
+   *          the scheduler of directory listings and deletes
+   * @param threads
+   *          the number of mediapackage directories walked in parallel
+   * @param grace
+   *          the time in millis files must not have been modified before they are considered orphans
+   */
+  public OrphanSweeper(File root, DistributionIndex index, IOScheduler io, int threads, long grace) {
+    this.root = root;
+    this.index = index;
+    this.io = io;
+    this.threads = Math.max(1, threads);
+    this.grace = grace;
+  }
+
+  /**
+   * Walks the distribution directory and reclaims or reports the orphans found.
+   *
+   * @param dryRun
+   *          whether to only report orphans
+   * @param active
+   *          elements that are being written without holding a lock, such as live streams, as
+   *          <code>mediapackage/element</code>
+   * @return the report
+   * @throws IOException
+   *           if the walk is interrupted
+   */
+  public synchronized SweepReport sweep(final boolean dryRun, final Collection<String> active) throws IOException {
+    long start = System.currentTimeMillis();
+    final long cutoff = start - grace;
+    final SweepReport report = new SweepReport(dryRun);
+    File[] mediaPackageDirs = root.listFiles();
+    if (mediaPackageDirs == null)
+      throw new IOException("Unable to list " + root);
+    report.addDirectories(1);
+
+    final AtomicInteger count = new AtomicInteger();
+    ExecutorService walkers = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "HLS orphan sweeper " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    try {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final File mediaPackageDir : mediaPackageDirs) {
+        if (!mediaPackageDir.isDirectory() || mediaPackageDir.getName().startsWith("."))
+          continue;
+        futures.add(walkers.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            IOScheduler.setPriority(IOScheduler.Priority.BULK);
+            sweep(mediaPackageDir, dryRun, active, cutoff, report);
+            return null;
+          }
+        }));
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          logger.warn("Error sweeping the distribution directory", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while sweeping " + root);
+    } finally {
+      walkers.shutdownNow();
+    }
+
+    // Index entries whose directory is gone
+    for (DistributionIndexEntry entry : index.getEntries()) {
+      if (!new File(root, entry.getPath()).isDirectory()
+              && !active.contains(entry.getMediaPackageId() + "/" + entry.getElementId())) {
+        report.addOrphan(entry.getPath(), SweepReport.Reason.MISSING, entry.getSize());
+        if (!dryRun)
+          index.remove(entry.getMediaPackageId(), entry.getElementId());
+      }
+    }
+
+    report.setDuration(System.currentTimeMillis() - start);
+    logger.info("{} {} orphans ({} MB) in {} directories of {}", new Object[] {
+            dryRun ? "Found" : "Reconciled", report.getOrphans().size(), report.getBytes() / IOScheduler.MB,
+            report.getDirectories(), root });
+    return report;
+  }
+
+  /**
+   * Sweeps a mediapackage directory.
+   */
+  private void sweep(File mediaPackageDir, boolean dryRun, Collection<String> active, long cutoff,
+          SweepReport report) throws IOException {
+    String mediaPackageId = mediaPackageDir.getName();
+    File[] children = list(mediaPackageDir, report);
+    if (children == null)
+      return;
+    if (children.length == 0) {
+      if (mediaPackageDir.lastModified() < cutoff)
+        reclaim(mediaPackageDir, mediaPackageId, SweepReport.Reason.EMPTY, 0, dryRun, report);
+      return;
+    }
+    for (File child : children) {
+      String path = mediaPackageId + "/" + child.getName();
+      if (child.isFile()) {
+        if (child.getName().endsWith(DistributionLock.EXTENSION) && child.lastModified() < cutoff)
+          reclaim(child, path, SweepReport.Reason.SCRATCH, child.length(), dryRun, report);
+        continue;
+      }
+      String elementId = child.getName();
+      File lock = new File(mediaPackageDir, "." + elementId + DistributionLock.EXTENSION);
+      if (lock.isFile() && lock.lastModified() >= cutoff || active.contains(path))
+        continue;
+      boolean indexed = index.get(mediaPackageId, elementId) != null;
+      boolean received = new File(child, HLSDistributionServiceImpl.RECEIPT_FILE).isFile();
+      if (!indexed && !received) {
+        if (getLastModified(child, report) < cutoff)
+          reclaim(child, path, SweepReport.Reason.INCOMPLETE, FileUtils.sizeOfDirectory(child), dryRun, report);
+        continue;
+      }
+      sweepScratch(child, path, dryRun, cutoff, report);
+      if (!indexed) {
+        report.addOrphan(path, SweepReport.Reason.UNINDEXED, FileUtils.sizeOfDirectory(child));
+        if (!dryRun)
+          index.put(DistributionIndex.describe(root, mediaPackageId, elementId, null));
+      }
+    }
+  }
+
+  /**
+   * Deletes temporary files below a complete element directory.
+   */
+  private void sweepScratch(File directory, String path, boolean dryRun, long cutoff, SweepReport report)
+          throws IOException {
+    File[] children = list(directory, report);
+    if (children == null)
+      return;
+    for (File child : children) {
+      String childPath = path + "/" + child.getName();
+      if (child.isDirectory())
+        sweepScratch(child, childPath, dryRun, cutoff, report);
+      else if (isScratch(child) && child.lastModified() < cutoff)
+        reclaim(child, childPath, SweepReport.Reason.SCRATCH, child.length(), dryRun, report);
+    }
+  }
+
+  /**
+   * Whether a file is written temporarily while publishing, receiving a replica or segmenting a live stream.
+   */
+  static boolean isScratch(File file) {
+    String name = file.getName();
+    return name.endsWith(".tmp") || name.endsWith(Replicator.PARTIAL_EXTENSION)
+            || name.equals(LiveSession.CHUNK_LIST) || name.contains(LiveSession.PART_INFIX)
+            || name.endsWith(DistributionLock.EXTENSION);
+  }
+
+  /**
+   * Returns the latest modification time of a directory and the files below it.
+   */
+  private long getLastModified(File directory, SweepReport report) throws IOException {
+    long lastModified = directory.lastModified();
+    File[] children = list(directory, report);
+    if (children == null)
+      return lastModified;
+    for (File child : children)
+      lastModified = Math.max(lastModified, child.isDirectory() ? getLastModified(child, report) : child.lastModified());
+    return lastModified;
+  }
+
+  private File[] list(File directory, SweepReport report) throws IOException {
+    io.acquire(IOScheduler.Traffic.RECLAIM, 0, 1);
+    report.addDirectories(1);
+    File[] children = directory.listFiles();
+    return children != null ? children : new File[0];
+  }
+
+  private void reclaim(File file, String path, SweepReport.Reason reason, long size, boolean dryRun,
+          SweepReport report) throws IOException {
+    report.addOrphan(path, reason, size);
+    if (dryRun)
+      return;
+    logger.info("Reclaiming {} orphan {}", reason.toString().toLowerCase(), path);
+    io.delete(file, IOScheduler.Traffic.RECLAIM);
+  }
+
+  /**
+   * Returns the paths of a report that were deleted or would be deleted.
+   *
+   * @param report
+   *          the report
+   * @return the paths, relative to the distribution directory
+   */
+  public static List<String> getDeletedPaths(SweepReport report) {
+    List<String> paths = new ArrayList<String>();
+    for (SweepReport.Orphan orphan : report.getOrphans()) {
+      if (orphan.getReason() != SweepReport.Reason.UNINDEXED && orphan.getReason() != SweepReport.Reason.MISSING)
+        paths.add(orphan.getPath());
+    }
+    return Collections.unmodifiableList(paths);
+  }
+
+}
@@ -0,0 +1,335 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the siblings of distributed playlists that web servers would otherwise compute on every request: a gzipped
+ * copy next to every playlist, as served by <code>gzip_static</code> and similar modules, and optionally a copy with
+ * absolute URLs below the service URL, for edge servers that serve playlists from a different location than the
+ * segments.
+ * <p>
+ * Siblings carry the modification time of their playlist. A sibling with a different modification time is outdated
+ * and is rewritten, and siblings of playlists that no longer exist or of a kind that is no longer configured are
+ * removed, so that a directory can be brought up to date at any time.
+ */
+public class PlaylistVariants {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(PlaylistVariants.class);
+
+  /** Extension appended to the name of gzipped playlists */
+  public static final String GZIP_EXTENSION = ".gz";
+
+  /** Suffix of playlists with absolute URLs, inserted before the playlist extension */
+  public static final String ABSOLUTE_SUFFIX = "-absolute";
+
+  /** Quoted URI attributes of playlist tags */
+  private static final Pattern URI_ATTRIBUTE = Pattern.compile("URI=\"([^\"]*)\"");
+
+  /** The playlist encoding */
+  private static final String ENCODING = "UTF-8";
+
+  /** The distribution directory */
+  private final File root;
+
+  /** Whether gzipped siblings are written */
+  private final boolean gzip;
+
+  /** The URL of the distribution directory, or <code>null</code> if no absolute siblings are written */
+  private final String baseUrl;
+
+  /** The I/O scheduler to charge the written siblings to */
+  private final IOScheduler io;
+
+  /**
+   * Creates the playlist variants of a distribution directory.
+   *
+   * @param root
+   *          the distribution directory
+   * @param gzip
+   *          whether gzipped siblings are written
+   * @param baseUrl
+   *          the URL of the distribution directory, or <code>null</code> to not write siblings with absolute URLs
+   * @param io
+   *          the I/O scheduler
+   */
+  public PlaylistVariants(File root, boolean gzip, String baseUrl, IOScheduler io) {
+    this.root = root;
+    this.gzip = gzip;
+    this.baseUrl = baseUrl == null || baseUrl.endsWith("/") ? baseUrl : baseUrl + "/";
+    this.io = io;
+  }
+
+  /**
+   * Returns whether any siblings are written.
+   */
+  public boolean isEnabled() {
+    return gzip || baseUrl != null;
+  }
+
+  /**
+   * Returns the gzipped sibling of a playlist.
+   */
+  public static File getGzipFile(File playlist) {
+    return new File(playlist.getParentFile(), playlist.getName() + GZIP_EXTENSION);
+  }
+
+  /**
+   * Returns the sibling of a playlist with absolute URLs.
+   */
+  public static File getAbsoluteFile(File playlist) {
+    return new File(playlist.getParentFile(), getAbsoluteName(playlist.getName()));
+  }
+
+  private static String getAbsoluteName(String name) {
+    return name.substring(0, name.length() - HLSDistributionServiceImpl.PLAYLIST_EXTENSION.length())
+            + ABSOLUTE_SUFFIX + HLSDistributionServiceImpl.PLAYLIST_EXTENSION;
+  }
+
+  /**
+   * Returns whether <code>file</code> is a playlist that siblings are written for.
+   */
+  public static boolean isPlaylist(File file) {
+    String name = file.getName();
+    return name.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION)
+            && !name.endsWith(ABSOLUTE_SUFFIX + HLSDistributionServiceImpl.PLAYLIST_EXTENSION);
+  }
+
+  /**
+   * Returns the playlist a sibling was written for, or <code>null</code> if <code>file</code> is no sibling.
+   */
+  public static File getPlaylist(File file) {
+    String name = file.getName();
+    if (name.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION + GZIP_EXTENSION))
+      name = name.substring(0, name.length() - GZIP_EXTENSION.length());
+    else if (!name.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION))
+      return null;
+    String absoluteSuffix = ABSOLUTE_SUFFIX + HLSDistributionServiceImpl.PLAYLIST_EXTENSION;
+    if (name.endsWith(absoluteSuffix))
+      name = name.substring(0, name.length() - absoluteSuffix.length()) + HLSDistributionServiceImpl.PLAYLIST_EXTENSION;
+    else if (name.equals(file.getName()))
+      return null;
+    return new File(file.getParentFile(), name);
+  }
+
+  /**
+   * Brings the siblings of the playlists in <code>directory</code> and its subdirectories up to date.
+   *
+   * @param directory
+   *          the directory
+   * @param force
+   *          whether to rewrite siblings that look current, e.g. because the playlists were just written
+   * @return the number of siblings written or removed
+   * @throws IOException
+   *           if a sibling cannot be written
+   */
+  public int update(File directory, boolean force) throws IOException {
+    File[] files = directory.listFiles();
+    if (files == null)
+      return 0;
+    int changed = 0;
+    for (File file : files) {
+      if (file.isDirectory()) {
+        changed += update(file, force);
+      } else if (isPlaylist(file)) {
+        changed += write(file, force);
+      } else {
+        File playlist = getPlaylist(file);
+        if (playlist != null && (!playlist.isFile() || !isWanted(file)) && file.delete())
+          changed++;
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Writes the configured siblings of a playlist and removes the others.
+   *
+   * @param playlist
+   *          the playlist
+   * @param force
+   *          whether to rewrite siblings that look current
+   * @return the number of siblings written or removed
+   * @throws IOException
+   *           if a sibling cannot be written
+   */
+  public int write(File playlist, boolean force) throws IOException {
+    int changed = 0;
+    long lastModified = playlist.lastModified();
+    byte[] data = null;
+    File absolute = getAbsoluteFile(playlist);
+    if (baseUrl != null) {
+      if (force || absolute.lastModified() != lastModified) {
+        data = FileUtils.readFileToByteArray(playlist);
+        write(absolute, absolutize(new String(data, ENCODING), getUrl(playlist.getParentFile())).getBytes(ENCODING),
+                lastModified);
+        changed++;
+      }
+      changed += writeGzip(absolute, lastModified, force);
+    } else {
+      changed += remove(absolute) + remove(getGzipFile(absolute));
+    }
+    changed += writeGzip(playlist, lastModified, force);
+    if (changed > 0)
+      logger.debug("Updated {} siblings of {}", changed, playlist);
+    return changed;
+  }
+
+  /**
+   * Returns all possible siblings of a playlist, whether they exist or not.
+   */
+  public static List<File> getSiblings(File playlist) {
+    File absolute = getAbsoluteFile(playlist);
+    return Arrays.asList(getGzipFile(playlist), absolute, getGzipFile(absolute));
+  }
+
+  /**
+   * Removes all siblings of a playlist.
+   *
+   * @param playlist
+   *          the playlist
+   */
+  public static void delete(File playlist) {
+    for (File sibling : getSiblings(playlist))
+      FileUtils.deleteQuietly(sibling);
+  }
+
+  /**
+   * Replaces the relative URIs of a playlist, in URI lines and in the URI attribute of tags, with absolute ones. URIs
+   * of other playlists are pointed at their siblings with absolute URLs.
+   *
+   * @param playlist
+   *          the playlist
+   * @param base
+   *          the URL of the playlist's directory
+   * @return the playlist with absolute URLs
+   */
+  static String absolutize(String playlist, URI base) {
+    StringBuilder result = new StringBuilder(playlist.length() * 2);
+    for (String line : playlist.split("\n", -1)) {
+      if (result.length() > 0)
+        result.append('\n');
+      String trimmed = line.trim();
+      if (trimmed.length() == 0) {
+        result.append(line);
+      } else if (!trimmed.startsWith("#")) {
+        result.append(resolve(base, trimmed));
+      } else {
+        Matcher matcher = URI_ATTRIBUTE.matcher(line);
+        StringBuffer tag = new StringBuffer();
+        while (matcher.find())
+          matcher.appendReplacement(tag, Matcher.quoteReplacement("URI=\"" + resolve(base, matcher.group(1)) + "\""));
+        matcher.appendTail(tag);
+        result.append(tag);
+      }
+    }
+    return result.toString();
+  }
+
+  private static String resolve(URI base, String uri) {
+    URI reference;
+    try {
+      reference = new URI(uri);
+    } catch (URISyntaxException e) {
+      return uri;
+    }
+    if (reference.isAbsolute() || uri.startsWith("/"))
+      return uri;
+    // The path of a relative reference starts the URI, followed by the query and fragment
+    String path = reference.getRawPath();
+    if (path.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION))
+      uri = getAbsoluteName(path) + uri.substring(path.length());
+    return base.resolve(uri).toString();
+  }
+
+  /**
+   * Returns the URL of a directory below the distribution directory.
+   */
+  private URI getUrl(File directory) {
+    return URI.create(baseUrl + root.toURI().relativize(directory.toURI()).getRawPath());
+  }
+
+  private boolean isWanted(File sibling) {
+    boolean compressed = sibling.getName().endsWith(GZIP_EXTENSION);
+    boolean absolute = sibling.getName().contains(ABSOLUTE_SUFFIX + HLSDistributionServiceImpl.PLAYLIST_EXTENSION);
+    return (!compressed || gzip) && (!absolute || baseUrl != null);
+  }
+
+  private int writeGzip(File playlist, long lastModified, boolean force) throws IOException {
+    File compressed = getGzipFile(playlist);
+    if (!gzip)
+      return remove(compressed);
+    if (!force && compressed.lastModified() == lastModified)
+      return 0;
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) playlist.length() / 4 + 64);
+    GZIPOutputStream out = new GZIPOutputStream(bytes);
+    try {
+      out.write(FileUtils.readFileToByteArray(playlist));
+    } finally {
+      out.close();
+    }
+    write(compressed, bytes.toByteArray(), lastModified);
+    return 1;
+  }
+
+  /**
+   * Writes a sibling into a temporary file that replaces it once it is complete, so web servers never serve a
+   * partially written sibling.
+   */
+  private void write(File file, byte[] data, long lastModified) throws IOException {
+    io.acquire(IOScheduler.Traffic.PUBLISH, data.length, 1);
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    try {
+      OutputStream out = new FileOutputStream(temporary);
+      try {
+        out.write(data);
+      } finally {
+        out.close();
+      }
+    } catch (IOException e) {
+      temporary.delete();
+      throw e;
+    }
+    temporary.setLastModified(lastModified);
+    if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+      temporary.delete();
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  private static int remove(File file) {
+    return file.delete() ? 1 : 0;
+  }
+
+}
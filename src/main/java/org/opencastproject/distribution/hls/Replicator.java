@@ -0,0 +1,758 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.security.api.TrustedHttpClient;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.methods.HttpDelete;
+import org.apache.http.client.methods.HttpPut;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.entity.FileEntity;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Replicates the distribution directory to peer roots incrementally. Paths below the distribution directory are
+ * queued after every job that changed them. A background thread then sends what changed since the path was last
+ * replicated to each target and deletes what is gone, with the files of one path transferred in parallel.
+ * <p>
+ * Changes are detected by comparing the current files with a journal of the files sent to each target. Files listed in
+ * an {@link IntegrityManifest} are compared by size and digest, so they are not sent again if only their modification
+ * time changed, other files by size and modification time. The queue and the journals are kept on disk, so an
+ * interrupted replication resumes where it stopped after a restart.
+ * <p>
+ * Segments are sent before playlists and playlists before manifests and receipts, so a target never references files
+ * it does not have yet.
+ */
+public class Replicator {
+
+  /** The logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(Replicator.class);
+
+  /** Name of the queue directory within the state directory */
+  private static final String QUEUE_DIRECTORY = "queue";
+
+  /** Extension of journal files */
+  private static final String JOURNAL_EXTENSION = ".sent";
+
+  /** Journal value of deleted files */
+  private static final String DELETED = "-";
+
+  /** Time in millis before a failed path is replicated again */
+  private static final long RETRY_DELAY = 60000L;
+
+  /** Extension of files being received */
+  static final String PARTIAL_EXTENSION = ".replica";
+
+  /** The distribution directory */
+  private final File root;
+
+  /** Holds the queue and the journals */
+  private final File stateDirectory;
+
+  /** The targets */
+  private final List<Target> targets;
+
+  /** The scheduler of local file work */
+  private final IOScheduler io;
+
+  /** Executes the transfers */
+  private final ExecutorService transfers;
+
+  /** Paths waiting to be replicated, in order */
+  private final Set<String> pending = new LinkedHashSet<String>();
+
+  /** Time in millis before which failed paths are not retried */
+  private final Map<String, Long> retries = new HashMap<String, Long>();
+
+  /** The path being replicated, or <code>null</code> */
+  private String running = null;
+
+  /** Whether the running path was queued again while it was replicated */
+  private boolean requeued = false;
+
+  /** The thread working off the queue */
+  private Thread dispatcher = null;
+
+  /** Whether the replicator has been shut down */
+  private volatile boolean shutdown = false;
+
+  /**
+   * Creates a replicator and loads the paths queued before the last shutdown.
+   *
+   * @param root
+   *          the distribution directory
+   * @param stateDirectory
+   *          the directory holding the queue and the journals
+   * @param targets
+   *          the targets
+   * @param threads
+   *          the number of parallel transfers
+   * @param io
+   *          the scheduler of local file work
+   * @throws IOException
+   *           if the state directory cannot be read
+   */
+  public Replicator(File root, File stateDirectory, List<Target> targets, int threads, IOScheduler io)
+          throws IOException {
+    this.root = root;
+    this.stateDirectory = stateDirectory;
+    this.targets = targets;
+    this.io = io;
+    final AtomicInteger count = new AtomicInteger();
+    this.transfers = Executors.newFixedThreadPool(Math.max(1, threads), new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "HLS replication " + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    File queue = new File(stateDirectory, QUEUE_DIRECTORY);
+    FileUtils.forceMkdir(queue);
+    File[] queued = queue.listFiles();
+    if (queued != null) {
+      for (File file : queued)
+        pending.add(decode(file.getName()));
+    }
+    if (!pending.isEmpty())
+      logger.info("Resuming replication of {} paths", pending.size());
+  }
+
+  /**
+   * Parses a comma separated list of targets. Entries starting with <code>http://</code> or <code>https://</code> are
+   * nodes accepting files by HTTP, anything else is a local directory.
+   *
+   * @param value
+   *          the list
+   * @param client
+   *          the client used for HTTP targets
+   * @param io
+   *          the scheduler of local file work
+   * @return the targets
+   */
+  public static List<Target> parseTargets(String value, TrustedHttpClient client, IOScheduler io) {
+    List<Target> targets = new ArrayList<Target>();
+    if (value == null)
+      return targets;
+    for (String entry : value.split(",")) {
+      entry = entry.trim();
+      if (entry.length() == 0)
+        continue;
+      if (entry.startsWith("http://") || entry.startsWith("https://"))
+        targets.add(new HttpTarget(entry, client));
+      else
+        targets.add(new DirectoryTarget(new File(entry), io));
+    }
+    return targets;
+  }
+
+  /**
+   * Starts working off the queue.
+   */
+  public synchronized void start() {
+    if (dispatcher != null)
+      return;
+    dispatcher = new Thread("HLS replication dispatcher") {
+      @Override
+      public void run() {
+        dispatch();
+      }
+    };
+    dispatcher.setDaemon(true);
+    dispatcher.start();
+  }
+
+  /**
+   * Stops working off the queue. Queued paths are replicated after the next start.
+   */
+  public void shutdown() {
+    shutdown = true;
+    synchronized (this) {
+      notifyAll();
+    }
+    transfers.shutdownNow();
+  }
+
+  /**
+   * Queues a path for replication. If the path no longer exists, it is deleted from the targets.
+   *
+   * @param path
+   *          the file or directory, relative to the distribution directory
+   */
+  public void sync(String path) {
+    try {
+      FileUtils.touch(new File(new File(stateDirectory, QUEUE_DIRECTORY), encode(path)));
+    } catch (IOException e) {
+      logger.warn("Unable to persist the replication of {}, it is lost on restart", path, e);
+    }
+    synchronized (this) {
+      if (path.equals(running))
+        requeued = true;
+      else
+        pending.add(path);
+      retries.remove(path);
+      notifyAll();
+    }
+  }
+
+  /**
+   * Returns the number of paths waiting to be replicated.
+   */
+  public synchronized int getQueueSize() {
+    return pending.size() + (running != null ? 1 : 0);
+  }
+
+  private void dispatch() {
+    while (!shutdown) {
+      String path;
+      synchronized (this) {
+        path = next();
+        if (path == null) {
+          try {
+            wait(getWaitTime());
+          } catch (InterruptedException e) {
+            return;
+          }
+          continue;
+        }
+        pending.remove(path);
+        running = path;
+        requeued = false;
+      }
+      boolean replicated = false;
+      try {
+        replicate(path);
+        replicated = true;
+      } catch (Exception e) {
+        logger.warn("Unable to replicate {}, retrying in {}s: {}", new Object[] { path, RETRY_DELAY / 1000,
+                e.getMessage() });
+      }
+      synchronized (this) {
+        running = null;
+        if (!replicated && !shutdown) {
+          pending.add(path);
+          retries.put(path, System.currentTimeMillis() + RETRY_DELAY);
+        } else if (requeued) {
+          pending.add(path);
+        } else if (replicated) {
+          FileUtils.deleteQuietly(new File(new File(stateDirectory, QUEUE_DIRECTORY), encode(path)));
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the next path that is not waiting for a retry, or <code>null</code>. Must be called with the monitor held.
+   */
+  private String next() {
+    long now = System.currentTimeMillis();
+    for (String path : pending) {
+      Long retry = retries.get(path);
+      if (retry == null || retry <= now)
+        return path;
+    }
+    return null;
+  }
+
+  /**
+   * Returns the time in millis until the next retry is due, or 0 to wait for new paths. Must be called with the
+   * monitor held.
+   */
+  private long getWaitTime() {
+    long wait = 0;
+    long now = System.currentTimeMillis();
+    for (String path : pending) {
+      Long retry = retries.get(path);
+      if (retry != null && (wait == 0 || retry - now < wait))
+        wait = Math.max(1, retry - now);
+    }
+    return wait;
+  }
+
+  /**
+   * Replicates a path to all targets.
+   *
+   * @param path
+   *          the file or directory, relative to the distribution directory
+   * @throws IOException
+   *           if the path could not be replicated to one of the targets
+   */
+  void replicate(String path) throws IOException {
+    Map<String, String> current = list(path);
+    IOException failure = null;
+    for (Target target : targets) {
+      try {
+        replicate(target, path, current);
+      } catch (IOException e) {
+        failure = e;
+        logger.debug("Replication of {} to {} failed", new Object[] { path, target.getName(), e });
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
+  private void replicate(final Target target, String path, Map<String, String> current) throws IOException {
+    final Journal journal = new Journal(new File(new File(stateDirectory, encode(target.getName())), encode(path)
+            + JOURNAL_EXTENSION));
+    Map<String, String> sent = journal.load();
+
+    // Send what changed, in phases so that no file is referenced before it arrived
+    List<List<String>> phases = new ArrayList<List<String>>();
+    for (int i = 0; i < 3; i++)
+      phases.add(new ArrayList<String>());
+    for (Map.Entry<String, String> file : current.entrySet()) {
+      if (!file.getValue().equals(sent.get(file.getKey())))
+        phases.get(getPhase(file.getKey())).add(file.getKey());
+    }
+    int sentFiles = 0;
+    for (List<String> phase : phases) {
+      List<Future<Void>> futures = new ArrayList<Future<Void>>();
+      for (final String file : phase) {
+        final String signature = current.get(file);
+        futures.add(transfers.submit(new Callable<Void>() {
+          @Override
+          public Void call() throws Exception {
+            IOScheduler.setPriority(IOScheduler.Priority.BULK);
+            target.put(file, new File(root, file));
+            journal.append(file, signature);
+            return null;
+          }
+        }));
+      }
+      await(futures);
+      sentFiles += phase.size();
+    }
+
+    // Delete what is gone
+    int deletedFiles = 0;
+    for (String file : sent.keySet()) {
+      if (!current.containsKey(file)) {
+        target.delete(file);
+        journal.append(file, DELETED);
+        deletedFiles++;
+      }
+    }
+    if (!new File(root, path).exists()) {
+      target.delete(path);
+      journal.delete();
+    } else {
+      journal.compact(current);
+    }
+    if (sentFiles > 0 || deletedFiles > 0)
+      logger.info("Replicated {} to {}: {} files sent, {} deleted", new Object[] { path, target.getName(),
+              sentFiles, deletedFiles });
+  }
+
+  /**
+   * Lists the files below a path with their signatures.
+   *
+   * @return the signatures by path relative to the distribution directory
+   */
+  Map<String, String> list(String path) throws IOException {
+    Map<String, String> files = new LinkedHashMap<String, String>();
+    File file = new File(root, path);
+    if (file.isDirectory())
+      list(file, path, files);
+    else if (file.isFile() && isReplicated(file))
+      files.put(path, file.length() + " " + file.lastModified());
+    return files;
+  }
+
+  private void list(File directory, String path, Map<String, String> files) throws IOException {
+    File[] children = directory.listFiles();
+    if (children == null)
+      return;
+    Map<String, IntegrityManifest.Entry> digests = new HashMap<String, IntegrityManifest.Entry>();
+    for (File child : children) {
+      if (child.isFile() && IntegrityManifest.isManifest(child)) {
+        for (IntegrityManifest.Entry entry : IntegrityManifest.read(child).getEntries())
+          digests.put(entry.getName(), entry);
+      }
+    }
+    for (File child : children) {
+      String childPath = path + "/" + child.getName();
+      if (child.isDirectory()) {
+        list(child, childPath, files);
+      } else if (isReplicated(child)) {
+        IntegrityManifest.Entry entry = digests.get(child.getName());
+        if (entry != null && entry.getSize() == child.length() && entry.getLastModified() == child.lastModified())
+          files.put(childPath, child.length() + " " + entry.getDigest());
+        else
+          files.put(childPath, child.length() + " " + child.lastModified());
+      }
+    }
+  }
+
+  /**
+   * Whether a file is part of a distribution, as opposed to files that are being written or locks.
+   */
+  private static boolean isReplicated(File file) {
+    String name = file.getName();
+    return !name.endsWith(".tmp") && !name.endsWith(PARTIAL_EXTENSION) && !name.endsWith(DistributionLock.EXTENSION)
+            && !name.equals(LiveSession.CHUNK_LIST);
+  }
+
+  /**
+   * Returns the phase a file is sent in: media first, then playlists, then manifests and receipts.
+   */
+  private static int getPhase(String path) {
+    String name = path.substring(path.lastIndexOf('/') + 1);
+    if (name.startsWith("."))
+      return 2;
+    if (name.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION) || name.endsWith(DashManifest.EXTENSION)
+            || name.endsWith(ThumbnailSprites.TRACK_SUFFIX))
+      return 1;
+    return 0;
+  }
+
+  private static void await(List<Future<Void>> futures) throws IOException {
+    IOException failure = null;
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while replicating");
+      } catch (ExecutionException e) {
+        if (failure == null) {
+          failure = new IOException(e.getCause().getMessage());
+          failure.initCause(e.getCause());
+        }
+      }
+    }
+    if (failure != null)
+      throw failure;
+  }
+
+  /**
+   * Stores a file received from another node below <code>root</code>. The file is written next to its destination
+   * and renamed once complete, so a partially received file is never served.
+   *
+   * @param root
+   *          the distribution directory
+   * @param path
+   *          the file, relative to <code>root</code>
+   * @param in
+   *          the file content
+   * @throws IOException
+   *           if the path is outside of <code>root</code> or the file cannot be written
+   */
+  public static void receive(File root, String path, InputStream in) throws IOException {
+    File file = resolve(root, path);
+    FileUtils.forceMkdir(file.getParentFile());
+    File partial = new File(file.getParentFile(), file.getName() + PARTIAL_EXTENSION);
+    OutputStream out = new FileOutputStream(partial);
+    try {
+      byte[] buffer = new byte[64 * 1024];
+      int n;
+      while ((n = in.read(buffer)) >= 0)
+        out.write(buffer, 0, n);
+    } catch (IOException e) {
+      out.close();
+      FileUtils.deleteQuietly(partial);
+      throw e;
+    } finally {
+      out.close();
+    }
+    if (!partial.renameTo(file) && !(file.delete() && partial.renameTo(file))) {
+      FileUtils.deleteQuietly(partial);
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  /**
+   * Deletes a file or directory removed on another node, along with parent directories that became empty.
+   *
+   * @param root
+   *          the distribution directory
+   * @param path
+   *          the file or directory, relative to <code>root</code>
+   * @param io
+   *          the scheduler of the deletes
+   * @throws IOException
+   *           if the path is outside of <code>root</code> or cannot be deleted
+   */
+  public static void remove(File root, String path, IOScheduler io) throws IOException {
+    File file = resolve(root, path);
+    if (file.exists())
+      io.delete(file, IOScheduler.Traffic.RECLAIM);
+    File canonicalRoot = root.getCanonicalFile();
+    for (File parent = file.getParentFile(); parent != null && !parent.equals(canonicalRoot); parent = parent
+            .getParentFile()) {
+      String[] remaining = parent.list();
+      if (remaining == null || remaining.length > 0 || !parent.delete())
+        break;
+    }
+  }
+
+  /**
+   * Resolves a path below <code>root</code>, refusing paths leaving it.
+   */
+  static File resolve(File root, String path) throws IOException {
+    File canonicalRoot = root.getCanonicalFile();
+    File file = new File(canonicalRoot, path).getCanonicalFile();
+    if (!file.getPath().startsWith(canonicalRoot.getPath() + File.separator))
+      throw new IOException("Path " + path + " is outside of " + root);
+    return file;
+  }
+
+  private static String encode(String path) {
+    try {
+      return URLEncoder.encode(path, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  private static String decode(String name) {
+    try {
+      return URLDecoder.decode(name, "UTF-8");
+    } catch (UnsupportedEncodingException e) {
+      throw new IllegalStateException(e);
+    }
+  }
+
+  /**
+   * A replication target.
+   */
+  public interface Target {
+
+    /**
+     * Returns a name identifying the target.
+     */
+    String getName();
+
+    /**
+     * Stores a file.
+     *
+     * @param path
+     *          the path relative to the distribution directory
+     * @param file
+     *          the local file
+     */
+    void put(String path, File file) throws IOException;
+
+    /**
+     * Deletes a file or a directory with all its contents. Paths that do not exist are ignored.
+     *
+     * @param path
+     *          the path relative to the distribution directory
+     */
+    void delete(String path) throws IOException;
+
+  }
+
+  /**
+   * A directory on a file system of this node, e.g. a mounted standby volume.
+   */
+  public static class DirectoryTarget implements Target {
+
+    private final File directory;
+
+    private final IOScheduler io;
+
+    public DirectoryTarget(File directory, IOScheduler io) {
+      this.directory = directory;
+      this.io = io;
+    }
+
+    @Override
+    public String getName() {
+      return directory.getAbsolutePath();
+    }
+
+    @Override
+    public void put(String path, File file) throws IOException {
+      File target = resolve(directory, path);
+      FileUtils.forceMkdir(target.getParentFile());
+      File partial = new File(target.getParentFile(), target.getName() + PARTIAL_EXTENSION);
+      io.copy(file, partial, IOScheduler.Traffic.PUBLISH);
+      partial.setLastModified(file.lastModified());
+      if (!partial.renameTo(target) && !(target.delete() && partial.renameTo(target))) {
+        FileUtils.deleteQuietly(partial);
+        throw new IOException("Could not replace " + target);
+      }
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+      remove(directory, path, io);
+    }
+
+  }
+
+  /**
+   * A node accepting files by HTTP <code>PUT</code> and deletions by HTTP <code>DELETE</code>, such as the replica
+   * endpoint of the HLS distribution service of another node.
+   */
+  public static class HttpTarget implements Target {
+
+    private final String url;
+
+    private final TrustedHttpClient client;
+
+    public HttpTarget(String url, TrustedHttpClient client) {
+      this.url = url.endsWith("/") ? url.substring(0, url.length() - 1) : url;
+      this.client = client;
+    }
+
+    @Override
+    public String getName() {
+      return url;
+    }
+
+    @Override
+    public void put(String path, File file) throws IOException {
+      HttpPut put = new HttpPut(getUrl(path));
+      put.setEntity(new FileEntity(file, "application/octet-stream"));
+      execute(put, path, false);
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+      execute(new HttpDelete(getUrl(path)), path, true);
+    }
+
+    private void execute(HttpUriRequest request, String path, boolean allowMissing) throws IOException {
+      HttpResponse response;
+      try {
+        response = client.execute(request);
+      } catch (Exception e) {
+        IOException ioe = new IOException("Unable to reach " + url + ": " + e.getMessage());
+        ioe.initCause(e);
+        throw ioe;
+      }
+      try {
+        int status = response.getStatusLine().getStatusCode();
+        if ((status < 200 || status >= 300) && !(allowMissing && status == 404))
+          throw new IOException(url + " answered " + status + " for " + path);
+      } finally {
+        client.close(response);
+      }
+    }
+
+    private String getUrl(String path) {
+      StringBuilder result = new StringBuilder(url);
+      for (String segment : path.split("/"))
+        result.append('/').append(encode(segment).replace("+", "%20"));
+      return result.toString();
+    }
+
+  }
+
+  /**
+   * The files sent to a target below one path. Every transfer is appended as it completes, so a replication that is
+   * interrupted resumes with the files that were not sent yet.
+   */
+  private static final class Journal {
+
+    private final File file;
+
+    Journal(File file) {
+      this.file = file;
+    }
+
+    Map<String, String> load() throws IOException {
+      Map<String, String> sent = new HashMap<String, String>();
+      if (!file.isFile())
+        return sent;
+      BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+      try {
+        for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+          int tab = line.indexOf('\t');
+          if (tab < 0)
+            continue;
+          String signature = line.substring(0, tab);
+          if (DELETED.equals(signature))
+            sent.remove(line.substring(tab + 1));
+          else
+            sent.put(line.substring(tab + 1), signature);
+        }
+      } finally {
+        reader.close();
+      }
+      return sent;
+    }
+
+    synchronized void append(String path, String signature) throws IOException {
+      FileUtils.forceMkdir(file.getParentFile());
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file, true), "UTF-8");
+      try {
+        writer.write(signature + "\t" + path + "\n");
+      } finally {
+        writer.close();
+      }
+    }
+
+    /**
+     * Replaces the journal with the passed files.
+     */
+    synchronized void compact(Map<String, String> files) throws IOException {
+      FileUtils.forceMkdir(file.getParentFile());
+      File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+      Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), "UTF-8");
+      try {
+        for (Map.Entry<String, String> entry : files.entrySet())
+          writer.write(entry.getValue() + "\t" + entry.getKey() + "\n");
+      } finally {
+        writer.close();
+      }
+      if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file)))
+        throw new IOException("Could not replace " + file);
+    }
+
+    synchronized void delete() {
+      FileUtils.deleteQuietly(file);
+    }
+
+  }
+
+}
@@ -0,0 +1,161 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import java.io.InterruptedIOException;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Limits the number of jobs using a scarce resource at the same time. A job that finds all slots of a resource taken
+ * waits in line without holding any of the resource, so the number of accepted jobs can be raised without starting
+ * more ffmpeg processes, disk transfers or HTTP requests than the node can handle.
+ * <p>
+ * Slots are handed out in the order they were asked for, so that a burst of jobs drains in the order it arrived.
+ */
+public class ResourceLimits {
+
+  /** The limited resources */
+  public enum Resource {
+    /** ffmpeg processes */
+    FFMPEG,
+    /** Fetching sources from the workspace, publishing and retracting distributions */
+    IO,
+    /** HTTP requests checking the availability of distributed elements */
+    HTTP
+  }
+
+  /** The slots by resource, no entry if the resource is unlimited */
+  private final Map<Resource, Semaphore> slots = new EnumMap<Resource, Semaphore>(Resource.class);
+
+  /** The number of slots by resource */
+  private final Map<Resource, Integer> limits = new EnumMap<Resource, Integer>(Resource.class);
+
+  /** The number of jobs waiting for a slot by resource */
+  private final Map<Resource, AtomicInteger> waiting = new EnumMap<Resource, AtomicInteger>(Resource.class);
+
+  /** The number of slots in use by resource */
+  private final Map<Resource, AtomicInteger> inUse = new EnumMap<Resource, AtomicInteger>(Resource.class);
+
+  /**
+   * Creates the limits. A limit of 0 or less leaves the resource unlimited.
+   *
+   * @param ffmpeg
+   *          the number of concurrent ffmpeg processes
+   * @param io
+   *          the number of concurrent fetches, publications and retractions
+   * @param http
+   *          the number of concurrent availability checks
+   */
+  public ResourceLimits(int ffmpeg, int io, int http) {
+    limits.put(Resource.FFMPEG, Math.max(0, ffmpeg));
+    limits.put(Resource.IO, Math.max(0, io));
+    limits.put(Resource.HTTP, Math.max(0, http));
+    for (Resource resource : Resource.values()) {
+      if (limits.get(resource) > 0)
+        slots.put(resource, new Semaphore(limits.get(resource), true));
+      waiting.put(resource, new AtomicInteger());
+      inUse.put(resource, new AtomicInteger());
+    }
+  }
+
+  /**
+   * Waits for a slot of a resource.
+   *
+   * @param resource
+   *          the resource
+   * @return the slot, to be released once the resource is no longer used
+   * @throws InterruptedIOException
+   *           if the thread is interrupted while waiting
+   */
+  public Slot acquire(Resource resource) throws InterruptedIOException {
+    Semaphore semaphore = slots.get(resource);
+    if (semaphore != null && !semaphore.tryAcquire()) {
+      waiting.get(resource).incrementAndGet();
+      try {
+        semaphore.acquire();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while waiting for a " + resource + " slot");
+      } finally {
+        waiting.get(resource).decrementAndGet();
+      }
+    }
+    inUse.get(resource).incrementAndGet();
+    return new Slot(resource);
+  }
+
+  /**
+   * Returns the number of slots of a resource, 0 if it is unlimited.
+   */
+  public int getLimit(Resource resource) {
+    return limits.get(resource);
+  }
+
+  /**
+   * Returns the number of slots of a resource in use.
+   */
+  public int getInUse(Resource resource) {
+    return inUse.get(resource).get();
+  }
+
+  /**
+   * Returns the number of jobs waiting for a slot of a resource.
+   */
+  public int getWaiting(Resource resource) {
+    return waiting.get(resource).get();
+  }
+
+  private void release(Resource resource) {
+    inUse.get(resource).decrementAndGet();
+    Semaphore semaphore = slots.get(resource);
+    if (semaphore != null)
+      semaphore.release();
+  }
+
+  /**
+   * A slot of a resource held by one job.
+   */
+  public final class Slot {
+
+    private final Resource resource;
+
+    private boolean released = false;
+
+    private Slot(Resource resource) {
+      this.resource = resource;
+    }
+
+    public Resource getResource() {
+      return resource;
+    }
+
+    /**
+     * Returns the slot to the resource. Releasing a slot twice has no effect.
+     */
+    public synchronized void release() {
+      if (released)
+        return;
+      released = true;
+      ResourceLimits.this.release(resource);
+    }
+
+  }
+
+}
@@ -0,0 +1,377 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherOutputStream;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * HLS AES-128 segment encryption. Segments are encrypted while they are written to the distribution directory, so the
+ * plain segment is read exactly once. Every segment gets its own random IV, and a new key is generated every
+ * <code>rotation</code> segments. The work is spread over a bounded thread pool shared by all jobs.
+ * <p>
+ * Keys are never written next to the segments. They are kept in a separate key directory mirroring the layout of the
+ * distribution directory, and the playlists refer to them through the URL of a key server that decides who may fetch
+ * them.
+ */
+public class SegmentEncryption {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(SegmentEncryption.class);
+
+  /** Key file extension */
+  public static final String KEY_EXTENSION = ".key";
+
+  /** The cipher used for segments */
+  private static final String CIPHER = "AES/CBC/PKCS5Padding";
+
+  /** Key and IV length in bytes */
+  private static final int KEY_LENGTH = 16;
+
+  /** Copy buffer size */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Number of segments encrypted with the same key, 0 to use one key per playlist */
+  private final int rotation;
+
+  /** The directory the segments are distributed to */
+  private final File root;
+
+  /** The directory the keys are written to, outside of <code>root</code> */
+  private final File keyDirectory;
+
+  /** Prefix prepended to the key paths in EXT-X-KEY URIs */
+  private final String keyUriPrefix;
+
+  /** The encryption workers */
+  private final ExecutorService executor;
+
+  /** Source of keys and IVs */
+  private final SecureRandom random = new SecureRandom();
+
+  /**
+   * Creates the segment encryption.
+   *
+   * @param rotation
+   *          number of segments per key, 0 to use one key per playlist
+   * @param root
+   *          the directory the segments are distributed to
+   * @param keyDirectory
+   *          the directory the keys are written to, which must not be served along with <code>root</code>
+   * @param keyUriPrefix
+   *          prefix of the key URIs written to the playlists, i.e. the URL the key directory is served from
+   * @param threads
+   *          the number of encryption workers
+   */
+  public SegmentEncryption(int rotation, File root, File keyDirectory, String keyUriPrefix, int threads) {
+    if (rotation < 0 || threads < 1)
+      throw new IllegalArgumentException("Key rotation must not be negative and there must be at least one worker");
+    if (keyUriPrefix == null || keyUriPrefix.trim().length() == 0)
+      throw new IllegalArgumentException("Encrypted segments need the URL of a key server");
+    if (keyDirectory.getAbsolutePath().startsWith(root.getAbsolutePath() + File.separator))
+      throw new IllegalArgumentException("Keys must not be written to the distribution directory " + root);
+    this.rotation = rotation;
+    this.root = root;
+    this.keyDirectory = keyDirectory;
+    this.keyUriPrefix = keyUriPrefix.endsWith("/") ? keyUriPrefix : keyUriPrefix + "/";
+    final AtomicInteger count = new AtomicInteger();
+    this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+              @Override
+              public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "hls-encryption-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              }
+            });
+  }
+
+  /**
+   * Starts encrypting the segments of one playlist.
+   *
+   * @param directory
+   *          the directory the segments are written to
+   * @param prefix
+   *          the name prefix of the key files
+   * @return the encryption session
+   */
+  public Session newSession(File directory, String prefix) {
+    return newSession(directory, prefix, new IOScheduler());
+  }
+
+  /**
+   * Starts encrypting the segments of one playlist, charging the segments written to the publishing budget of
+   * <code>io</code> with the priority of the calling thread.
+   *
+   * @param directory
+   *          the directory the segments are written to
+   * @param prefix
+   *          the name prefix of the key files
+   * @param io
+   *          the I/O scheduler
+   * @return the encryption session
+   */
+  public Session newSession(File directory, String prefix, IOScheduler io) {
+    return new Session(getKeyDirectory(directory), getKeyPath(directory), prefix, io, IOScheduler.getPriority());
+  }
+
+  /**
+   * Returns the directory the keys are written to.
+   *
+   * @return the key directory
+   */
+  public File getKeyDirectory() {
+    return keyDirectory;
+  }
+
+  /**
+   * Returns the directory holding the keys of the segments in <code>directory</code>.
+   *
+   * @param directory
+   *          a directory below the distribution directory
+   * @return the key directory
+   */
+  public File getKeyDirectory(File directory) {
+    String path = getKeyPath(directory);
+    return path.length() == 0 ? keyDirectory : new File(keyDirectory, path);
+  }
+
+  /**
+   * Returns the path of <code>directory</code> relative to the distribution directory, ending with a slash unless it is
+   * the distribution directory itself.
+   */
+  private String getKeyPath(File directory) {
+    URI relative = toDirectoryUri(root).relativize(toDirectoryUri(directory));
+    if (relative.isAbsolute())
+      throw new IllegalArgumentException(directory + " is not below the distribution directory " + root);
+    return relative.getPath();
+  }
+
+  /**
+   * Stops the encryption workers.
+   */
+  public void shutdown() {
+    executor.shutdownNow();
+  }
+
+  /**
+   * Returns the URI of a directory, which only ends with a slash if the directory exists unless it is added.
+   */
+  private static URI toDirectoryUri(File directory) {
+    String uri = directory.getAbsoluteFile().toURI().normalize().toString();
+    return URI.create(uri.endsWith("/") ? uri : uri + "/");
+  }
+
+  private byte[] randomBytes() {
+    byte[] bytes = new byte[KEY_LENGTH];
+    synchronized (random) {
+      random.nextBytes(bytes);
+    }
+    return bytes;
+  }
+
+  private static String toHex(byte[] bytes) {
+    StringBuilder hex = new StringBuilder("0x");
+    for (byte b : bytes)
+      hex.append(String.format("%02X", b & 0xFF));
+    return hex.toString();
+  }
+
+  /**
+   * Encrypts the segments of a single playlist and keeps track of its keys.
+   */
+  public class Session {
+
+    /** The directory the key files are written to */
+    private final File directory;
+
+    /** The path of the key files below the key server URL */
+    private final String path;
+
+    /** The name prefix of the key files */
+    private final String prefix;
+
+    /** Number of segments submitted so far */
+    private int segments = 0;
+
+    /** Number of keys generated so far */
+    private int keys = 0;
+
+    /** The current key */
+    private byte[] key = null;
+
+    /** URI of the current key */
+    private String keyUri = null;
+
+    /** The I/O scheduler */
+    private final IOScheduler io;
+
+    /** The priority of the job the segments are encrypted for */
+    private final IOScheduler.Priority priority;
+
+    /** Pending encryptions */
+    private final List<Future<Void>> pending = new ArrayList<Future<Void>>();
+
+    Session(File directory, String path, String prefix, IOScheduler io, IOScheduler.Priority priority) {
+      this.directory = directory;
+      this.path = path;
+      this.prefix = prefix;
+      this.io = io;
+      this.priority = priority;
+    }
+
+    /**
+     * Schedules the encryption of <code>source</code> into <code>target</code>. The source is deleted once it has been
+     * encrypted.
+     *
+     * @param source
+     *          the plain segment
+     * @param target
+     *          the encrypted segment to write
+     * @return the attribute list of the EXT-X-KEY tag to write in front of the segment
+     * @throws IOException
+     *           if a new key cannot be written
+     */
+    public String encrypt(File source, File target) throws IOException {
+      return encrypt(source, target, null);
+    }
+
+    /**
+     * Same as {@link #encrypt(File, File)}, but feeds the encrypted bytes to <code>digest</code> while they are
+     * written. The digest is complete once {@link #await()} has returned.
+     *
+     * @param digest
+     *          the digest to update, or <code>null</code>
+     */
+    public String encrypt(final File source, final File target, final MessageDigest digest) throws IOException {
+      if (key == null || (rotation > 0 && segments % rotation == 0))
+        rotate();
+      segments++;
+      final byte[] segmentKey = key;
+      final byte[] iv = randomBytes();
+      pending.add(executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          encryptFile(source, target, segmentKey, iv, io, priority, digest);
+          return null;
+        }
+      }));
+      return "METHOD=AES-128,URI=\"" + keyUri + "\",IV=" + toHex(iv);
+    }
+
+    /**
+     * Waits until all segments of this session have been encrypted.
+     *
+     * @throws IOException
+     *           if a segment could not be encrypted
+     */
+    public void await() throws IOException {
+      try {
+        for (Future<Void> future : pending)
+          future.get();
+      } catch (InterruptedException e) {
+        cancel();
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while encrypting segments");
+      } catch (ExecutionException e) {
+        cancel();
+        IOException ioe = new IOException("Unable to encrypt segment: " + e.getCause().getMessage());
+        ioe.initCause(e.getCause());
+        throw ioe;
+      }
+    }
+
+    private void cancel() {
+      for (Future<Void> future : pending)
+        future.cancel(true);
+    }
+
+    private void rotate() throws IOException {
+      key = randomBytes();
+      String keyName = prefix + "-" + keys++ + KEY_EXTENSION;
+      if (!directory.isDirectory() && !directory.mkdirs())
+        throw new IOException("Unable to create key directory " + directory);
+      OutputStream out = new FileOutputStream(new File(directory, keyName));
+      try {
+        out.write(key);
+      } finally {
+        out.close();
+      }
+      keyUri = keyUriPrefix + path + keyName;
+      logger.debug("Writing segments of {} with key {}", prefix, keyName);
+    }
+
+  }
+
+  private static void encryptFile(File source, File target, byte[] key, byte[] iv, IOScheduler io,
+          IOScheduler.Priority priority, MessageDigest digest) throws IOException, GeneralSecurityException {
+    Cipher cipher = Cipher.getInstance(CIPHER);
+    cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+    io.acquire(IOScheduler.Traffic.PUBLISH, priority, 0, 1);
+    InputStream in = new FileInputStream(source);
+    try {
+      OutputStream file = new FileOutputStream(target);
+      if (digest != null)
+        file = new DigestOutputStream(file, digest);
+      OutputStream out = new CipherOutputStream(file, cipher);
+      try {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int n;
+        while ((n = in.read(buffer)) >= 0) {
+          io.acquire(IOScheduler.Traffic.PUBLISH, priority, n, 0);
+          out.write(buffer, 0, n);
+        }
+      } finally {
+        out.close();
+      }
+    } finally {
+      in.close();
+    }
+    io.acquire(IOScheduler.Traffic.PUBLISH, priority, 0, 1);
+    if (!source.delete())
+      throw new IOException("Could not delete plain segment " + source);
+  }
+
+}
@@ -0,0 +1,444 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The fingerprint of a distributed source: its checksum, its duration and the key frames of its video, each with a
+ * digest of all packets demuxed before it. Two sources whose key frames carry the same digest up to some time are
+ * identical up to that time, so a redistribution after an edit only has to segment the rest again.
+ * <p>
+ * The index is built from the output of ffmpeg's framemd5 muxer and kept in a hidden file of the element directory,
+ * with one <code>key value</code> line per property and one <code>keyframe time digest</code> line per key frame.
+ */
+public class SourceIndex {
+
+  /** Logging facility */
+  private static final Logger logger = LoggerFactory.getLogger(SourceIndex.class);
+
+  /** Name of the index file within the element directory. Its name starts with a dot, so it is not served. */
+  public static final String FILE = ".source";
+
+  /** Extension of the packet checksums written by ffmpeg */
+  public static final String FRAMEMD5_EXTENSION = ".framemd5";
+
+  /** ffmpeg options writing the checksum of every audio and video packet of the source without decoding it */
+  public static final String OUTPUT_OPTIONS = "-map 0:v? -map 0:a? -codec copy -f framemd5";
+
+  /** The index encoding */
+  private static final String ENCODING = "UTF-8";
+
+  /** First line of every index */
+  private static final String HEADER = "# hls source index";
+
+  /** Seconds two times may differ by and still be considered the same */
+  private static final double TOLERANCE = 0.001;
+
+  /** The name prefix of the distributed files */
+  private String name = null;
+
+  /** The description of the encoding profile */
+  private String profile = null;
+
+  /** The checksum of the source, or <code>null</code> if unknown */
+  private String checksum = null;
+
+  /** Time of the first packet in seconds */
+  private double start = 0;
+
+  /** Time of the end of the last packet in seconds */
+  private double end = 0;
+
+  /** Digest of all packets */
+  private String digest = null;
+
+  /** The key frames of the video, or of the first stream if there is no video */
+  private final List<KeyFrame> keyFrames = new ArrayList<KeyFrame>();
+
+  /**
+   * Runs ffmpeg over a source and indexes its packets. Only the container is read, no stream is decoded.
+   *
+   * @param ffmpeg
+   *          the ffmpeg binary
+   * @param source
+   *          the source file
+   * @return the index
+   * @throws IOException
+   *           if ffmpeg fails or its output cannot be read
+   */
+  public static SourceIndex index(String ffmpeg, File source) throws IOException {
+    File checksums = File.createTempFile("hls-", FRAMEMD5_EXTENSION);
+    try {
+      List<String> command = new ArrayList<String>();
+      command.add(ffmpeg);
+      command.add("-hide_banner");
+      command.add("-y");
+      command.add("-i");
+      command.add(source.getAbsolutePath());
+      for (String option : OUTPUT_OPTIONS.split(" "))
+        command.add(option);
+      command.add(checksums.getAbsolutePath());
+      ProcessBuilder builder = new ProcessBuilder(command);
+      builder.redirectErrorStream(true);
+      Process process = builder.start();
+      String lastOutput = null;
+      try {
+        BufferedReader output = new BufferedReader(new InputStreamReader(process.getInputStream()));
+        for (String line = output.readLine(); line != null; line = output.readLine())
+          lastOutput = line;
+        int exitCode = process.waitFor();
+        if (exitCode != 0)
+          throw new IOException("ffmpeg exited with " + exitCode + " while indexing " + source + ": " + lastOutput);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted while indexing " + source);
+      } finally {
+        process.destroy();
+      }
+      return parse(checksums);
+    } finally {
+      FileUtils.deleteQuietly(checksums);
+    }
+  }
+
+  /**
+   * Indexes the packet checksums written by ffmpeg's framemd5 muxer.
+   *
+   * @param checksums
+   *          the framemd5 file
+   * @return the index
+   */
+  public static SourceIndex parse(File checksums) throws IOException {
+    Reader reader = new InputStreamReader(new FileInputStream(checksums), ENCODING);
+    try {
+      return parse(reader);
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Indexes the packet checksums written by ffmpeg's framemd5 muxer. Every packet line is added to a running digest,
+   * which is recorded and restarted from its own value at every key frame, so the digest of a key frame covers all
+   * packets before it.
+   *
+   * @param checksums
+   *          the framemd5 output
+   * @return the index
+   * @throws IOException
+   *           if the output cannot be read or contains no packets
+   */
+  public static SourceIndex parse(Reader checksums) throws IOException {
+    SourceIndex index = new SourceIndex();
+    Map<Integer, long[]> timeBases = new HashMap<Integer, long[]>();
+    int reference = 0;
+    boolean video = false;
+    boolean first = true;
+    MessageDigest running = IntegrityManifest.newDigest();
+    BufferedReader reader = new BufferedReader(checksums);
+    for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+      line = line.trim();
+      if (line.startsWith("#tb ")) {
+        int colon = line.indexOf(':');
+        String[] fraction = line.substring(colon + 1).trim().split("/");
+        timeBases.put(Integer.valueOf(line.substring(4, colon).trim()), new long[] { Long.parseLong(fraction[0]),
+                Long.parseLong(fraction[1]) });
+        continue;
+      } else if (line.startsWith("#media_type ") && line.endsWith(": video") && !video) {
+        reference = Integer.parseInt(line.substring(12, line.indexOf(':')).trim());
+        video = true;
+        continue;
+      } else if (line.startsWith("#") || line.length() == 0) {
+        continue;
+      }
+      String[] fields = line.split(",");
+      if (fields.length < 6)
+        throw new IOException("Invalid packet checksum: " + line);
+      int stream;
+      long dts;
+      long pts;
+      long duration;
+      int flags = 1;
+      try {
+        stream = Integer.parseInt(fields[0].trim());
+        dts = Long.parseLong(fields[1].trim());
+        pts = Long.parseLong(fields[2].trim());
+        duration = Long.parseLong(fields[3].trim());
+        if (fields.length > 6 && fields[6].trim().startsWith("F=0x"))
+          flags = Integer.parseInt(fields[6].trim().substring(4), 16);
+      } catch (NumberFormatException e) {
+        throw new IOException("Invalid packet checksum: " + line);
+      }
+      long[] timeBase = timeBases.get(stream);
+      if (timeBase == null)
+        throw new IOException("No time base for stream " + stream);
+      if (pts == Long.MIN_VALUE)
+        pts = dts;
+      double time = (double) pts * timeBase[0] / timeBase[1];
+      if (first || time < index.start)
+        index.start = time;
+      index.end = Math.max(index.end, (double) (pts + duration) * timeBase[0] / timeBase[1]);
+      if (stream == reference && (flags & 1) != 0) {
+        String digest = IntegrityManifest.toHex(running.digest());
+        index.keyFrames.add(new KeyFrame(time, digest));
+        running.update(digest.getBytes(ENCODING));
+      }
+      running.update(line.getBytes(ENCODING));
+      running.update((byte) '\n');
+      first = false;
+    }
+    if (first)
+      throw new IOException("No packets found");
+    index.digest = IntegrityManifest.toHex(running.digest());
+    return index;
+  }
+
+  /**
+   * Reads an index.
+   *
+   * @param file
+   *          the index file
+   * @return the index
+   * @throws IOException
+   *           if the file cannot be read or is not an index
+   */
+  public static SourceIndex read(File file) throws IOException {
+    SourceIndex index = new SourceIndex();
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+    try {
+      int lineNumber = 0;
+      for (String line = reader.readLine(); line != null; line = reader.readLine()) {
+        lineNumber++;
+        if (line.startsWith("#") || line.trim().length() == 0)
+          continue;
+        String[] fields = line.split(" ", 2);
+        if (fields.length < 2)
+          throw new IOException("Invalid entry in line " + lineNumber + " of " + file);
+        try {
+          if ("name".equals(fields[0])) {
+            index.name = fields[1];
+          } else if ("profile".equals(fields[0])) {
+            index.profile = fields[1];
+          } else if ("checksum".equals(fields[0])) {
+            index.checksum = fields[1];
+          } else if ("start".equals(fields[0])) {
+            index.start = Double.parseDouble(fields[1]);
+          } else if ("end".equals(fields[0])) {
+            index.end = Double.parseDouble(fields[1]);
+          } else if ("digest".equals(fields[0])) {
+            index.digest = fields[1];
+          } else if ("keyframe".equals(fields[0])) {
+            String[] keyFrame = fields[1].split(" ");
+            index.keyFrames.add(new KeyFrame(Double.parseDouble(keyFrame[0]), keyFrame[1]));
+          }
+        } catch (RuntimeException e) {
+          throw new IOException("Invalid entry in line " + lineNumber + " of " + file);
+        }
+      }
+    } finally {
+      reader.close();
+    }
+    if (index.digest == null)
+      throw new IOException("No digest in " + file);
+    return index;
+  }
+
+  /**
+   * Reads an index, or returns <code>null</code> if there is none or it cannot be read.
+   *
+   * @param file
+   *          the index file
+   * @return the index or <code>null</code>
+   */
+  public static SourceIndex readQuietly(File file) {
+    if (!file.isFile())
+      return null;
+    try {
+      return read(file);
+    } catch (IOException e) {
+      logger.warn("Ignoring the source index {}: {}", file, e.getMessage());
+      return null;
+    }
+  }
+
+  /**
+   * Writes the index, replacing an existing one atomically.
+   *
+   * @param file
+   *          the index file
+   */
+  public void write(File file) throws IOException {
+    File temporary = new File(file.getParentFile(), file.getName() + ".tmp");
+    Writer writer = new OutputStreamWriter(new FileOutputStream(temporary), ENCODING);
+    try {
+      writer.write(HEADER + "\n");
+      if (name != null)
+        writer.write("name " + name + "\n");
+      if (profile != null)
+        writer.write("profile " + profile + "\n");
+      if (checksum != null)
+        writer.write("checksum " + checksum + "\n");
+      writer.write("start " + start + "\n");
+      writer.write("end " + end + "\n");
+      writer.write("digest " + digest + "\n");
+      for (KeyFrame keyFrame : keyFrames)
+        writer.write("keyframe " + keyFrame.time + " " + keyFrame.digest + "\n");
+    } finally {
+      writer.close();
+    }
+    if (!temporary.renameTo(file) && !(file.delete() && temporary.renameTo(file))) {
+      FileUtils.deleteQuietly(temporary);
+      throw new IOException("Could not replace " + file);
+    }
+  }
+
+  /**
+   * Returns whether <code>other</code> indexes the same packets.
+   */
+  public boolean isSameMedia(SourceIndex other) {
+    return digest.equals(other.digest) && Math.abs(getDuration() - other.getDuration()) < TOLERANCE
+            && keyFrames.size() == other.keyFrames.size();
+  }
+
+  /**
+   * Returns the time in seconds, relative to the first packet, up to which <code>other</code> holds the same media
+   * as this source. This is the last common key frame but one: packets are interleaved, so the packets demuxed after
+   * the last common key frame may still belong to the time before it.
+   *
+   * @param other
+   *          the index of the other source
+   * @return the time, or 0 if the sources differ from their second key frame on
+   */
+  public double getCommonDuration(SourceIndex other) {
+    if (Math.abs(start - other.start) >= TOLERANCE)
+      return 0;
+    int common = 0;
+    while (common < keyFrames.size() && common < other.keyFrames.size()
+            && keyFrames.get(common).matches(other.keyFrames.get(common)))
+      common++;
+    return common < 2 ? 0 : keyFrames.get(common - 2).time - start;
+  }
+
+  /**
+   * Returns the time of the key frame closest to <code>time</code>, both relative to the first packet.
+   *
+   * @param time
+   *          the time in seconds
+   * @param tolerance
+   *          the seconds the key frame may be away from <code>time</code>
+   * @return the key frame time, or -1 if there is no key frame that close
+   */
+  public double getKeyFrame(double time, double tolerance) {
+    double closest = -1;
+    for (KeyFrame keyFrame : keyFrames) {
+      double keyFrameTime = keyFrame.time - start;
+      if (Math.abs(keyFrameTime - time) <= tolerance
+              && (closest < 0 || Math.abs(keyFrameTime - time) < Math.abs(closest - time)))
+        closest = keyFrameTime;
+    }
+    return closest;
+  }
+
+  /**
+   * Returns the duration of the source in seconds.
+   */
+  public double getDuration() {
+    return end - start;
+  }
+
+  public List<KeyFrame> getKeyFrames() {
+    return keyFrames;
+  }
+
+  public String getDigest() {
+    return digest;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public void setName(String name) {
+    this.name = name;
+  }
+
+  public String getProfile() {
+    return profile;
+  }
+
+  public void setProfile(String profile) {
+    this.profile = profile;
+  }
+
+  public String getChecksum() {
+    return checksum;
+  }
+
+  public void setChecksum(String checksum) {
+    this.checksum = checksum;
+  }
+
+  /**
+   * A key frame with the digest of all packets before it.
+   */
+  public static final class KeyFrame {
+
+    /** Presentation time in seconds */
+    private final double time;
+
+    /** The hex encoded digest */
+    private final String digest;
+
+    KeyFrame(double time, String digest) {
+      this.time = time;
+      this.digest = digest;
+    }
+
+    public double getTime() {
+      return time;
+    }
+
+    public String getDigest() {
+      return digest;
+    }
+
+    boolean matches(KeyFrame other) {
+      return Math.abs(time - other.time) < TOLERANCE && digest.equals(other.digest);
+    }
+
+  }
+
+}
@@ -0,0 +1,170 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlAccessType;
+import javax.xml.bind.annotation.XmlAccessorType;
+import javax.xml.bind.annotation.XmlAttribute;
+import javax.xml.bind.annotation.XmlElement;
+import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlType;
+
+/**
+ * The result of reconciling the distribution directory with the index, see {@link OrphanSweeper}.
+ */
+@XmlAccessorType(XmlAccessType.FIELD)
+@XmlType(name = "sweep", namespace = "http://distribution.opencastproject.org")
+@XmlRootElement(name = "sweep", namespace = "http://distribution.opencastproject.org")
+public class SweepReport {
+
+  /** Why a path is an orphan */
+  public enum Reason {
+    /** An element directory that was never completed, e.g. by a failed job */
+    INCOMPLETE,
+    /** A complete element directory missing from the index */
+    UNINDEXED,
+    /** An index entry whose directory is gone */
+    MISSING,
+    /** A temporary file, partial transfer or lock left behind */
+    SCRATCH,
+    /** An empty mediapackage directory */
+    EMPTY
+  }
+
+  /** Whether nothing was changed */
+  @XmlAttribute(name = "dryrun")
+  private boolean dryRun;
+
+  /** Number of directories walked */
+  @XmlAttribute(name = "directories")
+  private int directories;
+
+  /** Number of bytes reclaimed, or reclaimable in a dry run */
+  @XmlAttribute(name = "bytes")
+  private long bytes;
+
+  /** Duration of the sweep in millis */
+  @XmlAttribute(name = "duration")
+  private long duration;
+
+  /** The orphans found */
+  @XmlElement(name = "orphan", namespace = "http://distribution.opencastproject.org")
+  private List<Orphan> orphans = new ArrayList<Orphan>();
+
+  /** Needed by JAXB */
+  public SweepReport() {
+  }
+
+  public SweepReport(boolean dryRun) {
+    this.dryRun = dryRun;
+  }
+
+  /**
+   * Records an orphan.
+   *
+   * @param path
+   *          the path, relative to the distribution directory
+   * @param reason
+   *          why the path is an orphan
+   * @param size
+   *          the number of bytes the orphan occupies
+   */
+  public synchronized void addOrphan(String path, Reason reason, long size) {
+    orphans.add(new Orphan(path, reason, size));
+    if (reason != Reason.UNINDEXED)
+      bytes += size;
+  }
+
+  /**
+   * Adds the number of directories walked.
+   */
+  public synchronized void addDirectories(int count) {
+    directories += count;
+  }
+
+  public void setDuration(long duration) {
+    this.duration = duration;
+  }
+
+  public boolean isDryRun() {
+    return dryRun;
+  }
+
+  public synchronized int getDirectories() {
+    return directories;
+  }
+
+  public synchronized long getBytes() {
+    return bytes;
+  }
+
+  public long getDuration() {
+    return duration;
+  }
+
+  public synchronized List<Orphan> getOrphans() {
+    return new ArrayList<Orphan>(orphans);
+  }
+
+  /**
+   * An orphaned path.
+   */
+  @XmlAccessorType(XmlAccessType.FIELD)
+  @XmlType(name = "orphan", namespace = "http://distribution.opencastproject.org")
+  public static class Orphan {
+
+    /** The path, relative to the distribution directory */
+    @XmlAttribute(name = "path")
+    private String path;
+
+    /** Why the path is an orphan */
+    @XmlAttribute(name = "reason")
+    private Reason reason;
+
+    /** Number of bytes */
+    @XmlAttribute(name = "size")
+    private long size;
+
+    /** Needed by JAXB */
+    public Orphan() {
+    }
+
+    public Orphan(String path, Reason reason, long size) {
+      this.path = path;
+      this.reason = reason;
+      this.size = size;
+    }
+
+    public String getPath() {
+      return path;
+    }
+
+    public Reason getReason() {
+      return reason;
+    }
+
+    public long getSize() {
+      return size;
+    }
+
+  }
+
+}
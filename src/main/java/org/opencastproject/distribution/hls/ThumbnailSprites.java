@@ -0,0 +1,130 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+
+/**
+ * Settings and WebVTT index for thumbnail sprite sheets. The sprites are written by the same ffmpeg invocation that
+ * segments the track; every sprite is a grid of <code>columns</code> x <code>rows</code> thumbnails, one taken every
+ * <code>interval</code> seconds.
+ */
+public class ThumbnailSprites {
+
+  /** Name suffix of the sprite images */
+  public static final String SPRITE_SUFFIX = "-sprite";
+
+  /** Sprite image extension */
+  public static final String SPRITE_EXTENSION = ".jpg";
+
+  /** Name suffix of the WebVTT thumbnail track */
+  public static final String TRACK_SUFFIX = "-thumbnails.vtt";
+
+  /** Seconds between two thumbnails */
+  private final int interval;
+
+  /** Width of a single thumbnail in pixels */
+  private final int width;
+
+  /** Thumbnails per sprite row */
+  private final int columns;
+
+  /** Thumbnail rows per sprite */
+  private final int rows;
+
+  public ThumbnailSprites(int interval, int width, int columns, int rows) {
+    if (interval < 1 || width < 2 || columns < 1 || rows < 1)
+      throw new IllegalArgumentException("Invalid thumbnail sprite settings");
+    this.interval = interval;
+    this.width = width - width % 2;
+    this.columns = columns;
+    this.rows = rows;
+  }
+
+  public int getInterval() {
+    return interval;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  /**
+   * Returns the thumbnail height for a video of the given frame size, rounded to an even number of pixels. If the
+   * frame size is unknown, a 16:9 aspect ratio is assumed.
+   */
+  public int getHeight(Integer frameWidth, Integer frameHeight) {
+    int height = width * 9 / 16;
+    if (frameWidth != null && frameHeight != null && frameWidth > 0 && frameHeight > 0)
+      height = (int) Math.round((double) width * frameHeight / frameWidth);
+    return Math.max(2, height - height % 2);
+  }
+
+  /**
+   * Returns the ffmpeg output options writing the sprite images to <code>#{out.dir}</code>.
+   *
+   * @param height
+   *          the thumbnail height
+   */
+  public String getOutputOptions(int height) {
+    return "-map 0:v:0 -an -vf fps=1/" + interval + ",scale=" + width + ":" + height + ",tile=" + columns + "x" + rows
+            + " -q:v 5 -f image2 -start_number 0 #{out.dir}/#{out.name}" + SPRITE_SUFFIX + "-%03d" + SPRITE_EXTENSION;
+  }
+
+  /**
+   * Writes the WebVTT thumbnail track, with one cue per thumbnail pointing at its region of the sprite image.
+   *
+   * @param vtt
+   *          the file to write
+   * @param sprites
+   *          the sprite image names, in order and relative to the track
+   * @param height
+   *          the thumbnail height
+   * @param duration
+   *          the track duration in seconds
+   */
+  public void writeWebVtt(File vtt, List<String> sprites, int height, double duration) throws IOException {
+    int perSprite = columns * rows;
+    int count = Math.min((int) Math.ceil(duration / interval), sprites.size() * perSprite);
+    PrintWriter pw = new PrintWriter(new FileWriter(vtt));
+    try {
+      pw.println("WEBVTT");
+      for (int i = 0; i < count; i++) {
+        int position = i % perSprite;
+        double start = (double) i * interval;
+        double end = Math.min(start + interval, duration);
+        pw.println();
+        pw.println(formatTime(start) + " --> " + formatTime(end));
+        pw.println(sprites.get(i / perSprite) + "#xywh=" + (position % columns) * width + ","
+                + (position / columns) * height + "," + width + "," + height);
+      }
+    } finally {
+      pw.close();
+    }
+  }
+
+  private static String formatTime(double seconds) {
+    long millis = Math.round(seconds * 1000);
+    return String.format("%02d:%02d:%02d.%03d", millis / 3600000, (millis / 60000) % 60, (millis / 1000) % 60,
+            millis % 1000);
+  }
+
+}
@@ -0,0 +1,303 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Scans MPEG transport stream segments for video key frames. The result is used to build I-frame only playlists that
+ * address the key frames as byte ranges of the existing segments.
+ */
+public class TransportStreamIndexer {
+
+  /** Size of a transport stream packet */
+  public static final int PACKET_SIZE = 188;
+
+  /** Transport stream sync byte */
+  private static final int SYNC_BYTE = 0x47;
+
+  /** PTS clock rate */
+  public static final long PTS_CLOCK = 90000L;
+
+  /** PTS values are 33 bits wide and wrap around */
+  private static final long PTS_WRAP = 1L << 33;
+
+  /** The PID of the program association table */
+  private static final int PAT_PID = 0;
+
+  /** Video stream types in the program map table (MPEG-2, H.264, HEVC) */
+  private static final int[] VIDEO_STREAM_TYPES = { 0x02, 0x1B, 0x24 };
+
+  /** Reusable packet buffer */
+  private final byte[] packet = new byte[PACKET_SIZE];
+
+  /** The program map table PID, or -1 as long as the PAT has not been seen */
+  private int pmtPid = -1;
+
+  /** The video elementary stream PID, or -1 as long as the PMT has not been seen */
+  private int videoPid = -1;
+
+  /** Offset of the last PAT packet that was not yet followed by video data */
+  private long psiOffset = -1;
+
+  /** The key frame currently being collected */
+  private KeyFrame current = null;
+
+  /** End offset of the last packet that belonged to the current video PES */
+  private long currentEnd = -1;
+
+  /** Last PTS seen, used to unwrap the 33 bit clock */
+  private long lastPts = -1;
+
+  /** Number of times the PTS clock wrapped */
+  private long wraps = 0;
+
+  /** Whether the first video frame of the current stream is a key frame, or null before the first video frame */
+  private Boolean firstKeyFrame = null;
+
+  /** Whether the last indexed stream starts with a key frame */
+  private boolean independent = true;
+
+  /**
+   * Returns the key frames found in <code>segment</code>. Key frames are detected by the random access indicator of
+   * the transport stream adaptation field or, if that is missing, by an IDR or SPS NAL unit at the beginning of the
+   * PES payload.
+   *
+   * @param segment
+   *          the transport stream segment
+   * @return the key frames, in stream order
+   * @throws IOException
+   *           if reading the segment fails
+   */
+  public List<KeyFrame> index(File segment) throws IOException {
+    InputStream in = new BufferedInputStream(new FileInputStream(segment), PACKET_SIZE * 256);
+    try {
+      return index(in);
+    } finally {
+      in.close();
+    }
+  }
+
+  /**
+   * Returns the key frames found in the transport stream read from <code>in</code>. Offsets are relative to the
+   * current position of the stream. The indexer keeps the program tables and the PTS clock state between calls, so
+   * consecutive segments of the same stream should be passed to the same instance.
+   *
+   * @param in
+   *          the transport stream
+   * @return the key frames, in stream order
+   * @throws IOException
+   *           if reading the stream fails
+   */
+  public List<KeyFrame> index(InputStream in) throws IOException {
+    List<KeyFrame> keyFrames = new ArrayList<KeyFrame>();
+    current = null;
+    currentEnd = -1;
+    psiOffset = -1;
+    firstKeyFrame = null;
+    long offset = 0;
+    while (readPacket(in)) {
+      if ((packet[0] & 0xFF) != SYNC_BYTE)
+        break;
+      handlePacket(offset, keyFrames);
+      offset += PACKET_SIZE;
+    }
+    closeCurrent(keyFrames);
+    independent = firstKeyFrame == null || firstKeyFrame;
+    return keyFrames;
+  }
+
+  /**
+   * Returns whether the last stream passed to {@link #index(InputStream)} can be decoded on its own, i.e. whether its
+   * first video frame is a key frame. Streams without video are always independent.
+   */
+  public boolean isIndependent() {
+    return independent;
+  }
+
+  private void handlePacket(long offset, List<KeyFrame> keyFrames) {
+    boolean unitStart = (packet[1] & 0x40) != 0;
+    int pid = ((packet[1] & 0x1F) << 8) | (packet[2] & 0xFF);
+    int adaptationControl = (packet[3] >> 4) & 0x03;
+    int payload = 4;
+    boolean randomAccess = false;
+    if ((adaptationControl & 0x02) != 0) {
+      int length = packet[4] & 0xFF;
+      if (length > 0)
+        randomAccess = (packet[5] & 0x40) != 0;
+      payload = 5 + length;
+    }
+    if ((adaptationControl & 0x01) == 0 || payload >= PACKET_SIZE)
+      return;
+
+    if (pid == PAT_PID) {
+      psiOffset = offset;
+      if (unitStart)
+        parsePat(payload);
+    } else if (pid == pmtPid) {
+      if (unitStart)
+        parsePmt(payload);
+    } else if (pid == videoPid) {
+      if (unitStart) {
+        closeCurrent(keyFrames);
+        long pts = parsePts(payload);
+        boolean keyFrame = randomAccess || isKeyFramePayload(payload);
+        if (firstKeyFrame == null)
+          firstKeyFrame = keyFrame;
+        if (keyFrame) {
+          long start = psiOffset >= 0 ? psiOffset : offset;
+          current = new KeyFrame(start, 0, pts);
+        }
+      }
+      psiOffset = -1;
+      if (current != null)
+        currentEnd = offset + PACKET_SIZE;
+    }
+  }
+
+  private void closeCurrent(List<KeyFrame> keyFrames) {
+    if (current != null && currentEnd > current.getOffset()) {
+      current.length = currentEnd - current.getOffset();
+      keyFrames.add(current);
+    }
+    current = null;
+    currentEnd = -1;
+  }
+
+  private void parsePat(int payload) {
+    int table = payload + 1 + (packet[payload] & 0xFF);
+    if (table + 8 > PACKET_SIZE || packet[table] != 0x00)
+      return;
+    int sectionEnd = Math.min(PACKET_SIZE, table + 3 + (((packet[table + 1] & 0x0F) << 8) | (packet[table + 2] & 0xFF)) - 4);
+    for (int i = table + 8; i + 4 <= sectionEnd; i += 4) {
+      int programNumber = ((packet[i] & 0xFF) << 8) | (packet[i + 1] & 0xFF);
+      if (programNumber != 0) {
+        pmtPid = ((packet[i + 2] & 0x1F) << 8) | (packet[i + 3] & 0xFF);
+        return;
+      }
+    }
+  }
+
+  private void parsePmt(int payload) {
+    int table = payload + 1 + (packet[payload] & 0xFF);
+    if (table + 12 > PACKET_SIZE || packet[table] != 0x02)
+      return;
+    int sectionEnd = Math.min(PACKET_SIZE, table + 3 + (((packet[table + 1] & 0x0F) << 8) | (packet[table + 2] & 0xFF)) - 4);
+    int programInfoLength = ((packet[table + 10] & 0x0F) << 8) | (packet[table + 11] & 0xFF);
+    for (int i = table + 12 + programInfoLength; i + 5 <= sectionEnd;) {
+      int streamType = packet[i] & 0xFF;
+      int pid = ((packet[i + 1] & 0x1F) << 8) | (packet[i + 2] & 0xFF);
+      for (int type : VIDEO_STREAM_TYPES) {
+        if (type == streamType) {
+          videoPid = pid;
+          return;
+        }
+      }
+      i += 5 + (((packet[i + 3] & 0x0F) << 8) | (packet[i + 4] & 0xFF));
+    }
+  }
+
+  /**
+   * Returns the unwrapped PTS of the PES packet starting at <code>payload</code> or -1 if it carries none.
+   */
+  private long parsePts(int payload) {
+    int p = payload;
+    if (p + 14 > PACKET_SIZE || packet[p] != 0 || packet[p + 1] != 0 || packet[p + 2] != 1)
+      return -1;
+    if ((packet[p + 7] & 0x80) == 0)
+      return -1;
+    long pts = (((long) packet[p + 9] >> 1) & 0x07) << 30;
+    pts |= (long) (packet[p + 10] & 0xFF) << 22;
+    pts |= (long) ((packet[p + 11] & 0xFF) >> 1) << 15;
+    pts |= (long) (packet[p + 12] & 0xFF) << 7;
+    pts |= (long) ((packet[p + 13] & 0xFF) >> 1);
+    if (lastPts >= 0 && pts + wraps * PTS_WRAP < lastPts - PTS_WRAP / 2)
+      wraps++;
+    lastPts = pts + wraps * PTS_WRAP;
+    return lastPts;
+  }
+
+  /**
+   * Looks for an H.264 IDR slice or sequence parameter set in the elementary stream data of the first PES packet.
+   */
+  private boolean isKeyFramePayload(int payload) {
+    if (payload + 9 > PACKET_SIZE)
+      return false;
+    int i = payload + 9 + (packet[payload + 8] & 0xFF);
+    for (; i + 3 < PACKET_SIZE; i++) {
+      if (packet[i] == 0 && packet[i + 1] == 0 && packet[i + 2] == 1) {
+        int nalType = packet[i + 3] & 0x1F;
+        if (nalType == 5 || nalType == 7)
+          return true;
+        i += 2;
+      }
+    }
+    return false;
+  }
+
+  private boolean readPacket(InputStream in) throws IOException {
+    int read = 0;
+    while (read < PACKET_SIZE) {
+      int n = in.read(packet, read, PACKET_SIZE - read);
+      if (n < 0)
+        return false;
+      read += n;
+    }
+    return true;
+  }
+
+  /**
+   * A key frame, addressed as a byte range of a transport stream segment.
+   */
+  public static class KeyFrame {
+
+    /** Offset of the first byte */
+    private final long offset;
+
+    /** Number of bytes */
+    private long length;
+
+    /** Presentation time stamp in 90kHz units, or -1 if unknown */
+    private final long pts;
+
+    public KeyFrame(long offset, long length, long pts) {
+      this.offset = offset;
+      this.length = length;
+      this.pts = pts;
+    }
+
+    public long getOffset() {
+      return offset;
+    }
+
+    public long getLength() {
+      return length;
+    }
+
+    public long getPts() {
+      return pts;
+    }
+
+  }
+
+}
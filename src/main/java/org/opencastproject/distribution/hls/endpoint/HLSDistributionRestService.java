@@ -20,9 +20,27 @@
  */
 package org.opencastproject.distribution.hls.endpoint;
 
+import static javax.servlet.http.HttpServletResponse.SC_BAD_REQUEST;
+import static javax.servlet.http.HttpServletResponse.SC_FORBIDDEN;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_FOUND;
+import static javax.servlet.http.HttpServletResponse.SC_NO_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_NOT_MODIFIED;
 import static javax.servlet.http.HttpServletResponse.SC_OK;
+import static javax.servlet.http.HttpServletResponse.SC_PARTIAL_CONTENT;
+import static javax.servlet.http.HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE;
+import static javax.servlet.http.HttpServletResponse.SC_SERVICE_UNAVAILABLE;
 
 import org.opencastproject.distribution.api.DistributionService;
+import org.opencastproject.distribution.hls.DistributionIndex;
+import org.opencastproject.distribution.hls.DistributionIndexEntry;
+import org.opencastproject.distribution.hls.DistributionIndexEntryList;
+import org.opencastproject.distribution.hls.HLSDistributionServiceImpl;
+import org.opencastproject.distribution.hls.IOScheduler;
+import org.opencastproject.distribution.hls.IntegrityReport;
+import org.opencastproject.distribution.hls.JobEvents;
+import org.opencastproject.distribution.hls.JobState;
+import org.opencastproject.distribution.hls.JobStateList;
+import org.opencastproject.distribution.hls.MetricsReport;
 import org.opencastproject.job.api.JaxbJob;
 import org.opencastproject.job.api.Job;
 import org.opencastproject.job.api.JobProducer;
@@ -30,6 +48,7 @@ import org.opencastproject.mediapackage.MediaPackage;
 import org.opencastproject.mediapackage.MediaPackageParser;
 import org.opencastproject.rest.AbstractJobProducerEndpoint;
 import org.opencastproject.serviceregistry.api.ServiceRegistry;
+import org.opencastproject.util.NotFoundException;
 import org.opencastproject.util.doc.rest.RestParameter;
 import org.opencastproject.util.doc.rest.RestParameter.Type;
 import org.opencastproject.util.doc.rest.RestQuery;
@@ -40,14 +59,36 @@ import org.osgi.service.component.ComponentContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import javax.ws.rs.DELETE;
 import javax.ws.rs.DefaultValue;
 import javax.ws.rs.FormParam;
+import javax.ws.rs.GET;
+import javax.ws.rs.HeaderParam;
 import javax.ws.rs.POST;
+import javax.ws.rs.PUT;
 import javax.ws.rs.Path;
+import javax.ws.rs.PathParam;
 import javax.ws.rs.Produces;
+import javax.ws.rs.QueryParam;
 import javax.ws.rs.core.MediaType;
 import javax.ws.rs.core.Response;
+import javax.ws.rs.core.Response.ResponseBuilder;
 import javax.ws.rs.core.Response.Status;
+import javax.ws.rs.core.StreamingOutput;
+import javax.xml.bind.JAXBContext;
+import javax.xml.bind.JAXBException;
+import javax.xml.bind.Marshaller;
 
 /**
  * Rest endpoint for distributing media to the local distribution channel.
@@ -57,6 +98,8 @@ import javax.ws.rs.core.Response.Status;
   abstractText = "This service distributes HLS segments and m3u8 playlist to a directory.",
   notes = {
         "All paths above are relative to the REST endpoint base (something like http://your.server/files)",
+        "If org.opencastproject.hls.serve is enabled, the distributed files are served below /files, so "
+        + "org.opencastproject.hls.url may point to the files path of this endpoint",
         "If the service is down or not working it will return a status 503, this means the the underlying service is "
         + "not working and is either restarting or has failed",
         "A status code 500 means a general failure has occurred which is not recoverable and was not anticipated. In "
@@ -73,6 +116,39 @@ public class HLSDistributionRestService extends AbstractJobProducerEndpoint {
   /** The service registry */
   protected ServiceRegistry serviceRegistry = null;
 
+  /** Configuration key for serving the distribution directory from this endpoint */
+  public static final String SERVE_KEY = "org.opencastproject.hls.serve";
+
+  /** Configuration key for the number of playlists kept in memory when serving */
+  public static final String SERVE_CACHE_KEY = "org.opencastproject.hls.serve.cache";
+
+  /** Configuration key for serving segment keys below the files path, for deployments that restrict access to it */
+  public static final String SERVE_KEYS_KEY = "org.opencastproject.hls.serve.keys";
+
+  /** Default number of playlists kept in memory */
+  private static final int DEFAULT_SERVE_CACHE = 256;
+
+  /** The file server, or <code>null</code> if the distribution directory is not served */
+  protected HLSFileServer fileServer = null;
+
+  /** Media type of server-sent event streams */
+  private static final String EVENT_STREAM = "text/event-stream";
+
+  /** Interval at which idle event streams send a comment to keep the connection open, in milliseconds */
+  private static final long HEARTBEAT_INTERVAL = 15000L;
+
+  /** Reconnection delay suggested to event stream clients in milliseconds */
+  private static final long RETRY_INTERVAL = 5000L;
+
+  /** Maximum duration of an event stream in seconds */
+  private static final int MAX_STREAM_TIMEOUT = 3600;
+
+  /** Maximum time a long poll waits in seconds */
+  private static final int MAX_POLL_TIMEOUT = 120;
+
+  /** JAXB context of job states written to event streams */
+  private static JAXBContext jobStateContext = null;
+
   /**
    * Callback from the OSGi declarative services to set the service registry.
    * 
@@ -98,6 +174,38 @@ public class HLSDistributionRestService extends AbstractJobProducerEndpoint {
    *          OSGi component context
    */
   public void activate(ComponentContext cc) {
+    if (cc == null || !Boolean.parseBoolean(cc.getBundleContext().getProperty(SERVE_KEY)))
+      return;
+    if (!(service instanceof HLSDistributionServiceImpl)) {
+      logger.warn("The distribution service does not expose its directory, distributed files are not served");
+      return;
+    }
+    File directory = ((HLSDistributionServiceImpl) service).getDistributionDirectory();
+    int cacheSize = DEFAULT_SERVE_CACHE;
+    String cacheValue = cc.getBundleContext().getProperty(SERVE_CACHE_KEY);
+    if (cacheValue != null && cacheValue.trim().length() > 0) {
+      try {
+        cacheSize = Integer.parseInt(cacheValue.trim());
+      } catch (NumberFormatException e) {
+        throw new IllegalStateException("Configuration value of " + SERVE_CACHE_KEY + " must be a number: "
+                + cacheValue);
+      }
+    }
+    // Keys are only served if explicitly asked for, everyone who may fetch a segment may fetch its key then
+    File keyDirectory = null;
+    if (Boolean.parseBoolean(cc.getBundleContext().getProperty(SERVE_KEYS_KEY))) {
+      keyDirectory = ((HLSDistributionServiceImpl) service).getKeyDirectory();
+      if (keyDirectory == null)
+        logger.warn("Segments are not encrypted, there are no keys to serve ({})", SERVE_KEYS_KEY);
+    }
+    try {
+      fileServer = new HLSFileServer(directory, keyDirectory, cacheSize);
+    } catch (IOException e) {
+      throw new IllegalStateException("Unable to serve " + directory, e);
+    }
+    logger.info("Serving distributed files from {}", directory);
+    if (keyDirectory != null)
+      logger.warn("Serving segment keys from {}, access to the files path must be restricted", keyDirectory);
   }
 
   @POST
@@ -105,15 +213,31 @@ public class HLSDistributionRestService extends AbstractJobProducerEndpoint {
   @Produces(MediaType.TEXT_XML)
   @RestQuery(name = "distribute", description = "Distribute a media package element to this distribution channel", returnDescription = "The job that can be used to track the distribution", restParameters = {
           @RestParameter(name = "mediapackage", isRequired = true, description = "The mediapackage", type = Type.TEXT),
-          @RestParameter(name = "elementId", isRequired = true, description = "The element to distribute", type = Type.STRING) }, reponses = { @RestResponse(responseCode = SC_OK, description = "An XML representation of the distribution job") })
+          @RestParameter(name = "elementId", isRequired = true, description = "The element to distribute", type = Type.STRING),
+          @RestParameter(name = "checkAvailability", isRequired = false, defaultValue = "true", description = "Whether to wait until the distributed element is available over HTTP", type = Type.BOOLEAN),
+          @RestParameter(name = "priority", isRequired = false, description = "The I/O lane of the job, INTERACTIVE or BULK, the lane configured for distributions if empty", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "An XML representation of the distribution job"),
+          @RestResponse(responseCode = SC_BAD_REQUEST, description = "The priority is unknown") })
   public Response distribute(@FormParam("mediapackage") String mediaPackageXml,
                              @FormParam("elementId") String elementId,
-                             @DefaultValue("true") @FormParam("checkAvailability") boolean checkAvailability)
+                             @DefaultValue("true") @FormParam("checkAvailability") boolean checkAvailability,
+                             @FormParam("priority") String priority)
           throws Exception {
+    IOScheduler.Priority lane = null;
+    if (priority != null && priority.trim().length() > 0) {
+      try {
+        lane = IOScheduler.Priority.valueOf(priority.trim().toUpperCase());
+      } catch (IllegalArgumentException e) {
+        return Response.status(Status.BAD_REQUEST).build();
+      }
+    }
     Job job = null;
     try {
       MediaPackage mediapackage = MediaPackageParser.getFromXml(mediaPackageXml);
-      job = service.distribute(mediapackage, elementId);
+      if (service instanceof HLSDistributionServiceImpl)
+        job = ((HLSDistributionServiceImpl) service).distribute(mediapackage, elementId, checkAvailability, lane);
+      else
+        job = service.distribute(mediapackage, elementId);
     } catch (Exception e) {
       logger.warn("Error distributing element", e);
       return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
@@ -121,6 +245,101 @@ public class HLSDistributionRestService extends AbstractJobProducerEndpoint {
     return Response.ok(new JaxbJob(job)).build();
   }
 
+  @POST
+  @Path("/tracks")
+  @Produces(MediaType.TEXT_XML)
+  @RestQuery(name = "distributetracks", description = "Distribute several tracks of a media package together, along with a combined manifest that offers them as alternative angles", returnDescription = "The job that can be used to track the distribution", restParameters = {
+          @RestParameter(name = "mediapackage", isRequired = true, description = "The mediapackage", type = Type.TEXT),
+          @RestParameter(name = "elementIds", isRequired = false, description = "Comma separated list of the tracks to distribute, all tracks if empty", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "An XML representation of the distribution job"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not support distributing tracks together") })
+  public Response distributeTracks(@FormParam("mediapackage") String mediaPackageXml,
+                                   @FormParam("elementIds") String elementIds,
+                                   @DefaultValue("true") @FormParam("checkAvailability") boolean checkAvailability)
+          throws Exception {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    Job job = null;
+    try {
+      MediaPackage mediapackage = MediaPackageParser.getFromXml(mediaPackageXml);
+      List<String> ids = new ArrayList<String>();
+      if (elementIds != null) {
+        for (String id : elementIds.split(",")) {
+          if (id.trim().length() > 0)
+            ids.add(id.trim());
+        }
+      }
+      job = ((HLSDistributionServiceImpl) service).distributeTracks(mediapackage, ids, checkAvailability);
+    } catch (Exception e) {
+      logger.warn("Error distributing tracks", e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+    return Response.ok(new JaxbJob(job)).build();
+  }
+
+  @POST
+  @Path("/live")
+  @Produces(MediaType.TEXT_XML)
+  @RestQuery(name = "distributelive", description = "Publish the live stream a track refers to until it ends or is stopped. The track's URI may be anything ffmpeg can read, e.g. an RTMP, SRT or UDP address.", returnDescription = "The job that can be used to track the live stream, finishing when the stream has ended", restParameters = {
+          @RestParameter(name = "mediapackage", isRequired = true, description = "The mediapackage", type = Type.TEXT),
+          @RestParameter(name = "elementId", isRequired = true, description = "The track referring to the live stream", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "An XML representation of the live distribution job"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not support live streams") })
+  public Response distributeLive(@FormParam("mediapackage") String mediaPackageXml,
+                                 @FormParam("elementId") String elementId) throws Exception {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    Job job = null;
+    try {
+      MediaPackage mediapackage = MediaPackageParser.getFromXml(mediaPackageXml);
+      job = ((HLSDistributionServiceImpl) service).distributeLive(mediapackage, elementId);
+    } catch (Exception e) {
+      logger.warn("Error distributing live stream", e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+    return Response.ok(new JaxbJob(job)).build();
+  }
+
+  @POST
+  @Path("/derived")
+  @Produces(MediaType.TEXT_XML)
+  @RestQuery(name = "distributederived", description = "Look up the elements derived from a distributed track, i.e. its DASH manifest and WebVTT thumbnail track", returnDescription = "The job that can be used to track the lookup, with the derived elements as payload", restParameters = {
+          @RestParameter(name = "mediapackage", isRequired = true, description = "The mediapackage", type = Type.TEXT),
+          @RestParameter(name = "elementId", isRequired = true, description = "The distributed track", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "An XML representation of the job"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not derive elements from tracks") })
+  public Response distributeDerived(@FormParam("mediapackage") String mediaPackageXml,
+                                    @FormParam("elementId") String elementId) throws Exception {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    Job job = null;
+    try {
+      MediaPackage mediapackage = MediaPackageParser.getFromXml(mediaPackageXml);
+      job = ((HLSDistributionServiceImpl) service).distributeDerived(mediapackage, elementId);
+    } catch (Exception e) {
+      logger.warn("Error looking up derived elements", e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+    return Response.ok(new JaxbJob(job)).build();
+  }
+
+  @POST
+  @Path("/live/stop")
+  @RestQuery(name = "stoplive", description = "Stop a live stream published by this node. The stream's job finishes once the last segment has been written.", returnDescription = "No content", restParameters = {
+          @RestParameter(name = "mediapackageId", isRequired = true, description = "The mediapackage identifier", type = Type.STRING),
+          @RestParameter(name = "elementId", isRequired = true, description = "The track referring to the live stream", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_NO_CONTENT, description = "The live stream is stopping"),
+          @RestResponse(responseCode = SC_NOT_FOUND, description = "No such live stream is running on this node"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not support live streams") })
+  public Response stopLive(@FormParam("mediapackageId") String mediaPackageId,
+                           @FormParam("elementId") String elementId) {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    if (!((HLSDistributionServiceImpl) service).stopLive(mediaPackageId, elementId))
+      return Response.status(Status.NOT_FOUND).build();
+    return Response.noContent().build();
+  }
+
   @POST
   @Path("/retract")
   @Produces(MediaType.TEXT_XML)
@@ -140,6 +359,361 @@ public class HLSDistributionRestService extends AbstractJobProducerEndpoint {
     return Response.ok(new JaxbJob(job)).build();
   }
 
+  @GET
+  @Path("/index")
+  @Produces({ MediaType.TEXT_XML, MediaType.APPLICATION_JSON })
+  @RestQuery(name = "index", description = "List the elements distributed to this distribution channel", returnDescription = "The distributed elements with their locations and sizes", reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The distributed elements"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not keep an index") })
+  public Response getIndex() {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    DistributionIndex index = ((HLSDistributionServiceImpl) service).getIndex();
+    return Response.ok(new DistributionIndexEntryList(index.getEntries())).build();
+  }
+
+  @GET
+  @Path("/index/{mediapackageId}")
+  @Produces({ MediaType.TEXT_XML, MediaType.APPLICATION_JSON })
+  @RestQuery(name = "mediapackageindex", description = "List the elements of a media package distributed to this distribution channel", returnDescription = "The distributed elements with their locations and sizes", pathParameters = {
+          @RestParameter(name = "mediapackageId", isRequired = true, description = "The mediapackage identifier", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The distributed elements"),
+          @RestResponse(responseCode = SC_NOT_FOUND, description = "No element of the media package is distributed"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not keep an index") })
+  public Response getIndex(@PathParam("mediapackageId") String mediaPackageId) {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    List<DistributionIndexEntry> entries = ((HLSDistributionServiceImpl) service).getIndex().getEntries(mediaPackageId);
+    if (entries.isEmpty())
+      return Response.status(Status.NOT_FOUND).build();
+    return Response.ok(new DistributionIndexEntryList(entries)).build();
+  }
+
+  @POST
+  @Path("/index/rebuild")
+  @Produces(MediaType.TEXT_PLAIN)
+  @RestQuery(name = "rebuildindex", description = "Rebuild the index of distributed elements by walking the distribution directory. Depending on its size, this may take a long time.", returnDescription = "The number of distributed elements found", reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The index has been rebuilt"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not keep an index") })
+  public Response rebuildIndex() {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    try {
+      return Response.ok(Integer.toString(((HLSDistributionServiceImpl) service).rebuildIndex())).build();
+    } catch (IOException e) {
+      logger.warn("Error rebuilding the distribution index", e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+  }
+
+  @GET
+  @Path("/verify/{mediapackageId}")
+  @Produces({ MediaType.TEXT_XML, MediaType.APPLICATION_JSON })
+  @RestQuery(name = "verify", description = "Check the distributed files of a media package against the integrity manifests written when they were published. The quick check compares sizes and modification times, the full check reads every file and compares its digest.", returnDescription = "The damaged files and the elements that have no manifest", pathParameters = {
+          @RestParameter(name = "mediapackageId", isRequired = true, description = "The mediapackage identifier", type = Type.STRING) }, restParameters = {
+          @RestParameter(name = "full", isRequired = false, defaultValue = "false", description = "Whether to compare digests", type = Type.BOOLEAN) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The integrity report"),
+          @RestResponse(responseCode = SC_NOT_FOUND, description = "Nothing of the media package is distributed"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not write integrity manifests") })
+  public Response verify(@PathParam("mediapackageId") String mediaPackageId,
+                         @DefaultValue("false") @QueryParam("full") boolean full) {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    try {
+      IntegrityReport report = ((HLSDistributionServiceImpl) service).verify(mediaPackageId, full);
+      return Response.ok(report).build();
+    } catch (NotFoundException e) {
+      return Response.status(Status.NOT_FOUND).build();
+    } catch (IOException e) {
+      logger.warn("Error checking the distributed files of " + mediaPackageId, e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+  }
+
+  @GET
+  @Path("/metrics")
+  @Produces({ MediaType.TEXT_XML, MediaType.APPLICATION_JSON })
+  @RestQuery(name = "metrics", description = "Return the job counters, the latencies of the job phases and the ffmpeg exit codes since the service started. The same values are published over JMX.", returnDescription = "The metrics", reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The metrics"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not record metrics") })
+  public Response getMetrics() {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    return Response.ok(new MetricsReport(((HLSDistributionServiceImpl) service).getMetrics())).build();
+  }
+
+  @GET
+  @Path("/trace/{jobId}")
+  @Produces(MediaType.APPLICATION_JSON)
+  @RestQuery(name = "trace", description = "Return the timed phases of a job processed by this node in the Trace Event Format, which can be loaded into Chrome's about:tracing or Perfetto. The job's processing host tells which node holds the trace.", returnDescription = "The trace", pathParameters = {
+          @RestParameter(name = "jobId", isRequired = true, description = "The job identifier", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The trace"),
+          @RestResponse(responseCode = SC_NOT_FOUND, description = "This node has no trace of the job"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not trace jobs") })
+  public Response getTrace(@PathParam("jobId") long jobId) {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    try {
+      return Response.ok(((HLSDistributionServiceImpl) service).getTraceFile(jobId)).build();
+    } catch (NotFoundException e) {
+      return Response.status(Status.NOT_FOUND).build();
+    }
+  }
+
+  @GET
+  @Path("/jobs/events")
+  @Produces(EVENT_STREAM)
+  @RestQuery(name = "jobevents", description = "Stream the state transitions of distribution jobs as server-sent events instead of polling the job endpoint. Every event carries the status of a job, the last phase it completed and, once it has finished, its payload. The stream ends when all given jobs have ended or the timeout has passed, and reconnecting clients resume after the Last-Event-ID they send. The jobs of a mediapackage are only known if they have been created or processed by this node.", returnDescription = "A stream of job state events", restParameters = {
+          @RestParameter(name = "jobId", isRequired = false, description = "A job to follow, may be repeated", type = Type.LONG),
+          @RestParameter(name = "mediapackageId", isRequired = false, description = "Follow the jobs of this mediapackage", type = Type.STRING),
+          @RestParameter(name = "since", isRequired = false, defaultValue = "0", description = "The sequence number of the last state seen, 0 to start with the current states", type = Type.LONG),
+          @RestParameter(name = "timeout", isRequired = false, defaultValue = "300", description = "Seconds after which the stream ends, at most 3600", type = Type.INTEGER) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The event stream"),
+          @RestResponse(responseCode = SC_BAD_REQUEST, description = "Neither jobs nor a mediapackage are given"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not publish job events") })
+  public Response streamJobEvents(@QueryParam("jobId") final List<Long> jobIds,
+          @QueryParam("mediapackageId") final String mediaPackageId, @DefaultValue("0") @QueryParam("since") long since,
+          @DefaultValue("300") @QueryParam("timeout") int timeout, @HeaderParam("Last-Event-ID") String lastEventId) {
+    final JobEvents events = getJobEvents();
+    if (events == null)
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    if (jobIds.isEmpty() && mediaPackageId == null)
+      return Response.status(Status.BAD_REQUEST).build();
+    if (lastEventId != null) {
+      try {
+        since = Math.max(since, Long.parseLong(lastEventId.trim()));
+      } catch (NumberFormatException e) {
+        return Response.status(Status.BAD_REQUEST).build();
+      }
+    }
+    final long start = since;
+    final long deadline = System.currentTimeMillis() + Math.min(Math.max(timeout, 0), MAX_STREAM_TIMEOUT) * 1000L;
+    StreamingOutput body = new StreamingOutput() {
+      @Override
+      public void write(OutputStream out) throws IOException {
+        Writer writer = new OutputStreamWriter(out, "UTF-8");
+        writer.write("retry: " + RETRY_INTERVAL + "\n\n");
+        writer.flush();
+        long sequence = start;
+        try {
+          long remaining;
+          while ((remaining = deadline - System.currentTimeMillis()) > 0) {
+            JobStateList changes = events.await(jobIds, mediaPackageId, sequence, Math.min(remaining,
+                    HEARTBEAT_INTERVAL));
+            if (changes.getStates().isEmpty())
+              writer.write(": keepalive\n\n");
+            for (JobState state : changes.getStates()) {
+              writeEvent(writer, state);
+              sequence = state.getSequence();
+            }
+            writer.flush();
+            if (mediaPackageId == null && events.isComplete(jobIds))
+              break;
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+        writer.flush();
+      }
+    };
+    return Response.ok(body).type(EVENT_STREAM).header("Cache-Control", "no-cache").build();
+  }
+
+  @GET
+  @Path("/jobs/poll")
+  @Produces({ MediaType.TEXT_XML, MediaType.APPLICATION_JSON })
+  @RestQuery(name = "jobpoll", description = "Wait for state transitions of distribution jobs, for clients that cannot consume server-sent events. Returns as soon as there are changes after the given sequence number, or an empty list once the timeout has passed. Pass the sequence number of the result to the next request. The jobs of a mediapackage are only known if they have been created or processed by this node.", returnDescription = "The changed job states", restParameters = {
+          @RestParameter(name = "jobId", isRequired = false, description = "A job to wait for, may be repeated", type = Type.LONG),
+          @RestParameter(name = "mediapackageId", isRequired = false, description = "Wait for the jobs of this mediapackage", type = Type.STRING),
+          @RestParameter(name = "since", isRequired = false, defaultValue = "0", description = "The sequence number of the last state seen, 0 to return the current states", type = Type.LONG),
+          @RestParameter(name = "timeout", isRequired = false, defaultValue = "30", description = "Seconds to wait for a change, at most 120", type = Type.INTEGER) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The changed job states, possibly none"),
+          @RestResponse(responseCode = SC_BAD_REQUEST, description = "Neither jobs nor a mediapackage are given"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not publish job events") })
+  public Response pollJobEvents(@QueryParam("jobId") List<Long> jobIds,
+          @QueryParam("mediapackageId") String mediaPackageId, @DefaultValue("0") @QueryParam("since") long since,
+          @DefaultValue("30") @QueryParam("timeout") int timeout) {
+    JobEvents events = getJobEvents();
+    if (events == null)
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    if (jobIds.isEmpty() && mediaPackageId == null)
+      return Response.status(Status.BAD_REQUEST).build();
+    try {
+      return Response.ok(events.await(jobIds, mediaPackageId, since,
+              Math.min(Math.max(timeout, 0), MAX_POLL_TIMEOUT) * 1000L)).header("Cache-Control", "no-cache").build();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    }
+  }
+
+  /**
+   * Returns the job events of the distribution service, or <code>null</code> if it does not publish any.
+   */
+  private JobEvents getJobEvents() {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return null;
+    return ((HLSDistributionServiceImpl) service).getJobEvents();
+  }
+
+  /**
+   * Writes a job state as a server-sent event named after the job status, with the XML representation of the state as
+   * its data.
+   */
+  static void writeEvent(Writer writer, JobState state) throws IOException {
+    StringWriter xml = new StringWriter();
+    try {
+      Marshaller marshaller = getJobStateContext().createMarshaller();
+      marshaller.setProperty(Marshaller.JAXB_FRAGMENT, Boolean.TRUE);
+      marshaller.marshal(state, xml);
+    } catch (JAXBException e) {
+      throw new IOException("Unable to serialize the state of job " + state.getJobId() + ": " + e.getMessage());
+    }
+    writer.write("id: " + state.getSequence() + "\n");
+    writer.write("event: " + state.getStatus().toLowerCase() + "\n");
+    for (String line : xml.toString().split("\r?\n"))
+      writer.write("data: " + line + "\n");
+    writer.write("\n");
+  }
+
+  private static synchronized JAXBContext getJobStateContext() throws JAXBException {
+    if (jobStateContext == null)
+      jobStateContext = JAXBContext.newInstance(JobState.class);
+    return jobStateContext;
+  }
+
+  @POST
+  @Path("/sweep")
+  @Produces({ MediaType.TEXT_XML, MediaType.APPLICATION_JSON })
+  @RestQuery(name = "sweep", description = "Reconcile the distribution directory with the index. Directories of failed distributions, temporary files and abandoned locks are deleted, complete directories missing from the index are added to it and index entries without a directory are removed. Depending on the size of the distribution directory, this may take a long time.", returnDescription = "The orphans found", restParameters = {
+          @RestParameter(name = "dryRun", isRequired = false, defaultValue = "true", description = "Whether to only report orphans", type = Type.BOOLEAN) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The sweep report"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not keep an index") })
+  public Response sweep(@DefaultValue("true") @FormParam("dryRun") boolean dryRun) {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    try {
+      return Response.ok(((HLSDistributionServiceImpl) service).sweep(dryRun)).build();
+    } catch (IOException e) {
+      logger.warn("Error sweeping the distribution directory", e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+  }
+
+  @PUT
+  @Path("/replica/{path:.+}")
+  @RestQuery(name = "putreplica", description = "Store a file replicated from another node in the distribution directory. The file is only visible once it has been received completely.", returnDescription = "No content", pathParameters = {
+          @RestParameter(name = "path", isRequired = true, description = "The path of the file in the distribution directory", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_NO_CONTENT, description = "The file has been stored"),
+          @RestResponse(responseCode = SC_BAD_REQUEST, description = "The path is outside of the distribution directory"),
+          @RestResponse(responseCode = SC_FORBIDDEN, description = "This node does not accept replicated files"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not support replication") })
+  public Response putReplica(@PathParam("path") String path, InputStream in) {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    try {
+      ((HLSDistributionServiceImpl) service).receiveReplica(path, in);
+      return Response.noContent().build();
+    } catch (IllegalStateException e) {
+      return Response.status(Status.FORBIDDEN).build();
+    } catch (IOException e) {
+      logger.warn("Unable to store the replicated file {}: {}", path, e.getMessage());
+      return Response.status(Status.BAD_REQUEST).build();
+    }
+  }
+
+  @DELETE
+  @Path("/replica/{path:.+}")
+  @RestQuery(name = "deletereplica", description = "Delete a file or directory that has been removed on another node.", returnDescription = "No content", pathParameters = {
+          @RestParameter(name = "path", isRequired = true, description = "The path of the file or directory in the distribution directory", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_NO_CONTENT, description = "The file or directory has been deleted or did not exist"),
+          @RestResponse(responseCode = SC_BAD_REQUEST, description = "The path is outside of the distribution directory"),
+          @RestResponse(responseCode = SC_FORBIDDEN, description = "This node does not accept replicated files"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "The distribution service does not support replication") })
+  public Response deleteReplica(@PathParam("path") String path) {
+    if (!(service instanceof HLSDistributionServiceImpl))
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    try {
+      ((HLSDistributionServiceImpl) service).removeReplica(path);
+      return Response.noContent().build();
+    } catch (IllegalStateException e) {
+      return Response.status(Status.FORBIDDEN).build();
+    } catch (IOException e) {
+      logger.warn("Unable to delete the replicated path {}: {}", path, e.getMessage());
+      return Response.status(Status.BAD_REQUEST).build();
+    }
+  }
+
+  @GET
+  @Path("/files/{path:.+}")
+  @RestQuery(name = "files", description = "Serve a distributed playlist, manifest or segment. Single byte ranges and conditional requests are supported, playlists are gzipped if the client accepts it.", returnDescription = "The file", pathParameters = {
+          @RestParameter(name = "path", isRequired = true, description = "The path of the file in the distribution directory", type = Type.STRING) }, reponses = {
+          @RestResponse(responseCode = SC_OK, description = "The file"),
+          @RestResponse(responseCode = SC_PARTIAL_CONTENT, description = "The requested range of the file"),
+          @RestResponse(responseCode = SC_NOT_MODIFIED, description = "The file has not changed"),
+          @RestResponse(responseCode = SC_NOT_FOUND, description = "There is no such file"),
+          @RestResponse(responseCode = SC_REQUESTED_RANGE_NOT_SATISFIABLE, description = "The requested range is outside of the file"),
+          @RestResponse(responseCode = SC_SERVICE_UNAVAILABLE, description = "Serving distributed files is disabled") })
+  public Response getFile(@PathParam("path") String path, @HeaderParam("Range") String range,
+          @HeaderParam("If-None-Match") String ifNoneMatch, @HeaderParam("If-Modified-Since") String ifModifiedSince,
+          @HeaderParam("Accept-Encoding") String acceptEncoding) {
+    if (fileServer == null)
+      return Response.status(Status.SERVICE_UNAVAILABLE).build();
+    try {
+      final File file = fileServer.resolve(path);
+      if (file == null)
+        return Response.status(Status.NOT_FOUND).build();
+      String contentType = HLSFileServer.getContentType(file);
+      String cacheControl = HLSFileServer.getCacheControl(file);
+
+      if (HLSFileServer.isPlaylist(file)) {
+        HLSFileServer.CachedFile playlist = fileServer.getPlaylist(file);
+        boolean gzip = HLSFileServer.acceptsGzip(acceptEncoding);
+        String etag = gzip ? playlist.getGzipETag() : playlist.getETag();
+        ResponseBuilder builder;
+        if (HLSFileServer.isNotModified(ifNoneMatch, ifModifiedSince, etag, playlist.getLastModified())) {
+          builder = Response.status(Status.NOT_MODIFIED);
+        } else {
+          builder = Response.ok(gzip ? playlist.getGzipped() : playlist.getData(), contentType);
+          if (gzip)
+            builder.header("Content-Encoding", "gzip");
+        }
+        return builder.header("ETag", etag).lastModified(new Date(playlist.getLastModified()))
+                .header("Cache-Control", cacheControl).header("Vary", "Accept-Encoding").build();
+      }
+
+      long length = file.length();
+      long lastModified = file.lastModified();
+      String etag = HLSFileServer.getETag(file);
+      if (HLSFileServer.isNotModified(ifNoneMatch, ifModifiedSince, etag, lastModified)) {
+        return Response.status(Status.NOT_MODIFIED).header("ETag", etag).lastModified(new Date(lastModified))
+                .header("Cache-Control", cacheControl).build();
+      }
+      long[] bytes = HLSFileServer.parseRange(range, length);
+      if (bytes != null && bytes.length == 0) {
+        return Response.status(SC_REQUESTED_RANGE_NOT_SATISFIABLE).header("Content-Range", "bytes */" + length)
+                .build();
+      }
+      final long start = bytes == null ? 0 : bytes[0];
+      final long count = bytes == null ? length : bytes[1] - bytes[0] + 1;
+      StreamingOutput body = new StreamingOutput() {
+        @Override
+        public void write(OutputStream out) throws IOException {
+          HLSFileServer.transfer(file, start, count, out);
+        }
+      };
+      ResponseBuilder builder = Response.status(bytes == null ? SC_OK : SC_PARTIAL_CONTENT).entity(body);
+      if (bytes != null)
+        builder.header("Content-Range", "bytes " + bytes[0] + "-" + bytes[1] + "/" + length);
+      return builder.type(contentType).header("Content-Length", Long.toString(count))
+              .header("Accept-Ranges", "bytes").header("ETag", etag).lastModified(new Date(lastModified))
+              .header("Cache-Control", cacheControl).build();
+    } catch (IOException e) {
+      logger.warn("Error serving distributed file " + path, e);
+      return Response.serverError().status(Status.INTERNAL_SERVER_ERROR).build();
+    }
+  }
+
   /**
    * {@inheritDoc}
    * 
@@ -0,0 +1,437 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.endpoint;
+
+import org.opencastproject.distribution.hls.DashManifest;
+import org.opencastproject.distribution.hls.FFmpegHLSEncoderEngine;
+import org.opencastproject.distribution.hls.HLSDistributionServiceImpl;
+import org.opencastproject.distribution.hls.PlaylistVariants;
+import org.opencastproject.distribution.hls.SegmentEncryption;
+import org.opencastproject.distribution.hls.ThumbnailSprites;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.zip.CRC32;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Serves the files of the distribution directory over HTTP for deployments without a separate web server. Segments
+ * are streamed from the file, and playlists and manifests, which are requested over and over again, are kept in memory
+ * together with their gzipped variant, which is read from the pre-compressed sibling written at publish time if there
+ * is a current one. Segment keys are only served if a key directory is given.
+ */
+public class HLSFileServer {
+
+  /** Cache control of segments, which never change once published */
+  public static final String CACHE_IMMUTABLE = "public, max-age=31536000, immutable";
+
+  /** Cache control of playlists and manifests, which are revalidated with their ETag */
+  public static final String CACHE_REVALIDATE = "public, max-age=0, must-revalidate";
+
+  /** Cache control of segment keys */
+  public static final String CACHE_PRIVATE = "private, no-store";
+
+  /** Largest playlist kept in the cache */
+  private static final long MAX_CACHED_SIZE = 1024 * 1024;
+
+  /** Time in millis after its last modification from which a cached playlist is trusted to be current */
+  private static final long SETTLE_TIME = 2000L;
+
+  /** The served directory */
+  private final File root;
+
+  /** The canonical path of the served directory */
+  private final String rootPath;
+
+  /** The directory segment keys are served from, or <code>null</code> if keys are not served */
+  private final File keyRoot;
+
+  /** The canonical path of the key directory, or <code>null</code> */
+  private final String keyRootPath;
+
+  /** Cached playlists by canonical path, least recently used first */
+  private final Map<String, CachedFile> cache;
+
+  /**
+   * Creates a file server.
+   *
+   * @param root
+   *          the served directory
+   * @param cacheSize
+   *          the number of playlists kept in memory
+   * @throws IOException
+   *           if the directory cannot be resolved
+   */
+  public HLSFileServer(File root, final int cacheSize) throws IOException {
+    this(root, null, cacheSize);
+  }
+
+  /**
+   * Creates a file server that serves segment keys from <code>keyRoot</code> as well. Anyone who may fetch the files
+   * may fetch the keys then, so access to the files needs to be restricted by other means.
+   *
+   * @param root
+   *          the served directory
+   * @param keyRoot
+   *          the directory the keys are served from, or <code>null</code> to not serve keys
+   * @param cacheSize
+   *          the number of playlists kept in memory
+   * @throws IOException
+   *           if a directory cannot be resolved
+   */
+  public HLSFileServer(File root, File keyRoot, final int cacheSize) throws IOException {
+    this.root = root;
+    this.rootPath = root.getCanonicalPath();
+    this.keyRoot = keyRoot;
+    this.keyRootPath = keyRoot != null ? keyRoot.getCanonicalPath() : null;
+    this.cache = new LinkedHashMap<String, CachedFile>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, CachedFile> eldest) {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  /**
+   * Returns the file at <code>path</code>, or <code>null</code> if there is no such file or it must not be served.
+   * Hidden files, like the distribution receipts and locks, are never served, and neither are the pre-compressed
+   * siblings of playlists, which are served as the gzip encoding of their playlist. Segment keys are resolved in the
+   * key directory, and are not served at all if there is none.
+   *
+   * @param path
+   *          the path relative to the served directory
+   * @return the file or <code>null</code>
+   */
+  public File resolve(String path) throws IOException {
+    if (path == null)
+      return null;
+    for (String part : path.split("/")) {
+      if (part.startsWith("."))
+        return null;
+    }
+    if (path.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION + PlaylistVariants.GZIP_EXTENSION))
+      return null;
+    boolean key = path.endsWith(SegmentEncryption.KEY_EXTENSION);
+    if (key && keyRoot == null)
+      return null;
+    File file = new File(key ? keyRoot : root, path);
+    String filePath = file.getCanonicalPath();
+    if (!filePath.startsWith((key ? keyRootPath : rootPath) + File.separator) || !file.isFile())
+      return null;
+    return file;
+  }
+
+  /**
+   * Returns whether a file is a playlist or manifest that is cached and may be compressed.
+   */
+  public static boolean isPlaylist(File file) {
+    String name = file.getName();
+    return name.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION) || name.endsWith(DashManifest.EXTENSION)
+            || name.endsWith(ThumbnailSprites.TRACK_SUFFIX);
+  }
+
+  /**
+   * Returns the content of a playlist, from the cache if it has not changed since it was read.
+   *
+   * @param file
+   *          the playlist
+   * @return the cached playlist
+   * @throws IOException
+   *           if the playlist cannot be read
+   */
+  public CachedFile getPlaylist(File file) throws IOException {
+    String key = file.getCanonicalPath();
+    CachedFile cached;
+    synchronized (cache) {
+      cached = cache.get(key);
+    }
+    if (cached != null && cached.isCurrent(file))
+      return cached;
+    cached = new CachedFile(file);
+    if (cached.data.length <= MAX_CACHED_SIZE) {
+      synchronized (cache) {
+        cache.put(key, cached);
+      }
+    }
+    return cached;
+  }
+
+  /**
+   * Returns the entity tag of a file, derived from its size and modification time.
+   */
+  public static String getETag(File file) {
+    return "\"" + Long.toHexString(file.length()) + "-" + Long.toHexString(file.lastModified()) + "\"";
+  }
+
+  /**
+   * Returns whether the client's copy is still current, following the precedence of <code>If-None-Match</code> over
+   * <code>If-Modified-Since</code>.
+   *
+   * @param ifNoneMatch
+   *          the <code>If-None-Match</code> header, may be <code>null</code>
+   * @param ifModifiedSince
+   *          the <code>If-Modified-Since</code> header, may be <code>null</code>
+   * @param etag
+   *          the current entity tag
+   * @param lastModified
+   *          the current modification time
+   * @return <code>true</code> to respond with <code>304 Not Modified</code>
+   */
+  public static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, String etag, long lastModified) {
+    if (ifNoneMatch != null) {
+      for (String tag : ifNoneMatch.split(",")) {
+        tag = tag.trim();
+        if (tag.startsWith("W/"))
+          tag = tag.substring(2);
+        if ("*".equals(tag) || etag.equals(tag))
+          return true;
+      }
+      return false;
+    }
+    if (ifModifiedSince != null) {
+      try {
+        SimpleDateFormat format = new SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss zzz", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+        return lastModified / 1000 <= format.parse(ifModifiedSince.trim()).getTime() / 1000;
+      } catch (ParseException e) {
+        return false;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Parses a <code>Range</code> header. Only single byte ranges are honored; for anything else the whole file is
+   * served, which is what the header's specification allows.
+   *
+   * @param range
+   *          the header value, may be <code>null</code>
+   * @param length
+   *          the length of the file
+   * @return the first and last byte of the range, <code>null</code> to serve the whole file, or an empty array if the
+   *         range cannot be satisfied
+   */
+  public static long[] parseRange(String range, long length) {
+    if (range == null || !range.startsWith("bytes=") || range.indexOf(',') >= 0)
+      return null;
+    String spec = range.substring("bytes=".length()).trim();
+    int dash = spec.indexOf('-');
+    if (dash < 0)
+      return null;
+    try {
+      long start;
+      long end;
+      if (dash == 0) {
+        long suffix = Long.parseLong(spec.substring(1));
+        if (suffix <= 0)
+          return new long[0];
+        start = Math.max(0, length - suffix);
+        end = length - 1;
+      } else {
+        start = Long.parseLong(spec.substring(0, dash));
+        end = dash == spec.length() - 1 ? length - 1 : Math.min(length - 1, Long.parseLong(spec.substring(dash + 1)));
+      }
+      if (start >= length || start > end)
+        return new long[0];
+      return new long[] { start, end };
+    } catch (NumberFormatException e) {
+      return null;
+    }
+  }
+
+  /**
+   * Returns whether the client accepts gzip encoded responses.
+   */
+  public static boolean acceptsGzip(String acceptEncoding) {
+    if (acceptEncoding == null)
+      return false;
+    for (String coding : acceptEncoding.split(",")) {
+      String[] parts = coding.trim().split(";");
+      if (!"gzip".equalsIgnoreCase(parts[0].trim()))
+        continue;
+      return parts.length < 2 || !parts[1].trim().matches("q=0(\\.0*)?");
+    }
+    return false;
+  }
+
+  /**
+   * Returns the content type of a distributed file.
+   */
+  public static String getContentType(File file) {
+    String name = file.getName();
+    if (name.endsWith(HLSDistributionServiceImpl.PLAYLIST_EXTENSION))
+      return "application/x-mpegURL";
+    if (name.endsWith(DashManifest.EXTENSION))
+      return DashManifest.MIME_TYPE;
+    if (name.endsWith(".ts"))
+      return "video/MP2T";
+    if (name.endsWith(FFmpegHLSEncoderEngine.FMP4_SEGMENT_EXTENSION))
+      return "video/iso.segment";
+    if (name.endsWith(".mp4"))
+      return "video/mp4";
+    if (name.endsWith(ThumbnailSprites.TRACK_SUFFIX))
+      return "text/vtt";
+    if (name.endsWith(ThumbnailSprites.SPRITE_EXTENSION))
+      return "image/jpeg";
+    return "application/octet-stream";
+  }
+
+  /**
+   * Returns the cache control header of a distributed file.
+   */
+  public static String getCacheControl(File file) {
+    if (file.getName().endsWith(SegmentEncryption.KEY_EXTENSION))
+      return CACHE_PRIVATE;
+    if (isPlaylist(file))
+      return CACHE_REVALIDATE;
+    return CACHE_IMMUTABLE;
+  }
+
+  /**
+   * Writes <code>count</code> bytes of a file starting at <code>position</code>. The response is only available as a
+   * stream, so the bytes are copied through a buffer on their way to the container; the file channel merely saves
+   * skipping to the start of a range.
+   *
+   * @param file
+   *          the file
+   * @param position
+   *          the first byte
+   * @param count
+   *          the number of bytes
+   * @param out
+   *          the response stream
+   * @throws IOException
+   *           if the file cannot be read or the client went away
+   */
+  public static void transfer(File file, long position, long count, OutputStream out) throws IOException {
+    FileInputStream in = new FileInputStream(file);
+    try {
+      FileChannel channel = in.getChannel();
+      WritableByteChannel target = Channels.newChannel(out);
+      long end = position + count;
+      while (position < end) {
+        long transferred = channel.transferTo(position, end - position, target);
+        if (transferred <= 0)
+          throw new IOException("Unexpected end of " + file);
+        position += transferred;
+      }
+    } finally {
+      in.close();
+    }
+    out.flush();
+  }
+
+  /**
+   * A playlist held in memory, with its gzipped variant. Its entity tag is derived from the content.
+   */
+  public static final class CachedFile {
+
+    private final long length;
+
+    private final long lastModified;
+
+    private final String etag;
+
+    /**
+     * Whether the file had not been modified for a while when it was read. File times may have a resolution of a
+     * second, so a playlist rewritten within the same second with the same length, as live playlists are, cannot be
+     * told apart by its attributes.
+     */
+    private final boolean settled;
+
+    private final byte[] data;
+
+    private final byte[] gzipped;
+
+    CachedFile(File file) throws IOException {
+      this.lastModified = file.lastModified();
+      this.settled = System.currentTimeMillis() - lastModified >= SETTLE_TIME;
+      this.data = read(file);
+      this.length = data.length;
+      CRC32 crc = new CRC32();
+      crc.update(data);
+      this.etag = "\"" + Long.toHexString(length) + "-" + Long.toHexString(crc.getValue()) + "\"";
+      File precompressed = PlaylistVariants.getGzipFile(file);
+      if (settled && precompressed.lastModified() == lastModified) {
+        this.gzipped = read(precompressed);
+        return;
+      }
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(data.length / 4 + 64);
+      GZIPOutputStream gzip = new GZIPOutputStream(bytes);
+      gzip.write(data);
+      gzip.close();
+      this.gzipped = bytes.toByteArray();
+    }
+
+    boolean isCurrent(File file) {
+      return settled && file.length() == length && file.lastModified() == lastModified;
+    }
+
+    public String getETag() {
+      return etag;
+    }
+
+    /** Returns the entity tag of the gzipped variant, which must differ from the one of the identity encoding */
+    public String getGzipETag() {
+      return etag.substring(0, etag.length() - 1) + "-gz\"";
+    }
+
+    public long getLastModified() {
+      return lastModified;
+    }
+
+    public byte[] getData() {
+      return data;
+    }
+
+    public byte[] getGzipped() {
+      return gzipped;
+    }
+
+    private static byte[] read(File file) throws IOException {
+      InputStream in = new FileInputStream(file);
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream((int) file.length());
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = in.read(buffer)) >= 0)
+          out.write(buffer, 0, n);
+        return out.toByteArray();
+      } finally {
+        in.close();
+      }
+    }
+
+  }
+
+}
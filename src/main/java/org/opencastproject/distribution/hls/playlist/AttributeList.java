@@ -0,0 +1,108 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Parses and formats the attribute lists of playlist tags, e.g. <code>BANDWIDTH=800000,CODECS="avc1.4d401f"</code>.
+ */
+public final class AttributeList {
+
+  private AttributeList() {
+  }
+
+  /**
+   * Parses an attribute list, keeping quoted values including their quotes.
+   *
+   * @param list
+   *          the attribute list
+   * @return the attributes, in order
+   */
+  public static Map<String, String> parse(String list) {
+    Map<String, String> attributes = new LinkedHashMap<String, String>();
+    int i = 0;
+    while (i < list.length()) {
+      int equals = list.indexOf('=', i);
+      if (equals < 0)
+        break;
+      String name = list.substring(i, equals).trim();
+      int end = equals + 1;
+      if (end < list.length() && list.charAt(end) == '"') {
+        end = list.indexOf('"', end + 1);
+        end = end < 0 ? list.length() : end + 1;
+      } else {
+        int comma = list.indexOf(',', end);
+        end = comma < 0 ? list.length() : comma;
+      }
+      attributes.put(name, list.substring(equals + 1, end));
+      i = end + 1;
+    }
+    return attributes;
+  }
+
+  /**
+   * Returns the value of a single attribute without parsing the whole list.
+   *
+   * @param list
+   *          the attribute list
+   * @param name
+   *          the attribute name
+   * @return the value with the quotes removed, or <code>null</code> if the attribute is missing
+   */
+  public static String get(String list, String name) {
+    int i = 0;
+    while (i < list.length()) {
+      int equals = list.indexOf('=', i);
+      if (equals < 0)
+        return null;
+      int end = equals + 1;
+      boolean quoted = end < list.length() && list.charAt(end) == '"';
+      if (quoted) {
+        end = list.indexOf('"', end + 1);
+        end = end < 0 ? list.length() : end + 1;
+      } else {
+        int comma = list.indexOf(',', end);
+        end = comma < 0 ? list.length() : comma;
+      }
+      if (equals - i == name.length() && list.startsWith(name, i))
+        return quoted ? list.substring(equals + 2, Math.max(equals + 2, end - 1)) : list.substring(equals + 1, end);
+      i = end + 1;
+    }
+    return null;
+  }
+
+  /**
+   * Formats an attribute list. Values are written as they are, so quoted values must include their quotes.
+   *
+   * @param attributes
+   *          the attributes
+   * @return the attribute list
+   */
+  public static String format(Map<String, String> attributes) {
+    StringBuilder list = new StringBuilder();
+    for (Map.Entry<String, String> attribute : attributes.entrySet()) {
+      if (list.length() > 0)
+        list.append(',');
+      list.append(attribute.getKey()).append('=').append(attribute.getValue());
+    }
+    return list.toString();
+  }
+
+}
@@ -0,0 +1,245 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A media playlist, i.e. a list of media segments, as defined by the HTTP Live Streaming specification. Large playlists
+ * are better processed segment by segment with a {@link PlaylistReader} and a {@link PlaylistWriter} than loaded as a
+ * whole.
+ */
+public class MediaPlaylist {
+
+  /** The playlist encoding */
+  public static final String ENCODING = "UTF-8";
+
+  public static final String EXTM3U = "#EXTM3U";
+  public static final String EXTINF = "#EXTINF:";
+  public static final String VERSION = "#EXT-X-VERSION:";
+  public static final String TARGETDURATION = "#EXT-X-TARGETDURATION:";
+  public static final String MEDIA_SEQUENCE = "#EXT-X-MEDIA-SEQUENCE:";
+  public static final String DISCONTINUITY_SEQUENCE = "#EXT-X-DISCONTINUITY-SEQUENCE:";
+  public static final String PLAYLIST_TYPE = "#EXT-X-PLAYLIST-TYPE:";
+  public static final String I_FRAMES_ONLY = "#EXT-X-I-FRAMES-ONLY";
+  public static final String INDEPENDENT_SEGMENTS = "#EXT-X-INDEPENDENT-SEGMENTS";
+  public static final String BYTERANGE = "#EXT-X-BYTERANGE:";
+  public static final String KEY = "#EXT-X-KEY:";
+  public static final String MAP = "#EXT-X-MAP:";
+  public static final String DISCONTINUITY = "#EXT-X-DISCONTINUITY";
+  public static final String ENDLIST = "#EXT-X-ENDLIST";
+  public static final String PROGRAM_DATE_TIME = "#EXT-X-PROGRAM-DATE-TIME:";
+  public static final String SERVER_CONTROL = "#EXT-X-SERVER-CONTROL:";
+  public static final String PART_INF = "#EXT-X-PART-INF:";
+  public static final String PART = "#EXT-X-PART:";
+  public static final String PRELOAD_HINT = "#EXT-X-PRELOAD-HINT:";
+
+  /** Playlist type of playlists that never change */
+  public static final String TYPE_VOD = "VOD";
+
+  /** Playlist type of playlists that are only appended to */
+  public static final String TYPE_EVENT = "EVENT";
+
+  /** The compatibility version, or 0 if not given */
+  private int version;
+
+  /** The target duration in seconds, or -1 if not given */
+  private long targetDuration = -1;
+
+  /** The media sequence number of the first segment, or -1 if not given */
+  private long mediaSequence = -1;
+
+  /** The discontinuity sequence number of the first segment, or -1 if not given */
+  private long discontinuitySequence = -1;
+
+  /** The playlist type, or <code>null</code> */
+  private String playlistType;
+
+  /** Whether every segment is a single I-frame */
+  private boolean iFramesOnly;
+
+  /** Whether all segments can be decoded on their own */
+  private boolean independentSegments;
+
+  /** Whether no more segments will be added */
+  private boolean endList;
+
+  /** Other playlist tags, as complete lines */
+  private final List<String> tags = new ArrayList<String>();
+
+  /** Tags following the last segment, as complete lines */
+  private final List<String> trailingTags = new ArrayList<String>();
+
+  /** The segments */
+  private final List<MediaSegment> segments = new ArrayList<MediaSegment>();
+
+  /**
+   * Reads a playlist file completely.
+   *
+   * @param file
+   *          the playlist file
+   * @return the playlist
+   * @throws PlaylistException
+   *           if the file is not a valid media playlist
+   */
+  public static MediaPlaylist read(File file) throws IOException {
+    final MediaPlaylist playlist = new MediaPlaylist();
+    PlaylistReader reader = new PlaylistReader(new InputStreamReader(new FileInputStream(file), ENCODING));
+    try {
+      reader.read(new PlaylistHandler() {
+        @Override
+        public void segment(MediaSegment segment) {
+          playlist.segments.add(segment.copy());
+        }
+
+        @Override
+        public void end(MediaPlaylist header) {
+          playlist.copyHeader(header);
+        }
+      });
+    } finally {
+      reader.close();
+    }
+    return playlist;
+  }
+
+  /**
+   * Writes the playlist to a file.
+   *
+   * @param file
+   *          the playlist file
+   */
+  public void write(File file) throws IOException {
+    PlaylistWriter writer = new PlaylistWriter(new OutputStreamWriter(new FileOutputStream(file), ENCODING));
+    try {
+      writer.writeHeader(this);
+      for (MediaSegment segment : segments)
+        writer.writeSegment(segment);
+      writer.writeEnd(this);
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * Returns the sum of all segment durations in seconds.
+   */
+  public double getDuration() {
+    double duration = 0;
+    for (MediaSegment segment : segments)
+      duration += segment.getDuration();
+    return duration;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  public void setVersion(int version) {
+    this.version = version;
+  }
+
+  public long getTargetDuration() {
+    return targetDuration;
+  }
+
+  public void setTargetDuration(long targetDuration) {
+    this.targetDuration = targetDuration;
+  }
+
+  public long getMediaSequence() {
+    return mediaSequence;
+  }
+
+  public void setMediaSequence(long mediaSequence) {
+    this.mediaSequence = mediaSequence;
+  }
+
+  public long getDiscontinuitySequence() {
+    return discontinuitySequence;
+  }
+
+  public void setDiscontinuitySequence(long discontinuitySequence) {
+    this.discontinuitySequence = discontinuitySequence;
+  }
+
+  public String getPlaylistType() {
+    return playlistType;
+  }
+
+  public void setPlaylistType(String playlistType) {
+    this.playlistType = playlistType;
+  }
+
+  public boolean isIFramesOnly() {
+    return iFramesOnly;
+  }
+
+  public void setIFramesOnly(boolean iFramesOnly) {
+    this.iFramesOnly = iFramesOnly;
+  }
+
+  public boolean isIndependentSegments() {
+    return independentSegments;
+  }
+
+  public void setIndependentSegments(boolean independentSegments) {
+    this.independentSegments = independentSegments;
+  }
+
+  public boolean isEndList() {
+    return endList;
+  }
+
+  public void setEndList(boolean endList) {
+    this.endList = endList;
+  }
+
+  public List<String> getTags() {
+    return tags;
+  }
+
+  public List<String> getTrailingTags() {
+    return trailingTags;
+  }
+
+  public List<MediaSegment> getSegments() {
+    return segments;
+  }
+
+  private void copyHeader(MediaPlaylist header) {
+    version = header.version;
+    targetDuration = header.targetDuration;
+    mediaSequence = header.mediaSequence;
+    discontinuitySequence = header.discontinuitySequence;
+    playlistType = header.playlistType;
+    iFramesOnly = header.iFramesOnly;
+    independentSegments = header.independentSegments;
+    endList = header.endList;
+    tags.addAll(header.tags);
+    trailingTags.addAll(header.trailingTags);
+  }
+
+}
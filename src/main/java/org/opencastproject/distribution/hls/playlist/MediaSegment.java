@@ -0,0 +1,180 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A media segment of a media playlist along with the tags that apply to it.
+ */
+public class MediaSegment {
+
+  /** The segment URI */
+  private String uri;
+
+  /** Duration in seconds */
+  private double duration;
+
+  /** The optional title of the EXTINF tag */
+  private String title;
+
+  /** Length of the byte range, or -1 if the segment is the whole resource */
+  private long byteRangeLength = -1;
+
+  /** Offset of the byte range, or -1 if not known */
+  private long byteRangeOffset = -1;
+
+  /** Whether the segment is preceded by a discontinuity */
+  private boolean discontinuity;
+
+  /** Attribute list of the EXT-X-KEY tag in effect, or <code>null</code> if the segment is not encrypted */
+  private String key;
+
+  /** Attribute list of the EXT-X-MAP tag in effect, or <code>null</code> */
+  private String map;
+
+  /** Other tags preceding the segment, as complete lines, or <code>null</code> if there are none */
+  private List<String> tags;
+
+  public String getUri() {
+    return uri;
+  }
+
+  public void setUri(String uri) {
+    this.uri = uri;
+  }
+
+  public double getDuration() {
+    return duration;
+  }
+
+  public void setDuration(double duration) {
+    this.duration = duration;
+  }
+
+  public String getTitle() {
+    return title;
+  }
+
+  public void setTitle(String title) {
+    this.title = title;
+  }
+
+  public boolean hasByteRange() {
+    return byteRangeLength >= 0;
+  }
+
+  public long getByteRangeLength() {
+    return byteRangeLength;
+  }
+
+  public long getByteRangeOffset() {
+    return byteRangeOffset;
+  }
+
+  /**
+   * Sets the byte range of the segment.
+   *
+   * @param length
+   *          the length in bytes, or -1 to address the whole resource
+   * @param offset
+   *          the offset of the first byte
+   */
+  public void setByteRange(long length, long offset) {
+    this.byteRangeLength = length;
+    this.byteRangeOffset = offset;
+  }
+
+  public boolean isDiscontinuity() {
+    return discontinuity;
+  }
+
+  public void setDiscontinuity(boolean discontinuity) {
+    this.discontinuity = discontinuity;
+  }
+
+  public String getKey() {
+    return key;
+  }
+
+  public void setKey(String key) {
+    this.key = key;
+  }
+
+  public String getMap() {
+    return map;
+  }
+
+  public void setMap(String map) {
+    this.map = map;
+  }
+
+  public List<String> getTags() {
+    if (tags == null)
+      return Collections.emptyList();
+    return tags;
+  }
+
+  public void addTag(String line) {
+    if (tags == null)
+      tags = new ArrayList<String>(2);
+    tags.add(line);
+  }
+
+  /**
+   * Returns a copy of this segment.
+   */
+  public MediaSegment copy() {
+    MediaSegment copy = new MediaSegment();
+    copy.uri = uri;
+    copy.duration = duration;
+    copy.title = title;
+    copy.byteRangeLength = byteRangeLength;
+    copy.byteRangeOffset = byteRangeOffset;
+    copy.discontinuity = discontinuity;
+    copy.key = key;
+    copy.map = map;
+    if (tags != null)
+      copy.tags = new ArrayList<String>(tags);
+    return copy;
+  }
+
+  /**
+   * Resets everything but the key and the map, which apply to all following segments until they are replaced.
+   */
+  void clear() {
+    uri = null;
+    duration = 0;
+    title = null;
+    byteRangeLength = -1;
+    byteRangeOffset = -1;
+    discontinuity = false;
+    if (tags != null)
+      tags.clear();
+  }
+
+  /**
+   * Whether tags were collected since the last {@link #clear()}.
+   */
+  boolean hasTags() {
+    return tags != null && !tags.isEmpty();
+  }
+
+}
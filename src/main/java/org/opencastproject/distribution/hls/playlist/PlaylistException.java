@@ -0,0 +1,41 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import java.io.IOException;
+
+/**
+ * Signals a playlist that does not conform to the HLS specification.
+ */
+public class PlaylistException extends IOException {
+
+  private static final long serialVersionUID = -3725417806253950181L;
+
+  /** The line the problem was found on, starting at 1 */
+  private final int line;
+
+  public PlaylistException(String message, int line) {
+    super("Line " + line + ": " + message);
+    this.line = line;
+  }
+
+  public int getLine() {
+    return line;
+  }
+
+}
@@ -0,0 +1,56 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import java.io.IOException;
+
+/**
+ * Receives the parts of a media playlist from a {@link PlaylistReader} while it is read. All methods do nothing by
+ * default, so handlers only override what they are interested in.
+ */
+public abstract class PlaylistHandler {
+
+  /**
+   * Called once before the first segment, or before {@link #end(MediaPlaylist)} if the playlist has no segments.
+   *
+   * @param header
+   *          the playlist tags read so far; it has no segments
+   */
+  public void header(MediaPlaylist header) throws IOException {
+  }
+
+  /**
+   * Called for every segment. The reader reuses the segment instance, so handlers keeping segments must
+   * {@link MediaSegment#copy() copy} them.
+   *
+   * @param segment
+   *          the segment, including the key and map in effect for it
+   */
+  public void segment(MediaSegment segment) throws IOException {
+  }
+
+  /**
+   * Called after the last segment.
+   *
+   * @param header
+   *          the playlist tags, including the end list marker and the tags following the last segment
+   */
+  public void end(MediaPlaylist header) throws IOException {
+  }
+
+}
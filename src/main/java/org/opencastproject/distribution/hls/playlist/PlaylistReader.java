@@ -0,0 +1,257 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.BYTERANGE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.DISCONTINUITY;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.DISCONTINUITY_SEQUENCE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.ENDLIST;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.EXTINF;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.EXTM3U;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.INDEPENDENT_SEGMENTS;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.I_FRAMES_ONLY;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.KEY;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.MAP;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.MEDIA_SEQUENCE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.PART;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.PLAYLIST_TYPE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.PROGRAM_DATE_TIME;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.TARGETDURATION;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.VERSION;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+
+/**
+ * Reads a media playlist line by line and passes its segments to a {@link PlaylistHandler} as they are read. The
+ * playlist is never held in memory as a whole and a single segment instance is reused for all segments, so playlists
+ * with many thousand segments are read with constant memory.
+ * <p>
+ * Segments are reported with the key and map in effect for them. Byte ranges without an offset are resolved against
+ * the previous segment. Tags the reader does not know are passed on unchanged, attached to the following segment.
+ */
+public class PlaylistReader implements Closeable {
+
+  /** Size of the read buffer */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** The playlist source */
+  private final BufferedReader reader;
+
+  /** The number of the current line */
+  private int lineNumber = 0;
+
+  public PlaylistReader(Reader reader) {
+    this.reader = reader instanceof BufferedReader ? (BufferedReader) reader : new BufferedReader(reader, BUFFER_SIZE);
+  }
+
+  /**
+   * Reads the playlist.
+   *
+   * @param handler
+   *          the handler receiving the playlist
+   * @throws PlaylistException
+   *           if the playlist is not a valid media playlist
+   * @throws IOException
+   *           if reading fails or the handler fails
+   */
+  public void read(PlaylistHandler handler) throws IOException {
+    MediaPlaylist header = new MediaPlaylist();
+    MediaSegment segment = new MediaSegment();
+    boolean headerReported = false;
+    boolean extinf = false;
+    String previousUri = null;
+    long previousEnd = -1;
+
+    String line = reader.readLine();
+    lineNumber++;
+    if (line == null || !line.trim().equals(EXTM3U))
+      throw new PlaylistException("Playlist does not start with " + EXTM3U, lineNumber);
+
+    while ((line = reader.readLine()) != null) {
+      lineNumber++;
+      if (line.length() == 0 || Character.isWhitespace(line.charAt(0)) && line.trim().length() == 0)
+        continue;
+
+      // Segment URI
+      if (line.charAt(0) != '#') {
+        if (!extinf)
+          throw new PlaylistException("Segment " + line + " without " + EXTINF, lineNumber);
+        if (!headerReported) {
+          handler.header(header);
+          headerReported = true;
+        }
+        String uri = line.trim();
+        segment.setUri(uri);
+        if (segment.hasByteRange() && segment.getByteRangeOffset() < 0) {
+          if (!uri.equals(previousUri))
+            throw new PlaylistException("Byte range of " + uri + " without offset", lineNumber);
+          segment.setByteRange(segment.getByteRangeLength(), previousEnd);
+        }
+        previousUri = uri;
+        previousEnd = segment.hasByteRange() ? segment.getByteRangeOffset() + segment.getByteRangeLength() : -1;
+        handler.segment(segment);
+        segment.clear();
+        extinf = false;
+        continue;
+      }
+
+      // Comments
+      if (!line.startsWith("#EXT"))
+        continue;
+
+      // Segment tags
+      if (line.startsWith(EXTINF)) {
+        if (extinf)
+          throw new PlaylistException("Duplicate " + EXTINF, lineNumber);
+        parseExtinf(line, segment);
+        extinf = true;
+      } else if (line.startsWith(BYTERANGE)) {
+        parseByteRange(line, segment);
+      } else if (line.startsWith(KEY)) {
+        String key = line.substring(KEY.length());
+        String method = AttributeList.get(key, "METHOD");
+        if (method == null)
+          throw new PlaylistException(KEY + " without METHOD", lineNumber);
+        if ("NONE".equals(method)) {
+          segment.setKey(null);
+        } else if (AttributeList.get(key, "URI") == null) {
+          throw new PlaylistException(KEY + " without URI", lineNumber);
+        } else {
+          segment.setKey(key);
+        }
+      } else if (line.startsWith(MAP)) {
+        String map = line.substring(MAP.length());
+        if (AttributeList.get(map, "URI") == null)
+          throw new PlaylistException(MAP + " without URI", lineNumber);
+        segment.setMap(map);
+      } else if (line.equals(DISCONTINUITY)) {
+        segment.setDiscontinuity(true);
+      } else if (line.equals(ENDLIST)) {
+        header.setEndList(true);
+      }
+
+      // Playlist tags
+      else if (line.startsWith(VERSION)) {
+        checkHeader(line, headerReported);
+        header.setVersion((int) parseNumber(line, VERSION));
+      } else if (line.startsWith(TARGETDURATION)) {
+        checkHeader(line, headerReported);
+        header.setTargetDuration(parseNumber(line, TARGETDURATION));
+      } else if (line.startsWith(MEDIA_SEQUENCE)) {
+        checkHeader(line, headerReported);
+        header.setMediaSequence(parseNumber(line, MEDIA_SEQUENCE));
+      } else if (line.startsWith(DISCONTINUITY_SEQUENCE)) {
+        checkHeader(line, headerReported);
+        header.setDiscontinuitySequence(parseNumber(line, DISCONTINUITY_SEQUENCE));
+      } else if (line.startsWith(PLAYLIST_TYPE)) {
+        checkHeader(line, headerReported);
+        String type = line.substring(PLAYLIST_TYPE.length()).trim();
+        if (!MediaPlaylist.TYPE_VOD.equals(type) && !MediaPlaylist.TYPE_EVENT.equals(type))
+          throw new PlaylistException("Unknown playlist type " + type, lineNumber);
+        header.setPlaylistType(type);
+      } else if (line.equals(I_FRAMES_ONLY)) {
+        checkHeader(line, headerReported);
+        header.setIFramesOnly(true);
+      } else if (line.equals(INDEPENDENT_SEGMENTS)) {
+        header.setIndependentSegments(true);
+      } else if (line.startsWith("#EXT-X-STREAM-INF:") || line.startsWith("#EXT-X-MEDIA:")
+              || line.startsWith("#EXT-X-I-FRAME-STREAM-INF:")) {
+        throw new PlaylistException("Master playlist tag in a media playlist", lineNumber);
+      }
+
+      // Tags that always belong to the following segment
+      else if (line.startsWith(PROGRAM_DATE_TIME) || line.startsWith(PART)) {
+        segment.addTag(line);
+      }
+
+      // Anything else is kept where it was
+      else if (!headerReported && !extinf && !segment.hasByteRange() && !segment.isDiscontinuity()) {
+        header.getTags().add(line);
+      } else {
+        segment.addTag(line);
+      }
+    }
+
+    if (extinf)
+      throw new PlaylistException(EXTINF + " without segment", lineNumber);
+    if (segment.hasTags())
+      header.getTrailingTags().addAll(segment.getTags());
+    if (!headerReported)
+      handler.header(header);
+    handler.end(header);
+  }
+
+  /**
+   * Closes the underlying reader.
+   */
+  @Override
+  public void close() throws IOException {
+    reader.close();
+  }
+
+  private void parseExtinf(String line, MediaSegment segment) throws PlaylistException {
+    int comma = line.indexOf(',', EXTINF.length());
+    String duration = line.substring(EXTINF.length(), comma < 0 ? line.length() : comma).trim();
+    try {
+      segment.setDuration(Double.parseDouble(duration));
+    } catch (NumberFormatException e) {
+      throw new PlaylistException("Invalid segment duration " + duration, lineNumber);
+    }
+    if (segment.getDuration() < 0)
+      throw new PlaylistException("Negative segment duration " + duration, lineNumber);
+    if (comma >= 0 && comma + 1 < line.length())
+      segment.setTitle(line.substring(comma + 1));
+  }
+
+  private void parseByteRange(String line, MediaSegment segment) throws PlaylistException {
+    int at = line.indexOf('@', BYTERANGE.length());
+    try {
+      long length = Long.parseLong(line.substring(BYTERANGE.length(), at < 0 ? line.length() : at).trim());
+      long offset = at < 0 ? -1 : Long.parseLong(line.substring(at + 1).trim());
+      if (length < 0 || at >= 0 && offset < 0)
+        throw new NumberFormatException();
+      segment.setByteRange(length, offset);
+    } catch (NumberFormatException e) {
+      throw new PlaylistException("Invalid byte range " + line.substring(BYTERANGE.length()), lineNumber);
+    }
+  }
+
+  private long parseNumber(String line, String tag) throws PlaylistException {
+    try {
+      long value = Long.parseLong(line.substring(tag.length()).trim());
+      if (value < 0)
+        throw new NumberFormatException();
+      return value;
+    } catch (NumberFormatException e) {
+      throw new PlaylistException("Invalid value of " + tag, lineNumber);
+    }
+  }
+
+  /**
+   * Playlist tags that apply to all segments must precede the first segment, otherwise streaming consumers would see
+   * them too late.
+   */
+  private void checkHeader(String line, boolean headerReported) throws PlaylistException {
+    if (headerReported)
+      throw new PlaylistException(line + " after the first segment", lineNumber);
+  }
+
+}
@@ -0,0 +1,115 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+
+/**
+ * Copies a media playlist segment by segment while subclasses change the segments on the way, e.g. to rename or
+ * encrypt them. Tags the rewriter does not touch are kept.
+ */
+public abstract class PlaylistRewriter extends PlaylistHandler {
+
+  /** The writer of the playlist currently being rewritten */
+  private PlaylistWriter writer = null;
+
+  /**
+   * Rewrites <code>source</code> into <code>target</code>.
+   *
+   * @param source
+   *          the playlist to read
+   * @param target
+   *          the playlist to write
+   * @throws PlaylistException
+   *           if the source is not a valid media playlist
+   */
+  public void rewrite(File source, File target) throws IOException {
+    PlaylistReader reader = new PlaylistReader(new InputStreamReader(new FileInputStream(source),
+            MediaPlaylist.ENCODING));
+    try {
+      writer = new PlaylistWriter(new OutputStreamWriter(new FileOutputStream(target), MediaPlaylist.ENCODING));
+      try {
+        reader.read(this);
+      } finally {
+        writer.close();
+        writer = null;
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Rewrites <code>playlist</code> into a temporary file that replaces it once it is complete, so readers never see a
+   * partially written playlist.
+   *
+   * @param playlist
+   *          the playlist to rewrite
+   */
+  public void rewriteInPlace(File playlist) throws IOException {
+    File temporary = new File(playlist.getParentFile(), playlist.getName() + ".tmp");
+    try {
+      rewrite(playlist, temporary);
+    } catch (IOException e) {
+      temporary.delete();
+      throw e;
+    }
+    if (!temporary.renameTo(playlist) && !(playlist.delete() && temporary.renameTo(playlist)))
+      throw new IOException("Could not replace " + playlist);
+  }
+
+  @Override
+  public final void header(MediaPlaylist header) throws IOException {
+    rewriteHeader(header);
+    writer.writeHeader(header);
+  }
+
+  @Override
+  public final void segment(MediaSegment segment) throws IOException {
+    rewriteSegment(segment);
+    writer.writeSegment(segment);
+  }
+
+  @Override
+  public final void end(MediaPlaylist header) throws IOException {
+    writer.writeEnd(header);
+  }
+
+  /**
+   * Changes the playlist tags before they are written. Does nothing by default.
+   *
+   * @param header
+   *          the playlist tags
+   */
+  protected void rewriteHeader(MediaPlaylist header) throws IOException {
+  }
+
+  /**
+   * Changes a segment before it is written.
+   *
+   * @param segment
+   *          the segment
+   */
+  protected abstract void rewriteSegment(MediaSegment segment) throws IOException;
+
+}
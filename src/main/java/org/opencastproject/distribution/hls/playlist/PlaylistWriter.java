@@ -0,0 +1,199 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.playlist;
+
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.BYTERANGE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.DISCONTINUITY;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.DISCONTINUITY_SEQUENCE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.ENDLIST;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.EXTINF;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.EXTM3U;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.INDEPENDENT_SEGMENTS;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.I_FRAMES_ONLY;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.KEY;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.MAP;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.MEDIA_SEQUENCE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.PLAYLIST_TYPE;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.TARGETDURATION;
+import static org.opencastproject.distribution.hls.playlist.MediaPlaylist.VERSION;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes a media playlist segment by segment. Key and map tags are only written when they change, and byte range
+ * offsets are left out where the range continues the previous one.
+ */
+public class PlaylistWriter implements Closeable {
+
+  /** Size of the write buffer */
+  private static final int BUFFER_SIZE = 64 * 1024;
+
+  /** Number of decimals of segment durations */
+  private static final int DURATION_DECIMALS = 6;
+
+  /** The scale of segment durations */
+  private static final long DURATION_SCALE = 1000000L;
+
+  /** The playlist target */
+  private final Writer writer;
+
+  /** The key attributes in effect */
+  private String key = null;
+
+  /** The map attributes in effect */
+  private String map = null;
+
+  /** The URI of the previous segment */
+  private String previousUri = null;
+
+  /** The end of the byte range of the previous segment, or -1 */
+  private long previousEnd = -1;
+
+  public PlaylistWriter(Writer writer) {
+    this.writer = writer instanceof BufferedWriter ? writer : new BufferedWriter(writer, BUFFER_SIZE);
+  }
+
+  /**
+   * Writes the playlist tags preceding the first segment. Segments of <code>header</code> are not written.
+   *
+   * @param header
+   *          the playlist
+   */
+  public void writeHeader(MediaPlaylist header) throws IOException {
+    writeLine(EXTM3U);
+    if (header.getVersion() > 0)
+      writeTag(VERSION, header.getVersion());
+    if (header.getTargetDuration() >= 0)
+      writeTag(TARGETDURATION, header.getTargetDuration());
+    if (header.getMediaSequence() >= 0)
+      writeTag(MEDIA_SEQUENCE, header.getMediaSequence());
+    if (header.getDiscontinuitySequence() >= 0)
+      writeTag(DISCONTINUITY_SEQUENCE, header.getDiscontinuitySequence());
+    if (header.getPlaylistType() != null) {
+      writer.write(PLAYLIST_TYPE);
+      writeLine(header.getPlaylistType());
+    }
+    if (header.isIFramesOnly())
+      writeLine(I_FRAMES_ONLY);
+    if (header.isIndependentSegments())
+      writeLine(INDEPENDENT_SEGMENTS);
+    for (String tag : header.getTags())
+      writeLine(tag);
+  }
+
+  /**
+   * Writes a segment.
+   *
+   * @param segment
+   *          the segment
+   */
+  public void writeSegment(MediaSegment segment) throws IOException {
+    if (segment.getUri() == null)
+      throw new IllegalArgumentException("Segment URI must not be null");
+    if (segment.isDiscontinuity())
+      writeLine(DISCONTINUITY);
+    if (!equals(key, segment.getKey())) {
+      writer.write(KEY);
+      writeLine(segment.getKey() == null ? "METHOD=NONE" : segment.getKey());
+      key = segment.getKey();
+    }
+    if (segment.getMap() != null && !segment.getMap().equals(map)) {
+      writer.write(MAP);
+      writeLine(segment.getMap());
+      map = segment.getMap();
+    }
+    for (String tag : segment.getTags())
+      writeLine(tag);
+
+    writer.write(EXTINF);
+    writeDuration(segment.getDuration());
+    writer.write(',');
+    if (segment.getTitle() != null)
+      writer.write(segment.getTitle());
+    writer.write('\n');
+
+    if (segment.hasByteRange()) {
+      writer.write(BYTERANGE);
+      writer.write(Long.toString(segment.getByteRangeLength()));
+      if (segment.getByteRangeOffset() >= 0
+              && (segment.getByteRangeOffset() != previousEnd || !segment.getUri().equals(previousUri))) {
+        writer.write('@');
+        writer.write(Long.toString(segment.getByteRangeOffset()));
+      }
+      writer.write('\n');
+      previousEnd = segment.getByteRangeOffset() + segment.getByteRangeLength();
+    } else {
+      previousEnd = -1;
+    }
+    writeLine(segment.getUri());
+    previousUri = segment.getUri();
+  }
+
+  /**
+   * Writes the tags following the last segment.
+   *
+   * @param header
+   *          the playlist
+   */
+  public void writeEnd(MediaPlaylist header) throws IOException {
+    for (String tag : header.getTrailingTags())
+      writeLine(tag);
+    if (header.isEndList())
+      writeLine(ENDLIST);
+    writer.flush();
+  }
+
+  /**
+   * Closes the underlying writer.
+   */
+  @Override
+  public void close() throws IOException {
+    writer.close();
+  }
+
+  private void writeTag(String tag, long value) throws IOException {
+    writer.write(tag);
+    writeLine(Long.toString(value));
+  }
+
+  private void writeLine(String line) throws IOException {
+    writer.write(line);
+    writer.write('\n');
+  }
+
+  /**
+   * Writes a duration with a fixed number of decimals, without going through a formatter.
+   */
+  private void writeDuration(double duration) throws IOException {
+    long scaled = Math.round(duration * DURATION_SCALE);
+    writer.write(Long.toString(scaled / DURATION_SCALE));
+    writer.write('.');
+    String decimals = Long.toString(scaled % DURATION_SCALE);
+    for (int i = decimals.length(); i < DURATION_DECIMALS; i++)
+      writer.write('0');
+    writer.write(decimals);
+  }
+
+  private static boolean equals(String a, String b) {
+    return a == null ? b == null : a.equals(b);
+  }
+
+}
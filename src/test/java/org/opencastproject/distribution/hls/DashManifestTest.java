@@ -0,0 +1,158 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+public class DashManifestTest {
+
+  /** An initialization segment fragment with an H.264 High profile level 3.1 configuration */
+  private static final byte[] VIDEO_INIT = { 0, 0, 0, 15, 'a', 'v', 'c', 'C', 1, 0x64, 0x00, 0x1F, (byte) 0xFF,
+          (byte) 0xE1, 0 };
+
+  /** An initialization segment fragment with an AAC LC elementary stream descriptor */
+  private static final byte[] AUDIO_INIT = { 0, 0, 0, 39, 'e', 's', 'd', 's', 0, 0, 0, 0, 0x03, 25, 0, 1, 0, 0x04,
+          17, 0x40, 0x15, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0x05, 2, 0x12, 0x10, 0x06, 1, 2 };
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "dash-manifest-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(new File(directory, "audio"));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testCodecs() throws Exception {
+    Assert.assertEquals("avc1.64001f", DashManifest.getCodecs(write(new File(directory, "video.mp4"), VIDEO_INIT)));
+    Assert.assertEquals("mp4a.40.2", DashManifest.getCodecs(write(new File(directory, "audio.mp4"), AUDIO_INIT)));
+    Assert.assertNull(DashManifest.getCodecs(write(new File(directory, "empty.mp4"), new byte[8])));
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    File video = writePlaylist(new File(directory, "track-source.m3u8"), "track-source", VIDEO_INIT, 10.0, 10.0,
+            10.0, 4.52);
+    File audio = writePlaylist(new File(directory, "audio/track-audio.m3u8"), "track-audio", AUDIO_INIT, 10.0,
+            10.0, 10.0, 4.5);
+    HLSVariant videoVariant = new HLSVariant(video.getName());
+    videoVariant.setBandwidth(2000000);
+    videoVariant.setResolution("1280x720");
+    HLSVariant audioVariant = new HLSVariant("audio/" + audio.getName());
+    audioVariant.setBandwidth(128000);
+
+    DashManifest manifest = new DashManifest(directory);
+    manifest.addVideo(video, videoVariant);
+    manifest.addAudio(audio, audioVariant);
+    File mpd = new File(directory, "track.mpd");
+    manifest.write(mpd);
+
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document document = factory.newDocumentBuilder().parse(mpd);
+    Element root = document.getDocumentElement();
+    Assert.assertEquals("MPD", root.getLocalName());
+    Assert.assertEquals("urn:mpeg:dash:schema:mpd:2011", root.getNamespaceURI());
+    Assert.assertEquals("static", root.getAttribute("type"));
+    Assert.assertEquals("PT34.520S", root.getAttribute("mediaPresentationDuration"));
+
+    NodeList sets = root.getElementsByTagName("AdaptationSet");
+    Assert.assertEquals(2, sets.getLength());
+    Element videoSet = (Element) sets.item(0);
+    Assert.assertEquals("video/mp4", videoSet.getAttribute("mimeType"));
+    Element videoRepresentation = (Element) videoSet.getElementsByTagName("Representation").item(0);
+    Assert.assertEquals("source", videoRepresentation.getAttribute("id"));
+    Assert.assertEquals("avc1.64001f", videoRepresentation.getAttribute("codecs"));
+    Assert.assertEquals("1280", videoRepresentation.getAttribute("width"));
+    Assert.assertEquals("2000000", videoRepresentation.getAttribute("bandwidth"));
+    Assert.assertEquals("track-source-init.mp4", ((Element) videoRepresentation.getElementsByTagName(
+            "Initialization").item(0)).getAttribute("sourceURL"));
+    NodeList timeline = videoRepresentation.getElementsByTagName("S");
+    Assert.assertEquals(2, timeline.getLength());
+    Assert.assertEquals("10000", ((Element) timeline.item(0)).getAttribute("d"));
+    Assert.assertEquals("2", ((Element) timeline.item(0)).getAttribute("r"));
+    Assert.assertEquals("4520", ((Element) timeline.item(1)).getAttribute("d"));
+    NodeList urls = videoRepresentation.getElementsByTagName("SegmentURL");
+    Assert.assertEquals(4, urls.getLength());
+    Assert.assertEquals("track-source-003.m4s", ((Element) urls.item(3)).getAttribute("media"));
+
+    Element audioSet = (Element) sets.item(1);
+    Assert.assertEquals("audio/mp4", audioSet.getAttribute("mimeType"));
+    Element audioRepresentation = (Element) audioSet.getElementsByTagName("Representation").item(0);
+    Assert.assertEquals("mp4a.40.2", audioRepresentation.getAttribute("codecs"));
+    Assert.assertEquals("audio/", audioRepresentation.getElementsByTagName("BaseURL").item(0).getTextContent());
+  }
+
+  @Test
+  public void testTransportStreamPlaylist() throws Exception {
+    File playlist = new File(directory, "track-source.m3u8");
+    FileUtils.writeStringToFile(playlist, "#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXTINF:10.0,\ntrack-source-000.ts\n"
+            + "#EXT-X-ENDLIST\n", "UTF-8");
+    try {
+      new DashManifest(directory).addVideo(playlist, new HLSVariant(playlist.getName()));
+      Assert.fail("MPEG-TS segments must be rejected");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  private File writePlaylist(File playlist, String name, byte[] init, double... durations) throws Exception {
+    write(new File(playlist.getParentFile(), name + "-init.mp4"), init);
+    StringBuilder m3u8 = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:7\n#EXT-X-TARGETDURATION:10\n");
+    m3u8.append("#EXT-X-MEDIA-SEQUENCE:0\n#EXT-X-PLAYLIST-TYPE:VOD\n");
+    m3u8.append("#EXT-X-MAP:URI=\"").append(name).append("-init.mp4\"\n");
+    for (int i = 0; i < durations.length; i++) {
+      m3u8.append("#EXTINF:").append(durations[i]).append(",\n");
+      m3u8.append(name).append("-00").append(i).append(".m4s\n");
+    }
+    m3u8.append("#EXT-X-ENDLIST\n");
+    FileUtils.writeStringToFile(playlist, m3u8.toString(), "UTF-8");
+    return playlist;
+  }
+
+  private static File write(File file, byte[] data) throws Exception {
+    OutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+}
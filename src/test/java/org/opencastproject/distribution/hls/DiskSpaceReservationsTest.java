@@ -0,0 +1,54 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.File;
+
+public class DiskSpaceReservationsTest {
+
+  private static final long MB = IOScheduler.MB;
+
+  @Test
+  public void testReservations() throws Exception {
+    File volume = new File(".");
+    long usable = volume.getUsableSpace();
+    // Leave room for 100 MB above the critical watermark, 50 MB above the low one
+    DiskSpaceReservations reservations = new DiskSpaceReservations(volume, usable - 50 * MB, usable - 100 * MB);
+
+    DiskSpaceReservations.Reservation first = reservations.reserve(60 * MB);
+    Assert.assertNotNull(first);
+    Assert.assertEquals(60 * MB, reservations.getReserved());
+    Assert.assertFalse(reservations.isAcceptable(0));
+
+    // The second reservation would drop below the critical watermark
+    Assert.assertNull(reservations.reserve(60 * MB));
+    Assert.assertEquals(1, reservations.getReservations());
+
+    first.release();
+    first.release();
+    Assert.assertEquals(0, reservations.getReserved());
+    Assert.assertEquals(0, reservations.getReservations());
+    Assert.assertTrue(reservations.isAcceptable(10 * MB));
+    Assert.assertFalse(reservations.isAcceptable(80 * MB));
+    Assert.assertNotNull(reservations.reserve(60 * MB));
+  }
+
+}
@@ -0,0 +1,85 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.Map;
+
+public class DistributionMetricsTest {
+
+  @Test
+  public void testHistogram() throws Exception {
+    LatencyHistogram histogram = new LatencyHistogram();
+    Assert.assertEquals(0, histogram.getMedianMillis());
+    for (int i = 0; i < 90; i++)
+      histogram.record(20);
+    for (int i = 0; i < 9; i++)
+      histogram.record(4000);
+    histogram.record(7200000);
+
+    Assert.assertEquals(100, histogram.getCount());
+    Assert.assertEquals(7200000, histogram.getMaxMillis());
+    Assert.assertEquals(25, histogram.getMedianMillis());
+    Assert.assertEquals(5000, histogram.get95thPercentileMillis());
+    Assert.assertEquals(5000, histogram.get99thPercentileMillis());
+    Assert.assertEquals(7200000, histogram.getPercentile(1.0));
+    Assert.assertEquals((90 * 20 + 9 * 4000 + 7200000) / 100.0, histogram.getMeanMillis(), 0.001);
+
+    Map<String, Long> buckets = histogram.getBuckets();
+    Assert.assertEquals(LatencyHistogram.BOUNDS.length + 1, buckets.size());
+    Assert.assertEquals(Long.valueOf(90), buckets.get("25"));
+    Assert.assertEquals(Long.valueOf(9), buckets.get("5000"));
+    Assert.assertEquals(Long.valueOf(1), buckets.get("+Inf"));
+  }
+
+  @Test
+  public void testCounters() throws Exception {
+    DistributionMetrics metrics = new DistributionMetrics();
+    metrics.jobStarted();
+    metrics.jobStarted();
+    Assert.assertEquals(2, metrics.getJobsInFlight());
+    metrics.jobFinished(true);
+    metrics.jobFinished(false);
+    Assert.assertEquals(0, metrics.getJobsInFlight());
+    Assert.assertEquals(2, metrics.getJobsProcessed());
+    Assert.assertEquals(1, metrics.getJobsFailed());
+
+    metrics.recordExitCode(0);
+    metrics.recordExitCode(0);
+    metrics.recordExitCode(1);
+    metrics.recordExitCode(DistributionMetrics.UNKNOWN_EXIT_CODE);
+    Map<String, Long> exitCodes = metrics.getFfmpegExitCodes();
+    Assert.assertEquals(Long.valueOf(2), exitCodes.get("0"));
+    Assert.assertEquals(Long.valueOf(1), exitCodes.get("1"));
+    Assert.assertEquals(Long.valueOf(1), exitCodes.get("unknown"));
+
+    metrics.waitStarted();
+    Assert.assertEquals(1, metrics.getJobsWaiting());
+    metrics.waitFinished(System.nanoTime());
+    Assert.assertEquals(0, metrics.getJobsWaiting());
+    Assert.assertEquals(1, metrics.getPhase(DistributionMetrics.Phase.LOCK).getCount());
+
+    MetricsReport report = new MetricsReport(metrics);
+    Assert.assertEquals(DistributionMetrics.Phase.values().length, report.getPhases().size());
+    Assert.assertEquals("lock", report.getPhases().get(0).getName());
+    Assert.assertEquals(3, report.getExitCodes().size());
+  }
+
+}
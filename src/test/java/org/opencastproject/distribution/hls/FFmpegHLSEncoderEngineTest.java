@@ -0,0 +1,183 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class FFmpegHLSEncoderEngineTest {
+
+  private File directory;
+
+  private final IOScheduler io = new IOScheduler();
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "ffmpeg-hls-encoder-engine-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  /**
+   * Writes a playlist and its segments the way the segment muxer does.
+   */
+  private File writeOutput(File output, int first, int count, String content) throws Exception {
+    FileUtils.forceMkdir(output);
+    StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:10\n");
+    for (int i = first; i < first + count; i++) {
+      String name = String.format("out-%03d.ts", i);
+      FileUtils.writeStringToFile(new File(output, name), content + i, "UTF-8");
+      playlist.append("#EXTINF:10.000000,\n").append(name).append("\n");
+    }
+    playlist.append("#EXT-X-ENDLIST\n");
+    File m3u8 = new File(output, "out.m3u8");
+    FileUtils.writeStringToFile(m3u8, playlist.toString(), "UTF-8");
+    return m3u8;
+  }
+
+  @Test
+  public void testAudioGroupCommand() throws Exception {
+    String command = FFmpegHLSEncoderEngine.getSegmentCommand(HLSRendition.parse("360p:640x360:800"), true, true,
+            null, 0);
+    // The rendition carries no audio, which is written once as its own playlist
+    Assert.assertFalse(command.substring(0, command.indexOf("-map 0:a:0")).contains("-c:a"));
+    Assert.assertTrue(command.contains(" -map 0:a:0 -vn -c:a aac -strict experimental -b:a 128k -f segment "
+            + "-segment_list #{out.dir}/#{out.name}-audio#{out.suffix} -segment_time 10 "
+            + "#{out.dir}/#{out.name}-audio-%03d.ts "));
+    Assert.assertTrue(command.endsWith(" -codec copy -map 0:v:0 -bsf h264_mp4toannexb -f segment -segment_list "
+            + "#{out.dir}/#{out.name}#{out.suffix} -segment_time 10 #{out.dir}/#{out.name}-%03d.ts"));
+
+    command = FFmpegHLSEncoderEngine.getSegmentCommand(new ArrayList<HLSRendition>(), true, false, null, 0);
+    Assert.assertTrue(command.contains(" -map 0:a:0 -vn -c:a copy -f segment "));
+  }
+
+  @Test
+  public void testMasterPlaylist() throws Exception {
+    HLSVariant source = new HLSVariant("video-source.m3u8");
+    source.setBandwidth(2000000);
+    source.setAverageBandwidth(1500000);
+    source.setResolution("1280x720");
+    source.setIFrameStream("video-source-iframes.m3u8", 300000);
+    HLSVariant low = new HLSVariant("video-360p.m3u8");
+    low.setBandwidth(800000);
+    low.setResolution("640x360");
+    HLSVariant audio = new HLSVariant("video-audio.m3u8");
+    audio.setBandwidth(130000);
+    audio.setAverageBandwidth(128000);
+
+    File master = new File(directory, "video.m3u8");
+    FFmpegHLSEncoderEngine.writeMasterPlaylist(master, Arrays.asList(source, low), audio);
+    Assert.assertEquals(Arrays.asList("#EXTM3U", "#EXT-X-VERSION:4",
+            "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"audio\",NAME=\"default\",DEFAULT=YES,AUTOSELECT=YES,"
+                    + "URI=\"video-audio.m3u8\"",
+            "#EXT-X-STREAM-INF:BANDWIDTH=2130000,AVERAGE-BANDWIDTH=1628000,RESOLUTION=1280x720,AUDIO=\"audio\"",
+            "video-source.m3u8",
+            "#EXT-X-STREAM-INF:BANDWIDTH=930000,RESOLUTION=640x360,AUDIO=\"audio\"",
+            "video-360p.m3u8",
+            "#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=300000,RESOLUTION=1280x720,URI=\"video-source-iframes.m3u8\""),
+            FileUtils.readLines(master, "UTF-8"));
+
+    // Variants carrying their own audio are not grouped
+    FFmpegHLSEncoderEngine.writeMasterPlaylist(master, Arrays.asList(low));
+    Assert.assertEquals(Arrays.asList("#EXTM3U", "#EXT-X-VERSION:4", "#EXT-X-STREAM-INF:BANDWIDTH=800000,"
+            + "RESOLUTION=640x360", "video-360p.m3u8"), FileUtils.readLines(master, "UTF-8"));
+  }
+
+  @Test
+  public void testTailCommand() throws Exception {
+    List<HLSRendition> renditions = HLSRendition.parse("360p:640x360:800");
+    String command = FFmpegHLSEncoderEngine.getTailCommand(renditions, false, false, 41.71, 4, 40, 4);
+    Assert.assertTrue(command.startsWith("-ss 41.710 -i #{in.video.path} -ss 40.000 -i #{in.video.path} -map 1:v:0 "));
+    Assert.assertTrue(command.contains("-segment_list #{out.dir}/#{out.name}-360p#{out.suffix} -segment_start_number 4"));
+    Assert.assertTrue(command.endsWith("-codec copy -map 0 -bsf h264_mp4toannexb -f segment -segment_list "
+            + "#{out.dir}/#{out.name}#{out.suffix} -segment_start_number 4 -segment_time 10 "
+            + "#{out.dir}/#{out.name}-%03d.ts"));
+
+    // Without renditions, the source is read once
+    command = FFmpegHLSEncoderEngine.getTailCommand(renditions.subList(0, 0), false, false, 41.71, 4, 0, 0);
+    Assert.assertEquals(1, command.split(" -i ", -1).length - 1);
+  }
+
+  @Test
+  public void testAppendPlaylist() throws Exception {
+    File destination = new File(new File(directory, "distribution"), "media-source.m3u8");
+    FFmpegHLSEncoderEngine.relitiviseAndMovePlaylist(writeOutput(new File(directory, "first"), 0, 5, "old"),
+            destination, io, new FFmpegHLSEncoderEngine.MoveOptions().segmentPrefix("media").integrity(true));
+    Assert.assertTrue(new File(destination.getParentFile(), "media-004.ts").isFile());
+
+    // The edited source is segmented again from the third segment on, and is one segment shorter
+    List<File> replaced = new ArrayList<File>();
+    List<File> files = FFmpegHLSEncoderEngine.relitiviseAndAppendPlaylist(writeOutput(new File(directory, "second"),
+            2, 2, "new"), destination, "media", 2, replaced, io, true);
+    Assert.assertEquals(5, files.size());
+    MediaPlaylist playlist = MediaPlaylist.read(destination);
+    Assert.assertEquals(4, playlist.getSegments().size());
+    Assert.assertEquals("media-001.ts", playlist.getSegments().get(1).getUri());
+    Assert.assertFalse(playlist.getSegments().get(1).isDiscontinuity());
+    // The new segments do not replace the old ones of the same number, which may still be served
+    Assert.assertEquals("media-r1-002.ts", playlist.getSegments().get(2).getUri());
+    Assert.assertTrue(playlist.getSegments().get(2).isDiscontinuity());
+    Assert.assertFalse(playlist.getSegments().get(3).isDiscontinuity());
+    Assert.assertEquals("old1", FileUtils.readFileToString(new File(destination.getParentFile(), "media-001.ts"),
+            "UTF-8"));
+    Assert.assertEquals("new2", FileUtils.readFileToString(new File(destination.getParentFile(), "media-r1-002.ts"),
+            "UTF-8"));
+    // The segments beyond the new end are left for the caller to delete once all playlists are swapped
+    Assert.assertEquals(3, replaced.size());
+    Assert.assertEquals(new File(destination.getParentFile(), "media-002.ts"), replaced.get(0));
+    Assert.assertTrue(replaced.get(2).isFile());
+    for (File segment : replaced)
+      Assert.assertTrue(segment.delete());
+    Assert.assertFalse(new File(destination.getParentFile(), ".media-source.m3u8.tail").exists());
+    Assert.assertFalse(new File(directory, "second/out.m3u8").exists());
+
+    // The integrity manifest covers the kept and the new segments
+    IntegrityManifest manifest = IntegrityManifest.read(IntegrityManifest.getFile(destination));
+    Assert.assertEquals(5, manifest.getEntries().size());
+    Assert.assertEquals("media-000.ts", manifest.getEntries().get(0).getName());
+    Assert.assertEquals("media-source.m3u8", manifest.getEntries().get(4).getName());
+    Assert.assertTrue(manifest.verify(destination.getParentFile(), true).isEmpty());
+    Assert.assertEquals(6, destination.getParentFile().list().length);
+
+    // Kept segments of an earlier revision make the next one use another name
+    replaced.clear();
+    FFmpegHLSEncoderEngine.relitiviseAndAppendPlaylist(writeOutput(new File(directory, "third"), 3, 1, "newer"),
+            destination, "media", 3, replaced, io, true);
+    playlist = MediaPlaylist.read(destination);
+    Assert.assertEquals(4, playlist.getSegments().size());
+    Assert.assertEquals("media-r1-002.ts", playlist.getSegments().get(2).getUri());
+    Assert.assertEquals("media-r2-003.ts", playlist.getSegments().get(3).getUri());
+    Assert.assertEquals(Arrays.asList(new File(destination.getParentFile(), "media-r1-003.ts")), replaced);
+    Assert.assertTrue(IntegrityManifest.read(IntegrityManifest.getFile(destination)).verify(
+            destination.getParentFile(), true).isEmpty());
+  }
+
+}
@@ -57,6 +57,8 @@ import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.util.Arrays;
+import java.util.List;
 
 public class HLSDistributionServiceImplTest {
 
@@ -130,7 +132,7 @@ public class HLSDistributionServiceImplTest {
     service.activate(cc);
 
     final File mediaMOV = new File(mediaPackageRoot, "media.mov");
-    EasyMock.expect(workspace.get(mediaMOV.toURI())).andReturn(mediaMOV);
+    EasyMock.expect(workspace.get(mediaMOV.toURI())).andReturn(mediaMOV).anyTimes();
     final File mediaAAC = new File(mediaPackageRoot, "media.aac");
     EasyMock.expect(workspace.get(mediaAAC.toURI())).andReturn(mediaAAC);
     final File dcXML = new File(mediaPackageRoot, "dublincore.xml");
@@ -212,6 +214,20 @@ public class HLSDistributionServiceImplTest {
     Assert.assertEquals(new URI(UrlSupport.concat(service.serviceUrl, mp.getIdentifier().compact(), "track-aac", "media.aac.m3u8")), mpe.getURI());
   }
 
+  @Test
+  public void testAvailabilityProbe() throws Exception {
+    Job job1 = service.distribute(mp, "track-aac", false);
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job1);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    Assert.assertEquals(0, service.getMetrics().getPhase(DistributionMetrics.Phase.PROBE).getCount());
+
+    // The probe is recorded as a phase of its own
+    Job job2 = service.distribute(mp, "track-aac", true);
+    jobBarrier = new JobBarrier(serviceRegistry, 500, job2);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    Assert.assertEquals(1, service.getMetrics().getPhase(DistributionMetrics.Phase.PROBE).getCount());
+  }
+
   @Test
   public void testVideoTrackDistribution() throws Exception {
 
@@ -226,6 +242,9 @@ public class HLSDistributionServiceImplTest {
     Assert.assertTrue(mediaDir.exists());
     Assert.assertTrue(new File(mediaDir, "media.mov.m3u8").exists()); // HLS playlist should have been created
     Assert.assertTrue(new File(mediaDir, "media.mov-000.ts").exists()); // HLS segment files should have been created
+    // Without renditions or I-frame playlists, the media playlist itself is published
+    Assert.assertTrue(FileUtils.readFileToString(new File(mediaDir, "media.mov.m3u8")).contains("media.mov-000.ts"));
+    Assert.assertFalse(new File(mediaDir, "media.mov-source.m3u8").exists());
 
     //Test that the HLS playlist was added as a delivery track
     MediaPackageElement mpe = MediaPackageElementParser.getFromXml(job1.getPayload());
@@ -234,6 +253,175 @@ public class HLSDistributionServiceImplTest {
     Assert.assertEquals(new URI(UrlSupport.concat(service.serviceUrl, mp.getIdentifier().compact(), "track-h264", "media.mov.m3u8")), mpe.getURI());
   }
 
+  @Test
+  public void testDerivedElements() throws Exception {
+    service.dash = true;
+    Job job1 = service.distribute(mp, "track-h264");
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job1);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+
+    // The distribution payload stays a single element
+    MediaPackageElement track = MediaPackageElementParser.getFromXml(job1.getPayload());
+    Assert.assertEquals(MimeType.mimeType("application", "x-mpegURL"), track.getMimeType());
+
+    Job job2 = service.distributeDerived(mp, "track-h264");
+    jobBarrier = new JobBarrier(serviceRegistry, 500, job2);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    List<? extends MediaPackageElement> derived = MediaPackageElementParser.getArrayFromXml(job2.getPayload());
+    Assert.assertEquals(1, derived.size());
+    Assert.assertEquals(MimeType.mimeType("application", "dash+xml"), derived.get(0).getMimeType());
+    Assert.assertEquals(new URI(UrlSupport.concat(service.serviceUrl, mp.getIdentifier().compact(), "track-h264",
+            "media.mov.mpd")), derived.get(0).getURI());
+  }
+
+  @Test
+  public void testThumbnailsRetract() throws Exception {
+    service.thumbnailSprites = new ThumbnailSprites(10, 160, 5, 5);
+    Job job1 = service.distribute(mp, "track-h264");
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job1);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    mp.add(MediaPackageElementParser.getFromXml(job1.getPayload()));
+    Job job2 = service.distributeDerived(mp, "track-h264");
+    jobBarrier = new JobBarrier(serviceRegistry, 500, job2);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    MediaPackageElement thumbnails = MediaPackageElementParser.getArrayFromXml(job2.getPayload()).get(0);
+    mp.add(thumbnails);
+
+    File mediaDir = new File(new File(distributionRoot, mp.getIdentifier().compact()), "track-h264");
+    Assert.assertTrue(new File(mediaDir, "media.mov-thumbnails.vtt").isFile());
+    Assert.assertTrue(new File(mediaDir, "media.mov-sprite-000.jpg").isFile());
+
+    // Only the thumbnail track and its sprites are removed, and retracting them again succeeds
+    for (int i = 0; i < 2; i++) {
+      Job job3 = service.retract(mp, thumbnails.getIdentifier());
+      jobBarrier = new JobBarrier(serviceRegistry, 500, job3);
+      Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+      Assert.assertFalse(new File(mediaDir, "media.mov-thumbnails.vtt").exists());
+      Assert.assertFalse(new File(mediaDir, "media.mov-sprite-000.jpg").exists());
+      Assert.assertTrue(new File(mediaDir, "media.mov.m3u8").isFile());
+      Assert.assertTrue(new File(mediaDir, "media.mov-000.ts").isFile());
+    }
+  }
+
+  @Test
+  public void testMasterPlaylist() throws Exception {
+    service.iFramePlaylists = true;
+    Job job1 = service.distribute(mp, "track-h264");
+    Job job2 = service.distribute(mp, "track-aac");
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job1, job2);
+    Assert.assertTrue("Jobs must succeed!", jobBarrier.waitForJobs().isSuccess());
+
+    File mpDir = new File(distributionRoot, mp.getIdentifier().compact());
+    File videoDir = new File(mpDir, "track-h264");
+    String videoMaster = FileUtils.readFileToString(new File(videoDir, "media.mov.m3u8"));
+    Assert.assertTrue(videoMaster.contains("#EXT-X-STREAM-INF:BANDWIDTH="));
+    Assert.assertTrue(videoMaster.contains("media.mov-source.m3u8"));
+    Assert.assertTrue(videoMaster.contains("URI=\"media.mov-source-iframes.m3u8\""));
+    Assert.assertTrue(new File(videoDir, "media.mov-source.m3u8").exists());
+    String iFrames = FileUtils.readFileToString(new File(videoDir, "media.mov-source-iframes.m3u8"));
+    Assert.assertTrue(iFrames.contains("#EXT-X-I-FRAMES-ONLY"));
+    Assert.assertTrue(iFrames.contains("#EXT-X-BYTERANGE:"));
+
+    // Audio only tracks have no I-frame playlist, so they need no master playlist either
+    File audioDir = new File(mpDir, "track-aac");
+    String audioPlaylist = FileUtils.readFileToString(new File(audioDir, "media.aac.m3u8"));
+    Assert.assertFalse(audioPlaylist.contains("#EXT-X-STREAM-INF"));
+    Assert.assertTrue(audioPlaylist.contains("media.aac-000.ts"));
+  }
+
+  @Test
+  public void testMultiTrackDistribution() throws Exception {
+    Job job = service.distributeTracks(mp, Arrays.asList("track-h264", "track-avc", "track-aac"), true);
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+
+    // Three tracks and the combined manifest
+    List<? extends MediaPackageElement> elements = MediaPackageElementParser.getArrayFromXml(job.getPayload());
+    Assert.assertEquals(4, elements.size());
+    MediaPackageElement manifestElement = elements.get(3);
+    Assert.assertEquals(new URI(UrlSupport.concat(service.serviceUrl, mp.getIdentifier().compact(),
+            HLSDistributionServiceImpl.MULTITRACK_PLAYLIST)), manifestElement.getURI());
+
+    File mpDir = new File(distributionRoot, mp.getIdentifier().compact());
+    String manifest = FileUtils.readFileToString(new File(mpDir, HLSDistributionServiceImpl.MULTITRACK_PLAYLIST));
+    Assert.assertTrue(manifest.contains("TYPE=VIDEO"));
+    Assert.assertTrue(manifest.contains("URI=\"track-h264/media.mov.m3u8\""));
+    Assert.assertTrue(manifest.contains("URI=\"track-avc/media.mov.m3u8\""));
+    Assert.assertFalse(manifest.contains("track-aac/"));
+  }
+
+  @Test
+  public void testMultiTrackRetract() throws Exception {
+    Job job1 = service.distributeTracks(mp, Arrays.asList("track-h264", "track-avc"), false);
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job1);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    List<? extends MediaPackageElement> elements = MediaPackageElementParser.getArrayFromXml(job1.getPayload());
+    MediaPackageElement manifestElement = elements.get(elements.size() - 1);
+    mp.add(manifestElement);
+
+    // The manifest is removed from the mediapackage directory, the tracks stay
+    File mpDir = new File(distributionRoot, mp.getIdentifier().compact());
+    Assert.assertTrue(new File(mpDir, HLSDistributionServiceImpl.MULTITRACK_PLAYLIST).isFile());
+    Job job2 = service.retract(mp, manifestElement.getIdentifier());
+    jobBarrier = new JobBarrier(serviceRegistry, 500, job2);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    Assert.assertFalse(new File(mpDir, HLSDistributionServiceImpl.MULTITRACK_PLAYLIST).exists());
+    Assert.assertTrue(new File(new File(mpDir, "track-h264"), "media.mov.m3u8").isFile());
+    Assert.assertTrue(new File(new File(mpDir, "track-avc"), "media.mov.m3u8").isFile());
+  }
+
+  @Test
+  public void testDistributionIndex() throws Exception {
+    Job job = service.distribute(mp, "track-aac");
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+
+    String mpId = mp.getIdentifier().compact();
+    DistributionIndexEntry entry = service.getIndex().get(mpId, "track-aac");
+    Assert.assertNotNull(entry);
+    Assert.assertEquals(mpId + "/track-aac", entry.getPath());
+    Assert.assertTrue(entry.getSegments() > 0);
+    Assert.assertEquals(FileUtils.sizeOfDirectory(new File(distributionRoot, entry.getPath())), entry.getSize());
+    Assert.assertEquals(1, service.getIndex().getEntries(mpId).size());
+
+    // Rebuilding finds the same element
+    Assert.assertEquals(1, service.rebuildIndex());
+    Assert.assertEquals(entry.getSize(), service.getIndex().get(mpId, "track-aac").getSize());
+
+    // The index survives a restart
+    service.getIndex().close();
+    File indexDirectory = new File(distributionRoot, ".index");
+    DistributionIndex index = new DistributionIndex(indexDirectory);
+    Assert.assertEquals(entry.getSize(), index.get(mpId, "track-aac").getSize());
+    index.remove(mpId, "track-aac");
+    index.close();
+    index = new DistributionIndex(indexDirectory);
+    Assert.assertNull(index.get(mpId, "track-aac"));
+    index.close();
+  }
+
+  @Test
+  public void testRepeatedDistribution() throws Exception {
+    Job job1 = service.distribute(mp, "track-aac");
+    Job job2 = service.distribute(mp, "track-aac");
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job1, job2);
+    Assert.assertTrue("Jobs must succeed!", jobBarrier.waitForJobs().isSuccess());
+
+    // The second job reuses the result of the first one, whether it ran at the same time or not
+    File mediaDir = new File(new File(distributionRoot, mp.getIdentifier().compact()), "track-aac");
+    File segment = new File(mediaDir, "media.aac-000.ts");
+    long distributed = segment.lastModified();
+    Job job3 = service.distribute(mp, "track-aac");
+    jobBarrier = new JobBarrier(serviceRegistry, 500, job3);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    Assert.assertEquals(distributed, segment.lastModified());
+    Assert.assertEquals(MediaPackageElementParser.getFromXml(job1.getPayload()).getURI(),
+            MediaPackageElementParser.getFromXml(job3.getPayload()).getURI());
+
+    Assert.assertTrue(new File(mediaDir, HLSDistributionServiceImpl.RECEIPT_FILE).isFile());
+    Assert.assertFalse(new File(mediaDir.getParentFile(), ".track-aac" + DistributionLock.EXTENSION).exists());
+  }
+
     @Test
     public void testRelativePathGeneration() throws Exception {
 
@@ -298,6 +486,23 @@ public class HLSDistributionServiceImplTest {
     Assert.assertFalse(new File(mediaDir, "media.mov-000.ts").exists()); // HLS segment files should have been retracted
   }
 
+  @Test
+  public void testUnreferencedTrackRetract() throws Exception {
+    Job job1 = service.distribute(mp, "track-aac");
+    JobBarrier jobBarrier = new JobBarrier(serviceRegistry, 500, job1);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    File mediaDir = new File(new File(distributionRoot, mp.getIdentifier().compact()), "track-aac");
+    Assert.assertTrue(mediaDir.exists());
+
+    // The original track refers to nothing, its distribution is found below its own identifier
+    Assert.assertNull(mp.getElementById("track-aac").getReference());
+    Assert.assertEquals(mediaDir.getAbsoluteFile(), service.getDistributedFile(mp, mp.getElementById("track-aac")));
+    Job job2 = service.retract(mp, "track-aac");
+    jobBarrier = new JobBarrier(serviceRegistry, 500, job2);
+    Assert.assertTrue("Job must succeed!", jobBarrier.waitForJobs().isSuccess());
+    Assert.assertFalse(mediaDir.exists());
+  }
+
   @Test
   public void testOnlyTrackDistribution() throws Exception {
     // Distribute only track elements in the mediapackage
@@ -0,0 +1,162 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.distribution.hls.IOScheduler.Priority;
+import org.opencastproject.distribution.hls.IOScheduler.Traffic;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class IOSchedulerTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "io-scheduler-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testOperationBudget() throws Exception {
+    IOScheduler io = new IOScheduler(0, 10, 0, 0);
+    long start = System.currentTimeMillis();
+    // The first second worth of operations is available right away
+    for (int i = 0; i < 20; i++)
+      io.acquire(Traffic.PUBLISH, 0, 1);
+    long elapsed = System.currentTimeMillis() - start;
+    Assert.assertTrue("Throttled for " + elapsed + "ms", elapsed >= 900);
+    Assert.assertEquals(20, io.getPublishOperations());
+
+    // The reclaiming budget is not limited and independent of the publishing budget
+    start = System.currentTimeMillis();
+    for (int i = 0; i < 1000; i++)
+      io.acquire(Traffic.RECLAIM, 0, 1);
+    Assert.assertTrue(System.currentTimeMillis() - start < 500);
+    Assert.assertEquals(0, io.getQueueDepth());
+  }
+
+  @Test
+  public void testInteractiveFirst() throws Exception {
+    final IOScheduler io = new IOScheduler(0, 5, 0, 0);
+    // Drain the bucket
+    for (int i = 0; i < 5; i++)
+      io.acquire(Traffic.PUBLISH, 0, 1);
+
+    final List<Priority> served = Collections.synchronizedList(new ArrayList<Priority>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (final Priority priority : new Priority[] { Priority.BULK, Priority.BULK, Priority.INTERACTIVE }) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            io.acquire(Traffic.PUBLISH, priority, 0, 1);
+            served.add(priority);
+          } catch (Exception e) {
+            throw new RuntimeException(e);
+          }
+        }
+      };
+      threads.add(thread);
+      thread.start();
+      while (io.getPublishQueueDepth() < threads.size())
+        Thread.sleep(5);
+    }
+    for (Thread thread : threads)
+      thread.join();
+    Assert.assertEquals(3, served.size());
+    Assert.assertEquals(Priority.INTERACTIVE, served.get(0));
+  }
+
+  @Test
+  public void testBulkYieldsToInteractive() throws Exception {
+    final IOScheduler io = new IOScheduler(0, 0, 0, 20);
+    final File bulk = new File(directory, "bulk");
+    final File interactive = new File(directory, "interactive");
+    for (int i = 0; i < 40; i++)
+      FileUtils.writeStringToFile(new File(bulk, i + ".ts"), "segment", "UTF-8");
+    for (int i = 0; i < 3; i++)
+      FileUtils.writeStringToFile(new File(interactive, i + ".ts"), "segment", "UTF-8");
+
+    // Jobs set the lane of their thread, which applies to all of their file system work
+    Thread retract = new Thread() {
+      @Override
+      public void run() {
+        IOScheduler.setPriority(Priority.BULK);
+        try {
+          io.delete(bulk, Traffic.RECLAIM);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    retract.start();
+    while (io.getQueueDepth() == 0)
+      Thread.sleep(5);
+
+    IOScheduler.setPriority(Priority.INTERACTIVE);
+    try {
+      io.delete(interactive, Traffic.RECLAIM);
+    } finally {
+      IOScheduler.setPriority(null);
+    }
+    // The bulk deletion waited while the interactive one went ahead
+    Assert.assertFalse(interactive.exists());
+    String[] remaining = bulk.list();
+    Assert.assertTrue(remaining != null && remaining.length >= 10);
+    retract.join();
+    Assert.assertFalse(bulk.exists());
+  }
+
+  @Test
+  public void testMoveAndDelete() throws Exception {
+    IOScheduler io = new IOScheduler();
+    File source = new File(directory, "source.ts");
+    FileUtils.writeStringToFile(source, "segment", "UTF-8");
+    File target = new File(directory, "moved/target.ts");
+    target.getParentFile().mkdirs();
+    io.move(source, target, Traffic.PUBLISH);
+    Assert.assertFalse(source.exists());
+    Assert.assertEquals("segment", FileUtils.readFileToString(target, "UTF-8"));
+
+    File copy = new File(directory, "moved/copy.ts");
+    io.copy(target, copy, Traffic.PUBLISH);
+    Assert.assertEquals("segment", FileUtils.readFileToString(copy, "UTF-8"));
+
+    io.delete(target.getParentFile(), Traffic.RECLAIM);
+    Assert.assertFalse(target.getParentFile().exists());
+    Assert.assertEquals(3, io.getReclaimOperations());
+    Assert.assertEquals(14, io.getReclaimBytes());
+  }
+
+}
@@ -0,0 +1,132 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+
+public class IntegrityManifestTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "integrity-manifest-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testDigest() throws Exception {
+    File file = new File(directory, "abc.ts");
+    FileUtils.writeStringToFile(file, "abc", "UTF-8");
+    Assert.assertEquals("900150983cd24fb0d6963f7d28e17f72", IntegrityManifest.digest(file));
+    Assert.assertEquals(new File(directory, ".video.m3u8.integrity"),
+            IntegrityManifest.getFile(new File(directory, "video.m3u8")));
+    Assert.assertTrue(IntegrityManifest.isManifest(IntegrityManifest.getFile(file)));
+  }
+
+  @Test
+  public void testMoveDigest() throws Exception {
+    IOScheduler io = new IOScheduler();
+    File source = new File(directory, "source.ts");
+    File target = new File(directory, "target.ts");
+    StringBuilder content = new StringBuilder();
+    for (int i = 0; i < 100000; i++)
+      content.append(i);
+    FileUtils.writeStringToFile(source, content.toString(), "UTF-8");
+    String expected = IntegrityManifest.digest(source);
+
+    MessageDigest digest = IntegrityManifest.newDigest();
+    io.move(source, target, IOScheduler.Traffic.PUBLISH, digest);
+    Assert.assertEquals(expected, IntegrityManifest.toHex(digest.digest()));
+
+    // Copied bytes are digested on the way
+    File copy = new File(directory, "copy.ts");
+    digest = IntegrityManifest.newDigest();
+    io.copy(target, copy, IOScheduler.Traffic.PUBLISH, digest);
+    Assert.assertEquals(expected, IntegrityManifest.toHex(digest.digest()));
+    Assert.assertEquals(content.toString(), FileUtils.readFileToString(copy, "UTF-8"));
+  }
+
+  @Test
+  public void testVerify() throws Exception {
+    File first = new File(directory, "video-000.ts");
+    File second = new File(directory, "video-001.ts");
+    File third = new File(directory, "video 002.ts");
+    FileUtils.writeStringToFile(first, "first", "UTF-8");
+    FileUtils.writeStringToFile(second, "second", "UTF-8");
+    FileUtils.writeStringToFile(third, "third", "UTF-8");
+    IntegrityManifest manifest = new IntegrityManifest();
+    manifest.add(first.getName(), first, IntegrityManifest.digest(first), 10.0);
+    manifest.add(second.getName(), second, IntegrityManifest.digest(second), 5.0);
+    // Byte range segments add up
+    manifest.add(second.getName(), second, IntegrityManifest.digest(second), 2.5);
+    manifest.add(third.getName(), third, IntegrityManifest.digest(third), 1.0);
+    File file = IntegrityManifest.getFile(new File(directory, "video.m3u8"));
+    manifest.write(file);
+
+    List<IntegrityManifest.Entry> entries = IntegrityManifest.read(file).getEntries();
+    Assert.assertEquals(3, entries.size());
+    Assert.assertEquals("video-001.ts", entries.get(1).getName());
+    Assert.assertEquals(6, entries.get(1).getSize());
+    Assert.assertEquals(7.5, entries.get(1).getDuration(), 0.001);
+    Assert.assertEquals(second.lastModified(), entries.get(1).getLastModified());
+    Assert.assertEquals("video 002.ts", entries.get(2).getName());
+    Assert.assertTrue(IntegrityManifest.read(file).verify(directory, false).isEmpty());
+    Assert.assertTrue(IntegrityManifest.read(file).verify(directory, true).isEmpty());
+
+    // Damage that leaves size and modification time alone is only found by the full check
+    long lastModified = first.lastModified();
+    RandomAccessFile out = new RandomAccessFile(first, "rw");
+    out.write('F');
+    out.close();
+    first.setLastModified(lastModified);
+    Assert.assertTrue(IntegrityManifest.read(file).verify(directory, false).isEmpty());
+    Map<String, String> damaged = IntegrityManifest.read(file).verify(directory, true);
+    Assert.assertEquals(1, damaged.size());
+    Assert.assertTrue(damaged.get("video-000.ts").startsWith("MD5 is "));
+
+    // A copied file is intact, even though it looks modified
+    second.setLastModified(lastModified - 60000L);
+    Assert.assertEquals("modified since it was published", IntegrityManifest.read(file).verify(directory, false)
+            .get("video-001.ts"));
+    Assert.assertNull(IntegrityManifest.read(file).verify(directory, true).get("video-001.ts"));
+
+    FileUtils.writeStringToFile(third, "3", "UTF-8");
+    Assert.assertEquals("size is 1 instead of 5", IntegrityManifest.read(file).verify(directory, false)
+            .get("video 002.ts"));
+    third.delete();
+    Assert.assertEquals("missing", IntegrityManifest.read(file).verify(directory, false).get("video 002.ts"));
+  }
+
+}
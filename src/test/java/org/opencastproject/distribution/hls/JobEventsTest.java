@@ -0,0 +1,116 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencastproject.job.api.Job;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class JobEventsTest {
+
+  private static final List<Long> NONE = Collections.emptyList();
+
+  private JobEvents events;
+
+  @Before
+  public void setUp() throws Exception {
+    events = new JobEvents(null, 50);
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    events.update(1, "Distribute", "mp", Job.Status.QUEUED, null);
+    events.update(1, null, null, Job.Status.QUEUED, null);
+    Assert.assertEquals(1, events.getSequence());
+
+    events.update(1, null, null, Job.Status.RUNNING, null);
+    events.progress(1, "encode");
+    events.progress(1, "encode");
+    Assert.assertEquals(3, events.getSequence());
+
+    JobStateList list = events.await(Arrays.asList(1L), null, 0, 0);
+    Assert.assertEquals(1, list.getStates().size());
+    JobState state = list.getStates().get(0);
+    Assert.assertEquals(3, state.getSequence());
+    Assert.assertEquals("Distribute", state.getOperation());
+    Assert.assertEquals("mp", state.getMediaPackageId());
+    Assert.assertEquals("RUNNING", state.getStatus());
+    Assert.assertEquals("encode", state.getPhase());
+
+    events.update(1, null, null, Job.Status.FINISHED, "<track/>");
+    events.update(1, null, null, Job.Status.RUNNING, null);
+    events.progress(1, "publish");
+    Assert.assertEquals(4, events.getSequence());
+    state = events.await(Arrays.asList(1L), null, 3, 0).getStates().get(0);
+    Assert.assertEquals("FINISHED", state.getStatus());
+    Assert.assertEquals("<track/>", state.getPayload());
+    Assert.assertTrue(events.await(Arrays.asList(1L), null, 4, 0).getStates().isEmpty());
+  }
+
+  @Test
+  public void testMediaPackage() throws Exception {
+    events.update(1, "Distribute", "mp", Job.Status.QUEUED, null);
+    events.update(2, "Retract", "other", Job.Status.QUEUED, null);
+    events.update(3, "Retract", "mp", Job.Status.QUEUED, null);
+    JobStateList list = events.await(NONE, "mp", 0, 0);
+    Assert.assertEquals(2, list.getStates().size());
+    Assert.assertEquals(1, list.getStates().get(0).getJobId());
+    Assert.assertEquals(3, list.getStates().get(1).getJobId());
+    Assert.assertEquals(3, list.getSequence());
+  }
+
+  @Test
+  public void testComplete() throws Exception {
+    events.update(1, "Distribute", "mp", Job.Status.RUNNING, null);
+    events.update(2, "Distribute", "mp", Job.Status.FAILED, null);
+    Assert.assertFalse(events.isComplete(Arrays.asList(1L, 2L)));
+    Assert.assertFalse(events.isComplete(Arrays.asList(2L, 3L)));
+    events.update(1, null, null, Job.Status.FINISHED, null);
+    Assert.assertTrue(events.isComplete(Arrays.asList(1L, 2L)));
+  }
+
+  @Test
+  public void testAwait() throws Exception {
+    events.update(1, "Distribute", "mp", Job.Status.RUNNING, null);
+    long start = System.currentTimeMillis();
+    Assert.assertTrue(events.await(Arrays.asList(1L), null, 1, 200).getStates().isEmpty());
+    Assert.assertTrue(System.currentTimeMillis() - start >= 200);
+
+    Thread finisher = new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(100);
+        } catch (InterruptedException e) {
+          return;
+        }
+        events.update(1, null, null, Job.Status.FINISHED, "<track/>");
+      }
+    };
+    finisher.start();
+    JobStateList list = events.await(Arrays.asList(1L), null, 1, 10000);
+    finisher.join();
+    Assert.assertEquals(1, list.getStates().size());
+    Assert.assertEquals("FINISHED", list.getStates().get(0).getStatus());
+  }
+
+}
@@ -0,0 +1,87 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+
+public class JobTraceTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "job-trace-test");
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    JobTrace.end();
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testTrace() throws Exception {
+    // Without a bound trace, nothing is recorded
+    JobTrace.span("fetch", System.nanoTime());
+    JobTrace.attribute("element", "track");
+    Assert.assertNull(JobTrace.end());
+
+    JobTrace trace = JobTrace.begin(42, "Distribute", "node \"a\"");
+    long start = System.nanoTime();
+    Thread.sleep(5);
+    JobTrace.span("fetch", start);
+    JobTrace.attribute("segments", 12);
+    JobTrace.attribute("segments", 13);
+    Assert.assertSame(trace, JobTrace.end());
+    JobTrace.span("encode", System.nanoTime());
+
+    Assert.assertEquals(1, trace.getSpans().size());
+    JobTrace.Span span = trace.getSpans().get(0);
+    Assert.assertEquals("fetch", span.getName());
+    Assert.assertTrue(span.getDurationMicros() >= 5000);
+    Assert.assertEquals("13", trace.getAttributes().get("segments"));
+
+    String json = trace.toJson();
+    Assert.assertTrue(json.startsWith("{\"traceEvents\":["));
+    Assert.assertTrue(json.contains("\"name\":\"node \\\"a\\\" Distribute 42\""));
+    Assert.assertTrue(json.contains("\"name\":\"fetch\",\"cat\":\"phase\",\"ph\":\"X\",\"ts\":" + span.getStartMicros()));
+    Assert.assertTrue(json.contains("\"segments\":\"13\""));
+  }
+
+  @Test
+  public void testRetention() throws Exception {
+    for (int i = 0; i < 12; i++) {
+      File file = JobTrace.write(JobTrace.begin(i, "Retract", "node"), directory, 5);
+      JobTrace.end();
+      file.setLastModified(System.currentTimeMillis() - (100 - i) * 1000L);
+    }
+    // The directory is pruned to the retained traces once it exceeds them by a tenth
+    String[] names = directory.list();
+    Assert.assertTrue(names.length <= 6);
+    Assert.assertTrue(JobTrace.getFile(directory, 11).isFile());
+    Assert.assertFalse(JobTrace.getFile(directory, 0).exists());
+  }
+
+}
@@ -0,0 +1,236 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+import org.opencastproject.distribution.hls.playlist.MediaSegment;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+public class LivePlaylistTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "live-playlist-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testSegmentBoundaries() throws Exception {
+    LivePlaylist playlist = new LivePlaylist(4, 1.0, 3, false);
+    Assert.assertTrue(playlist.isSegmentBoundary(1.0, false));
+    playlist.startSegment("s-0.ts", null);
+    playlist.addPart("p-0.ts", 1.0, true);
+    playlist.addPart("p-1.ts", 1.0, false);
+    playlist.addPart("p-2.ts", 1.0, false);
+    // Not at the target duration yet
+    Assert.assertFalse(playlist.isSegmentBoundary(1.0, true));
+    Assert.assertFalse(playlist.isSegmentBoundary(1.0, false));
+    playlist.addPart("p-3.ts", 1.0, false);
+    // A segment should start with a key frame, but must not exceed the target duration
+    Assert.assertTrue(playlist.isSegmentBoundary(1.0, true));
+    Assert.assertTrue(playlist.isSegmentBoundary(1.0, false));
+    Assert.assertTrue(playlist.isSegmentBoundary(0.4, true));
+    Assert.assertFalse(playlist.isSegmentBoundary(0.4, false));
+
+    Assert.assertEquals("s-0.ts", playlist.closeSegment());
+    Assert.assertEquals(1, playlist.getSegmentCount());
+    Assert.assertEquals(4.0, playlist.getDuration(), 0.001);
+
+    // Empty segments are dropped
+    playlist.startSegment("s-1.ts", null);
+    Assert.assertNull(playlist.closeSegment());
+    Assert.assertEquals(1, playlist.getSegmentCount());
+
+    try {
+      new LivePlaylist(4, 5.0, 3, false);
+      Assert.fail("Parts must not be longer than segments");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testParts() throws Exception {
+    LivePlaylist playlist = new LivePlaylist(2, 0.5, 3, false);
+    for (int i = 0; i < 5; i++)
+      addSegment(playlist, i);
+    playlist.startSegment("s-5.ts", new Date(0));
+    playlist.addPart("p-5-0.ts", 0.5, true);
+    playlist.setPreloadHint("p-5-1.ts");
+
+    MediaPlaylist m3u8 = playlist.toPlaylist();
+    Assert.assertEquals(6, m3u8.getVersion());
+    Assert.assertEquals(2, m3u8.getTargetDuration());
+    Assert.assertEquals(2, m3u8.getMediaSequence());
+    Assert.assertFalse(m3u8.isEndList());
+    Assert.assertNull(m3u8.getPlaylistType());
+    Assert.assertEquals(Arrays.asList("#EXT-X-SERVER-CONTROL:PART-HOLD-BACK=1.50000",
+            "#EXT-X-PART-INF:PART-TARGET=0.50000"), m3u8.getTags());
+
+    List<MediaSegment> segments = m3u8.getSegments();
+    Assert.assertEquals(3, segments.size());
+    Assert.assertEquals("s-2.ts", segments.get(0).getUri());
+    Assert.assertEquals(2.0, segments.get(0).getDuration(), 0.001);
+    List<String> tags = segments.get(0).getTags();
+    Assert.assertEquals(5, tags.size());
+    Assert.assertEquals("#EXT-X-PROGRAM-DATE-TIME:1970-01-01T00:00:02.000Z", tags.get(0));
+    Assert.assertEquals("#EXT-X-PART:DURATION=0.50000,URI=\"p-2-0.ts\",INDEPENDENT=YES", tags.get(1));
+    Assert.assertEquals("#EXT-X-PART:DURATION=0.50000,URI=\"p-2-1.ts\"", tags.get(2));
+
+    Assert.assertEquals(Arrays.asList("#EXT-X-PART:DURATION=0.50000,URI=\"p-5-0.ts\",INDEPENDENT=YES",
+            "#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"p-5-1.ts\""), m3u8.getTrailingTags());
+
+    // The written playlist is read back the same
+    File file = new File(directory, "live.m3u8");
+    playlist.write(file);
+    Assert.assertFalse(new File(directory, "live.m3u8.tmp").exists());
+    MediaPlaylist read = MediaPlaylist.read(file);
+    Assert.assertEquals(3, read.getSegments().size());
+    Assert.assertEquals(tags, read.getSegments().get(0).getTags());
+    Assert.assertEquals(m3u8.getTrailingTags(), read.getTrailingTags());
+  }
+
+  @Test
+  public void testExpiry() throws Exception {
+    LivePlaylist playlist = new LivePlaylist(2, 0.5, 4, false);
+    for (int i = 0; i < LivePlaylist.PART_SEGMENTS + LivePlaylist.GRACE_SEGMENTS; i++)
+      addSegment(playlist, i);
+    Assert.assertEquals(Collections.emptyList(), playlist.getExpired());
+
+    addSegment(playlist, 5);
+    Assert.assertEquals(Arrays.asList("p-0-0.ts", "p-0-1.ts", "p-0-2.ts", "p-0-3.ts"), playlist.getExpired());
+    // Reported only once
+    Assert.assertEquals(Collections.emptyList(), playlist.getExpired());
+
+    // Segments are kept for a while after they left the window
+    addSegment(playlist, 6);
+    Assert.assertEquals(Arrays.asList("p-1-0.ts", "p-1-1.ts", "p-1-2.ts", "p-1-3.ts", "s-0.ts"),
+            playlist.getExpired());
+
+    // Once the stream has ended, parts are no longer listed
+    playlist.end();
+    List<String> expired = playlist.getExpired();
+    Assert.assertEquals(20, expired.size());
+    Assert.assertTrue(expired.contains("p-6-3.ts"));
+    Assert.assertFalse(expired.contains("s-6.ts"));
+
+    MediaPlaylist m3u8 = playlist.toPlaylist();
+    Assert.assertTrue(m3u8.isEndList());
+    Assert.assertEquals(3, m3u8.getVersion());
+    Assert.assertEquals(3, m3u8.getMediaSequence());
+    Assert.assertEquals(4, m3u8.getSegments().size());
+    Assert.assertTrue(m3u8.getTags().isEmpty());
+    Assert.assertTrue(m3u8.getTrailingTags().isEmpty());
+  }
+
+  @Test
+  public void testVod() throws Exception {
+    LivePlaylist playlist = new LivePlaylist(2, 0, 3, true);
+    for (int i = 0; i < 10; i++) {
+      playlist.startSegment("s-" + i + ".ts", new Date(i * 2000L));
+      playlist.addPart(null, 2.0, true);
+      playlist.closeSegment();
+    }
+    Assert.assertEquals(Collections.emptyList(), playlist.getExpired());
+    MediaPlaylist m3u8 = playlist.toPlaylist();
+    Assert.assertEquals(7, m3u8.getMediaSequence());
+    Assert.assertTrue(m3u8.getTags().isEmpty());
+    Assert.assertEquals(1, m3u8.getSegments().get(2).getTags().size());
+
+    playlist.end();
+    Assert.assertEquals(Collections.emptyList(), playlist.getExpired());
+    m3u8 = playlist.toPlaylist();
+    Assert.assertEquals(MediaPlaylist.TYPE_VOD, m3u8.getPlaylistType());
+    Assert.assertTrue(m3u8.isEndList());
+    Assert.assertEquals(0, m3u8.getMediaSequence());
+    Assert.assertEquals(10, m3u8.getSegments().size());
+    Assert.assertEquals(20.0, m3u8.getDuration(), 0.001);
+    // The recording start is the only date needed
+    Assert.assertEquals(1, m3u8.getSegments().get(0).getTags().size());
+    Assert.assertTrue(m3u8.getSegments().get(1).getTags().isEmpty());
+
+    try {
+      playlist.startSegment("s-10.ts", null);
+      Assert.fail("Segments cannot be added after the end");
+    } catch (IllegalStateException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testChunks() throws Exception {
+    File playlistFile = new File(directory, "video.mp4-source.m3u8");
+    LivePlaylist playlist = new LivePlaylist(2, 1.0, 3, true);
+    LiveSession session = new LiveSession("ffmpeg", "rtmp://localhost/live/test", playlistFile, "video.mp4",
+            playlist, 2, 1.0, false, new IOScheduler());
+    List<String> command = session.getCommand();
+    Assert.assertEquals("ffmpeg", command.get(0));
+    Assert.assertTrue(command.contains("rtmp://localhost/live/test"));
+    Assert.assertTrue(command.contains("-break_non_keyframes"));
+    Assert.assertEquals(new File(directory, "video.mp4-part-%06d.ts").getAbsolutePath(),
+            command.get(command.size() - 1));
+    Assert.assertEquals("video.mp4-part-000010.ts", session.getNextPartName("video.mp4-part-000009.ts"));
+    Assert.assertNull(session.getNextPartName("video.mp4-0.ts"));
+
+    // Chunks without video are independent, so segments are cut at the target duration
+    for (int i = 0; i < 5; i++)
+      FileUtils.writeStringToFile(new File(directory, "video.mp4-part-00000" + i + ".ts"), "part" + i, "UTF-8");
+    session.handleChunk("video.mp4-part-000000.ts,0.000000,1.000000");
+    session.handleChunk("video.mp4-part-000001.ts,1.000000,2.000000");
+    session.handleChunk("\"video.mp4-part-000002.ts\",2.000000,3.000000");
+    Assert.assertEquals("part0part1", FileUtils.readFileToString(new File(directory, "video.mp4-0.ts"), "UTF-8"));
+    Assert.assertEquals("part2", FileUtils.readFileToString(new File(directory, "video.mp4-1.ts"), "UTF-8"));
+    Assert.assertEquals(1, playlist.getSegmentCount());
+    Assert.assertEquals("#EXT-X-PRELOAD-HINT:TYPE=PART,URI=\"video.mp4-part-000003.ts\"",
+            playlist.toPlaylist().getTrailingTags().get(1));
+
+    try {
+      session.handleChunk("video.mp4-part-000003.ts");
+      Assert.fail("Chunk list entries need start and end times");
+    } catch (java.io.IOException e) {
+      // expected
+    }
+  }
+
+  private static void addSegment(LivePlaylist playlist, int n) {
+    playlist.startSegment("s-" + n + ".ts", new Date(n * 1000L));
+    for (int i = 0; i < 4; i++)
+      playlist.addPart("p-" + n + "-" + i + ".ts", 0.5, i == 0);
+    playlist.closeSegment();
+  }
+
+}
@@ -0,0 +1,128 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class MultiTrackPlaylistTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "multi-track-playlist-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  /**
+   * Writes a media playlist with segments of the given durations.
+   */
+  private File writeMediaPlaylist(String name, double... durations) throws Exception {
+    StringBuilder playlist = new StringBuilder("#EXTM3U\n#EXT-X-VERSION:3\n#EXT-X-TARGETDURATION:10\n");
+    for (int i = 0; i < durations.length; i++)
+      playlist.append("#EXTINF:").append(durations[i]).append(",\n").append(String.format("s-%03d.ts\n", i));
+    playlist.append("#EXT-X-ENDLIST\n");
+    File m3u8 = new File(directory, name);
+    FileUtils.writeStringToFile(m3u8, playlist.toString(), "UTF-8");
+    return m3u8;
+  }
+
+  @Test
+  public void testWrite() throws Exception {
+    File presenter = new File(directory, "presenter.m3u8");
+    FileUtils.writeStringToFile(presenter, "#EXTM3U\n#EXT-X-VERSION:4\n"
+            + "#EXT-X-STREAM-INF:BANDWIDTH=2000000,RESOLUTION=1280x720\nmedia.mov-source.m3u8\n"
+            + "#EXT-X-STREAM-INF:BANDWIDTH=800000,RESOLUTION=640x360\nmedia.mov-360p.m3u8\n"
+            + "#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=300000,URI=\"media.mov-source-iframes.m3u8\"\n", "UTF-8");
+    File presentation = new File(directory, "presentation.m3u8");
+    FileUtils.writeStringToFile(presentation, "#EXTM3U\n#EXT-X-VERSION:4\n"
+            + "#EXT-X-STREAM-INF:BANDWIDTH=2500000,AVERAGE-BANDWIDTH=1000000,RESOLUTION=1280x720\n"
+            + "screen.mov-source.m3u8\n", "UTF-8");
+
+    File manifest = new File(directory, "multitrack.m3u8");
+    MultiTrackPlaylist.write(manifest, Arrays.asList(new MultiTrackPlaylist.Angle("presenter", "track-1", presenter),
+            new MultiTrackPlaylist.Angle("presentation", "track-2", presentation)));
+    // Every level is a variant stream whose angles are the alternative video renditions, sized for the largest one
+    Assert.assertEquals(Arrays.asList("#EXTM3U", "#EXT-X-VERSION:4",
+            "#EXT-X-MEDIA:TYPE=VIDEO,GROUP-ID=\"video-source\",NAME=\"presenter\",DEFAULT=YES,AUTOSELECT=YES,"
+                    + "URI=\"track-1/media.mov-source.m3u8\"",
+            "#EXT-X-MEDIA:TYPE=VIDEO,GROUP-ID=\"video-source\",NAME=\"presentation\",DEFAULT=NO,AUTOSELECT=YES,"
+                    + "URI=\"track-2/screen.mov-source.m3u8\"",
+            "#EXT-X-STREAM-INF:BANDWIDTH=2500000,RESOLUTION=1280x720,VIDEO=\"video-source\"",
+            "track-1/media.mov-source.m3u8",
+            "#EXT-X-MEDIA:TYPE=VIDEO,GROUP-ID=\"video-360p\",NAME=\"presenter\",DEFAULT=YES,AUTOSELECT=YES,"
+                    + "URI=\"track-1/media.mov-360p.m3u8\"",
+            "#EXT-X-STREAM-INF:BANDWIDTH=800000,RESOLUTION=640x360,VIDEO=\"video-360p\"",
+            "track-1/media.mov-360p.m3u8",
+            "#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=300000,URI=\"track-1/media.mov-source-iframes.m3u8\""),
+            FileUtils.readLines(manifest, "UTF-8"));
+  }
+
+  @Test
+  public void testMediaPlaylistAngle() throws Exception {
+    File presenter = new File(directory, "presenter.m3u8");
+    FileUtils.writeStringToFile(presenter, "#EXTM3U\n#EXT-X-VERSION:4\n"
+            + "#EXT-X-STREAM-INF:BANDWIDTH=2000000,RESOLUTION=1280x720\nmedia.mov-source.m3u8\n"
+            + "#EXT-X-STREAM-INF:BANDWIDTH=800000,RESOLUTION=640x360\nmedia.mov-360p.m3u8\n", "UTF-8");
+    // A track without renditions publishes its segmented source right away
+    File presentation = writeMediaPlaylist("screen.mov.m3u8", 10, 5);
+    FileUtils.writeByteArrayToFile(new File(directory, "s-000.ts"), new byte[3750000]);
+    FileUtils.writeByteArrayToFile(new File(directory, "s-001.ts"), new byte[1000000]);
+
+    File manifest = new File(directory, "multitrack.m3u8");
+    MultiTrackPlaylist.write(manifest, Arrays.asList(new MultiTrackPlaylist.Angle("presenter", "track-1", presenter),
+            new MultiTrackPlaylist.Angle("presentation", "track-2", presentation)));
+    Assert.assertEquals(Arrays.asList("#EXTM3U", "#EXT-X-VERSION:4",
+            "#EXT-X-MEDIA:TYPE=VIDEO,GROUP-ID=\"video-source\",NAME=\"presenter\",DEFAULT=YES,AUTOSELECT=YES,"
+                    + "URI=\"track-1/media.mov-source.m3u8\"",
+            "#EXT-X-MEDIA:TYPE=VIDEO,GROUP-ID=\"video-source\",NAME=\"presentation\",DEFAULT=NO,AUTOSELECT=YES,"
+                    + "URI=\"track-2/screen.mov.m3u8\"",
+            "#EXT-X-STREAM-INF:BANDWIDTH=3000000,RESOLUTION=1280x720,VIDEO=\"video-source\"",
+            "track-1/media.mov-source.m3u8",
+            "#EXT-X-MEDIA:TYPE=VIDEO,GROUP-ID=\"video-360p\",NAME=\"presenter\",DEFAULT=YES,AUTOSELECT=YES,"
+                    + "URI=\"track-1/media.mov-360p.m3u8\"",
+            "#EXT-X-STREAM-INF:BANDWIDTH=800000,RESOLUTION=640x360,VIDEO=\"video-360p\"",
+            "track-1/media.mov-360p.m3u8"),
+            FileUtils.readLines(manifest, "UTF-8"));
+  }
+
+  @Test
+  public void testAligned() throws Exception {
+    File first = writeMediaPlaylist("first.m3u8", 10, 10, 4.5);
+    // Boundaries within the tolerance and a different end still line up
+    File second = writeMediaPlaylist("second.m3u8", 10.05, 9.95, 10, 2);
+    Assert.assertTrue(MultiTrackPlaylist.isAligned(Arrays.asList(first, second)));
+
+    File shifted = writeMediaPlaylist("shifted.m3u8", 10, 9, 5.5);
+    Assert.assertFalse(MultiTrackPlaylist.isAligned(Arrays.asList(first, second, shifted)));
+    Assert.assertFalse(MultiTrackPlaylist.isAligned(Arrays.asList(shifted, first)));
+  }
+
+}
@@ -0,0 +1,140 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+public class OrphanSweeperTest {
+
+  private static final long HOUR = 60 * 60 * 1000L;
+
+  private File directory;
+
+  private File root;
+
+  private DistributionIndex index;
+
+  private OrphanSweeper sweeper;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "orphan-sweeper-test");
+    FileUtils.deleteQuietly(directory);
+    root = new File(directory, "distribution");
+    FileUtils.forceMkdir(root);
+    index = new DistributionIndex(new File(directory, "index"));
+    sweeper = new OrphanSweeper(root, index, new IOScheduler(), 2, HOUR);
+
+    // A complete and indexed element with a left over temporary file
+    write("mp1/complete/video.m3u8", 2);
+    write("mp1/complete/" + HLSDistributionServiceImpl.RECEIPT_FILE, 2);
+    write("mp1/complete/video.m3u8.tmp", 2);
+    index.put(DistributionIndex.describe(root, "mp1", "complete", "profile"));
+    // A failed distribution
+    write("mp1/failed/video-0.ts", 2);
+    // A failed distribution that is too recent to be sure
+    write("mp1/recent/video-0.ts", 0);
+    // A distribution in progress
+    write("mp1/locked/video-0.ts", 2);
+    write("mp1/.locked" + DistributionLock.EXTENSION, 0);
+    // A live stream
+    write("mp1/live/video-0.ts", 2);
+    // A complete element missing from the index
+    write("mp2/unindexed/video.m3u8", 2);
+    write("mp2/unindexed/" + HLSDistributionServiceImpl.RECEIPT_FILE, 2);
+    // An abandoned lock
+    write("mp2/.gone" + DistributionLock.EXTENSION, 2);
+    // An index entry without directory
+    index.put(new DistributionIndexEntry("mp3", "gone", "mp3/gone", 100, 1, 0, "profile", new Date()));
+    // An empty mediapackage directory
+    FileUtils.forceMkdir(new File(root, "mp4"));
+    new File(root, "mp4").setLastModified(System.currentTimeMillis() - 2 * HOUR);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    index.close();
+    FileUtils.deleteQuietly(directory);
+  }
+
+  private void write(String path, int hoursAgo) throws Exception {
+    File file = new File(root, path);
+    FileUtils.writeStringToFile(file, path, "UTF-8");
+    long time = System.currentTimeMillis() - hoursAgo * HOUR;
+    for (File f = file; !f.equals(root); f = f.getParentFile())
+      f.setLastModified(time);
+  }
+
+  private static Map<String, SweepReport.Reason> getOrphans(SweepReport report) {
+    Map<String, SweepReport.Reason> orphans = new HashMap<String, SweepReport.Reason>();
+    for (SweepReport.Orphan orphan : report.getOrphans())
+      orphans.put(orphan.getPath(), orphan.getReason());
+    return orphans;
+  }
+
+  @Test
+  public void testDryRun() throws Exception {
+    SweepReport report = sweeper.sweep(true, Collections.singleton("mp1/live"));
+    Map<String, SweepReport.Reason> orphans = getOrphans(report);
+    Assert.assertEquals(6, orphans.size());
+    Assert.assertEquals(SweepReport.Reason.SCRATCH, orphans.get("mp1/complete/video.m3u8.tmp"));
+    Assert.assertEquals(SweepReport.Reason.INCOMPLETE, orphans.get("mp1/failed"));
+    Assert.assertEquals(SweepReport.Reason.UNINDEXED, orphans.get("mp2/unindexed"));
+    Assert.assertEquals(SweepReport.Reason.SCRATCH, orphans.get("mp2/.gone" + DistributionLock.EXTENSION));
+    Assert.assertEquals(SweepReport.Reason.MISSING, orphans.get("mp3/gone"));
+    Assert.assertEquals(SweepReport.Reason.EMPTY, orphans.get("mp4"));
+    Assert.assertTrue(report.isDryRun());
+
+    // Nothing has been changed
+    Assert.assertTrue(new File(root, "mp1/failed").isDirectory());
+    Assert.assertTrue(new File(root, "mp4").isDirectory());
+    Assert.assertNull(index.get("mp2", "unindexed"));
+    Assert.assertNotNull(index.get("mp3", "gone"));
+  }
+
+  @Test
+  public void testReclaim() throws Exception {
+    SweepReport report = sweeper.sweep(false, Collections.singleton("mp1/live"));
+    Assert.assertEquals(6, report.getOrphans().size());
+    Assert.assertEquals(4, OrphanSweeper.getDeletedPaths(report).size());
+    Assert.assertFalse(new File(root, "mp1/failed").exists());
+    Assert.assertFalse(new File(root, "mp1/complete/video.m3u8.tmp").exists());
+    Assert.assertFalse(new File(root, "mp2/.gone" + DistributionLock.EXTENSION).exists());
+    Assert.assertFalse(new File(root, "mp4").exists());
+    Assert.assertTrue(new File(root, "mp1/complete/video.m3u8").isFile());
+    Assert.assertTrue(new File(root, "mp1/recent").isDirectory());
+    Assert.assertTrue(new File(root, "mp1/locked").isDirectory());
+    Assert.assertTrue(new File(root, "mp1/live").isDirectory());
+    Assert.assertNotNull(index.get("mp2", "unindexed"));
+    Assert.assertNull(index.get("mp3", "gone"));
+
+    // The tree is consistent now
+    Assert.assertTrue(sweeper.sweep(true, Collections.singleton("mp1/live")).getOrphans().isEmpty());
+  }
+
+}
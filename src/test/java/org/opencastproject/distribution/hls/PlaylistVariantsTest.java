@@ -0,0 +1,161 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+
+public class PlaylistVariantsTest {
+
+  private static final String MASTER = "#EXTM3U\n"
+          + "#EXT-X-MEDIA:TYPE=AUDIO,GROUP-ID=\"audio\",NAME=\"audio\",URI=\"audio/video-audio.m3u8\"\n"
+          + "#EXT-X-STREAM-INF:BANDWIDTH=1000000,AUDIO=\"audio\"\n" + "video-source.m3u8\n"
+          + "#EXT-X-I-FRAME-STREAM-INF:BANDWIDTH=100000,URI=\"video-source-iframes.m3u8\"\n";
+
+  private static final String MEDIA = "#EXTM3U\n" + "#EXT-X-TARGETDURATION:10\n"
+          + "#EXT-X-KEY:METHOD=AES-128,URI=\"https://keys.example.org/video-0.key\"\n"
+          + "#EXT-X-MAP:URI=\"video-init.mp4\"\n" + "#EXTINF:10.000000,\n" + "video-000.ts\n" + "#EXT-X-ENDLIST\n";
+
+  private File root;
+
+  private File directory;
+
+  private File master;
+
+  private File media;
+
+  @Before
+  public void setUp() throws Exception {
+    root = new File("target", "playlist-variants-test");
+    FileUtils.deleteQuietly(root);
+    directory = new File(root, "mp/element");
+    master = new File(directory, "video.m3u8");
+    media = new File(directory, "video-source.m3u8");
+    FileUtils.writeStringToFile(master, MASTER, "UTF-8");
+    FileUtils.writeStringToFile(media, MEDIA, "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "audio/video-audio.m3u8"), MEDIA, "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "video-000.ts"), "0123456789", "UTF-8");
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(root);
+  }
+
+  @Test
+  public void testNames() throws Exception {
+    Assert.assertEquals("video.m3u8.gz", PlaylistVariants.getGzipFile(master).getName());
+    Assert.assertEquals("video-absolute.m3u8", PlaylistVariants.getAbsoluteFile(master).getName());
+    Assert.assertTrue(PlaylistVariants.isPlaylist(master));
+    Assert.assertFalse(PlaylistVariants.isPlaylist(PlaylistVariants.getAbsoluteFile(master)));
+    Assert.assertEquals(master, PlaylistVariants.getPlaylist(new File(directory, "video.m3u8.gz")));
+    Assert.assertEquals(master, PlaylistVariants.getPlaylist(new File(directory, "video-absolute.m3u8")));
+    Assert.assertEquals(master, PlaylistVariants.getPlaylist(new File(directory, "video-absolute.m3u8.gz")));
+    Assert.assertNull(PlaylistVariants.getPlaylist(master));
+    Assert.assertNull(PlaylistVariants.getPlaylist(new File(directory, "video-000.ts")));
+  }
+
+  @Test
+  public void testAbsolutize() throws Exception {
+    URI base = new URI("http://localhost/static/mp/element/");
+    String master = PlaylistVariants.absolutize(MASTER, base);
+    Assert.assertTrue(master.contains("URI=\"http://localhost/static/mp/element/audio/video-audio-absolute.m3u8\""));
+    Assert.assertTrue(master.contains("\nhttp://localhost/static/mp/element/video-source-absolute.m3u8\n"));
+    Assert.assertTrue(master.contains("URI=\"http://localhost/static/mp/element/video-source-iframes-absolute.m3u8\""));
+    String media = PlaylistVariants.absolutize(MEDIA, base);
+    Assert.assertTrue(media.contains("URI=\"https://keys.example.org/video-0.key\""));
+    Assert.assertTrue(media.contains("URI=\"http://localhost/static/mp/element/video-init.mp4\""));
+    Assert.assertTrue(media.contains("\nhttp://localhost/static/mp/element/video-000.ts\n"));
+    Assert.assertTrue(media.startsWith("#EXTM3U\n#EXT-X-TARGETDURATION:10\n"));
+    Assert.assertTrue(media.endsWith("#EXT-X-ENDLIST\n"));
+  }
+
+  @Test
+  public void testUpdate() throws Exception {
+    PlaylistVariants variants = new PlaylistVariants(root, true, "http://localhost/static", new IOScheduler());
+    Assert.assertEquals(9, variants.update(directory, false));
+    Assert.assertEquals(MASTER, gunzip(PlaylistVariants.getGzipFile(master)));
+    File absolute = PlaylistVariants.getAbsoluteFile(media);
+    Assert.assertEquals(media.lastModified(), absolute.lastModified());
+    Assert.assertEquals(media.lastModified(), PlaylistVariants.getGzipFile(media).lastModified());
+    Assert.assertTrue(FileUtils.readFileToString(absolute, "UTF-8").contains(
+            "http://localhost/static/mp/element/video-000.ts"));
+    Assert.assertEquals(FileUtils.readFileToString(absolute, "UTF-8"), gunzip(PlaylistVariants.getGzipFile(absolute)));
+    Assert.assertTrue(FileUtils.readFileToString(new File(directory, "audio/video-audio-absolute.m3u8"), "UTF-8")
+            .contains("http://localhost/static/mp/element/audio/video-000.ts"));
+
+    // Nothing to do as long as the playlists do not change
+    Assert.assertEquals(0, variants.update(directory, false));
+    Assert.assertEquals(9, variants.update(directory, true));
+
+    // A redistributed playlist gets new siblings
+    FileUtils.writeStringToFile(media, MEDIA.replace("video-000.ts", "video-001.ts"), "UTF-8");
+    media.setLastModified(media.lastModified() - 10000);
+    Assert.assertEquals(3, variants.update(directory, false));
+    Assert.assertTrue(gunzip(PlaylistVariants.getGzipFile(media)).contains("video-001.ts"));
+
+    // Siblings of removed playlists are removed
+    FileUtils.forceDelete(media);
+    Assert.assertEquals(3, variants.update(directory, false));
+    for (File sibling : PlaylistVariants.getSiblings(media))
+      Assert.assertFalse(sibling.exists());
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    new PlaylistVariants(root, true, "http://localhost/static", new IOScheduler()).update(directory, false);
+    PlaylistVariants variants = new PlaylistVariants(root, true, null, new IOScheduler());
+    Assert.assertEquals(6, variants.update(directory, false));
+    Assert.assertTrue(PlaylistVariants.getGzipFile(master).isFile());
+    Assert.assertFalse(PlaylistVariants.getAbsoluteFile(master).exists());
+    Assert.assertFalse(PlaylistVariants.getGzipFile(PlaylistVariants.getAbsoluteFile(master)).exists());
+
+    variants = new PlaylistVariants(root, false, null, new IOScheduler());
+    Assert.assertFalse(variants.isEnabled());
+    Assert.assertEquals(3, variants.update(directory, false));
+    String[] names = directory.list();
+    Arrays.sort(names);
+    Assert.assertEquals("[audio, video-000.ts, video-source.m3u8, video.m3u8]", Arrays.toString(names));
+    Assert.assertEquals(1, new File(directory, "audio").list().length);
+  }
+
+  private static String gunzip(File file) throws Exception {
+    InputStream in = new GZIPInputStream(new FileInputStream(file));
+    try {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buffer = new byte[1024];
+      int n;
+      while ((n = in.read(buffer)) >= 0)
+        out.write(buffer, 0, n);
+      return new String(out.toByteArray(), "UTF-8");
+    } finally {
+      in.close();
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class ReplicatorTest {
+
+  private File directory;
+
+  private File root;
+
+  private File state;
+
+  private File replica;
+
+  private RecordingTarget target;
+
+  private IOScheduler io = new IOScheduler();
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "replicator-test");
+    FileUtils.deleteQuietly(directory);
+    root = new File(directory, "distribution");
+    state = new File(directory, "state");
+    replica = new File(directory, "replica");
+    FileUtils.forceMkdir(root);
+    target = new RecordingTarget(new Replicator.DirectoryTarget(replica, io));
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  private Replicator newReplicator() throws IOException {
+    return new Replicator(root, state, Collections.<Replicator.Target> singletonList(target), 2, io);
+  }
+
+  private void publish() throws IOException {
+    File element = new File(root, "mp/track");
+    FileUtils.writeStringToFile(new File(element, "video-0.ts"), "segment 0", "UTF-8");
+    FileUtils.writeStringToFile(new File(element, "video-1.ts"), "segment 1", "UTF-8");
+    FileUtils.writeStringToFile(new File(element, "video.m3u8"), "playlist", "UTF-8");
+    FileUtils.writeStringToFile(new File(element, "." + "track" + DistributionLock.EXTENSION), "", "UTF-8");
+    FileUtils.writeStringToFile(new File(element, HLSDistributionServiceImpl.RECEIPT_FILE), "key", "UTF-8");
+  }
+
+  @Test
+  public void testDelta() throws Exception {
+    publish();
+    Replicator replicator = newReplicator();
+    replicator.replicate("mp/track");
+    Assert.assertEquals(4, target.puts.size());
+    // Segments first, then the playlist, then the receipt; locks are never sent
+    Assert.assertEquals("mp/track/video.m3u8", target.puts.get(2));
+    Assert.assertEquals("mp/track/" + HLSDistributionServiceImpl.RECEIPT_FILE, target.puts.get(3));
+    Assert.assertEquals("segment 1", FileUtils.readFileToString(new File(replica, "mp/track/video-1.ts"), "UTF-8"));
+    Assert.assertFalse(new File(replica, "mp/track/.track" + DistributionLock.EXTENSION).exists());
+
+    // Nothing changed, nothing is sent
+    target.puts.clear();
+    replicator.replicate("mp/track");
+    Assert.assertTrue(target.puts.isEmpty());
+
+    // Only the changed playlist is sent, the removed segment is deleted
+    File playlist = new File(root, "mp/track/video.m3u8");
+    FileUtils.writeStringToFile(playlist, "new playlist", "UTF-8");
+    FileUtils.forceDelete(new File(root, "mp/track/video-0.ts"));
+    replicator.replicate("mp/track");
+    Assert.assertEquals(Collections.singletonList("mp/track/video.m3u8"), target.puts);
+    Assert.assertEquals(Collections.singletonList("mp/track/video-0.ts"), target.deletes);
+    Assert.assertFalse(new File(replica, "mp/track/video-0.ts").exists());
+    Assert.assertEquals("new playlist", FileUtils.readFileToString(new File(replica, "mp/track/video.m3u8"), "UTF-8"));
+  }
+
+  @Test
+  public void testRetract() throws Exception {
+    publish();
+    Replicator replicator = newReplicator();
+    replicator.replicate("mp/track");
+    FileUtils.deleteDirectory(new File(root, "mp"));
+    target.puts.clear();
+    replicator.replicate("mp/track");
+    Assert.assertTrue(target.puts.isEmpty());
+    Assert.assertTrue(target.deletes.contains("mp/track"));
+    Assert.assertFalse(new File(replica, "mp").exists());
+  }
+
+  @Test
+  public void testResume() throws Exception {
+    publish();
+    Replicator replicator = newReplicator();
+    replicator.sync("mp/track");
+    Assert.assertEquals(1, replicator.getQueueSize());
+    replicator.shutdown();
+
+    // The queue survives a restart
+    replicator = newReplicator();
+    Assert.assertEquals(1, replicator.getQueueSize());
+    replicator.start();
+    long deadline = System.currentTimeMillis() + 10000L;
+    while (replicator.getQueueSize() > 0 && System.currentTimeMillis() < deadline)
+      Thread.sleep(20);
+    replicator.shutdown();
+    Assert.assertEquals(0, replicator.getQueueSize());
+    Assert.assertTrue(new File(replica, "mp/track/video.m3u8").isFile());
+    Assert.assertEquals(0, newReplicator().getQueueSize());
+  }
+
+  @Test
+  public void testReceive() throws Exception {
+    Replicator.receive(root, "mp/track/video.m3u8", new ByteArrayInputStream("playlist".getBytes("UTF-8")));
+    Assert.assertEquals("playlist", FileUtils.readFileToString(new File(root, "mp/track/video.m3u8"), "UTF-8"));
+    try {
+      Replicator.receive(root, "../outside.ts", new ByteArrayInputStream(new byte[0]));
+      Assert.fail("Paths outside of the root must be refused");
+    } catch (IOException e) {
+      Assert.assertFalse(new File(directory, "outside.ts").exists());
+    }
+    Replicator.remove(root, "mp/track/video.m3u8", io);
+    Assert.assertFalse(new File(root, "mp").exists());
+    Assert.assertTrue(root.isDirectory());
+  }
+
+  /**
+   * Records the paths sent to a target.
+   */
+  private static final class RecordingTarget implements Replicator.Target {
+
+    private final Replicator.Target target;
+
+    private final List<String> puts = Collections.synchronizedList(new ArrayList<String>());
+
+    private final List<String> deletes = new ArrayList<String>();
+
+    RecordingTarget(Replicator.Target target) {
+      this.target = target;
+    }
+
+    @Override
+    public String getName() {
+      return target.getName();
+    }
+
+    @Override
+    public void put(String path, File file) throws IOException {
+      target.put(path, file);
+      puts.add(path);
+    }
+
+    @Override
+    public void delete(String path) throws IOException {
+      target.delete(path);
+      deletes.add(path);
+    }
+
+  }
+
+}
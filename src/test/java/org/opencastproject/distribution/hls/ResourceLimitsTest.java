@@ -0,0 +1,89 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ResourceLimitsTest {
+
+  @Test
+  public void testLimits() throws Exception {
+    final ResourceLimits limits = new ResourceLimits(1, 0, 2);
+    Assert.assertEquals(1, limits.getLimit(ResourceLimits.Resource.FFMPEG));
+    Assert.assertEquals(0, limits.getLimit(ResourceLimits.Resource.IO));
+
+    // Unlimited resources hand out slots right away
+    ResourceLimits.Slot io1 = limits.acquire(ResourceLimits.Resource.IO);
+    ResourceLimits.Slot io2 = limits.acquire(ResourceLimits.Resource.IO);
+    Assert.assertEquals(2, limits.getInUse(ResourceLimits.Resource.IO));
+    io1.release();
+    io2.release();
+    Assert.assertEquals(0, limits.getInUse(ResourceLimits.Resource.IO));
+
+    ResourceLimits.Slot ffmpeg = limits.acquire(ResourceLimits.Resource.FFMPEG);
+    final CountDownLatch acquired = new CountDownLatch(1);
+    Thread waiter = new Thread() {
+      @Override
+      public void run() {
+        try {
+          limits.acquire(ResourceLimits.Resource.FFMPEG).release();
+          acquired.countDown();
+        } catch (Exception e) {
+          return;
+        }
+      }
+    };
+    waiter.start();
+    long deadline = System.currentTimeMillis() + 10000;
+    while (limits.getWaiting(ResourceLimits.Resource.FFMPEG) == 0 && System.currentTimeMillis() < deadline)
+      Thread.sleep(10);
+    Assert.assertEquals(1, limits.getWaiting(ResourceLimits.Resource.FFMPEG));
+    Assert.assertFalse(acquired.await(100, TimeUnit.MILLISECONDS));
+
+    // Releasing twice must not hand out a second slot
+    ffmpeg.release();
+    ffmpeg.release();
+    Assert.assertTrue(acquired.await(10, TimeUnit.SECONDS));
+    waiter.join();
+    Assert.assertEquals(0, limits.getWaiting(ResourceLimits.Resource.FFMPEG));
+    Assert.assertEquals(0, limits.getInUse(ResourceLimits.Resource.FFMPEG));
+    limits.acquire(ResourceLimits.Resource.FFMPEG);
+    Assert.assertEquals(1, limits.getInUse(ResourceLimits.Resource.FFMPEG));
+  }
+
+  @Test
+  public void testMetrics() throws Exception {
+    ResourceLimits limits = new ResourceLimits(4, 2, 0);
+    DistributionMetrics metrics = new DistributionMetrics();
+    metrics.setSources(null, null, limits);
+    limits.acquire(ResourceLimits.Resource.IO);
+    Assert.assertEquals(Integer.valueOf(1), metrics.getSlotsInUse().get("io"));
+    Assert.assertEquals(Integer.valueOf(0), metrics.getSlotsWaiting().get("ffmpeg"));
+
+    MetricsReport report = new MetricsReport(metrics);
+    Assert.assertEquals(ResourceLimits.Resource.values().length, report.getSlots().size());
+    MetricsReport.SlotUsage io = report.getSlots().get(1);
+    Assert.assertEquals("io", io.getResource());
+    Assert.assertEquals(2, io.getLimit());
+    Assert.assertEquals(1, io.getInUse());
+  }
+
+}
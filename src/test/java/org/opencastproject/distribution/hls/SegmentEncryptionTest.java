@@ -0,0 +1,159 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencastproject.distribution.hls.playlist.AttributeList;
+
+import java.io.File;
+import java.util.Arrays;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+public class SegmentEncryptionTest {
+
+  private static final String KEY_URL = "https://keys.example.org/hls";
+
+  private File root;
+
+  private File distribution;
+
+  private File keys;
+
+  private File directory;
+
+  private SegmentEncryption encryption;
+
+  @Before
+  public void setUp() throws Exception {
+    root = new File("target", "segment-encryption-test");
+    FileUtils.deleteQuietly(root);
+    distribution = new File(root, "static");
+    keys = new File(root, "keys");
+    directory = new File(distribution, "mp/element");
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    if (encryption != null)
+      encryption.shutdown();
+    FileUtils.deleteQuietly(root);
+  }
+
+  @Test
+  public void testDecrypt() throws Exception {
+    encryption = new SegmentEncryption(0, distribution, keys, KEY_URL, 2);
+    byte[] content = new byte[100000];
+    for (int i = 0; i < content.length; i++)
+      content[i] = (byte) (i * 31);
+    File plain = new File(root, "segment.ts");
+    FileUtils.writeByteArrayToFile(plain, content);
+    File segment = new File(directory, "video-000.ts");
+
+    SegmentEncryption.Session session = encryption.newSession(directory, "video");
+    String attributes = session.encrypt(plain, segment);
+    session.await();
+    Assert.assertFalse(plain.exists());
+
+    // The key is kept outside of the distribution directory
+    File key = new File(keys, "mp/element/video-0" + SegmentEncryption.KEY_EXTENSION);
+    Assert.assertTrue(key.isFile());
+    Assert.assertEquals(16, key.length());
+    Assert.assertFalse(new File(directory, key.getName()).exists());
+    Assert.assertEquals(new File(keys, "mp/element"), encryption.getKeyDirectory(directory));
+
+    String iv = AttributeList.get(attributes, "IV");
+    Assert.assertEquals(34, iv.length());
+    Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+    cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(FileUtils.readFileToByteArray(key), "AES"),
+            new IvParameterSpec(toBytes(iv)));
+    byte[] encrypted = FileUtils.readFileToByteArray(segment);
+    Assert.assertFalse(Arrays.equals(content, Arrays.copyOf(encrypted, content.length)));
+    Assert.assertTrue(Arrays.equals(content, cipher.doFinal(encrypted)));
+  }
+
+  @Test
+  public void testKeyAttributes() throws Exception {
+    encryption = new SegmentEncryption(0, distribution, keys, KEY_URL, 1);
+    SegmentEncryption.Session session = encryption.newSession(directory, "video");
+    String attributes = session.encrypt(createSegment(0), new File(directory, "video-000.ts"));
+    session.await();
+    Assert.assertTrue(attributes, attributes.matches(
+            "METHOD=AES-128,URI=\"https://keys\\.example\\.org/hls/mp/element/video-0\\.key\",IV=0x[0-9A-F]{32}"));
+  }
+
+  @Test
+  public void testRotation() throws Exception {
+    encryption = new SegmentEncryption(2, distribution, keys, KEY_URL + "/", 2);
+    SegmentEncryption.Session session = encryption.newSession(directory, "video");
+    String[] uris = new String[5];
+    String[] ivs = new String[5];
+    for (int i = 0; i < uris.length; i++) {
+      String attributes = session.encrypt(createSegment(i), new File(directory, "video-00" + i + ".ts"));
+      uris[i] = AttributeList.get(attributes, "URI");
+      ivs[i] = AttributeList.get(attributes, "IV");
+    }
+    session.await();
+
+    Assert.assertEquals(KEY_URL + "/mp/element/video-0.key", uris[0]);
+    Assert.assertEquals(uris[0], uris[1]);
+    Assert.assertEquals(KEY_URL + "/mp/element/video-1.key", uris[2]);
+    Assert.assertEquals(uris[2], uris[3]);
+    Assert.assertEquals(KEY_URL + "/mp/element/video-2.key", uris[4]);
+    Assert.assertFalse(ivs[0].equals(ivs[1]));
+    Assert.assertEquals(3, encryption.getKeyDirectory(directory).list().length);
+    Assert.assertFalse(Arrays.equals(FileUtils.readFileToByteArray(new File(keys, "mp/element/video-0.key")),
+            FileUtils.readFileToByteArray(new File(keys, "mp/element/video-1.key"))));
+  }
+
+  @Test
+  public void testConfiguration() throws Exception {
+    try {
+      new SegmentEncryption(0, distribution, new File(distribution, "keys"), KEY_URL, 1);
+      Assert.fail("Keys must not be written to the distribution directory");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+    try {
+      new SegmentEncryption(0, distribution, keys, null, 1);
+      Assert.fail("A key server URL is required");
+    } catch (IllegalArgumentException e) {
+      // expected
+    }
+  }
+
+  private File createSegment(int i) throws Exception {
+    File plain = new File(root, "segment-" + i + ".ts");
+    FileUtils.writeStringToFile(plain, "segment " + i, "UTF-8");
+    return plain;
+  }
+
+  private static byte[] toBytes(String hex) {
+    byte[] bytes = new byte[(hex.length() - 2) / 2];
+    for (int i = 0; i < bytes.length; i++)
+      bytes[i] = (byte) Integer.parseInt(hex.substring(2 + 2 * i, 4 + 2 * i), 16);
+    return bytes;
+  }
+
+}
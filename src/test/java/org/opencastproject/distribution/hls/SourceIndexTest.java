@@ -0,0 +1,127 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+
+public class SourceIndexTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "source-index-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  /**
+   * Returns framemd5 output of a source with one video frame and one audio frame per second and a key frame every two
+   * seconds. The video frame at <code>changed</code> seconds gets a different checksum.
+   */
+  private static String checksums(int seconds, int changed) {
+    StringBuilder out = new StringBuilder("#format: frame checksums\n#version: 2\n#hash: MD5\n");
+    out.append("#tb 0: 1/90000\n#media_type 0: video\n#codec_id 0: h264\n");
+    out.append("#tb 1: 1/48000\n#media_type 1: audio\n#codec_id 1: aac\n");
+    out.append("#stream#, dts,        pts, duration,     size, hash\n");
+    for (int i = 0; i < seconds; i++) {
+      String hash = String.format("%032x", i == changed ? 1000 + i : i);
+      out.append(String.format("0, %10d, %10d, %8d, %8d, %s", i * 90000, i * 90000, 90000, 1000 + i, hash));
+      out.append(i % 2 == 0 ? "\n" : ", F=0x0\n");
+      out.append(String.format("1, %10d, %10d, %8d, %8d, %032x\n", i * 48000, i * 48000, 48000, 100, 5000 + i));
+    }
+    return out.toString();
+  }
+
+  @Test
+  public void testParse() throws Exception {
+    SourceIndex index = SourceIndex.parse(new StringReader(checksums(60, -1)));
+    Assert.assertEquals(30, index.getKeyFrames().size());
+    Assert.assertEquals(58.0, index.getKeyFrames().get(29).getTime(), 0.001);
+    Assert.assertEquals(60.0, index.getDuration(), 0.001);
+    Assert.assertEquals(10.0, index.getKeyFrame(10.02, 0.05), 0.001);
+    Assert.assertEquals(-1.0, index.getKeyFrame(11.0, 0.05), 0.001);
+
+    // The digest of a key frame covers the packets before it only
+    SourceIndex changed = SourceIndex.parse(new StringReader(checksums(60, 20)));
+    Assert.assertEquals(index.getKeyFrames().get(10).getDigest(), changed.getKeyFrames().get(10).getDigest());
+    Assert.assertFalse(index.getKeyFrames().get(11).getDigest().equals(changed.getKeyFrames().get(11).getDigest()));
+    Assert.assertFalse(index.getDigest().equals(changed.getDigest()));
+
+    try {
+      SourceIndex.parse(new StringReader("#format: frame checksums\n"));
+      Assert.fail("Output without packets must be rejected");
+    } catch (IOException e) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testCommonDuration() throws Exception {
+    SourceIndex index = SourceIndex.parse(new StringReader(checksums(60, -1)));
+    Assert.assertTrue(index.isSameMedia(SourceIndex.parse(new StringReader(checksums(60, -1)))));
+
+    // A changed frame at 21 seconds leaves the key frames up to 20 seconds, the last common one is not trusted
+    SourceIndex edited = SourceIndex.parse(new StringReader(checksums(60, 21)));
+    Assert.assertFalse(index.isSameMedia(edited));
+    Assert.assertEquals(18.0, index.getCommonDuration(edited), 0.001);
+
+    // Trimming the end keeps everything up to the new end
+    SourceIndex trimmed = SourceIndex.parse(new StringReader(checksums(40, -1)));
+    Assert.assertFalse(index.isSameMedia(trimmed));
+    Assert.assertEquals(36.0, index.getCommonDuration(trimmed), 0.001);
+
+    // A change in the first frame leaves nothing in common
+    Assert.assertEquals(0.0, index.getCommonDuration(SourceIndex.parse(new StringReader(checksums(60, 0)))), 0.001);
+  }
+
+  @Test
+  public void testReadWrite() throws Exception {
+    SourceIndex index = SourceIndex.parse(new StringReader(checksums(20, -1)));
+    index.setName("media");
+    index.setProfile("source,720p");
+    index.setChecksum("md5:0123");
+    File file = new File(directory, SourceIndex.FILE);
+    index.write(file);
+
+    SourceIndex read = SourceIndex.read(file);
+    Assert.assertEquals("media", read.getName());
+    Assert.assertEquals("source,720p", read.getProfile());
+    Assert.assertEquals("md5:0123", read.getChecksum());
+    Assert.assertEquals(10, read.getKeyFrames().size());
+    Assert.assertTrue(read.isSameMedia(index));
+    Assert.assertEquals(16.0, read.getCommonDuration(index), 0.001);
+
+    FileUtils.writeStringToFile(file, "keyframe x\n", "UTF-8");
+    Assert.assertNull(SourceIndex.readQuietly(file));
+    Assert.assertNull(SourceIndex.readQuietly(new File(directory, "missing")));
+  }
+
+}
@@ -0,0 +1,99 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+public class ThumbnailSpritesTest {
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "thumbnail-sprites-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testHeight() throws Exception {
+    ThumbnailSprites sprites = new ThumbnailSprites(10, 161, 5, 5);
+    Assert.assertEquals(160, sprites.getWidth());
+    Assert.assertEquals(90, sprites.getHeight(1280, 720));
+    Assert.assertEquals(120, sprites.getHeight(640, 480));
+    Assert.assertEquals(90, sprites.getHeight(null, null));
+  }
+
+  @Test
+  public void testOutputOptions() throws Exception {
+    ThumbnailSprites sprites = new ThumbnailSprites(10, 160, 5, 4);
+    Assert.assertEquals("-map 0:v:0 -an -vf fps=1/10,scale=160:90,tile=5x4 -q:v 5 -f image2 -start_number 0 "
+            + "#{out.dir}/#{out.name}-sprite-%03d.jpg", sprites.getOutputOptions(90));
+
+    // The sprites are written by the ffmpeg run segmenting the track, after the source playlist
+    String command = FFmpegHLSEncoderEngine.getSegmentCommand(HLSRendition.parse("360p:640x360:800"), false, false,
+            sprites, 90);
+    Assert.assertTrue(command.startsWith("-i #{in.video.path} "));
+    Assert.assertTrue(command.endsWith("-segment_time 10 #{out.dir}/#{out.name}-%03d.ts "
+            + sprites.getOutputOptions(90)));
+    Assert.assertEquals(0, command.lastIndexOf("-i "));
+  }
+
+  @Test
+  public void testWebVtt() throws Exception {
+    ThumbnailSprites sprites = new ThumbnailSprites(10, 160, 2, 2);
+    File vtt = new File(directory, "video-thumbnails.vtt");
+    sprites.writeWebVtt(vtt, Arrays.asList("video-sprite-000.jpg", "video-sprite-001.jpg"), 90, 45.5);
+
+    String[] lines = FileUtils.readFileToString(vtt, "UTF-8").split("\r?\n");
+    Assert.assertEquals("WEBVTT", lines[0]);
+    // One cue per thumbnail, every cue taking three lines
+    Assert.assertEquals(1 + 5 * 3, lines.length);
+    Assert.assertEquals("", lines[1]);
+    Assert.assertEquals("00:00:00.000 --> 00:00:10.000", lines[2]);
+    Assert.assertEquals("video-sprite-000.jpg#xywh=0,0,160,90", lines[3]);
+    Assert.assertEquals("video-sprite-000.jpg#xywh=160,0,160,90", lines[6]);
+    Assert.assertEquals("video-sprite-000.jpg#xywh=0,90,160,90", lines[9]);
+    Assert.assertEquals("video-sprite-000.jpg#xywh=160,90,160,90", lines[12]);
+    // The fifth thumbnail starts the next sprite and lasts until the end of the track
+    Assert.assertEquals("00:00:40.000 --> 00:00:45.500", lines[14]);
+    Assert.assertEquals("video-sprite-001.jpg#xywh=0,0,160,90", lines[15]);
+  }
+
+  @Test
+  public void testWebVttLimitedBySprites() throws Exception {
+    ThumbnailSprites sprites = new ThumbnailSprites(10, 160, 2, 1);
+    File vtt = new File(directory, "video-thumbnails.vtt");
+    sprites.writeWebVtt(vtt, Arrays.asList("video-sprite-000.jpg"), 90, 3600);
+    String content = FileUtils.readFileToString(vtt, "UTF-8");
+    Assert.assertTrue(content.contains("00:00:10.000 --> 00:00:20.000"));
+    Assert.assertFalse(content.contains("00:00:20.000 --> "));
+  }
+
+}
@@ -0,0 +1,219 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls;
+
+import static org.opencastproject.distribution.hls.TransportStreamIndexer.PACKET_SIZE;
+import static org.opencastproject.distribution.hls.TransportStreamIndexer.PTS_CLOCK;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.opencastproject.distribution.hls.playlist.MediaPlaylist;
+import org.opencastproject.distribution.hls.playlist.MediaSegment;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+
+public class TransportStreamIndexerTest {
+
+  /** PID of the program map table in the fixtures */
+  private static final int PMT_PID = 0x1000;
+
+  /** PID of the video stream in the fixtures */
+  private static final int VIDEO_PID = 0x100;
+
+  /** First PTS of the fixtures */
+  private static final long START = 10 * PTS_CLOCK;
+
+  private File directory;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "transport-stream-indexer-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.forceMkdir(directory);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+  }
+
+  @Test
+  public void testIndex() throws Exception {
+    ByteArrayOutputStream ts = new ByteArrayOutputStream();
+    writeTables(ts);
+    writeFrame(ts, START, true, false, 2);
+    writeFrame(ts, START + 3000, false, false, 1);
+    writeTables(ts);
+    writeFrame(ts, START + 5 * PTS_CLOCK, true, false, 1);
+    // Without a random access indicator, the IDR slice marks the key frame
+    writeFrame(ts, START + 6 * PTS_CLOCK, false, true, 0);
+
+    TransportStreamIndexer indexer = new TransportStreamIndexer();
+    List<TransportStreamIndexer.KeyFrame> keyFrames = indexer.index(new ByteArrayInputStream(ts.toByteArray()));
+    Assert.assertEquals(3, keyFrames.size());
+    Assert.assertTrue(indexer.isIndependent());
+
+    // Key frames preceded by the program tables start at the PAT
+    assertKeyFrame(0, 5 * PACKET_SIZE, START, keyFrames.get(0));
+    assertKeyFrame(7 * PACKET_SIZE, 4 * PACKET_SIZE, START + 5 * PTS_CLOCK, keyFrames.get(1));
+    assertKeyFrame(11 * PACKET_SIZE, PACKET_SIZE, START + 6 * PTS_CLOCK, keyFrames.get(2));
+  }
+
+  @Test
+  public void testDependentStream() throws Exception {
+    ByteArrayOutputStream ts = new ByteArrayOutputStream();
+    writeTables(ts);
+    writeFrame(ts, START, false, false, 1);
+    writeFrame(ts, START + 3000, true, false, 1);
+
+    TransportStreamIndexer indexer = new TransportStreamIndexer();
+    List<TransportStreamIndexer.KeyFrame> keyFrames = indexer.index(new ByteArrayInputStream(ts.toByteArray()));
+    Assert.assertEquals(1, keyFrames.size());
+    assertKeyFrame(4 * PACKET_SIZE, 2 * PACKET_SIZE, START + 3000, keyFrames.get(0));
+    Assert.assertFalse(indexer.isIndependent());
+  }
+
+  @Test
+  public void testPtsWrap() throws Exception {
+    long wrap = 1L << 33;
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    writeTables(first);
+    writeFrame(first, wrap - PTS_CLOCK, true, false, 1);
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    writeTables(second);
+    writeFrame(second, PTS_CLOCK, true, false, 1);
+
+    // Consecutive segments passed to the same indexer keep counting
+    TransportStreamIndexer indexer = new TransportStreamIndexer();
+    Assert.assertEquals(wrap - PTS_CLOCK,
+            indexer.index(new ByteArrayInputStream(first.toByteArray())).get(0).getPts());
+    Assert.assertEquals(wrap + PTS_CLOCK,
+            indexer.index(new ByteArrayInputStream(second.toByteArray())).get(0).getPts());
+  }
+
+  @Test
+  public void testIFramePlaylist() throws Exception {
+    ByteArrayOutputStream first = new ByteArrayOutputStream();
+    writeTables(first);
+    writeFrame(first, START, true, false, 2);
+    writeFrame(first, START + 3000, false, false, 1);
+    writeTables(first);
+    writeFrame(first, START + 5 * PTS_CLOCK, true, false, 1);
+    FileUtils.writeByteArrayToFile(new File(directory, "video-000.ts"), first.toByteArray());
+    ByteArrayOutputStream second = new ByteArrayOutputStream();
+    writeTables(second);
+    writeFrame(second, START + 10 * PTS_CLOCK, true, false, 1);
+    FileUtils.writeByteArrayToFile(new File(directory, "video-001.ts"), second.toByteArray());
+    File m3u8 = new File(directory, "video.m3u8");
+    FileUtils.writeStringToFile(m3u8, "#EXTM3U\n#EXT-X-TARGETDURATION:10\n#EXTINF:10.000000,\nvideo-000.ts\n"
+            + "#EXTINF:8.000000,\nvideo-001.ts\n#EXT-X-ENDLIST\n", "UTF-8");
+
+    File iFrames = new File(directory, "video-iframes.m3u8");
+    long bandwidth = FFmpegHLSEncoderEngine.createIFramePlaylist(m3u8, iFrames);
+    // The largest I-frame is the first one, 940 bytes shown for 5 seconds
+    Assert.assertEquals(5 * PACKET_SIZE * 8 / 5, bandwidth);
+
+    String content = FileUtils.readFileToString(iFrames, "UTF-8");
+    Assert.assertTrue(content.contains("#EXT-X-I-FRAMES-ONLY"));
+    Assert.assertTrue(content.contains("#EXT-X-BYTERANGE:940@0\nvideo-000.ts\n"));
+    Assert.assertTrue(content.contains("#EXT-X-BYTERANGE:752@1316\nvideo-000.ts\n"));
+    Assert.assertTrue(content.contains("#EXT-X-BYTERANGE:752@0\nvideo-001.ts\n"));
+
+    List<MediaSegment> entries = MediaPlaylist.read(iFrames).getSegments();
+    Assert.assertEquals(3, entries.size());
+    Assert.assertEquals(5.0, entries.get(0).getDuration(), 0.001);
+    Assert.assertEquals(5.0, entries.get(1).getDuration(), 0.001);
+    // The last I-frame lasts until the end of the playlist
+    Assert.assertEquals(8.0, entries.get(2).getDuration(), 0.001);
+    Assert.assertEquals(1316, entries.get(1).getByteRangeOffset());
+  }
+
+  private static void assertKeyFrame(long offset, long length, long pts, TransportStreamIndexer.KeyFrame keyFrame) {
+    Assert.assertEquals(offset, keyFrame.getOffset());
+    Assert.assertEquals(length, keyFrame.getLength());
+    Assert.assertEquals(pts, keyFrame.getPts());
+  }
+
+  /**
+   * Writes a PAT pointing to the PMT and a PMT announcing an H.264 stream.
+   */
+  private static void writeTables(ByteArrayOutputStream out) {
+    byte[] pat = newPacket(0, true, false);
+    int p = 5;
+    byte[] patSection = { 0x00, (byte) 0xB0, 0x0D, 0x00, 0x01, (byte) 0xC1, 0x00, 0x00, 0x00, 0x01,
+            (byte) (0xE0 | (PMT_PID >> 8)), (byte) (PMT_PID & 0xFF), 0, 0, 0, 0 };
+    System.arraycopy(patSection, 0, pat, p, patSection.length);
+    out.write(pat, 0, PACKET_SIZE);
+
+    byte[] pmt = newPacket(PMT_PID, true, false);
+    byte[] pmtSection = { 0x02, (byte) 0xB0, 0x12, 0x00, 0x01, (byte) 0xC1, 0x00, 0x00,
+            (byte) (0xE0 | (VIDEO_PID >> 8)), (byte) (VIDEO_PID & 0xFF), (byte) 0xF0, 0x00, 0x1B,
+            (byte) (0xE0 | (VIDEO_PID >> 8)), (byte) (VIDEO_PID & 0xFF), (byte) 0xF0, 0x00, 0, 0, 0, 0 };
+    System.arraycopy(pmtSection, 0, pmt, p, pmtSection.length);
+    out.write(pmt, 0, PACKET_SIZE);
+  }
+
+  /**
+   * Writes a video frame as a PES packet with the given PTS, followed by <code>continuations</code> packets.
+   *
+   * @param randomAccess
+   *          whether to set the random access indicator
+   * @param idr
+   *          whether the frame starts with an IDR slice instead of a regular slice
+   */
+  private static void writeFrame(ByteArrayOutputStream out, long pts, boolean randomAccess, boolean idr,
+          int continuations) {
+    byte[] packet = newPacket(VIDEO_PID, true, randomAccess);
+    int p = randomAccess ? 6 : 4;
+    byte[] pes = { 0x00, 0x00, 0x01, (byte) 0xE0, 0x00, 0x00, (byte) 0x80, (byte) 0x80, 0x05,
+            (byte) (0x21 | ((pts >> 29) & 0x0E)), (byte) (pts >> 22), (byte) (((pts >> 14) & 0xFE) | 1),
+            (byte) (pts >> 7), (byte) (((pts << 1) & 0xFE) | 1), 0x00, 0x00, 0x01, (byte) (idr ? 0x65 : 0x41) };
+    System.arraycopy(pes, 0, packet, p, pes.length);
+    out.write(packet, 0, PACKET_SIZE);
+    for (int i = 0; i < continuations; i++)
+      out.write(newPacket(VIDEO_PID, false, false), 0, PACKET_SIZE);
+  }
+
+  /**
+   * Returns a packet filled with stuffing bytes. Table packets starting a section get an empty pointer field.
+   */
+  private static byte[] newPacket(int pid, boolean unitStart, boolean randomAccess) {
+    byte[] packet = new byte[PACKET_SIZE];
+    Arrays.fill(packet, (byte) 0xFF);
+    packet[0] = 0x47;
+    packet[1] = (byte) ((unitStart ? 0x40 : 0) | (pid >> 8));
+    packet[2] = (byte) (pid & 0xFF);
+    if (randomAccess) {
+      packet[3] = 0x30;
+      packet[4] = 0x01;
+      packet[5] = 0x40;
+    } else {
+      packet[3] = 0x10;
+    }
+    if (pid != VIDEO_PID && unitStart)
+      packet[4] = 0x00;
+    return packet;
+  }
+
+}
@@ -0,0 +1,159 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+
+package org.opencastproject.distribution.hls.endpoint;
+
+import junit.framework.Assert;
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.util.zip.GZIPInputStream;
+
+public class HLSFileServerTest {
+
+  private File directory;
+
+  private HLSFileServer server;
+
+  @Before
+  public void setUp() throws Exception {
+    directory = new File("target", "file-server-test");
+    FileUtils.deleteQuietly(directory);
+    FileUtils.writeStringToFile(new File(directory, "mp/element/video.mp4.m3u8"), "#EXTM3U\n", "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "mp/element/video.mp4-000.ts"), "0123456789", "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "mp/element/.distribution"), "receipt", "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "mp/element/video.mp4.m3u8.gz"), "gzipped", "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "mp/element/video.mp4-0.key"), "0123456789abcdef", "UTF-8");
+    FileUtils.writeStringToFile(new File(directory, "keys/mp/element/video.mp4-0.key"), "fedcba9876543210", "UTF-8");
+    FileUtils.writeStringToFile(new File(directory.getParentFile(), "file-server-secret"), "secret", "UTF-8");
+    server = new HLSFileServer(directory, 2);
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    FileUtils.deleteQuietly(directory);
+    FileUtils.deleteQuietly(new File(directory.getParentFile(), "file-server-secret"));
+  }
+
+  @Test
+  public void testResolve() throws Exception {
+    Assert.assertNotNull(server.resolve("mp/element/video.mp4.m3u8"));
+    Assert.assertNotNull(server.resolve("mp/element/video.mp4-000.ts"));
+    Assert.assertNull(server.resolve("mp/element/missing.ts"));
+    Assert.assertNull(server.resolve("mp/element"));
+    Assert.assertNull(server.resolve("mp/element/.distribution"));
+    Assert.assertNull(server.resolve("mp/element/video.mp4.m3u8.gz"));
+    Assert.assertNull(server.resolve("../file-server-secret"));
+    Assert.assertNull(server.resolve("mp/../../file-server-secret"));
+    Assert.assertNull(server.resolve("mp/element/video.mp4-0.key"));
+  }
+
+  @Test
+  public void testResolveKeys() throws Exception {
+    File keys = new File(directory, "keys");
+    server = new HLSFileServer(new File(directory, "mp"), keys, 2);
+    Assert.assertEquals(new File(keys, "mp/element/video.mp4-0.key").getCanonicalFile(),
+            server.resolve("mp/element/video.mp4-0.key").getCanonicalFile());
+    Assert.assertNull(server.resolve("mp/element/video.mp4-1.key"));
+    Assert.assertNull(server.resolve("../mp/element/video.mp4-0.key"));
+    Assert.assertNotNull(server.resolve("element/video.mp4-000.ts"));
+  }
+
+  @Test
+  public void testParseRange() throws Exception {
+    Assert.assertNull(HLSFileServer.parseRange(null, 10));
+    Assert.assertNull(HLSFileServer.parseRange("bytes=0-1,4-5", 10));
+    Assert.assertNull(HLSFileServer.parseRange("items=0-1", 10));
+    assertRange(2, 5, HLSFileServer.parseRange("bytes=2-5", 10));
+    assertRange(2, 9, HLSFileServer.parseRange("bytes=2-", 10));
+    assertRange(2, 9, HLSFileServer.parseRange("bytes=2-100", 10));
+    assertRange(7, 9, HLSFileServer.parseRange("bytes=-3", 10));
+    assertRange(0, 9, HLSFileServer.parseRange("bytes=-30", 10));
+    Assert.assertEquals(0, HLSFileServer.parseRange("bytes=10-", 10).length);
+    Assert.assertEquals(0, HLSFileServer.parseRange("bytes=5-2", 10).length);
+  }
+
+  @Test
+  public void testConditions() throws Exception {
+    Assert.assertTrue(HLSFileServer.isNotModified("\"a\", \"b\"", null, "\"b\"", 0));
+    Assert.assertTrue(HLSFileServer.isNotModified("W/\"b\"", null, "\"b\"", 0));
+    Assert.assertTrue(HLSFileServer.isNotModified("*", null, "\"b\"", 0));
+    // If-None-Match takes precedence
+    Assert.assertFalse(HLSFileServer.isNotModified("\"a\"", "Thu, 01 Jan 2099 00:00:00 GMT", "\"b\"", 0));
+    Assert.assertTrue(HLSFileServer.isNotModified(null, "Thu, 01 Jan 1970 00:00:01 GMT", "\"b\"", 1500));
+    Assert.assertFalse(HLSFileServer.isNotModified(null, "Thu, 01 Jan 1970 00:00:01 GMT", "\"b\"", 2000));
+    Assert.assertFalse(HLSFileServer.isNotModified(null, "yesterday", "\"b\"", 0));
+
+    Assert.assertTrue(HLSFileServer.acceptsGzip("deflate, gzip;q=0.8"));
+    Assert.assertFalse(HLSFileServer.acceptsGzip("gzip;q=0"));
+    Assert.assertFalse(HLSFileServer.acceptsGzip("identity"));
+    Assert.assertFalse(HLSFileServer.acceptsGzip(null));
+  }
+
+  @Test
+  public void testPlaylistCache() throws Exception {
+    File playlist = server.resolve("mp/element/video.mp4.m3u8");
+    playlist.setLastModified(System.currentTimeMillis() - 60000L);
+    HLSFileServer.CachedFile cached = server.getPlaylist(playlist);
+    Assert.assertEquals("#EXTM3U\n", new String(cached.getData(), "UTF-8"));
+    Assert.assertSame(cached, server.getPlaylist(playlist));
+    Assert.assertFalse(cached.getETag().equals(cached.getGzipETag()));
+
+    GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(cached.getGzipped()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[64];
+    int n;
+    while ((n = in.read(buffer)) >= 0)
+      out.write(buffer, 0, n);
+    Assert.assertEquals("#EXTM3U\n", out.toString("UTF-8"));
+
+    // Changed playlists are read again
+    FileUtils.writeStringToFile(playlist, "#EXTM3U\n#EXT-X-ENDLIST\n", "UTF-8");
+    Assert.assertEquals("#EXTM3U\n#EXT-X-ENDLIST\n", new String(server.getPlaylist(playlist).getData(), "UTF-8"));
+
+    // Live playlists may be rewritten with the same length within the resolution of the file time
+    long lastModified = playlist.lastModified();
+    String etag = server.getPlaylist(playlist).getETag();
+    FileUtils.writeStringToFile(playlist, "#EXTM3U\n#EXT-X-ENDLISX\n", "UTF-8");
+    playlist.setLastModified(lastModified);
+    HLSFileServer.CachedFile rewritten = server.getPlaylist(playlist);
+    Assert.assertEquals("#EXTM3U\n#EXT-X-ENDLISX\n", new String(rewritten.getData(), "UTF-8"));
+    Assert.assertFalse(etag.equals(rewritten.getETag()));
+  }
+
+  @Test
+  public void testTransfer() throws Exception {
+    File segment = server.resolve("mp/element/video.mp4-000.ts");
+    Assert.assertEquals("video/MP2T", HLSFileServer.getContentType(segment));
+    Assert.assertEquals(HLSFileServer.CACHE_IMMUTABLE, HLSFileServer.getCacheControl(segment));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    HLSFileServer.transfer(segment, 2, 4, out);
+    Assert.assertEquals("2345", out.toString("UTF-8"));
+  }
+
+  private static void assertRange(long start, long end, long[] range) {
+    Assert.assertEquals(2, range.length);
+    Assert.assertEquals(start, range[0]);
+    Assert.assertEquals(end, range[1]);
+  }
+
+}
@@ -0,0 +1,131 @@
+/**
+ *  Copyright 2013 The Trustees of Indiana University and Northwestern University.
+ *  Licensed under the Educational Community License, Version 2.0
+ *  (the "License"); you may not use this file except in compliance
+ *  with the License. You may obtain a copy of the License at
+ *
+ *  http://www.osedu.org/licenses/ECL-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing,
+ *  software distributed under the License is distributed on an "AS IS"
+ *  BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ *  or implied. See the License for the specific language governing
+ *  permissions and limitations under the License.
+ *
+ */
+
+package org.opencastproject.distribution.hls.playlist;
+
+import junit.framework.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+public class PlaylistReaderTest {
+
+  private static final String PLAYLIST = "#EXTM3U\n"
+          + "#EXT-X-VERSION:4\n"
+          + "#EXT-X-TARGETDURATION:10\n"
+          + "#EXT-X-MEDIA-SEQUENCE:0\n"
+          + "#EXT-X-PLAYLIST-TYPE:VOD\n"
+          + "#EXT-X-ALLOW-CACHE:YES\n"
+          + "#EXT-X-KEY:METHOD=AES-128,URI=\"key-0.key\",IV=0x00000000000000000000000000000001\n"
+          + "#EXTINF:10.000000,first\n"
+          + "#EXT-X-BYTERANGE:1000@0\n"
+          + "media.ts\n"
+          + "#EXTINF:9.500000,\n"
+          + "#EXT-X-BYTERANGE:500\n"
+          + "media.ts\n"
+          + "#EXT-X-DISCONTINUITY\n"
+          + "#EXT-X-KEY:METHOD=NONE\n"
+          + "#EXT-X-PROGRAM-DATE-TIME:2013-01-01T00:00:00Z\n"
+          + "#EXTINF:4.250000,\n"
+          + "other.ts\n"
+          + "#EXT-X-ENDLIST\n";
+
+  @Test
+  public void testRead() throws Exception {
+    final List<MediaSegment> segments = new ArrayList<MediaSegment>();
+    final List<MediaPlaylist> headers = new ArrayList<MediaPlaylist>();
+    new PlaylistReader(new StringReader(PLAYLIST)).read(new PlaylistHandler() {
+      @Override
+      public void header(MediaPlaylist header) {
+        Assert.assertTrue(segments.isEmpty());
+        headers.add(header);
+      }
+
+      @Override
+      public void segment(MediaSegment segment) {
+        segments.add(segment.copy());
+      }
+    });
+
+    MediaPlaylist header = headers.get(0);
+    Assert.assertEquals(4, header.getVersion());
+    Assert.assertEquals(10, header.getTargetDuration());
+    Assert.assertEquals(MediaPlaylist.TYPE_VOD, header.getPlaylistType());
+    Assert.assertEquals("#EXT-X-ALLOW-CACHE:YES", header.getTags().get(0));
+    Assert.assertTrue(header.isEndList());
+
+    Assert.assertEquals(3, segments.size());
+    Assert.assertEquals("first", segments.get(0).getTitle());
+    Assert.assertEquals("key-0.key", AttributeList.get(segments.get(0).getKey(), "URI"));
+    Assert.assertEquals(segments.get(0).getKey(), segments.get(1).getKey());
+    Assert.assertEquals(500, segments.get(1).getByteRangeLength());
+    Assert.assertEquals(1000, segments.get(1).getByteRangeOffset());
+    Assert.assertEquals(9.5, segments.get(1).getDuration(), 0.0001);
+    Assert.assertTrue(segments.get(2).isDiscontinuity());
+    Assert.assertNull(segments.get(2).getKey());
+    Assert.assertFalse(segments.get(2).hasByteRange());
+    Assert.assertEquals("#EXT-X-PROGRAM-DATE-TIME:2013-01-01T00:00:00Z", segments.get(2).getTags().get(0));
+  }
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    StringWriter out = new StringWriter();
+    final PlaylistWriter writer = new PlaylistWriter(out);
+    new PlaylistReader(new StringReader(PLAYLIST)).read(new PlaylistHandler() {
+      @Override
+      public void header(MediaPlaylist header) throws IOException {
+        writer.writeHeader(header);
+      }
+
+      @Override
+      public void segment(MediaSegment segment) throws IOException {
+        writer.writeSegment(segment);
+      }
+
+      @Override
+      public void end(MediaPlaylist header) throws IOException {
+        writer.writeEnd(header);
+      }
+    });
+    Assert.assertEquals(PLAYLIST, out.toString());
+  }
+
+  @Test
+  public void testInvalidPlaylists() throws Exception {
+    assertInvalid("media.ts\n", 1);
+    assertInvalid("#EXTM3U\nmedia.ts\n", 2);
+    assertInvalid("#EXTM3U\n#EXTINF:abc,\nmedia.ts\n", 2);
+    assertInvalid("#EXTM3U\n#EXTINF:10,\n#EXT-X-BYTERANGE:100\nmedia.ts\n", 4);
+    assertInvalid("#EXTM3U\n#EXTINF:10,\nmedia.ts\n#EXT-X-TARGETDURATION:10\n", 4);
+    assertInvalid("#EXTM3U\n#EXT-X-KEY:METHOD=AES-128\n#EXTINF:10,\nmedia.ts\n", 2);
+    assertInvalid("#EXTM3U\n#EXTINF:10,\n", 2);
+  }
+
+  private void assertInvalid(String playlist, int line) throws IOException {
+    try {
+      new PlaylistReader(new StringReader(playlist)).read(new PlaylistHandler() {
+      });
+      Assert.fail("Playlist must be rejected: " + playlist);
+    } catch (PlaylistException e) {
+      Assert.assertEquals(line, e.getLine());
+    }
+  }
+
+}